@@ -0,0 +1,15 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public class Activity extends Context {
+    public void startActivityForResult(Intent intent, int requestCode) {
+    }
+}
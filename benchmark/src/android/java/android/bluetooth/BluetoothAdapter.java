@@ -0,0 +1,60 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public final class BluetoothAdapter {
+    public static final String ACTION_REQUEST_ENABLE = "android.bluetooth.adapter.action.REQUEST_ENABLE";
+
+    private static final BluetoothAdapter sAdapter = new BluetoothAdapter();
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return sAdapter;
+    }
+
+    public boolean isEnabled() {
+        return false;
+    }
+
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    public boolean startDiscovery() {
+        return false;
+    }
+
+    public boolean cancelDiscovery() {
+        return false;
+    }
+
+    public static boolean checkBluetoothAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            boolean valid = i % 3 == 2 ? c == ':' : (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address);
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+}
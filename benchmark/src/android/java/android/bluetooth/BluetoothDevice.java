@@ -0,0 +1,48 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public final class BluetoothDevice {
+    public static final String ACTION_FOUND = "android.bluetooth.device.action.FOUND";
+    public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+
+    private final String mAddress;
+
+    BluetoothDevice(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice && mAddress.equals(((BluetoothDevice) o).mAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return mAddress.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
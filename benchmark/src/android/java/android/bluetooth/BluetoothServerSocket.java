@@ -0,0 +1,20 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public final class BluetoothServerSocket implements Closeable {
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
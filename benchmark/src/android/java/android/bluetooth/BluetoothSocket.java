@@ -0,0 +1,34 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public final class BluetoothSocket implements Closeable {
+    public void connect() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("No Bluetooth on the JVM");
+    }
+
+    public BluetoothDevice getRemoteDevice() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
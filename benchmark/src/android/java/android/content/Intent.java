@@ -0,0 +1,16 @@
+package android.content;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public class Intent {
+    public Intent(String action) {
+    }
+
+    public <T> T getParcelableExtra(String name) {
+        return null;
+    }
+}
@@ -0,0 +1,12 @@
+package android.content;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to compile in benchmarks.
+ */
+public class IntentFilter {
+    public IntentFilter(String action) {
+    }
+}
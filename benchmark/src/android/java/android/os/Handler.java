@@ -0,0 +1,34 @@
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * JVM stand-in for the Android class, just enough for the library to run in benchmarks.
+ * All handlers share one thread, like handlers of the main looper.
+ */
+public class Handler {
+    private static final ScheduledExecutorService sLooper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "main");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public boolean post(Runnable r) {
+        sLooper.execute(r);
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        sLooper.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,12 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Stand-in for the class generated by the Android build, a release build
+ * so the buffer pool doesn't track borrowed buffers.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
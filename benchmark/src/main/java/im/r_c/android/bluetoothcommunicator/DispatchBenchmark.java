@@ -0,0 +1,72 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.os.Handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Cost of handing received lines from the reader to the receive executor through
+ * {@link ReceiveDispatcher}, either in place or over to a handler thread as on Android.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final int BATCH = 1000;
+    private static final String LINE = "{\"type\":\"state\",\"seq\":12345,\"x\":0.5,\"y\":0.25}";
+
+    @Param({"direct", "handler"})
+    public String executor;
+
+    private ReceiveDispatcher mDispatcher;
+    private final Semaphore mDispatched = new Semaphore(0);
+
+    @Setup
+    public void setUp() {
+        Executor receiveExecutor = executor.equals("handler")
+                ? new HandlerExecutor(new Handler())
+                : BluetoothCommunicator.DIRECT_EXECUTOR;
+        mDispatcher = new ReceiveDispatcher(receiveExecutor, new ReceiveDispatcher.Sink() {
+            @Override
+            public void onLines(List<String> lines) {
+                mDispatched.release(lines.size());
+            }
+
+            @Override
+            public void onBytes(byte[] data) {
+                mDispatched.release();
+            }
+        }, ConnectionOptions.DEFAULT_RECEIVE_QUEUE_CAPACITY, new StatsCollector().newConnection());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void offer() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            mDispatcher.offer(LINE);
+        }
+        mDispatched.acquire(BATCH);
+    }
+}
@@ -0,0 +1,83 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveLinesListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * sendLineToAll from a hub to a number of peers over {@link Loopback}, one line
+ * is done when every peer has it. Seven peers is as many as a piconet allows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final int BATCH = 1000;
+    private static final String HUB_ADDRESS = "00:00:00:00:01:00";
+    private static final String LINE = "{\"type\":\"state\",\"seq\":12345,\"x\":0.5,\"y\":0.25}";
+
+    @Param({"1", "3", "7"})
+    public int peers;
+
+    private Loopback mLoopback;
+    private Loopback.Communicator mHub;
+    private final Semaphore mReceived = new Semaphore(0);
+
+    @Setup
+    public void setUp() throws Exception {
+        mLoopback = new Loopback(HUB_ADDRESS);
+        mHub = mLoopback.newCommunicator();
+        // Room for a whole batch, so no peer is skipped as a slow consumer
+        mHub.getConnectionOptions().setQueueCapacity(BATCH);
+        mHub.getConnectionOptions().setBroadcastQueueLimit(BATCH);
+        OnReceiveLinesListener listener = new OnReceiveLinesListener() {
+            @Override
+            public void onReceiveLines(List<String> lines, BluetoothDevice device) {
+                mReceived.release(lines.size());
+            }
+        };
+        for (int i = 0; i < peers; i++) {
+            Loopback.Communicator peer = mLoopback.newCommunicator();
+            peer.setOnReceiveLinesListener(listener);
+            mLoopback.connect(mHub, peer, String.format("00:00:00:00:00:%02X", i + 1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mLoopback.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendLineToAll() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            mHub.sendLineToAll(LINE);
+        }
+        mReceived.acquire(BATCH * peers);
+    }
+}
@@ -0,0 +1,84 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Encoding of a line into a pooled record and decoding of lines by {@link FrameReader},
+ * without any threads or sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineCodecBenchmark {
+    private static final int BATCH = 256;
+
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean unicode;
+
+    private final BufferPool mPool = new BufferPool();
+    private String mLine;
+    private ByteArrayInputStream mEncoded;
+    private FrameReader mReader;
+
+    @Setup
+    public void setUp() throws IOException {
+        char[] chars = new char[length];
+        Arrays.fill(chars, unicode ? '\u00e9' : 'x');
+        mLine = new String(chars);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < BATCH; i++) {
+            SharedBuffer record = CommunicateThread.encodeLine(mLine, mPool);
+            ByteBuffer buffer = record.buffer;
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            record.release();
+        }
+        mEncoded = new ByteArrayInputStream(out.toByteArray());
+        mReader = new FrameReader(mEncoded, mPool, Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        SharedBuffer record = CommunicateThread.encodeLine(mLine, mPool);
+        blackhole.consume(record.buffer.remaining());
+        record.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decode(Blackhole blackhole) throws IOException {
+        mEncoded.reset();
+        for (int i = 0; i < BATCH; i++) {
+            mReader.next();
+            blackhole.consume(mReader.getLine());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Communicators connected over {@link PipeTransport} in place of Bluetooth sockets.
+ * A hub listens on its address and peers connect to it, each pair runs
+ * the same threads, framing and dispatch as over RFCOMM.
+ */
+class Loopback {
+    private static final UUID UUID_LOOPBACK = UUID.fromString("5d3c2b7e-7f3a-4c55-9a63-2f0c0e5b1a10");
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final String mHubAddress;
+    private final TransportServerSocket mServerSocket;
+    private final List<Communicator> mCommunicators = new ArrayList<>();
+
+    /**
+     * Loopback constructor.
+     *
+     * @param hubAddress Address the hub listens on.
+     * @throws IOException If failed to listen.
+     */
+    Loopback(String hubAddress) throws IOException {
+        mHubAddress = hubAddress;
+        mServerSocket = new PipeTransport(mNetwork, hubAddress).listen("Loopback", UUID_LOOPBACK);
+    }
+
+    /**
+     * Create a communicator calling listeners on the I/O thread.
+     * The handshake is enabled, without it only lines could be sent.
+     *
+     * @return Communicator, closed by {@link #close()}.
+     */
+    Communicator newCommunicator() {
+        Communicator communicator = new Communicator();
+        communicator.setReceiveExecutor(BluetoothCommunicator.DIRECT_EXECUTOR);
+        communicator.getConnectionOptions().setHandshakeEnabled(true);
+        mCommunicators.add(communicator);
+        return communicator;
+    }
+
+    /**
+     * Connect a peer to the hub, blocks until both ends are ready.
+     *
+     * @param hub         Communicator of the hub.
+     * @param peer        Communicator of the peer.
+     * @param peerAddress Address of the peer.
+     * @throws Exception If failed to connect.
+     */
+    void connect(Communicator hub, Communicator peer, String peerAddress) throws Exception {
+        TransportSocket peerSocket = new PipeTransport(mNetwork, peerAddress).createSocket(mHubAddress, UUID_LOOPBACK);
+        peerSocket.connect();
+        TransportSocket hubSocket = mServerSocket.accept();
+
+        final CountDownLatch ready = new CountDownLatch(2);
+        ConnectListener listener = new ConnectListener() {
+            @Override
+            public void onSucceed(BluetoothDevice device) {
+                ready.countDown();
+            }
+
+            @Override
+            public void onFail(BluetoothDevice device) {
+            }
+        };
+        hub.startNewCommunicateThread(hubSocket, listener);
+        peer.startNewCommunicateThread(peerSocket, listener);
+        ready.await();
+    }
+
+    /**
+     * Disconnect all communicators and stop listening.
+     */
+    void close() throws IOException {
+        for (Communicator communicator : mCommunicators) {
+            for (BluetoothDevice device : communicator.getConnectedDevices()) {
+                communicator.disconnectToDevice(device);
+            }
+        }
+        mServerSocket.close();
+    }
+
+    static BluetoothDevice device(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    static class Communicator extends BluetoothCommunicator {
+        Communicator() {
+            super(new Handler());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveBytesListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveLinesListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Messages per second from one communicator to another over {@link Loopback},
+ * from sendLine or sendBytes until the receive listener has them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThroughputBenchmark {
+    private static final int BATCH = 1000;
+    private static final String SENDER_ADDRESS = "00:00:00:00:00:01";
+    private static final String RECEIVER_ADDRESS = "00:00:00:00:00:02";
+
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    private Loopback mLoopback;
+    private Loopback.Communicator mSender;
+    private BluetoothDevice mReceiverDevice;
+    private final Semaphore mReceived = new Semaphore(0);
+    private String mLine;
+    private byte[] mData;
+
+    @Setup
+    public void setUp() throws Exception {
+        mLoopback = new Loopback(RECEIVER_ADDRESS);
+        Loopback.Communicator receiver = mLoopback.newCommunicator();
+        receiver.setOnReceiveLinesListener(new OnReceiveLinesListener() {
+            @Override
+            public void onReceiveLines(List<String> lines, BluetoothDevice device) {
+                mReceived.release(lines.size());
+            }
+        });
+        receiver.setOnReceiveBytesListener(new OnReceiveBytesListener() {
+            @Override
+            public void onReceiveBytes(byte[] data, BluetoothDevice device) {
+                mReceived.release();
+            }
+        });
+        mSender = mLoopback.newCommunicator();
+        mLoopback.connect(receiver, mSender, SENDER_ADDRESS);
+        mReceiverDevice = Loopback.device(RECEIVER_ADDRESS);
+
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        mLine = new String(chars);
+        mData = new byte[size];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mLoopback.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void lines() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            mSender.sendLine(mLine, mReceiverDevice);
+        }
+        mReceived.acquire(BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void bytes() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            mSender.sendBytes(mData, mReceiverDevice);
+        }
+        mReceived.acquire(BATCH);
+    }
+}
@@ -0,0 +1,114 @@
+package im.r_c.android.bluetoothcommunicator.soak;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Samples heap, threads, GC and bytes allocated by the JVM.
+ * <p/>
+ * Allocation is summed over threads, including ones that died since
+ * the sample before, so the allocation of a thread that lived less than
+ * one sampling period is missed. Sample often enough, e.g. every second.
+ */
+class ResourceSampler {
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final Map<Long, Long> mAllocatedByThread = new HashMap<>();
+    private long mAllocatedByDeadThreads;
+    private int mPeakThreadCount;
+
+    ResourceSampler() {
+        com.sun.management.ThreadMXBean threads = getAllocationBean();
+        if (threads != null && !threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Take a sample of allocation and thread count.
+     *
+     * @return Bytes allocated since start of the JVM, or -1 if not supported by the JVM.
+     */
+    synchronized long sampleAllocatedBytes() {
+        mPeakThreadCount = Math.max(mPeakThreadCount, mThreads.getThreadCount());
+        com.sun.management.ThreadMXBean threads = getAllocationBean();
+        if (threads == null) {
+            return -1;
+        }
+
+        long[] ids = mThreads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> current = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] >= 0) {
+                current.put(ids[i], allocated[i]);
+                total += allocated[i];
+            }
+        }
+        for (Map.Entry<Long, Long> entry : mAllocatedByThread.entrySet()) {
+            if (!current.containsKey(entry.getKey())) {
+                mAllocatedByDeadThreads += entry.getValue();
+            }
+        }
+        mAllocatedByThread.clear();
+        mAllocatedByThread.putAll(current);
+        return mAllocatedByDeadThreads + total;
+    }
+
+    int getThreadCount() {
+        return mThreads.getThreadCount();
+    }
+
+    synchronized int getPeakThreadCount() {
+        return mPeakThreadCount;
+    }
+
+    long getHeapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Collect garbage and get the heap left, the live set.
+     *
+     * @return Bytes used after GC.
+     */
+    long getHeapUsedAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return getHeapUsed();
+    }
+
+    long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private com.sun.management.ThreadMXBean getAllocationBean() {
+        if (mThreads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mThreads;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+}
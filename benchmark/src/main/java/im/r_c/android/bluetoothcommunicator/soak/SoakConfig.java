@@ -0,0 +1,161 @@
+package im.r_c.android.bluetoothcommunicator.soak;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Options of a soak test, parsed from "--name value" arguments.
+ */
+class SoakConfig {
+    static final String USAGE = "Options:\n"
+            + "  --clients N          Clients connected to the server (default 7)\n"
+            + "  --duration SECONDS   How long to run (default 600)\n"
+            + "  --size BYTES         Length of each line (default 64)\n"
+            + "  --client-rate N      Lines per second each client sends to the server (default 20)\n"
+            + "  --server-rate N      Lines per second the server sends (default 50)\n"
+            + "  --broadcast RATIO    Share of server lines sent to all clients, the rest go to one (default 0.5)\n"
+            + "  --churn SECONDS      Reconnect one client every SECONDS, 0 for none (default 0)\n"
+            + "  --progress SECONDS   Print progress every SECONDS (default 10)\n"
+            + "  --settle SECONDS     Max wait for idle threads to time out after disconnecting (default 60)\n"
+            + "  --seed N             Seed of the random choices (default 1)\n"
+            + "  --report FILE        Also write the report to FILE";
+
+    private int mClients = 7;
+    private long mDurationSeconds = 600;
+    private int mMessageSize = 64;
+    private double mClientRate = 20;
+    private double mServerRate = 50;
+    private double mBroadcastRatio = 0.5;
+    private long mChurnSeconds = 0;
+    private long mProgressSeconds = 10;
+    private long mSettleSeconds = 60;
+    private long mSeed = 1;
+    private String mReportFile;
+
+    /**
+     * Parse arguments.
+     *
+     * @param args Arguments of main.
+     * @return Config.
+     * @throws IllegalArgumentException If an option is unknown or its value is bad.
+     */
+    static SoakConfig parse(String[] args) {
+        SoakConfig config = new SoakConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + name);
+            }
+            String value = args[i + 1];
+            try {
+                switch (name) {
+                    case "--clients":
+                        config.mClients = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        config.mDurationSeconds = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        config.mMessageSize = Integer.parseInt(value);
+                        break;
+                    case "--client-rate":
+                        config.mClientRate = Double.parseDouble(value);
+                        break;
+                    case "--server-rate":
+                        config.mServerRate = Double.parseDouble(value);
+                        break;
+                    case "--broadcast":
+                        config.mBroadcastRatio = Double.parseDouble(value);
+                        break;
+                    case "--churn":
+                        config.mChurnSeconds = Long.parseLong(value);
+                        break;
+                    case "--progress":
+                        config.mProgressSeconds = Long.parseLong(value);
+                        break;
+                    case "--settle":
+                        config.mSettleSeconds = Long.parseLong(value);
+                        break;
+                    case "--seed":
+                        config.mSeed = Long.parseLong(value);
+                        break;
+                    case "--report":
+                        config.mReportFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value of " + name + ": " + value);
+            }
+        }
+
+        if (config.mClients <= 0 || config.mDurationSeconds <= 0 || config.mMessageSize <= 0
+                || config.mProgressSeconds <= 0) {
+            throw new IllegalArgumentException("Clients, duration, size and progress must be positive");
+        }
+        if (config.mClientRate < 0 || config.mServerRate < 0 || config.mChurnSeconds < 0 || config.mSettleSeconds < 0) {
+            throw new IllegalArgumentException("Rates, churn and settle must not be negative");
+        }
+        if (config.mBroadcastRatio < 0 || config.mBroadcastRatio > 1) {
+            throw new IllegalArgumentException("Broadcast ratio must be between 0 and 1");
+        }
+        return config;
+    }
+
+    int getClients() {
+        return mClients;
+    }
+
+    long getDurationSeconds() {
+        return mDurationSeconds;
+    }
+
+    int getMessageSize() {
+        return mMessageSize;
+    }
+
+    double getClientRate() {
+        return mClientRate;
+    }
+
+    double getServerRate() {
+        return mServerRate;
+    }
+
+    double getBroadcastRatio() {
+        return mBroadcastRatio;
+    }
+
+    long getChurnSeconds() {
+        return mChurnSeconds;
+    }
+
+    long getProgressSeconds() {
+        return mProgressSeconds;
+    }
+
+    long getSettleSeconds() {
+        return mSettleSeconds;
+    }
+
+    long getSeed() {
+        return mSeed;
+    }
+
+    String getReportFile() {
+        return mReportFile;
+    }
+
+    @Override
+    public String toString() {
+        return "clients=" + mClients
+                + ", duration=" + mDurationSeconds + " s"
+                + ", size=" + mMessageSize + " B"
+                + ", clientRate=" + mClientRate + "/s"
+                + ", serverRate=" + mServerRate + "/s"
+                + ", broadcast=" + mBroadcastRatio
+                + ", churn=" + (mChurnSeconds == 0 ? "off" : mChurnSeconds + " s")
+                + ", seed=" + mSeed;
+    }
+}
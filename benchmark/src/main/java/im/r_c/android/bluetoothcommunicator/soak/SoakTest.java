@@ -0,0 +1,485 @@
+package im.r_c.android.bluetoothcommunicator.soak;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import im.r_c.android.bluetoothcommunicator.AdmissionPolicy;
+import im.r_c.android.bluetoothcommunicator.BluetoothClient;
+import im.r_c.android.bluetoothcommunicator.BluetoothCommunicator;
+import im.r_c.android.bluetoothcommunicator.BluetoothServer;
+import im.r_c.android.bluetoothcommunicator.BufferPool;
+import im.r_c.android.bluetoothcommunicator.CommunicatorStats;
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
+import im.r_c.android.bluetoothcommunicator.listener.ListenStateListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveLinesListener;
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Soak and load test, one {@link BluetoothServer} and a number of {@link BluetoothClient}s
+ * in one JVM over {@link PipeTransport}, driven only through the public API.
+ * <p/>
+ * Clients send lines to the server and the server sends lines to all or one of
+ * the clients, each at a fixed rate. Lines carry their send time, so latency
+ * is from sendLine until the receive listener has the line. Optionally a
+ * client is disconnected and connected again every now and then.
+ * <p/>
+ * The server receives on the Handler thread, as an app would on its UI thread.
+ * Clients receive in place, each stands for a phone with a UI thread of its own.
+ * <p/>
+ * At the end a report of throughput, latency percentiles, allocation rate
+ * and leak indicators is printed. Exit code is 1 if a leak is suspected.
+ * See {@link SoakConfig#USAGE} for options.
+ */
+public class SoakTest {
+    private static final String SERVER_ADDRESS = "00:00:00:00:00:01";
+    private static final UUID UUID_SOAK = UUID.fromString("8f0f4a52-3c1e-4d8b-b7a5-6e2d9c1f0a33");
+    private static final long TICK_MILLIS = 10;
+    private static final long SAMPLE_MILLIS = 1000;
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long DRAIN_MILLIS = 2000;
+    private static final double MB = 1024 * 1024;
+
+    private final SoakConfig mConfig;
+    private final Random mRandom;
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final BufferPool mPool = new BufferPool();
+    private final ResourceSampler mSampler = new ResourceSampler();
+    private final BluetoothDevice mServerDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(SERVER_ADDRESS);
+    private final String mPadding;
+    private BluetoothServer mServer;
+    private final List<BluetoothClient> mClients = new ArrayList<>();
+
+    private final LatencyRecorder mUpLatency = new LatencyRecorder();
+    private final LatencyRecorder mDownLatency = new LatencyRecorder();
+    private final AtomicLong mUpSent = new AtomicLong();
+    private final AtomicLong mUpReceived = new AtomicLong();
+    private final AtomicLong mDownSent = new AtomicLong();
+    private final AtomicLong mDownReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mReconnectFailures = new AtomicLong();
+
+    // Only touched by the sender thread
+    private double[] mClientCredits;
+    private double mServerCredit;
+
+    // Only touched by the monitor thread
+    private volatile long mAllocatedBytes;
+    private long mLastProgressNanos;
+    private long mLastUpReceived;
+    private long mLastDownReceived;
+
+    public static void main(String[] args) throws Exception {
+        SoakConfig config;
+        try {
+            config = SoakConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(SoakConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        SoakTest test = new SoakTest(config);
+        Report report = test.run();
+        System.out.println(report.text);
+        if (config.getReportFile() != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(config.getReportFile()), Charset.forName("UTF-8"));
+            try {
+                writer.write(report.text);
+            } finally {
+                writer.close();
+            }
+        }
+        System.exit(report.leakSuspected ? 1 : 0);
+    }
+
+    SoakTest(SoakConfig config) {
+        mConfig = config;
+        mRandom = new Random(config.getSeed());
+        char[] padding = new char[config.getMessageSize()];
+        Arrays.fill(padding, 'x');
+        mPadding = new String(padding);
+    }
+
+    /**
+     * Run the test, blocks for the duration and a bit more.
+     *
+     * @return Report.
+     * @throws Exception If the clients failed to connect.
+     */
+    Report run() throws Exception {
+        Handler handler = new Handler();
+        // The thread behind the handler starts on first use, count it in the baseline
+        final CountDownLatch started = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+            }
+        });
+        started.await();
+        mServer = new BluetoothServer(handler);
+        Set<Thread> baselineThreads = getThreads();
+        int baselineThreadCount = mSampler.getThreadCount();
+        startServer();
+        connectClients();
+
+        long heapStart = mSampler.getHeapUsedAfterGc();
+        long gcCountStart = mSampler.getGcCount();
+        long gcMillisStart = mSampler.getGcMillis();
+        final long allocatedStart = mSampler.sampleAllocatedBytes();
+        mAllocatedBytes = allocatedStart;
+        final long startNanos = System.nanoTime();
+        mLastProgressNanos = startNanos;
+        System.out.println("Soak test started, " + mConfig);
+
+        ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        mClientCredits = new double[mClients.size()];
+        sender.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        monitor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                mAllocatedBytes = mSampler.sampleAllocatedBytes();
+            }
+        }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        monitor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                printProgress(startNanos, allocatedStart);
+            }
+        }, mConfig.getProgressSeconds(), mConfig.getProgressSeconds(), TimeUnit.SECONDS);
+        if (mConfig.getChurnSeconds() > 0) {
+            monitor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    churn();
+                }
+            }, mConfig.getChurnSeconds(), mConfig.getChurnSeconds(), TimeUnit.SECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mConfig.getDurationSeconds()));
+        sender.shutdown();
+        sender.awaitTermination(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long sendEndNanos = System.nanoTime();
+        // Let lines in flight arrive
+        Thread.sleep(DRAIN_MILLIS);
+        monitor.shutdown();
+        monitor.awaitTermination(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Report report = new Report();
+        report.elapsedSeconds = (sendEndNanos - startNanos) / 1e9;
+        report.allocatedBytes = allocatedStart < 0 ? -1 : mSampler.sampleAllocatedBytes() - allocatedStart;
+        report.gcCount = mSampler.getGcCount() - gcCountStart;
+        report.gcMillis = mSampler.getGcMillis() - gcMillisStart;
+        report.peakThreadCount = mSampler.getPeakThreadCount();
+        report.connectedThreadCount = mSampler.getThreadCount();
+        report.heapStart = heapStart;
+        report.heapEnd = mSampler.getHeapUsedAfterGc();
+        report.serverStats = mServer.getStats();
+
+        disconnectAll(baselineThreadCount);
+        report.connectionsLeft = mServer.getConnectionCount();
+        report.outstandingBuffers = mPool.getOutstandingCount();
+        report.baselineThreadCount = baselineThreadCount;
+        report.threadCount = mSampler.getThreadCount();
+        report.extraThreads = new TreeMap<>();
+        for (Thread thread : getThreads()) {
+            if (!baselineThreads.contains(thread)) {
+                // Group pools by name without the thread number
+                String group = thread.getName().replaceAll("\\d+$", "#");
+                Integer count = report.extraThreads.get(group);
+                report.extraThreads.put(group, count == null ? 1 : count + 1);
+            }
+        }
+        report.build();
+        return report;
+    }
+
+    private void startServer() throws InterruptedException {
+        mServer.setTransport(new PipeTransport(mNetwork, SERVER_ADDRESS));
+        mServer.getConnectionOptions().setBufferPool(mPool);
+        mServer.setMaxConnections(mConfig.getClients());
+        // A churned client may be back before its old connection is gone
+        mServer.setAdmissionPolicy(AdmissionPolicy.QUEUE);
+        mServer.setOnReceiveLinesListener(new OnReceiveLinesListener() {
+            @Override
+            public void onReceiveLines(List<String> lines, BluetoothDevice device) {
+                onReceive(lines, mUpLatency, mUpReceived);
+            }
+        });
+        mServer.startListening("Soak", UUID_SOAK, new ListenStateListener() {
+            @Override
+            public void onAccept(BluetoothDevice device) {
+            }
+
+            @Override
+            public void onFail() {
+                System.err.println("Server failed to listen");
+            }
+        });
+        while (!mServer.isListening()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void connectClients() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(mConfig.getClients());
+        final AtomicLong failed = new AtomicLong();
+        ConnectListener listener = new ConnectListener() {
+            @Override
+            public void onSucceed(BluetoothDevice device) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onFail(BluetoothDevice device) {
+                failed.incrementAndGet();
+                connected.countDown();
+            }
+        };
+        OnReceiveLinesListener receiveListener = new OnReceiveLinesListener() {
+            @Override
+            public void onReceiveLines(List<String> lines, BluetoothDevice device) {
+                onReceive(lines, mDownLatency, mDownReceived);
+            }
+        };
+
+        for (int i = 0; i < mConfig.getClients(); i++) {
+            String address = String.format(Locale.US, "02:00:00:00:%02X:%02X", (i >> 8) & 0xff, i & 0xff);
+            BluetoothClient client = new BluetoothClient(new Handler());
+            client.setTransport(new PipeTransport(mNetwork, address));
+            client.getConnectionOptions().setBufferPool(mPool);
+            client.setReceiveExecutor(BluetoothCommunicator.DIRECT_EXECUTOR);
+            client.setOnReceiveLinesListener(receiveListener);
+            mClients.add(client);
+            client.connectToDevice(mServerDevice, UUID_SOAK, listener);
+        }
+        if (!connected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS) || failed.get() > 0) {
+            throw new IllegalStateException("Only " + (mConfig.getClients() - connected.getCount() - failed.get())
+                    + " of " + mConfig.getClients() + " clients connected");
+        }
+    }
+
+    private void send() {
+        double perTick = TICK_MILLIS / 1000.0;
+        for (int i = 0; i < mClients.size(); i++) {
+            BluetoothClient client = mClients.get(i);
+            mClientCredits[i] += mConfig.getClientRate() * perTick;
+            while (mClientCredits[i] >= 1) {
+                mClientCredits[i]--;
+                if (client.isConnectedToDevice(mServerDevice)) {
+                    client.sendLine(newLine(), mServerDevice);
+                    mUpSent.incrementAndGet();
+                }
+            }
+        }
+
+        List<BluetoothDevice> devices = null;
+        mServerCredit += mConfig.getServerRate() * perTick;
+        while (mServerCredit >= 1) {
+            mServerCredit--;
+            if (mRandom.nextDouble() < mConfig.getBroadcastRatio()) {
+                int count = mServer.getConnectionCount();
+                if (count > 0) {
+                    mServer.sendLineToAll(newLine());
+                    mDownSent.addAndGet(count);
+                }
+            } else {
+                if (devices == null) {
+                    devices = new ArrayList<>(mServer.getConnectedDevices());
+                }
+                if (!devices.isEmpty()) {
+                    mServer.sendLine(newLine(), devices.get(mRandom.nextInt(devices.size())));
+                    mDownSent.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private String newLine() {
+        String time = Long.toString(System.nanoTime());
+        return time + ' ' + mPadding.substring(0, Math.max(0, mPadding.length() - time.length() - 1));
+    }
+
+    private void onReceive(List<String> lines, LatencyRecorder latency, AtomicLong received) {
+        long now = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int space = line.indexOf(' ');
+            long sentNanos = Long.parseLong(space < 0 ? line : line.substring(0, space));
+            latency.record((now - sentNanos) / 1000);
+            bytes += line.length() + 1;
+        }
+        received.addAndGet(lines.size());
+        mBytesReceived.addAndGet(bytes);
+    }
+
+    private void churn() {
+        BluetoothClient client = mClients.get(mRandom.nextInt(mClients.size()));
+        client.disconnectToDevice(mServerDevice);
+        client.connectToDevice(mServerDevice, UUID_SOAK, new ConnectListener() {
+            @Override
+            public void onSucceed(BluetoothDevice device) {
+                mReconnects.incrementAndGet();
+            }
+
+            @Override
+            public void onFail(BluetoothDevice device) {
+                mReconnectFailures.incrementAndGet();
+            }
+        });
+    }
+
+    private void printProgress(long startNanos, long allocatedStart) {
+        long now = System.nanoTime();
+        double interval = (now - mLastProgressNanos) / 1e9;
+        long up = mUpReceived.get();
+        long down = mDownReceived.get();
+        double allocationRate = allocatedStart < 0 ? -1 : (mAllocatedBytes - allocatedStart) / MB / ((now - startNanos) / 1e9);
+        System.out.println(String.format(Locale.US,
+                "[%6.0f s] up %8.1f/s p99 %7.2f ms | down %8.1f/s p99 %7.2f ms | heap %6.1f MB | alloc %6.1f MB/s | threads %4d | connections %d",
+                (now - startNanos) / 1e9,
+                (up - mLastUpReceived) / interval, mUpLatency.getPercentileMicros(99) / 1000.0,
+                (down - mLastDownReceived) / interval, mDownLatency.getPercentileMicros(99) / 1000.0,
+                mSampler.getHeapUsed() / MB, allocationRate, mSampler.getThreadCount(), mServer.getConnectionCount()));
+        mLastProgressNanos = now;
+        mLastUpReceived = up;
+        mLastDownReceived = down;
+    }
+
+    private void disconnectAll(int baselineThreadCount) throws InterruptedException {
+        for (BluetoothClient client : mClients) {
+            client.disconnectToDevice(mServerDevice);
+        }
+        mServer.stopListening();
+
+        // Idle pool threads time out after a while, wait for them up to the settle time
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(mConfig.getSettleSeconds());
+        while (System.nanoTime() < deadline
+                && (mServer.getConnectionCount() > 0 || mSampler.getThreadCount() > baselineThreadCount)) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static Set<Thread> getThreads() {
+        return new HashSet<>(Thread.getAllStackTraces().keySet());
+    }
+
+    private class Report {
+        double elapsedSeconds;
+        long allocatedBytes;
+        long gcCount;
+        long gcMillis;
+        int peakThreadCount;
+        int connectedThreadCount;
+        int baselineThreadCount;
+        int threadCount;
+        long heapStart;
+        long heapEnd;
+        CommunicatorStats serverStats;
+        int connectionsLeft;
+        int outstandingBuffers;
+        Map<String, Integer> extraThreads;
+        String text;
+        boolean leakSuspected;
+
+        void build() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Soak test report\n");
+            sb.append("  ").append(mConfig).append('\n');
+            sb.append(String.format(Locale.US, "  ran %.1f s\n", elapsedSeconds));
+
+            sb.append("Throughput\n");
+            appendTraffic(sb, "upstream", mUpSent.get(), mUpReceived.get());
+            appendTraffic(sb, "downstream", mDownSent.get(), mDownReceived.get());
+            sb.append(String.format(Locale.US, "  received %.1f KB/s in all\n",
+                    mBytesReceived.get() / 1024.0 / elapsedSeconds));
+
+            sb.append("Latency (ms)        count        p50        p99       p999        max\n");
+            appendLatency(sb, "upstream", mUpLatency);
+            appendLatency(sb, "downstream", mDownLatency);
+
+            sb.append("Resources\n");
+            if (allocatedBytes < 0) {
+                sb.append("  allocation rate    not supported by this JVM\n");
+            } else {
+                sb.append(String.format(Locale.US, "  allocation rate    %.2f MB/s, %.0f bytes per message\n",
+                        allocatedBytes / MB / elapsedSeconds,
+                        (double) allocatedBytes / Math.max(1, mUpReceived.get() + mDownReceived.get())));
+            }
+            sb.append(String.format(Locale.US, "  gc                 %d collections, %d ms\n", gcCount, gcMillis));
+            double heapGrowthPerHour = (heapEnd - heapStart) / MB / (elapsedSeconds / 3600);
+            sb.append(String.format(Locale.US, "  heap after gc      %.1f MB at start, %.1f MB at end, %+.1f MB per hour\n",
+                    heapStart / MB, heapEnd / MB, heapGrowthPerHour));
+            sb.append(String.format(Locale.US, "  threads            %d before connecting, %d connected, %d at peak\n",
+                    baselineThreadCount, connectedThreadCount, peakThreadCount));
+
+            sb.append("Server\n");
+            sb.append("  opened ").append(serverStats.getOpenedCount())
+                    .append(", rejected ").append(serverStats.getRejectedCount())
+                    .append(", dropped ").append(serverStats.getDroppedCount())
+                    .append(", reader stalls ").append(serverStats.getReaderStallCount())
+                    .append(" (").append(serverStats.getReaderStallMillis()).append(" ms)\n");
+            sb.append("  disconnects ").append(serverStats.getDisconnects()).append('\n');
+            if (mConfig.getChurnSeconds() > 0) {
+                sb.append("  reconnects ").append(mReconnects.get())
+                        .append(", failed ").append(mReconnectFailures.get()).append('\n');
+            }
+
+            sb.append("Leak indicators (after disconnecting all)\n");
+            sb.append("  connections left   ").append(connectionsLeft).append('\n');
+            sb.append("  buffers borrowed   ").append(outstandingBuffers).append('\n');
+            sb.append("  threads left       ").append(threadCount - baselineThreadCount);
+            if (!extraThreads.isEmpty()) {
+                sb.append(' ').append(extraThreads);
+            }
+            sb.append('\n');
+            leakSuspected = connectionsLeft > 0 || outstandingBuffers > 0 || threadCount > baselineThreadCount;
+            sb.append(leakSuspected ? "LEAK SUSPECTED\n" : "No leak found\n");
+            text = sb.toString();
+        }
+
+        private void appendTraffic(StringBuilder sb, String name, long sent, long received) {
+            sb.append(String.format(Locale.US, "  %-10s sent %d, received %d (%.1f/s), not received %d\n",
+                    name, sent, received, received / elapsedSeconds, sent - received));
+        }
+
+        private void appendLatency(StringBuilder sb, String name, LatencyRecorder latency) {
+            sb.append(String.format(Locale.US, "  %-10s %12d %10.2f %10.2f %10.2f %10.2f\n", name, latency.getCount(),
+                    latency.getPercentileMicros(50) / 1000.0, latency.getPercentileMicros(99) / 1000.0,
+                    latency.getPercentileMicros(99.9) / 1000.0, latency.getMaxMicros() / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * What a server does with a connection request when it's full.
+ */
+public enum AdmissionPolicy {
+    /**
+     * Close the socket at once.
+     */
+    REJECT,
+
+    /**
+     * Hold the socket until a connection is lost, rejecting it if the admission queue
+     * is full too or it waits longer than the admission queue timeout.
+     */
+    QUEUE
+}
@@ -0,0 +1,24 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * What to do when a connection's outbound queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Block the sender until there is room.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued message (its listener gets onFail) to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Fail the new message immediately.
+     */
+    FAIL_FAST
+}
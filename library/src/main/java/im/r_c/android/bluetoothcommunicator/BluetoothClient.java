@@ -1,29 +1,56 @@
 package im.r_c.android.bluetoothcommunicator;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnLoseConnectionListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnNewDeviceFoundListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnReceiveListener;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
 
 /**
  * BluetoothCommunicator
  * Created by richard on 16/1/11.
  * <p/>
  * Class used to communicate through Bluetooth as a client.
+ * It can keep connections to several devices at once.
  */
 public class BluetoothClient extends BluetoothCommunicator {
+    public static final int DEFAULT_MAX_PEERS = 7;
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 2;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 12000;
+
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
     private BroadcastReceiver mDiscoveryBroadcastReceiver;
+    private volatile int mMaxPeers = DEFAULT_MAX_PEERS;
+    private int mMaxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECTS;
+    private volatile long mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private final Map<String, ConnectTask> mPendingConnects = new HashMap<>();
+    private ThreadPoolExecutor mConnectExecutor;
+    private ScheduledThreadPoolExecutor mTimeoutExecutor;
+    private final Random mRandom = new Random();
 
     /**
      * BluetoothClient constructor without listeners.
@@ -89,69 +116,354 @@ public class BluetoothClient extends BluetoothCommunicator {
         }
     }
 
+    /**
+     * Setter of mMaxPeers.
+     *
+     * @param maxPeers Max count of connected and connecting devices.
+     */
+    public void setMaxPeers(int maxPeers) {
+        if (maxPeers <= 0) {
+            throw new IllegalArgumentException("Max peers must be positive");
+        }
+        mMaxPeers = maxPeers;
+    }
+
+    public int getMaxPeers() {
+        return mMaxPeers;
+    }
+
+    /**
+     * Setter of mMaxConcurrentConnects.
+     * RFCOMM connect attempts are slow and serialize badly, so keep it small.
+     *
+     * @param maxConcurrentConnects Max count of connect attempts running at the same time.
+     */
+    public void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        if (maxConcurrentConnects <= 0) {
+            throw new IllegalArgumentException("Max concurrent connects must be positive");
+        }
+        synchronized (mPendingConnects) {
+            mMaxConcurrentConnects = maxConcurrentConnects;
+            if (mConnectExecutor != null) {
+                if (maxConcurrentConnects > mConnectExecutor.getMaximumPoolSize()) {
+                    mConnectExecutor.setMaximumPoolSize(maxConcurrentConnects);
+                    mConnectExecutor.setCorePoolSize(maxConcurrentConnects);
+                } else {
+                    mConnectExecutor.setCorePoolSize(maxConcurrentConnects);
+                    mConnectExecutor.setMaximumPoolSize(maxConcurrentConnects);
+                }
+            }
+        }
+    }
+
+    public int getMaxConcurrentConnects() {
+        return mMaxConcurrentConnects;
+    }
+
+    /**
+     * Setter of mConnectTimeoutMillis.
+     *
+     * @param connectTimeoutMillis Timeout of each connect attempt, not counting the time waiting for its turn, 0 for no timeout.
+     */
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Connect timeout must not be negative");
+        }
+        mConnectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    /**
+     * Get count of connect attempts not finished yet, including those waiting for their turn.
+     *
+     * @return Count.
+     */
+    public int getPendingConnectCount() {
+        synchronized (mPendingConnects) {
+            return mPendingConnects.size();
+        }
+    }
+
     /**
      * Connect to device.
+     * Attempts run in parallel, at most mMaxConcurrentConnects at a time,
+     * and fail if the device would exceed mMaxPeers.
+     * Connecting again to a device being connected waits for the same attempt.
      *
      * @param device   Device to connect.
      * @param uuid     The app's UUID string, should be the same as the server side.
      * @param listener Listener.
      */
     public void connectToDevice(BluetoothDevice device, UUID uuid, ConnectListener listener) {
-        if (mConnections.containsKey(device)) {
+        if (mConnections.contains(device.getAddress())) {
             listener.onSucceed(device);
             return;
         }
 
-        if (mConnections.size() > 0) {
-            listener.onFail(device);
+        ConnectTask task;
+        synchronized (mPendingConnects) {
+            task = mPendingConnects.get(device.getAddress());
+            if (task != null) {
+                task.addListener(listener);
+                return;
+            }
+
+            if (mConnections.size() + mPendingConnects.size() >= mMaxPeers) {
+                listener.onFail(device);
+                return;
+            }
+
+            task = new ConnectTask(device, uuid, null, listener);
+            mPendingConnects.put(device.getAddress(), task);
+            getConnectExecutor().execute(task);
+        }
+    }
+
+    /**
+     * Connect to several devices in parallel.
+     * The listener is called once for each device.
+     *
+     * @param devices  Devices to connect.
+     * @param uuid     The app's UUID string, should be the same as the server side.
+     * @param listener Listener.
+     */
+    public void connectToDevices(Collection<BluetoothDevice> devices, UUID uuid, ConnectListener listener) {
+        for (BluetoothDevice device : devices) {
+            connectToDevice(device, uuid, listener);
+        }
+    }
+
+    /**
+     * Cancel connecting to device, its listeners are called with onFail.
+     *
+     * @param device Device being connected.
+     */
+    public void cancelConnecting(BluetoothDevice device) {
+        ConnectTask task;
+        synchronized (mPendingConnects) {
+            task = mPendingConnects.get(device.getAddress());
+        }
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    @Override
+    void onSessionInterrupted(BluetoothDevice device, Session session) {
+        super.onSessionInterrupted(device, session);
+        UUID uuid = session.getServiceUuid();
+        if (uuid != null) {
+            scheduleReconnect(device, uuid, session, 1);
+        }
+    }
+
+    @Override
+    void onSessionRejected(BluetoothDevice device, Session session) {
+        // The server doesn't have the session any more, trying again can't resume it
+        UUID uuid = session.getServiceUuid();
+        if (uuid == null) {
             return;
         }
+        ConnectListener listener = new ConnectListener() {
+            @Override
+            public void onSucceed(BluetoothDevice device) {
+                reconnected(device);
+            }
 
-        new ConnectThread(device, uuid, listener).start();
+            @Override
+            public void onFail(BluetoothDevice device) {
+            }
+        };
+        synchronized (mPendingConnects) {
+            if (mPendingConnects.containsKey(device.getAddress())) {
+                return;
+            }
+            ConnectTask task = new ConnectTask(device, uuid, null, listener);
+            mPendingConnects.put(device.getAddress(), task);
+            getConnectExecutor().execute(task);
+        }
+        reconnecting(device, 1);
     }
 
     /**
-     * Thread to make connection.
+     * Try to resume an interrupted session after a jittered exponential backoff,
+     * until it's resumed or given up.
+     *
+     * @param device  Device to reconnect.
+     * @param uuid    The app's UUID.
+     * @param session Interrupted session.
+     * @param attempt Attempt number, from 1.
      */
-    private class ConnectThread extends Thread {
+    private void scheduleReconnect(final BluetoothDevice device, final UUID uuid, final Session session, final int attempt) {
+        long base = mConnectionOptions.getReconnectBaseDelayMillis();
+        long max = mConnectionOptions.getReconnectMaxDelayMillis();
+        long delay = Math.min(max, base << Math.min(attempt - 1, 16));
+        // Half fixed, half random, so peers dropped together don't reconnect in lockstep
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2 + 1));
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mInterruptedSessions.get(device.getAddress()) != session) {
+                    // Resumed or given up meanwhile
+                    return;
+                }
+
+                ConnectListener retry = new ConnectListener() {
+                    @Override
+                    public void onSucceed(BluetoothDevice device) {
+                    }
+
+                    @Override
+                    public void onFail(BluetoothDevice device) {
+                        scheduleReconnect(device, uuid, session, attempt + 1);
+                    }
+                };
+                synchronized (mPendingConnects) {
+                    if (mPendingConnects.containsKey(device.getAddress())) {
+                        retry.onFail(device);
+                        return;
+                    }
+                    ConnectTask task = new ConnectTask(device, uuid, session, retry);
+                    mPendingConnects.put(device.getAddress(), task);
+                    getConnectExecutor().execute(task);
+                }
+                reconnecting(device, attempt);
+            }
+        }, delay);
+    }
+
+    private ThreadPoolExecutor getConnectExecutor() {
+        if (mConnectExecutor == null) {
+            mConnectExecutor = new ThreadPoolExecutor(mMaxConcurrentConnects, mMaxConcurrentConnects,
+                    IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("BluetoothConnect"));
+            mConnectExecutor.allowCoreThreadTimeOut(true);
+            mTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothConnectTimeout"));
+            mTimeoutExecutor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mTimeoutExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mConnectExecutor;
+    }
+
+    /**
+     * Task to make connection, run on the connect executor.
+     */
+    private class ConnectTask implements Runnable {
         private BluetoothDevice mmDevice;
-        private BluetoothSocket mmSocket;
-        private ConnectListener mmListener;
+        private UUID mmUuid;
+        private Session mmSession;
+        private List<ConnectListener> mmListeners = new CopyOnWriteArrayList<>();
+        private volatile TransportSocket mmSocket;
+        private volatile boolean mmCancelled;
+        private AtomicBoolean mmDone = new AtomicBoolean();
 
-        public ConnectThread(BluetoothDevice device, UUID uuid, ConnectListener listener) {
+        public ConnectTask(BluetoothDevice device, UUID uuid, Session session, ConnectListener listener) {
             mmDevice = device;
-            mmListener = listener;
+            mmUuid = uuid;
+            mmSession = session;
+            addListener(listener);
+        }
 
-            BluetoothSocket tmp = null;
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(uuid);
-            } catch (Exception e) {
-                cancel();
-                fail(mmDevice);
+        /**
+         * Add a listener, only before the task is finished (guarded by mPendingConnects).
+         *
+         * @param listener Listener.
+         */
+        public void addListener(ConnectListener listener) {
+            if (listener != null) {
+                mmListeners.add(listener);
             }
-            mmSocket = tmp;
         }
 
         @Override
         public void run() {
-            mBluetoothAdapter.cancelDiscovery();
+            if (mmCancelled) {
+                fail(mmDevice);
+                return;
+            }
+
+            ScheduledFuture<?> timeout = null;
+            long start = System.nanoTime();
             try {
+                mmSocket = mTransport.createSocket(mmDevice.getAddress(), mmUuid);
+                if (mBluetoothAdapter != null) {
+                    mBluetoothAdapter.cancelDiscovery();
+                }
+                if (mConnectTimeoutMillis > 0) {
+                    // Closing the socket is the only way to abort a blocking connect
+                    timeout = mTimeoutExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel();
+                        }
+                    }, mConnectTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                if (mmCancelled) {
+                    throw new IOException("Cancelled");
+                }
                 mmSocket.connect();
-                startNewCommunicateThread(mmSocket);
-                succeed(mmDevice);
             } catch (Exception e) {
-                cancel();
+                closeSocket();
+                mStatsCollector.onConnectFailed();
                 fail(mmDevice);
+                return;
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+            mStatsCollector.connectTime.recordNanos(System.nanoTime() - start);
+
+            // Report after the handshake, so the first send uses the negotiated protocol
+            Session session = mmSession;
+            if (session == null && mConnectionOptions.isResumptionEnabled()) {
+                session = new Session(Session.newId(), mConnectionOptions.getResumeBufferLimit());
+                session.setServiceUuid(mmUuid);
             }
+            startNewCommunicateThread(mmSocket, session, new ConnectListener() {
+                @Override
+                public void onSucceed(BluetoothDevice device) {
+                    succeed(device);
+                }
+
+                @Override
+                public void onFail(BluetoothDevice device) {
+                    // The socket may have no device, e.g. a TCP one to an IPv6 host
+                    fail(mmDevice);
+                }
+            });
+
+            // Registered as a connection now, so no longer counted as pending
+            removePending();
         }
 
         /**
-         * Cancel the thread.
+         * Cancel the task, closing the socket if connecting.
          */
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (Exception ignored) {
+            mmCancelled = true;
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            TransportSocket socket = mmSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+
+        private void removePending() {
+            synchronized (mPendingConnects) {
+                if (mPendingConnects.get(mmDevice.getAddress()) == this) {
+                    mPendingConnects.remove(mmDevice.getAddress());
+                }
             }
         }
 
@@ -161,14 +473,7 @@ public class BluetoothClient extends BluetoothCommunicator {
          * @param device Device to connect
          */
         private void succeed(final BluetoothDevice device) {
-            if (mmListener != null) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mmListener.onSucceed(device);
-                    }
-                });
-            }
+            finish(device, true);
         }
 
         /**
@@ -177,11 +482,24 @@ public class BluetoothClient extends BluetoothCommunicator {
          * @param device Device to connect
          */
         private void fail(final BluetoothDevice device) {
-            if (mmListener != null) {
+            finish(device, false);
+        }
+
+        private void finish(final BluetoothDevice device, final boolean succeeded) {
+            if (!mmDone.compareAndSet(false, true)) {
+                return;
+            }
+            removePending();
+
+            for (final ConnectListener listener : mmListeners) {
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mmListener.onFail(device);
+                        if (succeeded) {
+                            listener.onSucceed(device);
+                        } else {
+                            listener.onFail(device);
+                        }
                     }
                 });
             }
@@ -3,17 +3,40 @@ package im.r_c.android.bluetoothcommunicator;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.os.Handler;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnFlushListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnLoseConnectionListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveChannelListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveBytesListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveLinesListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnReceiveListener;
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveMessageListener;
+import im.r_c.android.bluetoothcommunicator.listener.ReconnectListener;
+import im.r_c.android.bluetoothcommunicator.listener.RpcHandler;
+import im.r_c.android.bluetoothcommunicator.listener.RpcListener;
 import im.r_c.android.bluetoothcommunicator.listener.SendListener;
+import im.r_c.android.bluetoothcommunicator.listener.StatsListener;
+import im.r_c.android.bluetoothcommunicator.listener.TransferHandler;
+import im.r_c.android.bluetoothcommunicator.listener.TransferListener;
+import im.r_c.android.bluetoothcommunicator.transport.RfcommTransport;
+import im.r_c.android.bluetoothcommunicator.transport.Transport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
 
 /**
  * BluetoothCommunicator
@@ -22,11 +45,123 @@ import im.r_c.android.bluetoothcommunicator.listener.SendListener;
  * Base class of client and server classes, implements some common communicate methods.
  */
 public abstract class BluetoothCommunicator {
+    /**
+     * Executor running tasks in place, used as receive executor listeners are
+     * called on the I/O thread.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     protected BluetoothAdapter mBluetoothAdapter;
     protected Handler mHandler;
-    protected Map<BluetoothDevice, CommunicateThread> mConnections = new HashMap<>();
-    private OnReceiveListener mOnReceiveListener;
+    protected Transport mTransport;
+    protected ConnectionOptions mConnectionOptions = new ConnectionOptions();
+    protected ConnectionRegistry<Connection> mConnections = new ConnectionRegistry<>();
+    private volatile Executor mReceiveExecutor;
+    private volatile OnReceiveListener mOnReceiveListener;
+    private volatile OnReceiveLinesListener mOnReceiveLinesListener;
     private OnLoseConnectionListener mOnLoseConnectionListener;
+    private volatile OnReceiveBytesListener mOnReceiveBytesListener;
+    private OnFlushListener mOnFlushListener;
+    private ReconnectListener mReconnectListener;
+    /**
+     * Token of the current stats listener, a replaced one stops at its next run.
+     */
+    private volatile Object mStatsToken;
+
+    /**
+     * Counters and histograms of all connections.
+     */
+    final StatsCollector mStatsCollector = new StatsCollector();
+
+    /**
+     * Resumable sessions by id, attached or interrupted.
+     */
+    final ConcurrentMap<Long, Session> mSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Interrupted sessions by device address, waiting to be resumed.
+     */
+    final ConcurrentMap<String, Session> mInterruptedSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Registered logical channels and their listeners, by channel id.
+     */
+    private final ConcurrentMap<Integer, ChannelRegistration> mChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Registered typed messages, their codecs and listeners.
+     */
+    private final MessageRegistry mMessages = new MessageRegistry();
+
+    /**
+     * Executor of all dispatchers, forwards to mReceiveExecutor so changing it
+     * affects existing connections.
+     */
+    private final Executor mDispatchExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mReceiveExecutor.execute(command);
+        }
+    };
+
+    /**
+     * Remote procedure calls made and handled, listeners are called on mReceiveExecutor.
+     */
+    private final RpcEngine mRpcEngine = new RpcEngine(mConnectionOptions, mDispatchExecutor, new RpcEngine.Sender() {
+        @Override
+        public void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback) {
+            Connection connection = mConnections.get(device.getAddress());
+            if (connection != null) {
+                connection.getThread().writeRecord(frame, Frame.TYPE_RPC, callback);
+                return;
+            }
+
+            OutboundMessage message = new OutboundMessage(frame, Frame.TYPE_RPC, callback);
+            Session session = mInterruptedSessions.get(device.getAddress());
+            if (session != null) {
+                offerToSession(session, message);
+            } else {
+                message.fail();
+            }
+        }
+    });
+
+    /**
+     * Transfers sent and received, listeners are called on mReceiveExecutor.
+     */
+    private final TransferEngine mTransferEngine = new TransferEngine(mConnectionOptions, mDispatchExecutor, new TransferEngine.Sender() {
+        @Override
+        public void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback) {
+            Connection connection = mConnections.get(device.getAddress());
+            if (connection != null) {
+                connection.getThread().writeRecord(frame, TransferEngine.CHANNEL, callback);
+                return;
+            }
+
+            OutboundMessage message = new OutboundMessage(frame, TransferEngine.CHANNEL, callback);
+            Session session = mInterruptedSessions.get(device.getAddress());
+            if (session != null) {
+                offerToSession(session, message);
+            } else {
+                message.fail();
+            }
+        }
+
+        @Override
+        public boolean isConnected(BluetoothDevice device) {
+            return mConnections.contains(device.getAddress()) || mInterruptedSessions.containsKey(device.getAddress());
+        }
+    });
+
+    {
+        // Track borrowed buffers in debug builds to catch leaks early
+        mConnectionOptions.setBufferPool(new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, BuildConfig.DEBUG));
+    }
 
     /**
      * BluetoothCommunicator constructor without listeners.
@@ -35,7 +170,9 @@ public abstract class BluetoothCommunicator {
      */
     public BluetoothCommunicator(Handler handler) {
         mHandler = handler;
+        mReceiveExecutor = new HandlerExecutor(handler);
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = new RfcommTransport(mBluetoothAdapter);
     }
 
     /**
@@ -47,9 +184,11 @@ public abstract class BluetoothCommunicator {
      */
     public BluetoothCommunicator(Handler handler, OnReceiveListener onReceiveListener, OnLoseConnectionListener onLoseConnectionListener) {
         mHandler = handler;
+        mReceiveExecutor = new HandlerExecutor(handler);
         mOnReceiveListener = onReceiveListener;
         mOnLoseConnectionListener = onLoseConnectionListener;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = new RfcommTransport(mBluetoothAdapter);
     }
 
     /**
@@ -61,6 +200,46 @@ public abstract class BluetoothCommunicator {
         mOnReceiveListener = listener;
     }
 
+    /**
+     * Setter of mOnReceiveLinesListener.
+     * If set, received lines are delivered to it in batches instead of to OnReceiveListener.
+     *
+     * @param listener Listener for receiving all lines arrived since the last call, or null.
+     */
+    public void setOnReceiveLinesListener(OnReceiveLinesListener listener) {
+        mOnReceiveLinesListener = listener;
+    }
+
+    /**
+     * Setter of mReceiveExecutor, receive listeners are called on it.
+     * By default they are called on the Handler passed to the constructor.
+     * Use {@link #DIRECT_EXECUTOR} to call them on the I/O thread.
+     *
+     * @param executor Executor, or null to use the Handler.
+     */
+    public void setReceiveExecutor(Executor executor) {
+        mReceiveExecutor = executor != null ? executor : new HandlerExecutor(mHandler);
+    }
+
+    /**
+     * Setter of mOnReceiveBytesListener.
+     *
+     * @param listener Listener for receiving binary data.
+     */
+    public void setOnReceiveBytesListener(OnReceiveBytesListener listener) {
+        mOnReceiveBytesListener = listener;
+    }
+
+    /**
+     * Setter of mOnFlushListener.
+     * The listener is called on the writer thread, not UI thread, because it's called very often.
+     *
+     * @param listener Listener for flushes to the socket, useful to tune write coalescing.
+     */
+    public void setOnFlushListener(OnFlushListener listener) {
+        mOnFlushListener = listener;
+    }
+
     /**
      * Setter of mOnLoseConnectionListener.
      *
@@ -70,6 +249,34 @@ public abstract class BluetoothCommunicator {
         mOnLoseConnectionListener = listener;
     }
 
+    /**
+     * Setter of mReconnectListener.
+     *
+     * @param listener Listener for sessions being resumed, see ConnectionOptions.setResumptionEnabled.
+     */
+    public void setReconnectListener(ReconnectListener listener) {
+        mReconnectListener = listener;
+    }
+
+    /**
+     * Setter of mTransport, RFCOMM is used by default.
+     * Affects connections made after the call.
+     *
+     * @param transport Transport to connect and listen through.
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Get options used for new connections, changes affect connections made afterwards.
+     *
+     * @return Connection options.
+     */
+    public ConnectionOptions getConnectionOptions() {
+        return mConnectionOptions;
+    }
+
     /**
      * Check if the device support Bluetooth.
      *
@@ -102,11 +309,36 @@ public abstract class BluetoothCommunicator {
 
     /**
      * Get set of connected devices.
+     * The set is a snapshot, it's safe to iterate while devices connect or disconnect.
      *
      * @return Set of connected devices.
      */
     public Set<BluetoothDevice> getConnectedDevices() {
-        return mConnections.keySet();
+        Set<BluetoothDevice> devices = new LinkedHashSet<>();
+        for (Connection connection : mConnections.values()) {
+            devices.add(connection.getDevice());
+        }
+        return devices;
+    }
+
+    /**
+     * Get number of connected devices.
+     *
+     * @return Number of connections.
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Get connected device by MAC address.
+     *
+     * @param address MAC address.
+     * @return Device, or null if not connected.
+     */
+    public BluetoothDevice getConnectedDevice(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? null : connection.getDevice();
     }
 
     /**
@@ -116,7 +348,113 @@ public abstract class BluetoothCommunicator {
      * @return Connected or not.
      */
     public boolean isConnectedToDevice(BluetoothDevice device) {
-        return mConnections.containsKey(device);
+        return mConnections.contains(device.getAddress());
+    }
+
+    /**
+     * Check if remote device is connected.
+     *
+     * @param address MAC address of remote device to check.
+     * @return Connected or not.
+     */
+    public boolean isConnectedToDevice(String address) {
+        return mConnections.contains(address);
+    }
+
+    /**
+     * Get ratio of compressed size to original size of the frames sent compressed to device.
+     *
+     * @param device Remote device.
+     * @return Ratio, 1 if nothing was compressed or not connected.
+     */
+    public float getCompressionRatio(BluetoothDevice device) {
+        Connection connection = mConnections.get(device.getAddress());
+        return connection == null ? 1 : connection.getThread().getCompressionRatio();
+    }
+
+    /**
+     * Get protocol parameters negotiated with device.
+     *
+     * @param device Remote device.
+     * @return Parameters, or null if not connected or the handshake isn't done yet.
+     */
+    public ProtocolParameters getProtocolParameters(BluetoothDevice device) {
+        Connection connection = mConnections.get(device.getAddress());
+        return connection == null ? null : connection.getThread().getProtocolParameters();
+    }
+
+    /**
+     * Get send window and round trip time stats of the connection with device.
+     *
+     * @param device Remote device.
+     * @return Stats, or null if not connected or the connection isn't reliable.
+     */
+    public DeliveryStats getDeliveryStats(BluetoothDevice device) {
+        Connection connection = mConnections.get(device.getAddress());
+        return connection == null ? null : connection.getThread().getDeliveryStats();
+    }
+
+    /**
+     * Get heartbeat stats of the connection with device, see ConnectionOptions.setHeartbeatIntervalMillis.
+     *
+     * @param device Remote device.
+     * @return Stats, or null if not connected, heartbeats are disabled or the peer doesn't support them.
+     */
+    public HeartbeatStats getHeartbeatStats(BluetoothDevice device) {
+        Connection connection = mConnections.get(device.getAddress());
+        return connection == null ? null : connection.getThread().getHeartbeatStats();
+    }
+
+    /**
+     * Get counters of all connections and latency histograms.
+     *
+     * @return Snapshot.
+     */
+    public CommunicatorStats getStats() {
+        List<CommunicateThread> threads = new ArrayList<>();
+        for (Connection connection : mConnections.values()) {
+            threads.add(connection.getThread());
+        }
+        return mStatsCollector.snapshot(threads);
+    }
+
+    /**
+     * Get counters of the connection with device.
+     *
+     * @param device Remote device.
+     * @return Snapshot, or null if not connected.
+     */
+    public ConnectionStats getConnectionStats(BluetoothDevice device) {
+        Connection connection = mConnections.get(device.getAddress());
+        return connection == null ? null : connection.getThread().getStats();
+    }
+
+    /**
+     * Set a listener to push stats to telemetry, replacing the one set before.
+     * The listener is called on UI thread with a snapshot every interval.
+     *
+     * @param listener       Listener, or null to stop.
+     * @param intervalMillis Interval between snapshots.
+     */
+    public void setStatsListener(final StatsListener listener, final long intervalMillis) {
+        if (listener == null) {
+            mStatsToken = null;
+            return;
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Stats interval must be positive");
+        }
+        final Object token = new Object();
+        mStatsToken = token;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mStatsToken == token) {
+                    listener.onStats(getStats());
+                    mHandler.postDelayed(this, intervalMillis);
+                }
+            }
+        }, intervalMillis);
     }
 
     /**
@@ -124,29 +462,38 @@ public abstract class BluetoothCommunicator {
      *
      * @param line Line to send.
      */
-    public void sendLineToAll(String line) {
+    public void sendLineToAll(CharSequence line) {
         sendLineToAll(line, null);
     }
 
     /**
      * Send a string line to all devices connected with listener.
+     * It never blocks, peers over the broadcast queue limit are handled
+     * according to the slow consumer policy in ConnectionOptions.
+     * Listener is called for each device as its write completes.
      *
      * @param line     Line to send.
      * @param listener Listener.
      */
-    public void sendLineToAll(String line, final SendListener listener) {
-        for (final BluetoothDevice device : mConnections.keySet()) {
-            mConnections.get(device).writeLine(line);
+    public void sendLineToAll(CharSequence line, final SendListener listener) {
+        sendLineToAll(line, SendPriority.NORMAL, listener);
+    }
 
-            if (listener != null) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onSucceed(device);
-                    }
-                });
-            }
+    /**
+     * Send a string line to all devices connected in a priority class with listener.
+     *
+     * @param line     Line to send.
+     * @param priority Priority class.
+     * @param listener Listener.
+     * @throws IllegalArgumentException If the line contains '\n' or starts with '\0'.
+     */
+    public void sendLineToAll(CharSequence line, SendPriority priority, final SendListener listener) {
+        // Encode once, all connections share the same record
+        SharedBuffer record = CommunicateThread.encodeLine(line, mConnectionOptions.getBufferPool());
+        for (Connection connection : mConnections.values()) {
+            connection.getThread().writeShared(record, priority, newWriteCallback(connection.getDevice(), listener));
         }
+        record.release();
     }
 
     /**
@@ -155,60 +502,399 @@ public abstract class BluetoothCommunicator {
      * @param line   Line to send.
      * @param device Device to send.
      */
-    public void sendLine(String line, final BluetoothDevice device) {
+    public void sendLine(CharSequence line, final BluetoothDevice device) {
         sendLine(line, device, null);
     }
 
     /**
      * Send a string line to specific device with listener.
+     * The line is queued, listener is called after it's written or failed.
+     * It's encoded as UTF-8 before returning, so a StringBuilder can be reused right away.
      *
      * @param line     Line to send.
      * @param device   Device to send.
      * @param listener Listener.
      */
-    public void sendLine(String line, final BluetoothDevice device, final SendListener listener) {
-        CommunicateThread thread = mConnections.get(device);
+    public void sendLine(CharSequence line, final BluetoothDevice device, final SendListener listener) {
+        sendLine(line, device, SendPriority.NORMAL, listener);
+    }
 
-        if (thread == null) {
-            if (listener != null) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onFail(device);
-                    }
-                });
+    /**
+     * Send a string line to specific device in a priority class with listener.
+     * Lines of a class keep their order, a higher class may overtake them.
+     *
+     * @param line     Line to send.
+     * @param device   Device to send.
+     * @param priority Priority class, e.g. {@link SendPriority#CONTROL} for urgent commands.
+     * @param listener Listener.
+     * @throws IllegalArgumentException If the line contains '\n' or starts with '\0'.
+     */
+    public void sendLine(CharSequence line, final BluetoothDevice device, SendPriority priority,
+                         final SendListener listener) {
+        Connection connection = mConnections.get(device.getAddress());
+
+        if (connection == null) {
+            Session session = mInterruptedSessions.get(device.getAddress());
+            if (session == null) {
+                failSending(device, listener);
+                return;
+            }
+            OutboundMessage message = new OutboundMessage(CommunicateThread.encodeLine(line, mConnectionOptions.getBufferPool()),
+                    Frame.TYPE_LINE, newWriteCallback(device, listener));
+            message.priority = priority;
+            offerToSession(session, message);
+            return;
+        }
+
+        connection.getThread().writeLine(line, priority, newWriteCallback(device, listener));
+    }
+
+    /**
+     * Send binary data to specific device without listener.
+     *
+     * @param data   Data to send.
+     * @param device Device to send.
+     */
+    public void sendBytes(byte[] data, BluetoothDevice device) {
+        sendBytes(ByteBuffer.wrap(data), device, null);
+    }
+
+    /**
+     * Send binary data to specific device with listener.
+     *
+     * @param data     Data to send.
+     * @param device   Device to send.
+     * @param listener Listener.
+     */
+    public void sendBytes(byte[] data, BluetoothDevice device, SendListener listener) {
+        sendBytes(ByteBuffer.wrap(data), device, listener);
+    }
+
+    /**
+     * Send binary data to specific device without listener.
+     *
+     * @param data   Data to send, from position to limit. Position is not changed.
+     * @param device Device to send.
+     */
+    public void sendBytes(ByteBuffer data, BluetoothDevice device) {
+        sendBytes(data, device, null);
+    }
+
+    /**
+     * Send binary data to specific device with listener.
+     * The data arrives as one piece at OnReceiveBytesListener of the remote end.
+     *
+     * @param data     Data to send, from position to limit. Position is not changed.
+     * @param device   Device to send.
+     * @param listener Listener.
+     */
+    public void sendBytes(ByteBuffer data, final BluetoothDevice device, final SendListener listener) {
+        sendBytes(data, device, SendPriority.NORMAL, listener);
+    }
+
+    /**
+     * Send binary data to specific device in a priority class with listener.
+     *
+     * @param data     Data to send, from position to limit. Position is not changed.
+     * @param device   Device to send.
+     * @param priority Priority class.
+     * @param listener Listener.
+     */
+    public void sendBytes(ByteBuffer data, final BluetoothDevice device, SendPriority priority,
+                          final SendListener listener) {
+        Connection connection = mConnections.get(device.getAddress());
+
+        if (connection == null) {
+            Session session = mInterruptedSessions.get(device.getAddress());
+            if (session == null) {
+                failSending(device, listener);
+                return;
+            }
+            OutboundMessage message = new OutboundMessage(CommunicateThread.encodeBytes(data, mConnectionOptions.getBufferPool()),
+                    Frame.TYPE_BYTES, newWriteCallback(device, listener));
+            message.priority = priority;
+            offerToSession(session, message);
+            return;
+        }
+
+        connection.getThread().writeBytes(data, priority, newWriteCallback(device, listener));
+    }
+
+    /**
+     * Register a logical channel, replacing the one of the same name.
+     * Messages on a channel not registered are dropped.
+     *
+     * @param channel  Channel, registered with the same name on the remote end.
+     * @param listener Listener called on the receive executor, or null if only sending.
+     */
+    public void registerChannel(Channel channel, OnReceiveChannelListener listener) {
+        mChannels.put(channel.getId(), new ChannelRegistration(channel, listener));
+    }
+
+    /**
+     * Unregister a logical channel.
+     *
+     * @param channel Channel.
+     */
+    public void unregisterChannel(Channel channel) {
+        mChannels.remove(channel.getId());
+    }
+
+    /**
+     * Send a message on a logical channel without listener.
+     *
+     * @param channel Channel.
+     * @param data    Message.
+     * @param device  Device to send.
+     */
+    public void sendOnChannel(Channel channel, byte[] data, BluetoothDevice device) {
+        sendOnChannel(channel, data, device, null);
+    }
+
+    /**
+     * Send a message on a logical channel with listener.
+     * It's written in chunks interleaved with other channels, and arrives as one piece
+     * at the OnReceiveChannelListener of the remote end. The peer must support channels
+     * (ProtocolParameters.isChannelSupported), or sending fails.
+     *
+     * @param channel  Channel.
+     * @param data     Message.
+     * @param device   Device to send.
+     * @param listener Listener, succeeds once the whole message is flushed.
+     */
+    public void sendOnChannel(Channel channel, byte[] data, BluetoothDevice device, SendListener listener) {
+        sendOnChannel(channel, ByteBuffer.wrap(data), device, listener);
+    }
+
+    /**
+     * Register a type of typed messages, replacing the one of the same class or type id.
+     * Messages of a type not registered are dropped.
+     *
+     * @param typeId   Small id of the type on the wire, the same on both ends.
+     * @param type     Class of the messages, subclasses are not matched.
+     * @param codec    Codec of the messages.
+     * @param listener Listener called on the receive executor, or null if only sending.
+     * @param <T>      Type of the messages.
+     */
+    public <T> void registerMessageType(int typeId, Class<T> type, MessageCodec<T> codec,
+                                        OnReceiveMessageListener<? super T> listener) {
+        mMessages.register(typeId, type, codec, listener);
+    }
+
+    /**
+     * Unregister a type of typed messages.
+     *
+     * @param type Class of the messages.
+     */
+    public void unregisterMessageType(Class<?> type) {
+        mMessages.unregister(type);
+    }
+
+    /**
+     * Send a typed message without listener.
+     *
+     * @param message Message of a registered type.
+     * @param device  Device to send.
+     */
+    public void sendMessage(Object message, BluetoothDevice device) {
+        sendMessage(message, device, null);
+    }
+
+    /**
+     * Send a typed message with listener.
+     * It's encoded by the codec of its type on the calling thread, and decoded on the
+     * reading thread of the remote end before its OnReceiveMessageListener is called.
+     * The peer must support channels (ProtocolParameters.isChannelSupported), or sending fails.
+     *
+     * @param message  Message of a registered type.
+     * @param device   Device to send.
+     * @param listener Listener.
+     * @throws IllegalArgumentException If the type of the message is not registered.
+     */
+    public void sendMessage(Object message, BluetoothDevice device, SendListener listener) {
+        sendOnChannel(MessageRegistry.CHANNEL, mMessages.encode(message), device, listener);
+    }
+
+    private void sendOnChannel(Channel channel, ByteBuffer data, BluetoothDevice device, SendListener listener) {
+        Connection connection = mConnections.get(device.getAddress());
+
+        if (connection == null) {
+            Session session = mInterruptedSessions.get(device.getAddress());
+            if (session == null) {
+                failSending(device, listener);
+                return;
             }
+            offerToSession(session, new OutboundMessage(CommunicateThread.encodeChannel(channel, data,
+                    mConnectionOptions.getBufferPool()), channel, newWriteCallback(device, listener)));
             return;
         }
 
-        thread.writeLine(line);
+        connection.getThread().writeChannel(channel, data, newWriteCallback(device, listener));
+    }
+
+    /**
+     * Setter of the transfer handler, asked where incoming transfers go.
+     * Without a handler, incoming transfers are rejected.
+     *
+     * @param handler Handler, its listener methods are called on the receive executor.
+     */
+    public void setTransferHandler(TransferHandler handler) {
+        mTransferEngine.setHandler(handler);
+    }
+
+    /**
+     * Send a stream to device, read on a thread of its own.
+     * The stream is closed when the transfer ends.
+     *
+     * @param name     Name told to the receiver, e.g. a file name.
+     * @param in       Stream to read to the end.
+     * @param size     Bytes the stream has, or -1 if unknown.
+     * @param device   Device to send to.
+     * @param listener Listener or null.
+     * @return Transfer to follow or cancel.
+     */
+    public Transfer sendStream(String name, InputStream in, long size, BluetoothDevice device, TransferListener listener) {
+        return mTransferEngine.send(name, Channels.newChannel(in), size, device, listener);
+    }
+
+    /**
+     * Send a file to device, from the current position to the end.
+     * The file is closed when the transfer ends.
+     *
+     * @param name     Name told to the receiver, e.g. the file name.
+     * @param file     File.
+     * @param device   Device to send to.
+     * @param listener Listener or null.
+     * @return Transfer to follow or cancel.
+     * @throws IOException If the size of the file can't be read.
+     */
+    public Transfer sendFile(String name, FileChannel file, BluetoothDevice device, TransferListener listener) throws IOException {
+        return mTransferEngine.send(name, file, file.size() - file.position(), device, listener);
+    }
+
+    /**
+     * Get number of transfers not done yet, sent and received.
+     *
+     * @return Count.
+     */
+    public int getActiveTransferCount() {
+        return mTransferEngine.getActiveCount();
+    }
+
+    /**
+     * Register a handler of remote procedure calls, replacing the one of the same method.
+     *
+     * @param method  Method name.
+     * @param handler Handler, called on the receive executor.
+     */
+    public void registerRpcHandler(String method, RpcHandler handler) {
+        mRpcEngine.registerHandler(method, handler);
+    }
+
+    /**
+     * Unregister a handler, later calls of the method fail with NO_SUCH_METHOD.
+     *
+     * @param method Method name.
+     */
+    public void unregisterRpcHandler(String method) {
+        mRpcEngine.unregisterHandler(method);
+    }
 
+    /**
+     * Call a method on device, with the timeout of ConnectionOptions and without listener.
+     *
+     * @param method Method name.
+     * @param params Parameters.
+     * @param device Device to call.
+     * @return Call to wait for or cancel.
+     */
+    public RpcCall call(String method, byte[] params, BluetoothDevice device) {
+        return call(method, params, device, mConnectionOptions.getRpcTimeoutMillis(), null);
+    }
+
+    /**
+     * Call a method on device.
+     * Calls don't wait for each other, any number can be in flight on one connection.
+     * The peer must support calls (ProtocolParameters.isRpcSupported), or the call fails with NOT_SENT.
+     *
+     * @param method        Method name.
+     * @param params        Parameters.
+     * @param device        Device to call.
+     * @param timeoutMillis Time to wait for the result, 0 to wait until disconnected.
+     * @param listener      Listener called on the receive executor, or null.
+     * @return Call to wait for or cancel.
+     */
+    public RpcCall call(String method, byte[] params, BluetoothDevice device, long timeoutMillis, RpcListener listener) {
+        return mRpcEngine.call(method, params, device, timeoutMillis, listener);
+    }
+
+    /**
+     * Get number of calls waiting for their results, to all devices.
+     *
+     * @return Count.
+     */
+    public int getPendingCallCount() {
+        return mRpcEngine.getPendingCount();
+    }
+
+    /**
+     * Keep a message for an interrupted session, to be sent once it's resumed.
+     *
+     * @param session Interrupted session.
+     * @param message Message.
+     */
+    private void offerToSession(Session session, OutboundMessage message) {
+        if (!session.offer(message)) {
+            message.fail();
+        }
+    }
+
+    /**
+     * Call onFail method of a SendListener on UI thread.
+     *
+     * @param device   Device failed to send to.
+     * @param listener Listener or null.
+     */
+    private void failSending(final BluetoothDevice device, final SendListener listener) {
         if (listener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    listener.onSucceed(device);
+                    listener.onFail(device);
                 }
             });
         }
     }
 
     /**
-     * Call onReceiveLine method on UI thread.
-     * Automatically called by CommunicateThread.
+     * Create a write callback calling the SendListener on UI thread
+     * once the message is actually flushed or failed.
      *
-     * @param line   String line received.
-     * @param device Device where string received from.
+     * @param device   Device to send.
+     * @param listener Listener or null.
+     * @return Callback, or null if listener is null.
      */
-    public void receiveLine(final String line, final BluetoothDevice device) {
-        if (mOnReceiveListener != null) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mOnReceiveListener.onReceiveLine(line, device);
-                }
-            });
+    private CommunicateThread.WriteCallback newWriteCallback(final BluetoothDevice device, final SendListener listener) {
+        if (listener == null) {
+            return null;
         }
+
+        return new CommunicateThread.WriteCallback() {
+            @Override
+            public void onSucceed() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSucceed(device);
+                    }
+                });
+            }
+
+            @Override
+            public void onFail() {
+                failSending(device, listener);
+            }
+        };
     }
 
     /**
@@ -217,21 +903,34 @@ public abstract class BluetoothCommunicator {
      * @param device Device to disconnect.
      */
     public void disconnectToDevice(BluetoothDevice device) {
-        if (mConnections.containsKey(device)) {
-            mConnections.get(device).cancel();
-            mConnections.remove(device);
+        Session interrupted = mInterruptedSessions.remove(device.getAddress());
+        if (interrupted != null) {
+            closeSession(interrupted);
+        }
+
+        Connection connection = mConnections.remove(device.getAddress());
+        if (connection != null) {
+            // Close the session first, so queued messages are failed instead of kept
+            Session session = connection.getThread().getSession();
+            if (session != null) {
+                closeSession(session);
+            }
+            connection.getThread().cancel();
+            onConnectionRemoved(device);
         }
+        mRpcEngine.onDisconnected(device);
+        mTransferEngine.onDisconnected(device);
     }
 
     /**
      * Call onLoseConnection method on UI thread.
-     * Automatically called by CommunicateThread.
+     * Automatically called after a connection is lost and removed.
      *
      * @param device Device which lose connection to.
      */
     public void loseConnection(final BluetoothDevice device) {
-        mConnections.remove(device);
-
+        mRpcEngine.onDisconnected(device);
+        mTransferEngine.onDisconnected(device);
         if (mOnLoseConnectionListener != null) {
             mHandler.post(new Runnable() {
                 @Override
@@ -242,14 +941,341 @@ public abstract class BluetoothCommunicator {
         }
     }
 
+    /**
+     * Call onReconnected method on UI thread.
+     *
+     * @param device Device reconnected.
+     */
+    void reconnected(final BluetoothDevice device) {
+        if (mReconnectListener != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mReconnectListener.onReconnected(device);
+                }
+            });
+        }
+    }
+
+    /**
+     * Call onReconnecting method on UI thread.
+     *
+     * @param device  Device to reconnect.
+     * @param attempt Attempt number.
+     */
+    void reconnecting(final BluetoothDevice device, final int attempt) {
+        if (mReconnectListener != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mReconnectListener.onReconnecting(device, attempt);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called when the connection of a resumable session is lost.
+     * The session is kept for the session timeout, then given up.
+     *
+     * @param device  Device of the session.
+     * @param session Session.
+     */
+    void onSessionInterrupted(final BluetoothDevice device, final Session session) {
+        mInterruptedSessions.put(device.getAddress(), session);
+        final int interruption = session.markInterrupted();
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (session.isStillInterrupted(interruption)) {
+                    giveUpSession(device, session);
+                }
+            }
+        }, mConnectionOptions.getSessionTimeoutMillis());
+    }
+
+    /**
+     * Called when a resume is rejected because only one end had the session.
+     * The session is already closed and the connection reported lost.
+     *
+     * @param device  Device of the session.
+     * @param session Session rejected.
+     */
+    void onSessionRejected(BluetoothDevice device, Session session) {
+    }
+
+    /**
+     * Give up an interrupted session and report the connection lost.
+     *
+     * @param device  Device of the session.
+     * @param session Session.
+     */
+    void giveUpSession(BluetoothDevice device, Session session) {
+        if (mInterruptedSessions.remove(device.getAddress(), session)) {
+            closeSession(session);
+            loseConnection(device);
+        }
+    }
+
+    private void closeSession(Session session) {
+        mSessions.remove(session.getId(), session);
+        session.close();
+    }
+
     /**
      * Start a new communicate thread.
+     * The listener succeeds once the handshake is done,
+     * or fails if the connection is lost before that.
+     *
+     * @param socket        Connected socket to communicate through.
+     * @param readyListener Listener to call when ready or failed, with a null device
+     *                      if the socket has none, see {@link #getRemoteDevice(TransportSocket)}.
+     */
+    protected void startNewCommunicateThread(TransportSocket socket, final ConnectListener readyListener) {
+        startNewCommunicateThread(socket, null, readyListener);
+    }
+
+    /**
+     * Start a new communicate thread for a session.
+     * A resumed session reports onReconnected instead of calling the listener.
+     *
+     * @param socket        Connected socket to communicate through.
+     * @param session       Session to propose in the handshake, or null.
+     * @param readyListener Listener to call when ready or failed, with a null device
+     *                      if the socket has none, see {@link #getRemoteDevice(TransportSocket)}.
+     */
+    void startNewCommunicateThread(TransportSocket socket, Session session, final ConnectListener readyListener) {
+        final BluetoothDevice device;
+        try {
+            device = getRemoteDevice(socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            readyListener.onFail(null);
+            return;
+        }
+        ConnectionMetrics metrics = mStatsCollector.newConnection();
+        final ReceiveDispatcher dispatcher = new ReceiveDispatcher(mDispatchExecutor, new ReceiveDispatcher.Sink() {
+            @Override
+            public void onLines(List<String> lines) {
+                OnReceiveLinesListener linesListener = mOnReceiveLinesListener;
+                if (linesListener != null) {
+                    linesListener.onReceiveLines(lines, device);
+                    return;
+                }
+
+                OnReceiveListener listener = mOnReceiveListener;
+                if (listener != null) {
+                    for (int i = 0; i < lines.size(); i++) {
+                        listener.onReceiveLine(lines.get(i), device);
+                    }
+                }
+            }
+
+            @Override
+            public void onBytes(byte[] data) {
+                OnReceiveBytesListener listener = mOnReceiveBytesListener;
+                if (listener != null) {
+                    listener.onReceiveBytes(data, device);
+                }
+            }
+        }, mConnectionOptions.getReceiveQueueCapacity(), metrics);
+
+        CommunicateThread thread = new CommunicateThread(socket, new CommunicateThread.Callback() {
+            @Override
+            public void onReceiveLine(CommunicateThread thread, String line) {
+                dispatch(thread, line);
+            }
+
+            @Override
+            public void onReceiveBytes(CommunicateThread thread, byte[] data) {
+                dispatch(thread, data);
+            }
+
+            @Override
+            public void onReceiveRpc(CommunicateThread thread, byte[] payload) {
+                mRpcEngine.onReceive(device, payload, mmRpcExecutor);
+            }
+
+            @Override
+            public void onReceiveChannel(CommunicateThread thread, int channelId, final byte[] data) {
+                if (channelId == TransferEngine.CHANNEL.getId()) {
+                    mTransferEngine.onReceive(device, data);
+                    return;
+                }
+                if (channelId == MessageRegistry.CHANNEL.getId()) {
+                    // Decode here so the receive executor only runs the listener
+                    Runnable delivery = mMessages.decode(data, device);
+                    if (delivery != null) {
+                        dispatch(thread, delivery);
+                    }
+                    return;
+                }
+                final ChannelRegistration registration = mChannels.get(channelId);
+                if (registration == null || registration.mmListener == null) {
+                    return;
+                }
+                dispatch(thread, new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.mmListener.onReceiveChannel(registration.mmChannel, data, device);
+                    }
+                });
+            }
+
+            /**
+             * Runs RPC handlers in order with received lines and data.
+             */
+            private final Executor mmRpcExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    dispatch(null, command);
+                }
+            };
+
+            private void dispatch(CommunicateThread thread, Object item) {
+                try {
+                    dispatcher.offer(item);
+                } catch (InterruptedException e) {
+                    // Cancelled while waiting for the receive executor
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onFlush(CommunicateThread thread, int messageCount, int byteCount) {
+                OnFlushListener listener = mOnFlushListener;
+                if (listener != null) {
+                    listener.onFlush(device, messageCount, byteCount);
+                }
+            }
+
+            @Override
+            public void onHandshake(CommunicateThread thread, ProtocolParameters parameters) {
+                long id = parameters.getSessionId();
+                if (id != 0) {
+                    Session session = thread.getSession();
+                    if (session == null) {
+                        // Accepting end, look up the session proposed by the peer
+                        session = mSessions.get(id);
+                        if (session == null || session.isClosed()) {
+                            session = new Session(id, mConnectionOptions.getResumeBufferLimit());
+                        }
+                    }
+                    mSessions.put(id, session);
+                    mInterruptedSessions.remove(device.getAddress(), session);
+                    if (thread.attachSession(session)) {
+                        reconnected(device);
+                        return;
+                    }
+                }
+                mTransferEngine.onConnected(device);
+                readyListener.onSucceed(device);
+            }
+
+            @Override
+            public void onLoseConnection(CommunicateThread thread) {
+                // Only the current connection of the device may be removed
+                Connection current = mConnections.get(device.getAddress());
+                if (current != null && current.getThread() == thread
+                        && mConnections.remove(device.getAddress(), current)) {
+                    Session session = thread.getSession();
+                    if (thread.getProtocolParameters() == null) {
+                        readyListener.onFail(device);
+                    } else if (session != null && session.getId() != 0 && !session.isClosed()) {
+                        onSessionInterrupted(device, session);
+                    } else {
+                        if (session != null) {
+                            mSessions.remove(session.getId(), session);
+                        }
+                        loseConnection(device);
+                        if (session != null && session.isRejected()) {
+                            onSessionRejected(device, session);
+                        }
+                    }
+                    onConnectionRemoved(device);
+                }
+            }
+        }, new ConnectionOptions(mConnectionOptions), metrics);
+        if (session != null) {
+            thread.setSession(session);
+        }
+
+        Connection connection = new Connection(device, thread);
+        Connection old = mConnections.put(device.getAddress(), connection);
+        if (old != null) {
+            old.getThread().cancel();
+        }
+        if (thread.isClosed()) {
+            // Failed before being registered
+            mConnections.remove(device.getAddress(), connection);
+            readyListener.onFail(device);
+            onConnectionRemoved(device);
+            return;
+        }
+
+        Executor executor = getConnectionExecutor();
+        if (executor != null) {
+            thread.start(executor);
+        } else {
+            thread.start();
+        }
+    }
+
+    /**
+     * Get executor to run communicate threads on.
+     *
+     * @return Executor, or null to give each connection its own threads.
+     */
+    protected Executor getConnectionExecutor() {
+        return null;
+    }
+
+    /**
+     * Called after a connection is removed, whether lost or disconnected.
+     *
+     * @param device Device of the connection.
+     */
+    protected void onConnectionRemoved(BluetoothDevice device) {
+    }
+
+    /**
+     * Get the Bluetooth device of a connected socket, its address keys the connection.
+     * Sockets of other transports must report a MAC-style remote address, e.g. one of
+     * {@link im.r_c.android.bluetoothcommunicator.transport.TcpTransport#toDeviceAddress(java.net.InetAddress, int)},
+     * and a BluetoothAdapter is still needed to make the device.
      *
-     * @param socket Socket to communicate through.
+     * @param socket Connected socket.
+     * @return Remote device.
+     * @throws IOException If there's no adapter or the address is not MAC-style.
+     */
+    protected BluetoothDevice getRemoteDevice(TransportSocket socket) throws IOException {
+        if (socket instanceof RfcommTransport.RfcommSocket) {
+            return ((RfcommTransport.RfcommSocket) socket).getDevice();
+        }
+
+        String address = socket.getRemoteAddress();
+        if (mBluetoothAdapter == null) {
+            throw new IOException("No Bluetooth adapter to make a device of " + address);
+        }
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            throw new IOException("Not a MAC-style address: " + address);
+        }
+        return mBluetoothAdapter.getRemoteDevice(address);
+    }
+
+    /**
+     * A registered channel and its listener.
      */
-    protected void startNewCommunicateThread(BluetoothSocket socket) {
-        CommunicateThread thread = new CommunicateThread(this, socket);
-        mConnections.put(socket.getRemoteDevice(), thread);
-        thread.start();
+    private static class ChannelRegistration {
+        private final Channel mmChannel;
+        private final OnReceiveChannelListener mmListener;
+
+        ChannelRegistration(Channel channel, OnReceiveChannelListener listener) {
+            mmChannel = channel;
+            mmListener = listener;
+        }
     }
 }
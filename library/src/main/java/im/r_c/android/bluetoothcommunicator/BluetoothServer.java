@@ -1,24 +1,63 @@
 package im.r_c.android.bluetoothcommunicator;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import im.r_c.android.bluetoothcommunicator.listener.AdmissionListener;
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
 import im.r_c.android.bluetoothcommunicator.listener.ListenStateListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnLoseConnectionListener;
 import im.r_c.android.bluetoothcommunicator.listener.OnReceiveListener;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
 
 /**
  * BluetoothCommunicator
  * Created by richard on 16/1/11.
  * <p/>
  * Class used to communicate through Bluetooth as a server.
+ * Connections are admitted up to mMaxConnections and served by a shared worker pool.
+ * <p/>
+ * Admission state is guarded by mAdmissionQueue, which is never held while starting
+ * a connection: a slot is reserved under the lock and the connection started after.
  */
 public class BluetoothServer extends BluetoothCommunicator {
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    public static final int DEFAULT_ADMISSION_QUEUE_CAPACITY = 4;
+    public static final long DEFAULT_ADMISSION_QUEUE_TIMEOUT_MILLIS = 30000;
+
+    private static final long ACCEPT_BACKOFF_MIN_MILLIS = 100;
+    private static final long ACCEPT_BACKOFF_MAX_MILLIS = 5000;
+    private static final long IDLE_WORKER_KEEP_ALIVE_SECONDS = 30;
+    /**
+     * Worker threads beyond two per connection, for lost connections whose
+     * reader and writer haven't stopped yet when their slot is taken again.
+     */
+    private static final int WORKER_SLACK_THREADS = 4;
+
     private AcceptThread mAcceptThread;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private AdmissionPolicy mAdmissionPolicy = AdmissionPolicy.REJECT;
+    private int mAdmissionQueueCapacity = DEFAULT_ADMISSION_QUEUE_CAPACITY;
+    private long mAdmissionQueueTimeoutMillis = DEFAULT_ADMISSION_QUEUE_TIMEOUT_MILLIS;
+    private final Queue<QueuedSocket> mAdmissionQueue = new ArrayDeque<>();
+    /**
+     * Connections admitted but maybe not registered yet, counted as taking a slot.
+     */
+    private int mStartingCount;
+    private ThreadPoolExecutor mWorkerPool;
+    private ScheduledThreadPoolExecutor mTimeoutExecutor;
 
     /**
      * BluetoothServer constructor without listeners.
@@ -40,40 +79,273 @@ public class BluetoothServer extends BluetoothCommunicator {
         super(handler, onReceiveListener, onLoseConnectionListener);
     }
 
+    /**
+     * Setter of mMaxConnections.
+     * The worker pool has two threads per connection, a reader and a writer, plus a few spare.
+     *
+     * @param maxConnections Max count of connections served at the same time.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Max connections must be positive");
+        }
+        synchronized (mAdmissionQueue) {
+            mMaxConnections = maxConnections;
+            if (mWorkerPool != null) {
+                int size = maxConnections * 2;
+                // Core size must not exceed max size at any time
+                if (size > mWorkerPool.getCorePoolSize()) {
+                    mWorkerPool.setMaximumPoolSize(size + WORKER_SLACK_THREADS);
+                    mWorkerPool.setCorePoolSize(size);
+                } else {
+                    mWorkerPool.setCorePoolSize(size);
+                    mWorkerPool.setMaximumPoolSize(size + WORKER_SLACK_THREADS);
+                }
+            }
+        }
+        admitQueued();
+    }
+
+    public int getMaxConnections() {
+        synchronized (mAdmissionQueue) {
+            return mMaxConnections;
+        }
+    }
+
+    /**
+     * Setter of mAdmissionPolicy.
+     *
+     * @param admissionPolicy What to do with connection requests when full.
+     */
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        if (admissionPolicy == null) {
+            throw new IllegalArgumentException("Admission policy must not be null");
+        }
+        synchronized (mAdmissionQueue) {
+            mAdmissionPolicy = admissionPolicy;
+        }
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        synchronized (mAdmissionQueue) {
+            return mAdmissionPolicy;
+        }
+    }
+
+    /**
+     * Setter of mAdmissionQueueCapacity.
+     *
+     * @param admissionQueueCapacity Max count of connection requests waiting with the QUEUE policy.
+     */
+    public void setAdmissionQueueCapacity(int admissionQueueCapacity) {
+        if (admissionQueueCapacity < 0) {
+            throw new IllegalArgumentException("Admission queue capacity must not be negative");
+        }
+        synchronized (mAdmissionQueue) {
+            mAdmissionQueueCapacity = admissionQueueCapacity;
+        }
+    }
+
+    public int getAdmissionQueueCapacity() {
+        synchronized (mAdmissionQueue) {
+            return mAdmissionQueueCapacity;
+        }
+    }
+
+    /**
+     * Setter of mAdmissionQueueTimeoutMillis.
+     * A request waiting longer is closed and rejected, its client would give up anyway.
+     * Applies to requests queued later.
+     *
+     * @param admissionQueueTimeoutMillis Max time a request waits for a free slot, 0 for no limit.
+     */
+    public void setAdmissionQueueTimeoutMillis(long admissionQueueTimeoutMillis) {
+        if (admissionQueueTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Admission queue timeout must not be negative");
+        }
+        synchronized (mAdmissionQueue) {
+            mAdmissionQueueTimeoutMillis = admissionQueueTimeoutMillis;
+        }
+    }
+
+    public long getAdmissionQueueTimeoutMillis() {
+        synchronized (mAdmissionQueue) {
+            return mAdmissionQueueTimeoutMillis;
+        }
+    }
+
+    /**
+     * Get count of connection requests waiting for a free slot.
+     *
+     * @return Count.
+     */
+    public int getQueuedConnectionCount() {
+        synchronized (mAdmissionQueue) {
+            return mAdmissionQueue.size();
+        }
+    }
+
     /**
      * Check if the server is listening for connection request.
      *
      * @return Is listening or not.
      */
     public boolean isListening() {
-        return mAcceptThread != null && mAcceptThread.isAlive();
+        synchronized (mAdmissionQueue) {
+            return mAcceptThread != null && mAcceptThread.isAlive();
+        }
     }
 
     /**
      * Start listening for connection request.
+     * If the listener is an {@link AdmissionListener}, it's also told about
+     * requests rejected or queued because the server is full.
      *
      * @param serviceName Service name (Using app name is OK).
      * @param uuid        The app's UUID string, should be the same as the client side.
      * @param listener    Listener or null.
      */
     public void startListening(String serviceName, UUID uuid, ListenStateListener listener) {
-        if (isListening()) {
-            return;
+        AcceptThread old;
+        synchronized (mAdmissionQueue) {
+            if (isListening()) {
+                return;
+            }
+            old = mAcceptThread;
+        }
+        if (old != null) {
+            old.cancel();
         }
 
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
+        // Listening may block, don't hold the lock
+        AcceptThread acceptThread = new AcceptThread(serviceName, uuid, listener);
+        synchronized (mAdmissionQueue) {
+            mAcceptThread = acceptThread;
         }
-        mAcceptThread = new AcceptThread(serviceName, uuid, listener);
-        mAcceptThread.start();
+        acceptThread.start();
     }
 
     /**
      * Stop listening for connection request.
+     * Requests still waiting for a slot are closed, connections already made are kept.
      */
     public void stopListening() {
-        if (mAcceptThread != null) {
-            mAcceptThread.cancel();
+        AcceptThread acceptThread;
+        synchronized (mAdmissionQueue) {
+            acceptThread = mAcceptThread;
+        }
+        if (acceptThread != null) {
+            acceptThread.cancel();
+        }
+
+        synchronized (mAdmissionQueue) {
+            QueuedSocket queued;
+            while ((queued = mAdmissionQueue.poll()) != null) {
+                queued.cancelTimeout();
+                closeQuietly(queued.mmSocket);
+            }
+        }
+    }
+
+    /**
+     * Get the worker pool, capped at two threads per admitted connection plus a few
+     * spare for lost connections still winding down. It never queues: a reader and a
+     * writer hold their threads for the life of the connection, so one left waiting
+     * for a thread would stall its connection. A connection finding no thread is
+     * closed instead, which admission keeps from happening but for a burst of
+     * reconnects.
+     *
+     * @return Worker pool.
+     */
+    @Override
+    protected Executor getConnectionExecutor() {
+        synchronized (mAdmissionQueue) {
+            if (mWorkerPool == null) {
+                int size = mMaxConnections * 2;
+                mWorkerPool = new ThreadPoolExecutor(size, size + WORKER_SLACK_THREADS,
+                        IDLE_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new NamedThreadFactory("BluetoothServerWorker"));
+                mWorkerPool.allowCoreThreadTimeOut(true);
+            }
+            return mWorkerPool;
+        }
+    }
+
+    private ScheduledThreadPoolExecutor getTimeoutExecutor() {
+        synchronized (mAdmissionQueue) {
+            if (mTimeoutExecutor == null) {
+                mTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothAdmissionTimeout"));
+                mTimeoutExecutor.setKeepAliveTime(IDLE_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                mTimeoutExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mTimeoutExecutor;
+        }
+    }
+
+    @Override
+    protected void onConnectionRemoved(BluetoothDevice device) {
+        admitQueued();
+    }
+
+    /**
+     * Start connections waiting in the admission queue while there are free slots.
+     */
+    private void admitQueued() {
+        while (true) {
+            QueuedSocket queued;
+            AcceptThread acceptThread;
+            synchronized (mAdmissionQueue) {
+                if (mAdmissionQueue.isEmpty() || !hasFreeSlot()) {
+                    return;
+                }
+                queued = mAdmissionQueue.poll();
+                acceptThread = mAcceptThread;
+                if (acceptThread != null) {
+                    mStartingCount++;
+                }
+            }
+
+            queued.cancelTimeout();
+            if (acceptThread != null) {
+                serveReserved(acceptThread, queued.mmSocket, queued.mmAcceptedNanos);
+            } else {
+                closeQuietly(queued.mmSocket);
+            }
+        }
+    }
+
+    /**
+     * Check if a connection can be started, holding mAdmissionQueue.
+     *
+     * @return Whether there's a free slot.
+     */
+    private boolean hasFreeSlot() {
+        return mConnections.size() + mStartingCount < mMaxConnections;
+    }
+
+    /**
+     * Start a connection in a slot reserved by counting it in mStartingCount.
+     *
+     * @param acceptThread  Thread that accepted the socket.
+     * @param socket        Admitted socket.
+     * @param acceptedNanos When it was accepted.
+     */
+    private void serveReserved(AcceptThread acceptThread, TransportSocket socket, long acceptedNanos) {
+        try {
+            acceptThread.serve(socket, acceptedNanos);
+        } finally {
+            synchronized (mAdmissionQueue) {
+                mStartingCount--;
+            }
+        }
+        // The reservation may have kept a queued request waiting
+        admitQueued();
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (Exception ignored) {
         }
     }
 
@@ -81,16 +353,21 @@ public class BluetoothServer extends BluetoothCommunicator {
      * Thread to accept connection request.
      */
     private class AcceptThread extends Thread {
-        private BluetoothServerSocket mmServerSocket;
+        private String mmName;
+        private UUID mmUuid;
+        private TransportServerSocket mmServerSocket;
         private ListenStateListener mmListener;
+        private boolean mmCancelled;
 
         public AcceptThread(String name, UUID uuid, ListenStateListener listener) {
+            mmName = name;
+            mmUuid = uuid;
             mmListener = listener;
 
-            BluetoothServerSocket tmp = null;
+            TransportServerSocket tmp = null;
             try {
                 // MY_UUID is the app's UUID string, also used by the client code
-                tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+                tmp = mTransport.listen(name, uuid);
             } catch (Exception e) {
                 fail();
             }
@@ -99,37 +376,171 @@ public class BluetoothServer extends BluetoothCommunicator {
 
         @Override
         public void run() {
-            if (Thread.currentThread().isInterrupted()) {
-                return;
-            }
-
-            BluetoothSocket socket = null;
+            long backoffMillis = ACCEPT_BACKOFF_MIN_MILLIS;
 
             // Keep listening
-            while (!Thread.currentThread().isInterrupted()) {
+            while (!isCancelled()) {
+                TransportSocket socket;
                 try {
                     socket = mmServerSocket.accept();
-                } catch (Exception ignored) {
+                } catch (Exception e) {
+                    if (isCancelled()) {
+                        return;
+                    }
+
+                    // The server socket may be dead (e.g. adapter turned off), back off and listen again
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                    backoffMillis = Math.min(backoffMillis * 2, ACCEPT_BACKOFF_MAX_MILLIS);
+                    relisten();
+                    continue;
                 }
 
-                // If a connection was accepted
-                if (socket != null) {
-                    startNewCommunicateThread(socket);
-                    accept(socket.getRemoteDevice());
-                    socket = null;
+                backoffMillis = ACCEPT_BACKOFF_MIN_MILLIS;
+                admit(socket, System.nanoTime());
+            }
+        }
+
+        /**
+         * Serve the socket, queue or reject it if the server is full.
+         *
+         * @param socket        Accepted socket.
+         * @param acceptedNanos When it was accepted.
+         */
+        private void admit(TransportSocket socket, long acceptedNanos) {
+            BluetoothDevice device;
+            try {
+                device = getRemoteDevice(socket);
+            } catch (IOException e) {
+                // No device to report it as, e.g. a TCP peer over IPv6
+                closeQuietly(socket);
+                return;
+            }
+
+            boolean serve = false;
+            QueuedSocket queued = null;
+            long timeoutMillis;
+            synchronized (mAdmissionQueue) {
+                if (mAdmissionQueue.isEmpty() && hasFreeSlot()) {
+                    mStartingCount++;
+                    serve = true;
+                } else if (mAdmissionPolicy == AdmissionPolicy.QUEUE
+                        && mAdmissionQueue.size() < mAdmissionQueueCapacity) {
+                    queued = new QueuedSocket(socket, device, acceptedNanos);
+                    mAdmissionQueue.add(queued);
                 }
+                timeoutMillis = mAdmissionQueueTimeoutMillis;
+            }
+
+            if (serve) {
+                serveReserved(this, socket, acceptedNanos);
+            } else if (queued != null) {
+                queue(device);
+                if (timeoutMillis > 0) {
+                    scheduleTimeout(queued, timeoutMillis);
+                }
+                // A slot may have been freed meanwhile
+                admitQueued();
+            } else {
+                closeQuietly(socket);
+                mStatsCollector.onRejected();
+                reject(device);
             }
         }
 
+        /**
+         * Reject the queued socket if it's still waiting after the timeout.
+         *
+         * @param queued        Queued socket.
+         * @param timeoutMillis Timeout.
+         */
+        private void scheduleTimeout(final QueuedSocket queued, long timeoutMillis) {
+            ScheduledFuture<?> future = getTimeoutExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mAdmissionQueue) {
+                        if (!mAdmissionQueue.remove(queued)) {
+                            // Admitted or closed meanwhile
+                            return;
+                        }
+                    }
+                    closeQuietly(queued.mmSocket);
+                    mStatsCollector.onRejected();
+                    reject(queued.mmDevice);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            queued.setTimeout(future);
+        }
+
+        /**
+         * Start communicating through the socket.
+         *
+         * @param socket        Admitted socket.
+         * @param acceptedNanos When it was accepted.
+         */
+        public void serve(TransportSocket socket, final long acceptedNanos) {
+            // Report after the handshake, a peer lost before that is never reported
+            startNewCommunicateThread(socket, new ConnectListener() {
+                @Override
+                public void onSucceed(BluetoothDevice device) {
+                    mStatsCollector.acceptTime.recordNanos(System.nanoTime() - acceptedNanos);
+                    accept(device);
+                }
+
+                @Override
+                public void onFail(BluetoothDevice device) {
+                }
+            });
+        }
+
+        /**
+         * Close the server socket and listen again, failures are left to the next accept.
+         */
+        private void relisten() {
+            closeServerSocket();
+            TransportServerSocket tmp;
+            try {
+                tmp = mTransport.listen(mmName, mmUuid);
+            } catch (Exception ignored) {
+                return;
+            }
+
+            synchronized (this) {
+                if (!mmCancelled) {
+                    mmServerSocket = tmp;
+                    return;
+                }
+            }
+            // Cancelled while listening again
+            try {
+                tmp.close();
+            } catch (Exception ignored) {
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return mmCancelled || mmServerSocket == null;
+        }
+
         /**
          * Cancel the thread.
          */
         public void cancel() {
+            synchronized (this) {
+                mmCancelled = true;
+                closeServerSocket();
+            }
+            interrupt();
+        }
+
+        private synchronized void closeServerSocket() {
             try {
                 mmServerSocket.close();
             } catch (Exception ignored) {
             }
-            interrupt();
         }
 
         /**
@@ -148,6 +559,38 @@ public class BluetoothServer extends BluetoothCommunicator {
             }
         }
 
+        /**
+         * Call onQueue method on UI thread, if the listener is an AdmissionListener.
+         *
+         * @param device Device queued.
+         */
+        private void queue(final BluetoothDevice device) {
+            if (mmListener instanceof AdmissionListener) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((AdmissionListener) mmListener).onQueue(device);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Call onReject method on UI thread, if the listener is an AdmissionListener.
+         *
+         * @param device Device rejected.
+         */
+        private void reject(final BluetoothDevice device) {
+            if (mmListener instanceof AdmissionListener) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((AdmissionListener) mmListener).onReject(device);
+                    }
+                });
+            }
+        }
+
         /**
          * Cancel the thread and call onFailed method on UI thread.
          */
@@ -164,4 +607,43 @@ public class BluetoothServer extends BluetoothCommunicator {
             }
         }
     }
+
+    /**
+     * Socket waiting in the admission queue.
+     */
+    private static class QueuedSocket {
+        private final TransportSocket mmSocket;
+        private final BluetoothDevice mmDevice;
+        private final long mmAcceptedNanos;
+        private ScheduledFuture<?> mmTimeout;
+        private boolean mmTimeoutCancelled;
+
+        QueuedSocket(TransportSocket socket, BluetoothDevice device, long acceptedNanos) {
+            mmSocket = socket;
+            mmDevice = device;
+            mmAcceptedNanos = acceptedNanos;
+        }
+
+        /**
+         * Set the timeout, cancelled at once if the socket left the queue before.
+         *
+         * @param timeout Timeout task.
+         */
+        synchronized void setTimeout(ScheduledFuture<?> timeout) {
+            mmTimeout = timeout;
+            if (mmTimeoutCancelled) {
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Cancel the timeout when the socket leaves the queue.
+         */
+        synchronized void cancelTimeout() {
+            mmTimeoutCancelled = true;
+            if (mmTimeout != null) {
+                mmTimeout.cancel(false);
+            }
+        }
+    }
 }
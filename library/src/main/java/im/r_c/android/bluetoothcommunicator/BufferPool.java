@@ -0,0 +1,237 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Thread safe pool of ByteBuffers shared by the connections of a communicator.
+ * <p/>
+ * Buffers come in power of two size classes from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}, bigger requests are allocated and dropped as usual.
+ * Heap and direct buffers are pooled separately, the stream based read and write
+ * paths use heap buffers, direct ones are there for NIO based users.
+ * <p/>
+ * With leak detection on, the pool remembers where every borrowed buffer was
+ * acquired, so buffers never released can be found with {@link #getLeaks()},
+ * and releasing a buffer twice throws.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS_SIZE = 256;
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PER_CLASS = 64;
+
+    private static final int MIN_SHIFT = 8;
+    private static final int CLASS_COUNT = 9;
+
+    private final Queue<ByteBuffer>[][] mFree;
+    private final AtomicInteger[][] mFreeCount;
+    private final int mMaxPerClass;
+    private final Map<ByteBuffer, Throwable> mOutstanding;
+
+    private final AtomicLong mAcquireCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mReleaseCount = new AtomicLong();
+    private final AtomicInteger mOutstandingCount = new AtomicInteger();
+
+    /**
+     * BufferPool constructor with default size and without leak detection.
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_PER_CLASS, false);
+    }
+
+    /**
+     * BufferPool constructor.
+     *
+     * @param maxPerClass   Max free buffers kept per size class.
+     * @param leakDetection Track borrowed buffers, costs an allocation per acquire, for debugging.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPerClass, boolean leakDetection) {
+        mMaxPerClass = maxPerClass;
+        mFree = new Queue[2][CLASS_COUNT];
+        mFreeCount = new AtomicInteger[2][CLASS_COUNT];
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < CLASS_COUNT; j++) {
+                mFree[i][j] = new ConcurrentLinkedQueue<>();
+                mFreeCount[i][j] = new AtomicInteger();
+            }
+        }
+        mOutstanding = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>()) : null;
+    }
+
+    /**
+     * Borrow a heap buffer, cleared, with array.
+     *
+     * @param minCapacity Min capacity needed.
+     * @return Buffer with capacity of at least minCapacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        return acquire(minCapacity, false);
+    }
+
+    /**
+     * Borrow a direct buffer, cleared.
+     *
+     * @param minCapacity Min capacity needed.
+     * @return Buffer with capacity of at least minCapacity.
+     */
+    public ByteBuffer acquireDirect(int minCapacity) {
+        return acquire(minCapacity, true);
+    }
+
+    private ByteBuffer acquire(int minCapacity, boolean direct) {
+        mAcquireCount.incrementAndGet();
+        mOutstandingCount.incrementAndGet();
+
+        int index = classIndex(minCapacity);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            int kind = direct ? 1 : 0;
+            buffer = mFree[kind][index].poll();
+            if (buffer != null) {
+                mFreeCount[kind][index].decrementAndGet();
+                mHitCount.incrementAndGet();
+                buffer.clear();
+            }
+        }
+
+        if (buffer == null) {
+            int capacity = index >= 0 ? MIN_CLASS_SIZE << index : minCapacity;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        if (mOutstanding != null) {
+            mOutstanding.put(buffer, new Throwable("Buffer acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a borrowed buffer back, it must not be used afterwards.
+     *
+     * @param buffer Buffer acquired from this pool, null is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (mOutstanding != null && mOutstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not from this pool");
+        }
+        mReleaseCount.incrementAndGet();
+        mOutstandingCount.decrementAndGet();
+
+        int capacity = buffer.capacity();
+        int index = classIndex(capacity);
+        if (index < 0 || MIN_CLASS_SIZE << index != capacity) {
+            // Not of a size class, leave it to GC
+            return;
+        }
+
+        int kind = buffer.isDirect() ? 1 : 0;
+        if (mFreeCount[kind][index].incrementAndGet() <= mMaxPerClass) {
+            mFree[kind][index].offer(buffer);
+        } else {
+            mFreeCount[kind][index].decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the size class index fitting capacity.
+     *
+     * @param capacity Capacity.
+     * @return Index, or -1 if bigger than the max class.
+     */
+    private static int classIndex(int capacity) {
+        if (capacity <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        if (capacity > MAX_CLASS_SIZE) {
+            return -1;
+        }
+        // Round up to the next power of two
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    public long getAcquireCount() {
+        return mAcquireCount.get();
+    }
+
+    /**
+     * Get number of acquires served by a pooled buffer.
+     *
+     * @return Hit count.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getReleaseCount() {
+        return mReleaseCount.get();
+    }
+
+    /**
+     * Get number of buffers borrowed and not released yet.
+     *
+     * @return Outstanding count.
+     */
+    public int getOutstandingCount() {
+        return mOutstandingCount.get();
+    }
+
+    /**
+     * Get number of free buffers kept in the pool.
+     *
+     * @return Pooled count.
+     */
+    public int getPooledCount() {
+        int count = 0;
+        for (AtomicInteger[] kind : mFreeCount) {
+            for (AtomicInteger c : kind) {
+                count += c.get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get total capacity of free buffers kept in the pool.
+     *
+     * @return Pooled bytes.
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (AtomicInteger[] kind : mFreeCount) {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                bytes += (long) kind[i].get() * (MIN_CLASS_SIZE << i);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Get where the outstanding buffers were acquired, only with leak detection on.
+     *
+     * @return Stack traces of acquires, empty without leak detection.
+     */
+    public List<Throwable> getLeaks() {
+        if (mOutstanding == null) {
+            return Collections.emptyList();
+        }
+        synchronized (mOutstanding) {
+            return new ArrayList<>(mOutstanding.values());
+        }
+    }
+}
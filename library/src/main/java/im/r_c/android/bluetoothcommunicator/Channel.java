@@ -0,0 +1,68 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Named logical channel multiplexed over a connection.
+ * <p/>
+ * Messages of a channel are cut into chunks of {@link ConnectionOptions#getChunkSize()},
+ * and the writer interleaves chunks of different channels: a channel with higher
+ * priority is always served first, channels of the same priority share the link
+ * in proportion to their weights. Lines, data frames and calls go on built-in
+ * lanes of {@link #PRIORITY_NORMAL} by {@link SendPriority}, NORMAL being worth weight 1.
+ * <p/>
+ * Both ends must register a channel with the same name, on the wire it's identified
+ * by {@link #getId()}, the hash code of the name.
+ */
+public class Channel {
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_LOW = -1;
+
+    private final String mName;
+    private final int mPriority;
+    private final int mWeight;
+
+    /**
+     * Channel constructor.
+     *
+     * @param name     Name, the same on both ends.
+     * @param priority Priority, higher is served first, e.g. {@link #PRIORITY_HIGH}.
+     * @param weight   Share of the link among channels of the same priority.
+     */
+    public Channel(String name, int priority, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        mName = name;
+        mPriority = priority;
+        mWeight = weight;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get id of the channel on the wire.
+     *
+     * @return Hash code of the name.
+     */
+    public int getId() {
+        return mName.hashCode();
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "Channel{name=" + mName + ", priority=" + mPriority + ", weight=" + mWeight + "}";
+    }
+}
@@ -1,37 +1,138 @@
 package im.r_c.android.bluetoothcommunicator;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
 
 /**
  * BluetoothCommunicator
  * Created by richard on 16/1/11.
  * <p/>
  * Class used to establish the communication between devices.
+ * It only depends on {@link TransportSocket}, so it can run on any transport.
+ * <p/>
+ * This thread reads, writes are queued and done by a separate writer thread,
+ * so senders never wait for the I/O (unless the queue is full and the policy is BLOCK).
+ * With {@link #start(Executor)} both run on threads of a shared pool instead.
+ * <p/>
+ * With handshake enabled, the writer first sends a hello and holds queued
+ * messages until the peer's hello arrives, or the timeout passes and the peer
+ * is treated as legacy (line only).
+ * <p/>
+ * On a reliable connection a {@link Session} is attached: data messages are
+ * acknowledged by the peer and kept until then, and at most the send window of
+ * them are unacknowledged at a time. Control frames (acks) still go out while
+ * the window is full, so two ends both waiting for acks can't deadlock.
+ * With a resumable session, messages of a lost connection are handed over to
+ * the session instead of failed, for the next connection to send.
+ * <p/>
+ * Messages on a {@link Channel} are written a chunk at a time, the queue picks
+ * the next chunk to write by channel priority and weight, and the reader puts
+ * the chunks of each channel back together.
+ * <p/>
+ * Traffic is counted in {@link ConnectionMetrics}, see {@link #getStats()}.
+ * With a heartbeat interval set, a {@link Heartbeat} pings the peer and gives up
+ * the connection when nothing is heard for too long.
  */
 public class CommunicateThread extends Thread {
-    private BluetoothSocket mSocket;
-    private BluetoothDevice mDevice;
-    private BluetoothCommunicator mCommunicator;
+    /**
+     * Max count of received data messages before an ack is sent,
+     * one is also sent whenever the reader runs out of buffered data.
+     */
+    private static final int ACK_INTERVAL = 32;
+
+    private TransportSocket mSocket;
+    private Callback mCallback;
     private InputStream mInStream;
     private OutputStream mOutStream;
+    private BufferPool mBufferPool;
+    private OutboundQueue mOutboundQueue;
+    private Worker mReader;
+    private Worker mWriter;
+    private volatile FrameReader mFrameReader;
+    private boolean mCoalescing;
+    private int mCoalesceMaxBytes;
+    private long mCoalesceMaxDelayNanos;
+    private int mBroadcastQueueLimit;
+    private SlowConsumerPolicy mSlowConsumerPolicy;
+    private Compressor mCompressor;
+    private ConnectionOptions mOptions;
+    private final ConnectionMetrics mMetrics;
+    private CountDownLatch mHandshakeLatch = new CountDownLatch(1);
+    private AtomicReference<ProtocolParameters> mParameters = new AtomicReference<>();
+    private volatile Session mSession;
+    private volatile int mSendWindow;
+    private volatile Heartbeat mHeartbeat;
+    private AtomicBoolean mClosed = new AtomicBoolean();
+
+    /**
+     * CommunicateThread constructor with default options.
+     *
+     * @param socket   Connected socket to be used to communicate.
+     * @param callback Callback to notify the owner.
+     */
+    public CommunicateThread(TransportSocket socket, Callback callback) {
+        this(socket, callback, new ConnectionOptions());
+    }
 
     /**
      * CommunicateThread constructor.
      *
-     * @param communicator Communicator that starts this thread.
-     * @param socket       Bluetooth socket to be used to communicate.
+     * @param socket   Connected socket to be used to communicate.
+     * @param callback Callback to notify the owner.
+     * @param options  Options of the connection.
+     */
+    public CommunicateThread(TransportSocket socket, Callback callback, ConnectionOptions options) {
+        this(socket, callback, options, new StatsCollector().newConnection());
+    }
+
+    /**
+     * CommunicateThread constructor counting into metrics shared with a communicator.
+     *
+     * @param socket   Connected socket to be used to communicate.
+     * @param callback Callback to notify the owner.
+     * @param options  Options of the connection.
+     * @param metrics  Metrics of the connection.
      */
-    public CommunicateThread(BluetoothCommunicator communicator, BluetoothSocket socket) {
-        mCommunicator = communicator;
+    CommunicateThread(TransportSocket socket, Callback callback, ConnectionOptions options, ConnectionMetrics metrics) {
+        mMetrics = metrics;
         mSocket = socket;
-        mDevice = socket.getRemoteDevice();
+        mCallback = callback;
+        mOptions = new ConnectionOptions(options);
+        mBufferPool = options.getBufferPool();
+        mOutboundQueue = new OutboundQueue(options.getQueueCapacity(), options.getBackpressurePolicy(),
+                options.getChunkSize(), metrics.getCollector().queueWait);
+        mReader = new Worker(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+        mWriter = new Worker(new Writer());
+        mCoalescing = options.isCoalescingEnabled();
+        mCoalesceMaxBytes = options.getCoalesceMaxBytes();
+        mCoalesceMaxDelayNanos = TimeUnit.MICROSECONDS.toNanos(options.getCoalesceMaxDelayMicros());
+        mBroadcastQueueLimit = options.getBroadcastQueueLimit();
+        mSlowConsumerPolicy = options.getSlowConsumerPolicy();
+        mCompressor = new Compressor(options);
 
         InputStream tmpIn = null;
         OutputStream tmpOut = null;
@@ -40,50 +141,576 @@ public class CommunicateThread extends Thread {
             tmpIn = socket.getInputStream();
             tmpOut = socket.getOutputStream();
         } catch (Exception e) {
-            fail();
+            fail(DisconnectReason.IO_ERROR);
         }
 
         mInStream = tmpIn;
         mOutStream = tmpOut;
     }
 
+    /**
+     * Get address of the remote end.
+     *
+     * @return Remote address.
+     */
+    public String getRemoteAddress() {
+        return mSocket.getRemoteAddress();
+    }
+
+    /**
+     * Check if the connection is closed, either cancelled or lost.
+     *
+     * @return Closed or not.
+     */
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Get number of messages waiting to be written.
+     *
+     * @return Queue depth.
+     */
+    public int getQueuedCount() {
+        return mOutboundQueue.size();
+    }
+
+    /**
+     * Get parameters negotiated by the handshake.
+     *
+     * @return Parameters, or null if the handshake isn't done yet.
+     */
+    public ProtocolParameters getProtocolParameters() {
+        return mParameters.get();
+    }
+
+    /**
+     * Set the session to propose in the handshake, before starting.
+     *
+     * @param session Session.
+     */
+    void setSession(Session session) {
+        mSession = session;
+    }
+
+    /**
+     * Get the session proposed or attached.
+     *
+     * @return Session or null.
+     */
+    Session getSession() {
+        return mSession;
+    }
+
+    /**
+     * Attach a session, only from {@link Callback#onHandshake(CommunicateThread, ProtocolParameters)}
+     * with a non-zero session id.
+     *
+     * @param session Session with the negotiated id.
+     * @return Whether the session is resumed, i.e. was attached to a connection before.
+     */
+    boolean attachSession(Session session) {
+        mSession = session;
+        return session.attach(this);
+    }
+
+    /**
+     * Get stats of the send window and round trip times.
+     *
+     * @return Stats, or null if the connection isn't reliable.
+     */
+    public DeliveryStats getDeliveryStats() {
+        ProtocolParameters parameters = mParameters.get();
+        Session session = mSession;
+        if (parameters == null || !parameters.isReliable() || session == null) {
+            return null;
+        }
+        return session.getStats(mSendWindow);
+    }
+
+    /**
+     * Get counters of the connection.
+     *
+     * @return Snapshot.
+     */
+    public ConnectionStats getStats() {
+        return mMetrics.snapshot(getRemoteAddress(), mOutboundQueue.size(), mOutboundQueue.getMaxSize(),
+                mOutboundQueue.getDroppedCount(), mOutboundQueue.getClassSizes());
+    }
+
+    ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get stats of the heartbeat.
+     *
+     * @return Stats, or null if heartbeats are disabled or not supported by the peer.
+     */
+    public HeartbeatStats getHeartbeatStats() {
+        Heartbeat heartbeat = mHeartbeat;
+        return heartbeat == null ? null : heartbeat.getStats();
+    }
+
+    /**
+     * Get ratio of compressed size to original size of the frames sent compressed.
+     *
+     * @return Ratio, 1 if nothing was compressed.
+     */
+    public float getCompressionRatio() {
+        long in = mCompressor.getBytesIn();
+        return in == 0 ? 1 : (float) mCompressor.getBytesOut() / in;
+    }
+
+    /**
+     * Start reading and writing.
+     */
     @Override
-    public void run() {
-        if (Thread.currentThread().isInterrupted()) {
-            return;
+    public synchronized void start() {
+        beforeStart();
+        new Thread(mWriter, getName() + "-writer").start();
+        super.start();
+    }
+
+    /**
+     * Start reading and writing on threads of the executor instead of own threads.
+     * Each takes a thread of the executor until the connection is closed.
+     * If the executor rejects either, the connection is closed as lost.
+     *
+     * @param executor Executor with at least two threads free.
+     */
+    public void start(Executor executor) {
+        beforeStart();
+        try {
+            executor.execute(mWriter);
+            executor.execute(mReader);
+        } catch (RejectedExecutionException e) {
+            // No thread for it, the writer if started stops once cancelled
+            fail(DisconnectReason.LOCAL);
         }
+    }
+
+    private void beforeStart() {
+        if (!mOptions.isHandshakeEnabled()) {
+            completeHandshake(Handshake.assumed());
+        }
+    }
+
+    @Override
+    public void run() {
+        mReader.run();
+    }
 
-        InputStreamReader isr;
-        BufferedReader br;
+    private void read() {
+        FrameReader reader = new FrameReader(mInStream, mBufferPool, mOptions.getMaxFrameSize());
+        mFrameReader = reader;
+        long acked = 0;
+        // Messages of each channel received in part, only touched by this thread
+        Map<Integer, ByteArrayOutputStream> partial = new HashMap<>();
         try {
-            isr = new InputStreamReader(mInStream);
-            br = new BufferedReader(isr);
-            String line;
             while (!Thread.currentThread().isInterrupted()) {
-                line = br.readLine();
-                if (line != null) {
-                    mCommunicator.receiveLine(line, mDevice);
+                int type = reader.next();
+                if (type != Frame.TYPE_HELLO && mParameters.get() == null) {
+                    // Anything before a hello means the peer doesn't do handshakes
+                    completeHandshake(ProtocolParameters.legacy());
+                }
+
+                if (type == FrameReader.EOF) {
+                    // End of stream, the remote end closed the connection
+                    fail(DisconnectReason.REMOTE_CLOSED);
+                    return;
+                } else if (type == Frame.TYPE_HELLO) {
+                    reader.skipNewline();
+                    Session session = mSession;
+                    completeHandshake(Handshake.decode(reader.getPayload(), mOptions,
+                            session != null ? session.getId() : 0));
+                } else if (type == Frame.TYPE_RESUME) {
+                    byte[] payload = reader.getPayload();
+                    Session session = mSession;
+                    if (payload.length != Frame.LONG_PAYLOAD_LENGTH * 2) {
+                        throw new ProtocolException("Bad resume frame");
+                    }
+                    if (session != null) {
+                        session.resume(Frame.getLong(payload, 0), Frame.getLong(payload, Frame.LONG_PAYLOAD_LENGTH));
+                        acked = session.getReceivedCount();
+                        mOutboundQueue.wake();
+                    }
+                } else if (type == Frame.TYPE_ACK) {
+                    byte[] payload = reader.getPayload();
+                    Session session = mSession;
+                    if (payload.length != Frame.LONG_PAYLOAD_LENGTH) {
+                        throw new ProtocolException("Bad ack frame");
+                    }
+                    if (session != null) {
+                        session.onAck(Frame.getLong(payload, 0));
+                        mOutboundQueue.wake();
+                    }
+                } else if (type == Frame.TYPE_PING || type == Frame.TYPE_PONG) {
+                    byte[] payload = reader.getPayload();
+                    if (payload.length != Frame.LONG_PAYLOAD_LENGTH) {
+                        throw new ProtocolException("Bad heartbeat frame");
+                    }
+                    Heartbeat heartbeat = mHeartbeat;
+                    if (type == Frame.TYPE_PING) {
+                        sendLong(Frame.TYPE_PONG, Frame.getLong(payload, 0));
+                    } else if (heartbeat != null) {
+                        heartbeat.onPong(Frame.getLong(payload, 0));
+                    }
+                } else if ((type & ~Frame.FLAG_COMPRESSED) == Frame.TYPE_LINE
+                        || (type & ~Frame.FLAG_COMPRESSED) == Frame.TYPE_BYTES
+                        || (type & ~Frame.FLAG_COMPRESSED) == Frame.TYPE_RPC) {
+                    Session session = mSession;
+                    // Otherwise it was resent by the peer but already received on the lost connection
+                    if (session == null || session.onReceived()) {
+                        mMetrics.onReceive();
+                        deliver(type, reader);
+                    }
+                } else if (type == Frame.TYPE_CHANNEL) {
+                    byte[] payload = reader.getPayload();
+                    if (payload.length < Frame.CHANNEL_PREFIX_LENGTH) {
+                        throw new ProtocolException("Bad channel frame");
+                    }
+                    // Only the last chunk of a message counts as received
+                    byte[] message = assemble(payload, partial, mOptions.getMaxFrameSize());
+                    Session session = mSession;
+                    if (message != null && (session == null || session.onReceived())) {
+                        mMetrics.onReceive();
+                        mCallback.onReceiveChannel(this, Frame.getInt(payload, 0), message);
+                    }
+                } else {
+                    // An unknown frame type from a newer peer, its payload is read already, skip it
+                }
+                mMetrics.setBytesReceived(reader.getBytesRead());
+
+                // Ack after any frame, the next one may be a protocol frame after which the reader blocks
+                Session session = mSession;
+                if (session != null) {
+                    long received = session.getReceivedCount();
+                    if (received != acked && (received - acked >= ACK_INTERVAL || !reader.hasBufferedData())) {
+                        sendLong(Frame.TYPE_ACK, received);
+                        acked = received;
+                    }
                 }
             }
         } catch (Exception e) {
-            fail();
+            fail(reasonOf(e));
+        } finally {
+            reader.release();
+            mCompressor.endInflater();
+        }
+    }
+
+    private static DisconnectReason reasonOf(Exception e) {
+        if (e instanceof ProtocolException) {
+            return DisconnectReason.PROTOCOL_ERROR;
+        }
+        // The stream ended in the middle of a frame
+        return e instanceof EOFException ? DisconnectReason.REMOTE_CLOSED : DisconnectReason.IO_ERROR;
+    }
+
+    /**
+     * Add a received chunk to the message of its channel.
+     *
+     * @param payload Payload of the chunk frame.
+     * @param partial Messages received in part, by channel id.
+     * @param maxSize Max size of a whole message.
+     * @return The whole message if it's the last chunk, or null.
+     * @throws IOException If the chunks are out of order or the message is over the max size.
+     */
+    static byte[] assemble(byte[] payload, Map<Integer, ByteArrayOutputStream> partial, int maxSize)
+            throws IOException {
+        int id = Frame.getInt(payload, 0);
+        int flags = payload[4];
+        int length = payload.length - Frame.CHANNEL_PREFIX_LENGTH;
+        if ((flags & Frame.CHUNK_FIRST) != 0) {
+            partial.remove(id);
+            if ((flags & Frame.CHUNK_LAST) != 0) {
+                return Arrays.copyOfRange(payload, Frame.CHANNEL_PREFIX_LENGTH, payload.length);
+            }
+            partial.put(id, new ByteArrayOutputStream(Math.max(length * 2, 32)));
+        }
+
+        ByteArrayOutputStream message = partial.get(id);
+        if (message == null) {
+            throw new ProtocolException("Chunk without a first one on channel " + id);
+        }
+        if (message.size() + length > maxSize) {
+            throw new ProtocolException("Channel message over max frame size");
+        }
+        message.write(payload, Frame.CHANNEL_PREFIX_LENGTH, length);
+        if ((flags & Frame.CHUNK_LAST) == 0) {
+            return null;
+        }
+        partial.remove(id);
+        return message.toByteArray();
+    }
+
+    private void deliver(int type, FrameReader reader) throws IOException {
+        if (type == Frame.TYPE_LINE) {
+            mCallback.onReceiveLine(this, reader.getLine());
+        } else if (type == Frame.TYPE_BYTES) {
+            mCallback.onReceiveBytes(this, reader.getPayload());
+        } else if (type == Frame.TYPE_RPC) {
+            mCallback.onReceiveRpc(this, reader.getPayload());
+        } else if (type == (Frame.TYPE_LINE | Frame.FLAG_COMPRESSED)) {
+            mCallback.onReceiveLine(this, reader.decodeLine(mCompressor.decompress(reader.getPayload())));
+        } else if (type == (Frame.TYPE_RPC | Frame.FLAG_COMPRESSED)) {
+            mCallback.onReceiveRpc(this, mCompressor.decompress(reader.getPayload()));
+        } else {
+            mCallback.onReceiveBytes(this, mCompressor.decompress(reader.getPayload()));
         }
     }
 
     /**
-     * Write a line to remote device.
+     * Set the negotiated parameters if not decided yet, and let the writer go
+     * once the callback had the chance to attach a session.
+     * A reliable connection without resumption gets a session of its own.
+     *
+     * @param parameters Parameters.
+     */
+    private void completeHandshake(ProtocolParameters parameters) {
+        if (mParameters.compareAndSet(null, parameters)) {
+            if (mOptions.isHandshakeEnabled()) {
+                mMetrics.getCollector().handshakeTime.recordNanos(System.nanoTime() - mMetrics.getStartedNanos());
+            }
+            if (parameters.getSessionId() == 0) {
+                mSession = null;
+            }
+            mCallback.onHandshake(this, parameters);
+            if (mSession == null && parameters.isReliable()) {
+                attachSession(new Session(0, mOptions.getSendWindow()));
+            }
+            mHandshakeLatch.countDown();
+            if (mOptions.getHeartbeatIntervalMillis() > 0 && parameters.isHeartbeatSupported()) {
+                startHeartbeat();
+            }
+        }
+    }
+
+    private void startHeartbeat() {
+        Heartbeat heartbeat = new Heartbeat(new Heartbeat.Host() {
+            @Override
+            public void sendPing(long payload) {
+                sendLong(Frame.TYPE_PING, payload);
+            }
+
+            @Override
+            public long getBytesReceived() {
+                // Progress within a frame counts, a large one may take longer than the miss limit
+                FrameReader reader = mFrameReader;
+                return reader != null ? reader.getBytesRead() : 0;
+            }
+
+            @Override
+            public boolean isReaderStalled() {
+                return mMetrics.isReaderStalled();
+            }
+
+            @Override
+            public void onHeartbeatTimeout() {
+                fail(DisconnectReason.HEARTBEAT_TIMEOUT);
+            }
+        }, mOptions.getHeartbeatIntervalMillis(), mOptions.getHeartbeatMissLimit(),
+                mMetrics.getCollector().heartbeatRtt);
+        mHeartbeat = heartbeat;
+        heartbeat.start();
+        if (mClosed.get()) {
+            // Cancelled meanwhile, cancel() may have missed it
+            heartbeat.stop();
+        }
+    }
+
+    /**
+     * Queue a protocol frame with a long payload ahead of other messages.
+     *
+     * @param type  Frame type.
+     * @param value Payload.
+     */
+    private void sendLong(int type, long value) {
+        ByteBuffer frame = mBufferPool.acquire(Frame.HEADER_LENGTH + Frame.LONG_PAYLOAD_LENGTH);
+        Frame.putHeader(frame.array(), frame.arrayOffset(), type, Frame.LONG_PAYLOAD_LENGTH);
+        Frame.putLong(frame.array(), frame.arrayOffset() + Frame.HEADER_LENGTH, value);
+        frame.limit(Frame.HEADER_LENGTH + Frame.LONG_PAYLOAD_LENGTH);
+        OutboundMessage message = new OutboundMessage(new SharedBuffer(frame, mBufferPool),
+                OutboundMessage.TYPE_PROTOCOL, null);
+        if (!mOutboundQueue.offerProtocol(message)) {
+            message.release();
+        }
+    }
+
+    /**
+     * Queue a line to write to remote device.
      *
      * @param string Line to write.
      */
-    public void writeLine(String string) {
-        PrintWriter pw = new PrintWriter(mOutStream, true);
-        pw.println(string);
+    public void writeLine(CharSequence string) {
+        writeLine(string, null);
+    }
+
+    /**
+     * Queue a line to write to remote device.
+     *
+     * @param string   Line to write, encoded before returning.
+     * @param callback Called on the writer thread after the line is flushed or failed, or null.
+     */
+    public void writeLine(CharSequence string, WriteCallback callback) {
+        writeLine(string, SendPriority.NORMAL, callback);
+    }
+
+    /**
+     * Queue a line to write to remote device in a priority class.
+     *
+     * @param string   Line to write, encoded before returning.
+     * @param priority Priority class.
+     * @param callback Called on the writer thread after the line is flushed or failed, or null.
+     * @throws IllegalArgumentException If the line contains '\n' or starts with '\0'.
+     */
+    public void writeLine(CharSequence string, SendPriority priority, WriteCallback callback) {
+        OutboundMessage message = new OutboundMessage(encodeLine(string, mBufferPool), Frame.TYPE_LINE, callback);
+        message.priority = priority;
+        enqueue(message);
+    }
+
+    /**
+     * Queue an encoded record shared with other connections, never blocks.
+     * If the queue is over the broadcast limit the record is failed, and
+     * the connection is dropped if the slow consumer policy says so.
+     *
+     * @param record   Encoded line record, a reference is taken for this connection.
+     * @param priority Priority class.
+     * @param callback Called on the writer thread after the record is flushed or failed, or null.
+     */
+    void writeShared(SharedBuffer record, SendPriority priority, WriteCallback callback) {
+        record.retain();
+        OutboundMessage message = new OutboundMessage(record, Frame.TYPE_LINE, callback);
+        message.priority = priority;
+        if (!mOutboundQueue.offerIfBelow(message, mBroadcastQueueLimit)) {
+            message.fail();
+            if (mSlowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+                fail(DisconnectReason.SLOW_CONSUMER);
+            }
+        }
+    }
+
+    /**
+     * Encode a line into a UTF-8 record in a pooled buffer,
+     * with the line codec of the calling thread.
+     *
+     * @param string Line to encode.
+     * @param pool   Pool to borrow the buffer from.
+     * @return Encoded record, owned by the caller.
+     */
+    static SharedBuffer encodeLine(CharSequence string, BufferPool pool) {
+        return LineCodec.forCurrentThread().encode(string, pool);
+    }
+
+    /**
+     * Queue binary data to write to remote device as one frame.
+     *
+     * @param data     Data to write, from position to limit. It's copied, position is not changed.
+     * @param callback Called on the writer thread after the frame is flushed or failed, or null.
+     */
+    public void writeBytes(ByteBuffer data, WriteCallback callback) {
+        writeBytes(data, SendPriority.NORMAL, callback);
+    }
+
+    /**
+     * Queue binary data to write to remote device as one frame in a priority class.
+     *
+     * @param data     Data to write, from position to limit. It's copied, position is not changed.
+     * @param priority Priority class.
+     * @param callback Called on the writer thread after the frame is flushed or failed, or null.
+     */
+    public void writeBytes(ByteBuffer data, SendPriority priority, WriteCallback callback) {
+        OutboundMessage message = new OutboundMessage(encodeBytes(data, mBufferPool), Frame.TYPE_BYTES, callback);
+        message.priority = priority;
+        enqueue(message);
+    }
+
+    /**
+     * Encode binary data into a frame in a pooled buffer.
+     *
+     * @param data Data from position to limit. It's copied, position is not changed.
+     * @param pool Pool to borrow the buffer from.
+     * @return Encoded frame, owned by the caller.
+     */
+    static SharedBuffer encodeBytes(ByteBuffer data, BufferPool pool) {
+        int length = data.remaining();
+        ByteBuffer frame = pool.acquire(Frame.HEADER_LENGTH + length);
+        Frame.putHeader(frame.array(), frame.arrayOffset(), Frame.TYPE_BYTES, length);
+        frame.position(Frame.HEADER_LENGTH);
+        frame.put(data.duplicate()).flip();
+        return new SharedBuffer(frame, pool);
+    }
+
+    /**
+     * Queue an encoded frame.
+     *
+     * @param record   Encoded frame, the reference is taken over.
+     * @param type     Frame type.
+     * @param callback Called on the writer thread after the frame is flushed or failed, or null.
+     */
+    void writeRecord(SharedBuffer record, int type, WriteCallback callback) {
+        enqueue(new OutboundMessage(record, type, callback));
+    }
+
+    /**
+     * Queue an encoded channel message.
+     *
+     * @param record   Encoded message as a single chunk, the reference is taken over.
+     * @param channel  Channel.
+     * @param callback Called on the writer thread after the whole message is flushed or failed, or null.
+     */
+    void writeRecord(SharedBuffer record, Channel channel, WriteCallback callback) {
+        enqueue(new OutboundMessage(record, channel, callback));
+    }
+
+    /**
+     * Queue a message on a logical channel, written in chunks of the chunk size.
+     *
+     * @param channel  Channel.
+     * @param data     Message, from position to limit. It's copied, position is not changed.
+     * @param callback Called on the writer thread after the whole message is flushed or failed, or null.
+     */
+    public void writeChannel(Channel channel, ByteBuffer data, WriteCallback callback) {
+        enqueue(new OutboundMessage(encodeChannel(channel, data, mBufferPool), channel, callback));
+    }
+
+    /**
+     * Encode a channel message into a single chunk frame in a pooled buffer,
+     * the writer cuts it into smaller chunks as needed.
+     *
+     * @param channel Channel.
+     * @param data    Message from position to limit. It's copied, position is not changed.
+     * @param pool    Pool to borrow the buffer from.
+     * @return Encoded frame, owned by the caller.
+     */
+    static SharedBuffer encodeChannel(Channel channel, ByteBuffer data, BufferPool pool) {
+        int length = Frame.CHANNEL_PREFIX_LENGTH + data.remaining();
+        ByteBuffer frame = pool.acquire(Frame.HEADER_LENGTH + length);
+        Frame.putHeader(frame.array(), frame.arrayOffset(), Frame.TYPE_CHANNEL, length);
+        frame.position(Frame.HEADER_LENGTH);
+        frame.putInt(channel.getId()).put((byte) (Frame.CHUNK_FIRST | Frame.CHUNK_LAST));
+        frame.put(data.duplicate()).flip();
+        return new SharedBuffer(frame, pool);
+    }
+
+    private void enqueue(OutboundMessage message) {
+        if (!mOutboundQueue.offer(message)) {
+            message.fail();
+        }
     }
 
     /**
      * Cancel the thread.
      */
     public void cancel() {
+        closeMetrics(DisconnectReason.LOCAL);
+        mClosed.set(true);
+        Heartbeat heartbeat = mHeartbeat;
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
         try {
             mSocket.close();
         } catch (Exception ignored) {
@@ -96,16 +723,513 @@ public class CommunicateThread extends Thread {
             mOutStream.close();
         } catch (Exception ignored) {
         }
-        interrupt();
+        handOver(mOutboundQueue.close(), false);
+        Session session = mSession;
+        if (session != null && session.getId() == 0) {
+            // Not resumable, nothing will acknowledge its messages any more
+            session.close();
+        }
+        mWriter.interrupt();
+        mReader.interrupt();
     }
 
     /**
-     * Cancel the thread and notify the communicator.
+     * Give unwritten messages to the session for the next connection, or fail them.
+     *
+     * @param messages Messages in order.
+     * @param first    They go before messages the session already has.
      */
-    private void fail() {
-        if (!Thread.currentThread().isInterrupted()) {
-            mCommunicator.loseConnection(mDevice);
+    private void handOver(List<OutboundMessage> messages, boolean first) {
+        List<OutboundMessage> data = new ArrayList<>(messages.size());
+        for (OutboundMessage message : messages) {
+            if (message.isData()) {
+                // A channel message written in part starts over
+                message.chunkOffset = 0;
+                data.add(message);
+            } else {
+                message.release();
+            }
+        }
+
+        Session session = mSession;
+        if (session == null || !session.addPending(this, data, first)) {
+            for (OutboundMessage message : data) {
+                message.fail();
+            }
+        }
+    }
+
+    /**
+     * Cancel the thread and notify the callback, only the first call notifies.
+     *
+     * @param reason Why the connection is lost, counted if it's the first reason.
+     */
+    private void fail(DisconnectReason reason) {
+        closeMetrics(reason);
+        if (mClosed.compareAndSet(false, true)) {
+            mCallback.onLoseConnection(this);
         }
         cancel();
     }
+
+    private void closeMetrics(DisconnectReason reason) {
+        mMetrics.getCollector().onClosed(mMetrics, reason, getStats());
+    }
+
+    /**
+     * Runnable tracking the thread running it, so cancel() interrupts
+     * that thread only while it's running this connection.
+     */
+    private class Worker implements Runnable {
+        private Runnable mmBody;
+        private Thread mmRunner;
+
+        public Worker(Runnable body) {
+            mmBody = body;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                mmRunner = Thread.currentThread();
+            }
+            try {
+                if (!mClosed.get()) {
+                    mmBody.run();
+                }
+            } finally {
+                synchronized (this) {
+                    mmRunner = null;
+                }
+            }
+        }
+
+        public synchronized void interrupt() {
+            if (mmRunner != null) {
+                mmRunner.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Drains the outbound queue.
+     */
+    private class Writer implements Runnable {
+        private List<OutboundMessage> mmBatch = new ArrayList<>();
+        /**
+         * Compressed frame or chunk written instead of the record of each batched message, or null.
+         */
+        private List<ByteBuffer> mmEncoded = new ArrayList<>();
+
+        private ProtocolParameters mmParameters;
+        private Session mmSession;
+        private long mmStalledSince;
+
+        @Override
+        public void run() {
+            try {
+                if (mOptions.isHandshakeEnabled() && !handshake()) {
+                    return;
+                }
+                mmParameters = mParameters.get();
+                mCompressor.setEnabled(mmParameters.getCompression() == Compression.DEFLATE);
+                mmSession = mSession;
+                if (mmSession != null && mmSession.getId() != 0 && !resume()) {
+                    return;
+                }
+                mSendWindow = mmSession == null || mmSession.getId() == 0 ? mOptions.getSendWindow()
+                        : Math.min(mOptions.getSendWindow(), mOptions.getResumeBufferLimit());
+
+                while (true) {
+                    OutboundMessage message;
+                    if (mmStalledSince != 0 && isWindowFull(0)) {
+                        // Only protocol frames go out until an ack opens the window
+                        message = mOutboundQueue.takeProtocol();
+                        if (message == null) {
+                            if (mClosed.get()) {
+                                return;
+                            }
+                            continue;
+                        }
+                    } else {
+                        if (mmStalledSince != 0) {
+                            mmSession.onWindowStall(System.nanoTime() - mmStalledSince);
+                            mmStalledSince = 0;
+                        }
+                        message = mOutboundQueue.take();
+                        if (message == null) {
+                            return;
+                        }
+                    }
+                    if (!writeBatch(message)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                mCompressor.endDeflater();
+            }
+        }
+
+        /**
+         * Send hello and wait for the peer's.
+         *
+         * @return Succeeded or not.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private boolean handshake() throws InterruptedException {
+            try {
+                Session session = mSession;
+                byte[] hello = Handshake.encode(mOptions, session != null ? session.getId() : 0);
+                mOutStream.write(hello);
+                mOutStream.flush();
+                mMetrics.onFlush(0, hello.length);
+            } catch (IOException e) {
+                fail(DisconnectReason.IO_ERROR);
+                return false;
+            }
+
+            if (!mHandshakeLatch.await(mOptions.getHandshakeTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                completeHandshake(ProtocolParameters.legacy());
+            }
+            return true;
+        }
+
+        /**
+         * Tell the peer where the session continues, send again what it may have missed,
+         * and put messages handed over by the lost connection in front of the queue.
+         *
+         * @return Succeeded or not.
+         */
+        private boolean resume() {
+            List<OutboundMessage> resend = new ArrayList<>();
+            long next = mmSession.prepareResend(resend);
+            byte[] record = new byte[Frame.HEADER_LENGTH + Frame.LONG_PAYLOAD_LENGTH * 2];
+            Frame.putHeader(record, 0, Frame.TYPE_RESUME, Frame.LONG_PAYLOAD_LENGTH * 2);
+            Frame.putLong(record, Frame.HEADER_LENGTH, mmSession.getReceivedCount());
+            Frame.putLong(record, Frame.HEADER_LENGTH + Frame.LONG_PAYLOAD_LENGTH,
+                    mmSession.isResumed() ? next : Session.NEW);
+            try {
+                mOutStream.write(record);
+                int size = record.length;
+                for (OutboundMessage message : resend) {
+                    if (message.type == Frame.TYPE_CHANNEL) {
+                        size += writeChunks(message);
+                    } else {
+                        mOutStream.write(message.data, message.offset, message.length);
+                        size += message.length;
+                    }
+                }
+                mOutStream.flush();
+                mMetrics.onFlush(resend.size(), size);
+            } catch (IOException e) {
+                fail(DisconnectReason.IO_ERROR);
+                return false;
+            } finally {
+                for (OutboundMessage message : resend) {
+                    message.release();
+                }
+            }
+
+            List<OutboundMessage> pending = mmSession.takePending();
+            if (!mOutboundQueue.prepend(pending)) {
+                handOver(pending, true);
+            }
+            return true;
+        }
+
+        /**
+         * Check if a data message can't be written now because of the send window.
+         *
+         * @param batched Data messages gathered in the batch but not written yet.
+         * @return Full or not.
+         */
+        private boolean isWindowFull(int batched) {
+            return mmSession != null && mmSession.getInFlightCount() + batched >= mSendWindow;
+        }
+
+        /**
+         * Put a data message back at the head of the queue until the window opens.
+         *
+         * @param message Message taken from the queue.
+         */
+        private void holdBack(OutboundMessage message) {
+            if (mmStalledSince == 0) {
+                mmStalledSince = System.nanoTime();
+            }
+            if (!mOutboundQueue.pushBack(message)) {
+                handOver(Collections.singletonList(message), true);
+            }
+        }
+
+        /**
+         * Check if the message can be sent with the negotiated parameters.
+         *
+         * @param message Message to check.
+         * @return Sendable or not.
+         */
+        private boolean isSendable(OutboundMessage message) {
+            if (message.type == Frame.TYPE_LINE) {
+                return true;
+            }
+            if (message.type == Frame.TYPE_RPC && !mmParameters.isRpcSupported()) {
+                return false;
+            }
+            if (message.type == Frame.TYPE_CHANNEL) {
+                // The peer also limits a whole message to its max frame size
+                int chunk = Math.min(mOptions.getChunkSize(), message.payloadLength());
+                return mmParameters.isChannelSupported() && message.payloadLength() <= mmParameters.getMaxFrameSize()
+                        && chunk + Frame.CHANNEL_PREFIX_LENGTH <= mmParameters.getMaxFrameSize();
+            }
+            return mmParameters.isFramingSupported() && message.payloadLength() <= mmParameters.getMaxFrameSize();
+        }
+
+        /**
+         * Write the message, with coalescing enabled gather messages following it
+         * until the batch is big enough or the max delay passed, and write them at once.
+         *
+         * @param first First message of the batch.
+         * @return Succeeded or not.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private boolean writeBatch(OutboundMessage first) throws InterruptedException {
+            long deadline = System.nanoTime() + mCoalesceMaxDelayNanos;
+            int size = 0;
+            int data = 0;
+            OutboundMessage message = first;
+            while (true) {
+                if (message.isData() && isWindowFull(data)) {
+                    holdBack(message);
+                    break;
+                }
+                if (isSendable(message)) {
+                    ByteBuffer encoded = message.type == Frame.TYPE_CHANNEL ? nextChunk(message)
+                            : mCompressor.compress(message, mBufferPool);
+                    if (message.isData()) {
+                        data++;
+                        if (mmSession != null && message.writtenNanos == 0 && !message.hasMoreChunks()) {
+                            message.writtenNanos = System.nanoTime();
+                        }
+                    }
+                    mmBatch.add(message);
+                    mmEncoded.add(encoded);
+                    size += encoded != null ? encoded.limit() : message.length;
+                } else {
+                    message.fail();
+                }
+                // After a chunk, the queue decides which channel goes next
+                if (!mCoalescing || size >= mCoalesceMaxBytes || message.hasMoreChunks()) {
+                    break;
+                }
+                message = mOutboundQueue.poll(deadline - System.nanoTime());
+                if (message == null) {
+                    break;
+                }
+            }
+            if (mmBatch.isEmpty()) {
+                return true;
+            }
+
+            boolean succeeded = true;
+            try {
+                if (mmBatch.size() == 1) {
+                    write(mmBatch.get(0), mmEncoded.get(0));
+                } else {
+                    ByteBuffer buffer = mBufferPool.acquire(size);
+                    try {
+                        for (int i = 0; i < mmBatch.size(); i++) {
+                            OutboundMessage m = mmBatch.get(i);
+                            ByteBuffer encoded = mmEncoded.get(i);
+                            if (encoded != null) {
+                                buffer.put(encoded.array(), encoded.arrayOffset(), encoded.limit());
+                            } else {
+                                buffer.put(m.data, m.offset, m.length);
+                            }
+                        }
+                        mOutStream.write(buffer.array(), buffer.arrayOffset(), size);
+                    } finally {
+                        mBufferPool.release(buffer);
+                    }
+                }
+                mOutStream.flush();
+            } catch (IOException e) {
+                succeeded = false;
+            }
+
+            Histogram sendToFlush = mMetrics.getCollector().sendToFlush;
+            long now = System.nanoTime();
+            int completed = 0;
+            List<OutboundMessage> unsent = succeeded ? null : new ArrayList<OutboundMessage>();
+            for (int i = 0; i < mmBatch.size(); i++) {
+                mBufferPool.release(mmEncoded.get(i));
+                OutboundMessage m = mmBatch.get(i);
+                if (!succeeded) {
+                    // Part of the batch may have arrived, so whole messages are kept as written
+                    // and the peer tells on resume which to send again
+                    if (mmSession == null || !m.isData() || m.hasMoreChunks()
+                            || !mmSession.onWritten(CommunicateThread.this, m)) {
+                        unsent.add(m);
+                    }
+                    continue;
+                }
+                if (m.isData() && !m.hasMoreChunks()) {
+                    completed++;
+                    sendToFlush.recordNanos(now - m.queuedNanos);
+                }
+                if (m.hasMoreChunks()) {
+                    // The rest waits for its turn again
+                    if (!mOutboundQueue.pushBack(m)) {
+                        handOver(Collections.singletonList(m), true);
+                    }
+                } else if (mmSession == null || !m.isData()) {
+                    m.succeed();
+                } else if (!mmSession.onWritten(CommunicateThread.this, m)) {
+                    // The session moved to a new connection meanwhile, this may never arrive
+                    m.fail();
+                }
+            }
+            if (!succeeded) {
+                handOver(unsent, true);
+            }
+            int count = mmBatch.size();
+            mmBatch.clear();
+            mmEncoded.clear();
+
+            if (!succeeded) {
+                fail(DisconnectReason.IO_ERROR);
+                return false;
+            }
+            mMetrics.onFlush(completed, size);
+            mCallback.onFlush(CommunicateThread.this, count, size);
+            return true;
+        }
+
+        /**
+         * Cut the next chunk of a channel message.
+         *
+         * @param message Channel message.
+         * @return Pooled buffer with the chunk frame from 0 to limit, or null if the record is written as it is.
+         */
+        private ByteBuffer nextChunk(OutboundMessage message) {
+            int chunkSize = mOptions.getChunkSize();
+            int total = message.payloadLength();
+            if (message.chunkOffset == 0 && total <= chunkSize) {
+                message.chunkOffset = total;
+                return null;
+            }
+
+            int length = Math.min(total - message.chunkOffset, chunkSize);
+            int flags = (message.chunkOffset == 0 ? Frame.CHUNK_FIRST : 0)
+                    | (message.chunkOffset + length == total ? Frame.CHUNK_LAST : 0);
+            ByteBuffer frame = mBufferPool.acquire(Frame.HEADER_LENGTH + Frame.CHANNEL_PREFIX_LENGTH + length);
+            Frame.putHeader(frame.array(), frame.arrayOffset(), Frame.TYPE_CHANNEL, Frame.CHANNEL_PREFIX_LENGTH + length);
+            frame.position(Frame.HEADER_LENGTH);
+            frame.putInt(message.channel.getId()).put((byte) flags);
+            frame.put(message.data, message.payloadOffset() + message.chunkOffset, length).flip();
+            message.chunkOffset += length;
+            return frame;
+        }
+
+        /**
+         * Write a whole channel message at once, chunk by chunk.
+         *
+         * @param message Channel message.
+         * @return Bytes written.
+         * @throws IOException If failed to write.
+         */
+        private int writeChunks(OutboundMessage message) throws IOException {
+            message.chunkOffset = 0;
+            int size = 0;
+            do {
+                ByteBuffer chunk = nextChunk(message);
+                try {
+                    write(message, chunk);
+                    size += chunk != null ? chunk.limit() : message.length;
+                } finally {
+                    mBufferPool.release(chunk);
+                }
+            } while (message.hasMoreChunks());
+            return size;
+        }
+
+        private void write(OutboundMessage message, ByteBuffer encoded) throws IOException {
+            if (encoded != null) {
+                mOutStream.write(encoded.array(), encoded.arrayOffset(), encoded.limit());
+            } else {
+                mOutStream.write(message.data, message.offset, message.length);
+            }
+        }
+    }
+
+    /**
+     * Callback to the owner of the thread.
+     */
+    public interface Callback {
+        /**
+         * Called on the thread when a line is received.
+         *
+         * @param thread Thread received the line.
+         * @param line   Line received.
+         */
+        void onReceiveLine(CommunicateThread thread, String line);
+
+        /**
+         * Called on the thread when a binary frame is received.
+         *
+         * @param thread Thread received the data.
+         * @param data   Data received.
+         */
+        void onReceiveBytes(CommunicateThread thread, byte[] data);
+
+        /**
+         * Called on the thread when a remote procedure call message is received.
+         *
+         * @param thread  Thread received the message.
+         * @param payload Payload of the frame, see {@link RpcEngine}.
+         */
+        void onReceiveRpc(CommunicateThread thread, byte[] payload);
+
+        /**
+         * Called on the thread when a whole message of a logical channel is received.
+         *
+         * @param thread    Thread received the message.
+         * @param channelId Id of the channel, see {@link Channel#getId()}.
+         * @param data      Message.
+         */
+        void onReceiveChannel(CommunicateThread thread, int channelId, byte[] data);
+
+        /**
+         * Called on the writer thread after each flush to the socket.
+         *
+         * @param thread       Thread flushed.
+         * @param messageCount Number of messages carried by the flush.
+         * @param byteCount    Number of bytes flushed.
+         */
+        void onFlush(CommunicateThread thread, int messageCount, int byteCount);
+
+        /**
+         * Called once the protocol parameters are decided, before any queued message is written.
+         * Called on the reader or writer thread.
+         *
+         * @param thread     Thread.
+         * @param parameters Negotiated parameters.
+         */
+        void onHandshake(CommunicateThread thread, ProtocolParameters parameters);
+
+        /**
+         * Called when the connection is lost.
+         *
+         * @param thread Thread lost the connection.
+         */
+        void onLoseConnection(CommunicateThread thread);
+    }
+
+    /**
+     * Result of a queued write.
+     */
+    public interface WriteCallback {
+        void onSucceed();
+
+        void onFail();
+    }
 }
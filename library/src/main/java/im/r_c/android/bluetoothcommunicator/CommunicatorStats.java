@@ -0,0 +1,281 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Snapshot of the stats of a communicator: counters of each current connection,
+ * totals over all connections since the communicator was created, and latency histograms.
+ * <p/>
+ * Send to flush is from queueing a message to flushing its last byte, receive to
+ * dispatch is from reading a message to handing it to the receive executor's listener.
+ */
+public class CommunicatorStats {
+    private final long mTimestampMillis;
+    private final List<ConnectionStats> mConnections;
+    private final long mBytesSent;
+    private final long mMessagesSent;
+    private final long mFlushCount;
+    private final long mBytesReceived;
+    private final long mMessagesReceived;
+    private final long mReaderStallCount;
+    private final long mReaderStallMillis;
+    private final long mDroppedCount;
+    private final long mOpenedCount;
+    private final long mConnectFailureCount;
+    private final long mRejectedCount;
+    private final Map<DisconnectReason, Long> mDisconnects;
+    private final LatencyHistogram mSendToFlush;
+    private final LatencyHistogram mReceiveToDispatch;
+    private final LatencyHistogram mConnectTime;
+    private final LatencyHistogram mAcceptTime;
+    private final LatencyHistogram mHandshakeTime;
+    private final LatencyHistogram mConnectionLifetime;
+    private final LatencyHistogram mHeartbeatRtt;
+    private final Map<SendPriority, LatencyHistogram> mQueueWaits;
+
+    CommunicatorStats(long timestampMillis, List<ConnectionStats> connections, ConnectionStats closed,
+                      long openedCount, long connectFailureCount, long rejectedCount,
+                      Map<DisconnectReason, Long> disconnects, LatencyHistogram sendToFlush,
+                      LatencyHistogram receiveToDispatch, LatencyHistogram connectTime,
+                      LatencyHistogram acceptTime, LatencyHistogram handshakeTime,
+                      LatencyHistogram connectionLifetime, LatencyHistogram heartbeatRtt,
+                      Map<SendPriority, LatencyHistogram> queueWaits) {
+        long bytesSent = closed.getBytesSent();
+        long messagesSent = closed.getMessagesSent();
+        long flushCount = closed.getFlushCount();
+        long bytesReceived = closed.getBytesReceived();
+        long messagesReceived = closed.getMessagesReceived();
+        long readerStallCount = closed.getReaderStallCount();
+        long readerStallMillis = closed.getReaderStallMillis();
+        long droppedCount = closed.getDroppedCount();
+        for (ConnectionStats connection : connections) {
+            bytesSent += connection.getBytesSent();
+            messagesSent += connection.getMessagesSent();
+            flushCount += connection.getFlushCount();
+            bytesReceived += connection.getBytesReceived();
+            messagesReceived += connection.getMessagesReceived();
+            readerStallCount += connection.getReaderStallCount();
+            readerStallMillis += connection.getReaderStallMillis();
+            droppedCount += connection.getDroppedCount();
+        }
+
+        mTimestampMillis = timestampMillis;
+        mConnections = Collections.unmodifiableList(connections);
+        mBytesSent = bytesSent;
+        mMessagesSent = messagesSent;
+        mFlushCount = flushCount;
+        mBytesReceived = bytesReceived;
+        mMessagesReceived = messagesReceived;
+        mReaderStallCount = readerStallCount;
+        mReaderStallMillis = readerStallMillis;
+        mDroppedCount = droppedCount;
+        mOpenedCount = openedCount;
+        mConnectFailureCount = connectFailureCount;
+        mRejectedCount = rejectedCount;
+        mDisconnects = Collections.unmodifiableMap(disconnects);
+        mSendToFlush = sendToFlush;
+        mReceiveToDispatch = receiveToDispatch;
+        mConnectTime = connectTime;
+        mAcceptTime = acceptTime;
+        mHandshakeTime = handshakeTime;
+        mConnectionLifetime = connectionLifetime;
+        mHeartbeatRtt = heartbeatRtt;
+        mQueueWaits = Collections.unmodifiableMap(queueWaits);
+    }
+
+    /**
+     * Get when the snapshot was taken.
+     *
+     * @return Wall clock time in milliseconds.
+     */
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /**
+     * Get counters of the current connections.
+     *
+     * @return Unmodifiable list.
+     */
+    public List<ConnectionStats> getConnections() {
+        return mConnections;
+    }
+
+    /**
+     * Get counters of the connection with a device.
+     *
+     * @param address MAC address.
+     * @return Counters, or null if not connected.
+     */
+    public ConnectionStats getConnection(String address) {
+        for (ConnectionStats connection : mConnections) {
+            if (connection.getAddress().equals(address)) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    public long getReaderStallCount() {
+        return mReaderStallCount;
+    }
+
+    public long getReaderStallMillis() {
+        return mReaderStallMillis;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Get number of connections made, including the current ones.
+     *
+     * @return Count.
+     */
+    public long getOpenedCount() {
+        return mOpenedCount;
+    }
+
+    /**
+     * Get number of failed connect attempts of a client.
+     *
+     * @return Count.
+     */
+    public long getConnectFailureCount() {
+        return mConnectFailureCount;
+    }
+
+    /**
+     * Get number of connection requests a server rejected because it was full.
+     *
+     * @return Count.
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Get number of closed connections by reason.
+     *
+     * @return Unmodifiable map with all reasons.
+     */
+    public Map<DisconnectReason, Long> getDisconnects() {
+        return mDisconnects;
+    }
+
+    public LatencyHistogram getSendToFlush() {
+        return mSendToFlush;
+    }
+
+    public LatencyHistogram getReceiveToDispatch() {
+        return mReceiveToDispatch;
+    }
+
+    /**
+     * Get time a client took to connect the socket.
+     *
+     * @return Histogram.
+     */
+    public LatencyHistogram getConnectTime() {
+        return mConnectTime;
+    }
+
+    /**
+     * Get time from a server accepting a socket until the connection is ready,
+     * waiting in the admission queue and the handshake included.
+     *
+     * @return Histogram.
+     */
+    public LatencyHistogram getAcceptTime() {
+        return mAcceptTime;
+    }
+
+    /**
+     * Get time from setting up a connection until its handshake is done.
+     *
+     * @return Histogram.
+     */
+    public LatencyHistogram getHandshakeTime() {
+        return mHandshakeTime;
+    }
+
+    /**
+     * Get time closed connections lasted.
+     *
+     * @return Histogram.
+     */
+    public LatencyHistogram getConnectionLifetime() {
+        return mConnectionLifetime;
+    }
+
+    /**
+     * Get round trip times of heartbeats, see {@link HeartbeatStats}.
+     *
+     * @return Histogram.
+     */
+    public LatencyHistogram getHeartbeatRtt() {
+        return mHeartbeatRtt;
+    }
+
+    /**
+     * Get time lines and data frames of a priority class waited in the queue
+     * until the writer took them, e.g. to check CONTROL stays fast under load.
+     *
+     * @param priority Priority class.
+     * @return Histogram.
+     */
+    public LatencyHistogram getQueueWait(SendPriority priority) {
+        return mQueueWaits.get(priority);
+    }
+
+    /**
+     * Get number of lines and data frames of a priority class waiting in all current connections.
+     *
+     * @param priority Priority class.
+     * @return Queue depth of the class.
+     */
+    public int getQueuedCount(SendPriority priority) {
+        int count = 0;
+        for (ConnectionStats connection : mConnections) {
+            count += connection.getQueuedCount(priority);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "CommunicatorStats{connections=" + mConnections.size() + ", opened=" + mOpenedCount
+                + ", sent=" + mMessagesSent + " (" + mBytesSent + " bytes)"
+                + ", received=" + mMessagesReceived + " (" + mBytesReceived + " bytes)"
+                + ", readerStalls=" + mReaderStallCount + ", dropped=" + mDroppedCount
+                + ", connectFailures=" + mConnectFailureCount + ", rejected=" + mRejectedCount
+                + ", disconnects=" + mDisconnects + ", sendToFlush=" + mSendToFlush
+                + ", receiveToDispatch=" + mReceiveToDispatch + "}";
+    }
+}
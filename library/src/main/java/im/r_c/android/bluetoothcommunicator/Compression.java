@@ -0,0 +1,16 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Compression of frames on the wire.
+ */
+public enum Compression {
+    NONE,
+
+    /**
+     * DEFLATE (java.util.zip), optionally with a preset dictionary.
+     */
+    DEFLATE
+}
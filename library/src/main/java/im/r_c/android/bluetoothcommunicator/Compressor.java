@@ -0,0 +1,211 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Per connection DEFLATE compression of frames.
+ * <p/>
+ * A compressed frame has the type of the original record with {@link Frame#FLAG_COMPRESSED},
+ * and its payload is the original payload length (4 bytes) followed by the deflated payload.
+ * Every frame is compressed on its own, the Deflater and Inflater are reset and reused.
+ * <p/>
+ * The writer thread uses {@link #compress}, the reader thread {@link #decompress},
+ * each side must {@link #endDeflater()} / {@link #endInflater()} when done.
+ */
+class Compressor {
+    private static final int LENGTH_PREFIX = 4;
+
+    /**
+     * Consecutive frames that didn't shrink before compression is paused.
+     */
+    static final int MAX_MISSES = 8;
+
+    /**
+     * Frames sent uncompressed while paused.
+     */
+    static final int PAUSE_FRAMES = 64;
+
+    private boolean mEnabled;
+    private final int mLevel;
+    private final int mThreshold;
+    private final byte[] mDictionary;
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private int mMisses;
+    private int mPaused;
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    Compressor(ConnectionOptions options) {
+        mLevel = options.getCompressionLevel();
+        mThreshold = options.getCompressionThreshold();
+        mDictionary = options.getCompressionDictionary();
+    }
+
+    /**
+     * Enable or disable compression of outgoing frames, called by the writer thread
+     * once the handshake decided.
+     *
+     * @param enabled Enabled or not.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Try to compress a message into a new record.
+     * Frames below the threshold or not shrinking are left alone, and after several
+     * frames in a row didn't shrink, compression is skipped for a while.
+     *
+     * @param message Message to compress.
+     * @param pool    Pool to borrow the output buffer from.
+     * @return Pooled buffer with the compressed frame from 0 to limit, or null if not compressed.
+     */
+    ByteBuffer compress(OutboundMessage message, BufferPool pool) {
+        int payloadLength = message.payloadLength();
+        if (!mEnabled || message.type < 0 || payloadLength < mThreshold) {
+            return null;
+        }
+        if (mPaused > 0) {
+            mPaused--;
+            return null;
+        }
+
+        if (mDeflater == null) {
+            mDeflater = new Deflater(mLevel);
+        } else {
+            mDeflater.reset();
+        }
+        if (mDictionary != null) {
+            mDeflater.setDictionary(mDictionary);
+        }
+        mDeflater.setInput(message.data, message.payloadOffset(), payloadLength);
+        mDeflater.finish();
+
+        // Only worth it if the whole compressed frame is smaller than the original record
+        int headerLength = Frame.HEADER_LENGTH + LENGTH_PREFIX;
+        int maxDeflated = message.length - headerLength - 1;
+        ByteBuffer out = maxDeflated > 0 ? pool.acquire(message.length) : null;
+        int deflated = 0;
+        if (out != null) {
+            byte[] array = out.array();
+            int base = out.arrayOffset() + headerLength;
+            while (!mDeflater.finished() && deflated < maxDeflated) {
+                deflated += mDeflater.deflate(array, base + deflated, maxDeflated - deflated);
+            }
+        }
+
+        if (out == null || !mDeflater.finished()) {
+            pool.release(out);
+            if (++mMisses >= MAX_MISSES) {
+                mMisses = 0;
+                mPaused = PAUSE_FRAMES;
+            }
+            return null;
+        }
+
+        mMisses = 0;
+        byte[] array = out.array();
+        int base = out.arrayOffset();
+        Frame.putHeader(array, base, message.type | Frame.FLAG_COMPRESSED, LENGTH_PREFIX + deflated);
+        putInt(array, base + Frame.HEADER_LENGTH, payloadLength);
+        out.position(0).limit(headerLength + deflated);
+
+        mBytesIn.addAndGet(message.length);
+        mBytesOut.addAndGet(out.limit());
+        return out;
+    }
+
+    /**
+     * Decompress the payload of a compressed frame.
+     *
+     * @param payload Payload of the frame.
+     * @return Original payload.
+     * @throws IOException If the payload is malformed or needs an unknown dictionary.
+     */
+    byte[] decompress(byte[] payload) throws IOException {
+        if (payload.length < LENGTH_PREFIX) {
+            throw new ProtocolException("Bad compressed frame");
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Bad compressed frame length: " + length);
+        }
+
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        } else {
+            mInflater.reset();
+        }
+        mInflater.setInput(payload, LENGTH_PREFIX, payload.length - LENGTH_PREFIX);
+
+        byte[] out = new byte[length];
+        int n = 0;
+        try {
+            while (n < length) {
+                int inflated = mInflater.inflate(out, n, length - n);
+                if (inflated == 0) {
+                    if (mInflater.needsDictionary() && mDictionary != null) {
+                        mInflater.setDictionary(mDictionary);
+                    } else {
+                        throw new ProtocolException("Bad compressed frame");
+                    }
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed frame: " + e.getMessage());
+        }
+        return out;
+    }
+
+    void endDeflater() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    void endInflater() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    /**
+     * Get bytes of records before compression, of compressed frames only.
+     *
+     * @return Bytes in.
+     */
+    long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * Get bytes of compressed frames.
+     *
+     * @return Bytes out.
+     */
+    long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,27 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * A connected device and the thread communicating with it.
+ */
+public class Connection {
+    private final BluetoothDevice mDevice;
+    private final CommunicateThread mThread;
+
+    public Connection(BluetoothDevice device, CommunicateThread thread) {
+        mDevice = device;
+        mThread = thread;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public CommunicateThread getThread() {
+        return mThread;
+    }
+}
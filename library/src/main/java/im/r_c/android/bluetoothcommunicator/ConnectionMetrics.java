@@ -0,0 +1,146 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Counters of one connection. Each counter is only written by one thread,
+ * the writer or the reader, so plain volatile fields are enough and
+ * updating them costs no more than a store.
+ */
+class ConnectionMetrics {
+    private final StatsCollector mCollector;
+    private final long mStartedMillis = System.currentTimeMillis();
+    private final long mStartedNanos = System.nanoTime();
+
+    // Written by the writer thread
+    private volatile long mBytesSent;
+    private volatile long mMessagesSent;
+    private volatile long mFlushCount;
+
+    // Written by the reader thread
+    private volatile long mBytesReceived;
+    private volatile long mMessagesReceived;
+    private volatile long mReaderStallCount;
+    private volatile long mReaderStallNanos;
+    private volatile boolean mReaderStalled;
+
+    /**
+     * Items waiting in the receive dispatcher, written under its lock.
+     */
+    private volatile int mReceiveQueued;
+
+    // Guarded by the collector
+    private DisconnectReason mDisconnectReason;
+
+    ConnectionMetrics(StatsCollector collector) {
+        mCollector = collector;
+    }
+
+    StatsCollector getCollector() {
+        return mCollector;
+    }
+
+    long getStartedNanos() {
+        return mStartedNanos;
+    }
+
+    /**
+     * Count a flush, on the writer thread.
+     *
+     * @param messages Messages completed by the flush.
+     * @param bytes    Bytes written.
+     */
+    void onFlush(int messages, int bytes) {
+        mMessagesSent += messages;
+        mBytesSent += bytes;
+        mFlushCount++;
+    }
+
+    /**
+     * Count a received message, on the reader thread.
+     */
+    void onReceive() {
+        mMessagesReceived++;
+    }
+
+    /**
+     * Set bytes read so far, on the reader thread.
+     *
+     * @param bytes Bytes.
+     */
+    void setBytesReceived(long bytes) {
+        mBytesReceived = bytes;
+    }
+
+    /**
+     * Count a time the reader waited for the receive executor, on the reader thread.
+     *
+     * @param nanos Time waited.
+     */
+    void onReaderStall(long nanos) {
+        mReaderStallCount++;
+        mReaderStallNanos += nanos;
+    }
+
+    long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Set if the reader is waiting for the receive executor now.
+     *
+     * @param stalled Waiting or not.
+     */
+    void setReaderStalled(boolean stalled) {
+        mReaderStalled = stalled;
+    }
+
+    boolean isReaderStalled() {
+        return mReaderStalled;
+    }
+
+    void setReceiveQueued(int count) {
+        mReceiveQueued = count;
+    }
+
+    /**
+     * Set the reason, only under the lock of the collector.
+     *
+     * @param reason Reason.
+     * @return Whether this closed the counters.
+     */
+    boolean markClosed(DisconnectReason reason) {
+        if (mDisconnectReason != null) {
+            return false;
+        }
+        mDisconnectReason = reason;
+        return true;
+    }
+
+    /**
+     * Check if closed, only under the lock of the collector.
+     *
+     * @return Closed or not.
+     */
+    boolean isClosed() {
+        return mDisconnectReason != null;
+    }
+
+    /**
+     * Take a snapshot.
+     *
+     * @param address     Remote address.
+     * @param queued      Messages waiting to be written.
+     * @param maxQueued   Most messages waiting to be written at a time.
+     * @param dropped     Messages not queued because the queue was full.
+     * @param classQueued Messages of each priority class waiting, by ordinal.
+     * @return Snapshot.
+     */
+    ConnectionStats snapshot(String address, int queued, int maxQueued, long dropped, int[] classQueued) {
+        return new ConnectionStats(address, mStartedMillis, (System.nanoTime() - mStartedNanos) / 1000000,
+                mBytesSent, mMessagesSent, mFlushCount, mBytesReceived, mMessagesReceived,
+                mReaderStallCount, mReaderStallNanos / 1000000, queued, maxQueued, dropped, mReceiveQueued,
+                classQueued);
+    }
+}
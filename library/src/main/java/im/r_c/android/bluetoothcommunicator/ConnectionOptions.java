@@ -0,0 +1,587 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.zip.Deflater;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Options of a connection, read when the connection is established.
+ */
+public class ConnectionOptions {
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_COALESCE_MAX_BYTES = 4096;
+    public static final long DEFAULT_COALESCE_MAX_DELAY_MICROS = 2000;
+    public static final int DEFAULT_RECEIVE_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 1000;
+    public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_RESUME_BUFFER_LIMIT = 256;
+    public static final long DEFAULT_RECONNECT_BASE_DELAY_MILLIS = 250;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY_MILLIS = 8000;
+    public static final int DEFAULT_SEND_WINDOW = 64;
+    public static final long DEFAULT_RPC_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 16384;
+    public static final long DEFAULT_TRANSFER_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_HEARTBEAT_MISS_LIMIT = 3;
+
+    private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private BackpressurePolicy mBackpressurePolicy = BackpressurePolicy.BLOCK;
+    private boolean mCoalescingEnabled;
+    private int mCoalesceMaxBytes = DEFAULT_COALESCE_MAX_BYTES;
+    private long mCoalesceMaxDelayMicros = DEFAULT_COALESCE_MAX_DELAY_MICROS;
+    private int mBroadcastQueueLimit = DEFAULT_QUEUE_CAPACITY;
+    private SlowConsumerPolicy mSlowConsumerPolicy = SlowConsumerPolicy.DROP;
+    private int mReceiveQueueCapacity = DEFAULT_RECEIVE_QUEUE_CAPACITY;
+    private BufferPool mBufferPool = new BufferPool();
+    private Compression mCompression = Compression.NONE;
+    private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private byte[] mCompressionDictionary;
+    private int mMaxFrameSize = Frame.MAX_PAYLOAD_LENGTH;
+    private boolean mHandshakeEnabled;
+    private long mHandshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+    private boolean mResumptionEnabled;
+    private long mSessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+    private int mResumeBufferLimit = DEFAULT_RESUME_BUFFER_LIMIT;
+    private long mReconnectBaseDelayMillis = DEFAULT_RECONNECT_BASE_DELAY_MILLIS;
+    private long mReconnectMaxDelayMillis = DEFAULT_RECONNECT_MAX_DELAY_MILLIS;
+    private boolean mReliableDeliveryEnabled;
+    private int mSendWindow = DEFAULT_SEND_WINDOW;
+    private long mRpcTimeoutMillis = DEFAULT_RPC_TIMEOUT_MILLIS;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mTransferChunkSize = DEFAULT_TRANSFER_CHUNK_SIZE;
+    private long mTransferTimeoutMillis = DEFAULT_TRANSFER_TIMEOUT_MILLIS;
+    private long mHeartbeatIntervalMillis;
+    private int mHeartbeatMissLimit = DEFAULT_HEARTBEAT_MISS_LIMIT;
+
+    public ConnectionOptions() {
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other Options to copy.
+     */
+    public ConnectionOptions(ConnectionOptions other) {
+        mQueueCapacity = other.mQueueCapacity;
+        mBackpressurePolicy = other.mBackpressurePolicy;
+        mCoalescingEnabled = other.mCoalescingEnabled;
+        mCoalesceMaxBytes = other.mCoalesceMaxBytes;
+        mCoalesceMaxDelayMicros = other.mCoalesceMaxDelayMicros;
+        mBroadcastQueueLimit = other.mBroadcastQueueLimit;
+        mSlowConsumerPolicy = other.mSlowConsumerPolicy;
+        mReceiveQueueCapacity = other.mReceiveQueueCapacity;
+        mBufferPool = other.mBufferPool;
+        mCompression = other.mCompression;
+        mCompressionLevel = other.mCompressionLevel;
+        mCompressionThreshold = other.mCompressionThreshold;
+        mCompressionDictionary = other.mCompressionDictionary;
+        mMaxFrameSize = other.mMaxFrameSize;
+        mHandshakeEnabled = other.mHandshakeEnabled;
+        mHandshakeTimeoutMillis = other.mHandshakeTimeoutMillis;
+        mResumptionEnabled = other.mResumptionEnabled;
+        mSessionTimeoutMillis = other.mSessionTimeoutMillis;
+        mResumeBufferLimit = other.mResumeBufferLimit;
+        mReconnectBaseDelayMillis = other.mReconnectBaseDelayMillis;
+        mReconnectMaxDelayMillis = other.mReconnectMaxDelayMillis;
+        mReliableDeliveryEnabled = other.mReliableDeliveryEnabled;
+        mSendWindow = other.mSendWindow;
+        mRpcTimeoutMillis = other.mRpcTimeoutMillis;
+        mChunkSize = other.mChunkSize;
+        mTransferChunkSize = other.mTransferChunkSize;
+        mTransferTimeoutMillis = other.mTransferTimeoutMillis;
+        mHeartbeatIntervalMillis = other.mHeartbeatIntervalMillis;
+        mHeartbeatMissLimit = other.mHeartbeatMissLimit;
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * Setter of mQueueCapacity.
+     *
+     * @param capacity Max number of messages waiting to be written per connection.
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mQueueCapacity = capacity;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return mBackpressurePolicy;
+    }
+
+    /**
+     * Setter of mBackpressurePolicy.
+     *
+     * @param policy What to do when the outbound queue is full.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mBackpressurePolicy = policy;
+    }
+
+    public boolean isCoalescingEnabled() {
+        return mCoalescingEnabled;
+    }
+
+    /**
+     * Setter of mCoalescingEnabled.
+     * When enabled, the writer gathers queued messages into one socket write,
+     * flushing when mCoalesceMaxBytes is reached or mCoalesceMaxDelayMicros passed
+     * since the first message of the batch was taken.
+     *
+     * @param enabled Enabled or not.
+     */
+    public void setCoalescingEnabled(boolean enabled) {
+        mCoalescingEnabled = enabled;
+    }
+
+    public int getCoalesceMaxBytes() {
+        return mCoalesceMaxBytes;
+    }
+
+    /**
+     * Setter of mCoalesceMaxBytes.
+     *
+     * @param maxBytes Flush a batch once it reaches this size.
+     */
+    public void setCoalesceMaxBytes(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        mCoalesceMaxBytes = maxBytes;
+    }
+
+    public long getCoalesceMaxDelayMicros() {
+        return mCoalesceMaxDelayMicros;
+    }
+
+    /**
+     * Setter of mCoalesceMaxDelayMicros.
+     *
+     * @param maxDelayMicros Max time a message waits for others to join its batch, in microseconds.
+     */
+    public void setCoalesceMaxDelayMicros(long maxDelayMicros) {
+        if (maxDelayMicros < 0) {
+            throw new IllegalArgumentException("maxDelayMicros must not be negative");
+        }
+        mCoalesceMaxDelayMicros = maxDelayMicros;
+    }
+
+    public int getBroadcastQueueLimit() {
+        return mBroadcastQueueLimit;
+    }
+
+    /**
+     * Setter of mBroadcastQueueLimit.
+     * A peer with this many messages queued is treated as a slow consumer by broadcasts.
+     * Limits above the queue capacity act as the capacity.
+     *
+     * @param limit Max queue depth a broadcast message is still queued at.
+     */
+    public void setBroadcastQueueLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        mBroadcastQueueLimit = limit;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return mSlowConsumerPolicy;
+    }
+
+    /**
+     * Setter of mSlowConsumerPolicy.
+     *
+     * @param policy What a broadcast does to a peer over the broadcast limit.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mSlowConsumerPolicy = policy;
+    }
+
+    public int getReceiveQueueCapacity() {
+        return mReceiveQueueCapacity;
+    }
+
+    /**
+     * Setter of mReceiveQueueCapacity.
+     * The reader stops reading while this many received messages wait for dispatch.
+     *
+     * @param capacity Max number of received messages waiting for the receive executor.
+     */
+    public void setReceiveQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mReceiveQueueCapacity = capacity;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Setter of mBufferPool.
+     * The pool is shared by all connections made with these options (and copies of them).
+     *
+     * @param pool Pool to borrow read and write buffers from.
+     */
+    public void setBufferPool(BufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        mBufferPool = pool;
+    }
+
+    public Compression getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Setter of mCompression.
+     * Only used if the handshake is enabled and the remote end can decompress
+     * with the same dictionary.
+     *
+     * @param compression Compression of outgoing lines and data.
+     */
+    public void setCompression(Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("compression must not be null");
+        }
+        mCompression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /**
+     * Setter of mCompressionLevel.
+     *
+     * @param level Deflater level, 0-9 or Deflater.DEFAULT_COMPRESSION.
+     */
+    public void setCompressionLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid level");
+        }
+        mCompressionLevel = level;
+    }
+
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Setter of mCompressionThreshold.
+     * Smaller payloads are sent uncompressed, so are the ones that don't shrink.
+     *
+     * @param threshold Min payload size in bytes to try compressing.
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        mCompressionThreshold = threshold;
+    }
+
+    public byte[] getCompressionDictionary() {
+        return mCompressionDictionary;
+    }
+
+    /**
+     * Setter of mCompressionDictionary.
+     * A preset dictionary of strings common in messages helps a lot for small ones,
+     * both ends must use exactly the same dictionary.
+     *
+     * @param dictionary Dictionary or null.
+     */
+    public void setCompressionDictionary(byte[] dictionary) {
+        mCompressionDictionary = dictionary;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * Setter of mMaxFrameSize.
+     * Bigger frames from the peer are treated as a broken connection.
+     *
+     * @param maxFrameSize Max payload size of a received frame in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0 || maxFrameSize > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("maxFrameSize must be in (0, " + Frame.MAX_PAYLOAD_LENGTH + "]");
+        }
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    public boolean isHandshakeEnabled() {
+        return mHandshakeEnabled;
+    }
+
+    /**
+     * Setter of mHandshakeEnabled.
+     * When enabled, both ends exchange protocol version and capabilities first,
+     * and a peer that doesn't answer is treated as a legacy line-only peer.
+     * When disabled, the default, every peer is treated as a legacy one: only lines
+     * are sent, uncompressed, and binary data, calls, channels, typed messages and
+     * transfers fail at once.
+     * <p/>
+     * It's off by default because a legacy peer reads the hello as one garbage line,
+     * and sends wait for the handshake timeout before falling back. Enable it on both
+     * ends for anything but lines.
+     *
+     * @param enabled Enabled or not.
+     */
+    public void setHandshakeEnabled(boolean enabled) {
+        mHandshakeEnabled = enabled;
+    }
+
+    public long getHandshakeTimeoutMillis() {
+        return mHandshakeTimeoutMillis;
+    }
+
+    /**
+     * Setter of mHandshakeTimeoutMillis.
+     *
+     * @param timeoutMillis Time to wait for the peer's handshake before falling back to legacy mode.
+     */
+    public void setHandshakeTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        mHandshakeTimeoutMillis = timeoutMillis;
+    }
+
+    public boolean isResumptionEnabled() {
+        return mResumptionEnabled;
+    }
+
+    /**
+     * Setter of mResumptionEnabled.
+     * When enabled on both ends (with the handshake enabled), a lost connection keeps its session:
+     * the client reconnects by itself, and messages the peer didn't acknowledge are sent again.
+     * It implies reliable delivery.
+     *
+     * @param enabled Enabled or not.
+     */
+    public void setResumptionEnabled(boolean enabled) {
+        mResumptionEnabled = enabled;
+    }
+
+    public long getSessionTimeoutMillis() {
+        return mSessionTimeoutMillis;
+    }
+
+    /**
+     * Setter of mSessionTimeoutMillis.
+     *
+     * @param timeoutMillis Time an interrupted session is kept for resuming before it's given up.
+     */
+    public void setSessionTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        mSessionTimeoutMillis = timeoutMillis;
+    }
+
+    public int getResumeBufferLimit() {
+        return mResumeBufferLimit;
+    }
+
+    /**
+     * Setter of mResumeBufferLimit.
+     * Sent messages are kept until acknowledged, if more are waiting the oldest
+     * is dropped and the session can't be resumed after a loss.
+     *
+     * @param limit Max number of sent messages kept for resending.
+     */
+    public void setResumeBufferLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        mResumeBufferLimit = limit;
+    }
+
+    public long getReconnectBaseDelayMillis() {
+        return mReconnectBaseDelayMillis;
+    }
+
+    /**
+     * Setter of mReconnectBaseDelayMillis.
+     *
+     * @param delayMillis Delay before the first reconnect attempt, doubled after each failure.
+     */
+    public void setReconnectBaseDelayMillis(long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis must not be negative");
+        }
+        mReconnectBaseDelayMillis = delayMillis;
+    }
+
+    public long getReconnectMaxDelayMillis() {
+        return mReconnectMaxDelayMillis;
+    }
+
+    /**
+     * Setter of mReconnectMaxDelayMillis.
+     *
+     * @param delayMillis Upper bound of the delay between reconnect attempts.
+     */
+    public void setReconnectMaxDelayMillis(long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis must not be negative");
+        }
+        mReconnectMaxDelayMillis = delayMillis;
+    }
+
+    public boolean isReliableDeliveryEnabled() {
+        return mReliableDeliveryEnabled;
+    }
+
+    /**
+     * Setter of mReliableDeliveryEnabled.
+     * When enabled on both ends (with the handshake enabled), the peer acknowledges received messages,
+     * SendListener.onSucceed is called once a message is acknowledged, and at most mSendWindow
+     * messages are unacknowledged at a time.
+     *
+     * @param enabled Enabled or not.
+     */
+    public void setReliableDeliveryEnabled(boolean enabled) {
+        mReliableDeliveryEnabled = enabled;
+    }
+
+    public int getSendWindow() {
+        return mSendWindow;
+    }
+
+    /**
+     * Setter of mSendWindow.
+     * About bandwidth times round trip time divided by message size keeps the link busy.
+     *
+     * @param window Max number of sent messages waiting for acknowledgement.
+     */
+    public void setSendWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mSendWindow = window;
+    }
+
+    public long getRpcTimeoutMillis() {
+        return mRpcTimeoutMillis;
+    }
+
+    /**
+     * Setter of mRpcTimeoutMillis.
+     * Used by calls made without their own timeout.
+     *
+     * @param timeoutMillis Time to wait for a result, 0 to wait until disconnected.
+     */
+    public void setRpcTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        mRpcTimeoutMillis = timeoutMillis;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Setter of mChunkSize.
+     * A channel message waits at most one chunk of another channel, smaller chunks
+     * lower that latency but cost more headers.
+     *
+     * @param chunkSize Max bytes of a channel message written at a time.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    public int getTransferChunkSize() {
+        return mTransferChunkSize;
+    }
+
+    /**
+     * Setter of mTransferChunkSize.
+     * A sending end keeps {@value TransferEngine#WINDOW} chunks in memory until confirmed.
+     *
+     * @param chunkSize Bytes of a transfer checksummed and confirmed at a time.
+     */
+    public void setTransferChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mTransferChunkSize = chunkSize;
+    }
+
+    public long getTransferTimeoutMillis() {
+        return mTransferTimeoutMillis;
+    }
+
+    /**
+     * Setter of mTransferTimeoutMillis.
+     *
+     * @param timeoutMillis Time to wait for an answer to an offer, or for a lost device to be connected again.
+     */
+    public void setTransferTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive");
+        }
+        mTransferTimeoutMillis = timeoutMillis;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return mHeartbeatIntervalMillis;
+    }
+
+    /**
+     * Setter of mHeartbeatIntervalMillis.
+     * A ping is sent every interval to a peer that supports it (ProtocolParameters.isHeartbeatSupported),
+     * and the connection is lost once nothing is read for mHeartbeatMissLimit intervals in a row.
+     * The peer answers whether or not it sends pings itself.
+     *
+     * @param intervalMillis Time between pings, 0 to disable (the default).
+     */
+    public void setHeartbeatIntervalMillis(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis must not be negative");
+        }
+        mHeartbeatIntervalMillis = intervalMillis;
+    }
+
+    public int getHeartbeatMissLimit() {
+        return mHeartbeatMissLimit;
+    }
+
+    /**
+     * Setter of mHeartbeatMissLimit.
+     * A dead link is noticed after about the interval times this, it should be
+     * well over the round trip time of a busy link.
+     *
+     * @param missLimit Missed intervals in a row before the connection is lost.
+     */
+    public void setHeartbeatMissLimit(int missLimit) {
+        if (missLimit <= 0) {
+            throw new IllegalArgumentException("missLimit must be positive");
+        }
+        mHeartbeatMissLimit = missLimit;
+    }
+}
@@ -0,0 +1,153 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Thread safe registry of connections keyed by remote address.
+ * <p/>
+ * Every change publishes a new immutable snapshot with compare-and-set,
+ * so lookups, counting and iteration never lock and never see a half-made change.
+ * Changes copy the snapshot, which is cheap for the number of peers a Bluetooth
+ * adapter can handle.
+ *
+ * @param <V> Type of connection.
+ */
+public class ConnectionRegistry<V> {
+    private final AtomicReference<Snapshot<V>> mSnapshot = new AtomicReference<>(new Snapshot<V>(new HashMap<String, V>()));
+
+    /**
+     * Get the connection to address.
+     *
+     * @param address Remote address.
+     * @return Connection or null.
+     */
+    public V get(String address) {
+        return mSnapshot.get().mMap.get(address);
+    }
+
+    public boolean contains(String address) {
+        return mSnapshot.get().mMap.containsKey(address);
+    }
+
+    public int size() {
+        return mSnapshot.get().mMap.size();
+    }
+
+    /**
+     * Get all connections at the moment, the list is not affected by later changes.
+     *
+     * @return Unmodifiable list of connections.
+     */
+    public List<V> values() {
+        return mSnapshot.get().mValues;
+    }
+
+    /**
+     * Get all addresses at the moment, the set is not affected by later changes.
+     *
+     * @return Unmodifiable set of addresses.
+     */
+    public Set<String> addresses() {
+        return Collections.unmodifiableSet(mSnapshot.get().mMap.keySet());
+    }
+
+    /**
+     * Put a connection, replacing the existing one to the same address.
+     *
+     * @param address Remote address.
+     * @param value   Connection.
+     * @return Replaced connection or null.
+     */
+    public V put(String address, V value) {
+        while (true) {
+            Snapshot<V> current = mSnapshot.get();
+            Map<String, V> map = new HashMap<>(current.mMap);
+            V old = map.put(address, value);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(map))) {
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Put a connection only if there is none to the same address.
+     *
+     * @param address Remote address.
+     * @param value   Connection.
+     * @return Added or not.
+     */
+    public boolean putIfAbsent(String address, V value) {
+        while (true) {
+            Snapshot<V> current = mSnapshot.get();
+            if (current.mMap.containsKey(address)) {
+                return false;
+            }
+            Map<String, V> map = new HashMap<>(current.mMap);
+            map.put(address, value);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(map))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove the connection to address.
+     *
+     * @param address Remote address.
+     * @return Removed connection or null.
+     */
+    public V remove(String address) {
+        while (true) {
+            Snapshot<V> current = mSnapshot.get();
+            if (!current.mMap.containsKey(address)) {
+                return null;
+            }
+            Map<String, V> map = new HashMap<>(current.mMap);
+            V old = map.remove(address);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(map))) {
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Remove the connection to address only if it's still the given one,
+     * so a stale connection can't remove its replacement.
+     *
+     * @param address Remote address.
+     * @param value   Expected connection.
+     * @return Removed or not.
+     */
+    public boolean remove(String address, V value) {
+        while (true) {
+            Snapshot<V> current = mSnapshot.get();
+            if (current.mMap.get(address) != value) {
+                return false;
+            }
+            Map<String, V> map = new HashMap<>(current.mMap);
+            map.remove(address);
+            if (mSnapshot.compareAndSet(current, new Snapshot<>(map))) {
+                return true;
+            }
+        }
+    }
+
+    private static class Snapshot<V> {
+        private final Map<String, V> mMap;
+        private final List<V> mValues;
+
+        Snapshot(Map<String, V> map) {
+            mMap = map;
+            mValues = Collections.unmodifiableList(new ArrayList<>(map.values()));
+        }
+    }
+}
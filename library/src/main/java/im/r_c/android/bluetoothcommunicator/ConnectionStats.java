@@ -0,0 +1,165 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.Arrays;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Snapshot of the counters of one connection, see {@link CommunicatorStats}.
+ */
+public class ConnectionStats {
+    private final String mAddress;
+    private final long mConnectedAtMillis;
+    private final long mUptimeMillis;
+    private final long mBytesSent;
+    private final long mMessagesSent;
+    private final long mFlushCount;
+    private final long mBytesReceived;
+    private final long mMessagesReceived;
+    private final long mReaderStallCount;
+    private final long mReaderStallMillis;
+    private final int mQueuedCount;
+    private final int mMaxQueuedCount;
+    private final long mDroppedCount;
+    private final int mReceiveQueuedCount;
+    private final int[] mClassQueuedCounts;
+
+    ConnectionStats(String address, long connectedAtMillis, long uptimeMillis, long bytesSent, long messagesSent,
+                    long flushCount, long bytesReceived, long messagesReceived, long readerStallCount,
+                    long readerStallMillis, int queuedCount, int maxQueuedCount, long droppedCount,
+                    int receiveQueuedCount, int[] classQueuedCounts) {
+        mAddress = address;
+        mConnectedAtMillis = connectedAtMillis;
+        mUptimeMillis = uptimeMillis;
+        mBytesSent = bytesSent;
+        mMessagesSent = messagesSent;
+        mFlushCount = flushCount;
+        mBytesReceived = bytesReceived;
+        mMessagesReceived = messagesReceived;
+        mReaderStallCount = readerStallCount;
+        mReaderStallMillis = readerStallMillis;
+        mQueuedCount = queuedCount;
+        mMaxQueuedCount = maxQueuedCount;
+        mDroppedCount = droppedCount;
+        mReceiveQueuedCount = receiveQueuedCount;
+        mClassQueuedCounts = classQueuedCounts;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get when the connection was made.
+     *
+     * @return Wall clock time in milliseconds.
+     */
+    public long getConnectedAtMillis() {
+        return mConnectedAtMillis;
+    }
+
+    public long getUptimeMillis() {
+        return mUptimeMillis;
+    }
+
+    /**
+     * Get bytes written to the socket, frame headers and control frames included.
+     *
+     * @return Bytes.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Get count of lines, data frames, calls and channel messages written.
+     *
+     * @return Count.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Get bytes read from the socket, frame headers and control frames included.
+     *
+     * @return Bytes.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    /**
+     * Get number of times the reader waited because the receive executor fell behind.
+     *
+     * @return Stall count.
+     */
+    public long getReaderStallCount() {
+        return mReaderStallCount;
+    }
+
+    public long getReaderStallMillis() {
+        return mReaderStallMillis;
+    }
+
+    /**
+     * Get number of messages waiting to be written now.
+     *
+     * @return Queue depth.
+     */
+    public int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    public int getMaxQueuedCount() {
+        return mMaxQueuedCount;
+    }
+
+    /**
+     * Get number of lines and data frames of a priority class waiting to be written now.
+     *
+     * @param priority Priority class.
+     * @return Queue depth of the class.
+     */
+    public int getQueuedCount(SendPriority priority) {
+        return mClassQueuedCounts[priority.ordinal()];
+    }
+
+    /**
+     * Get number of messages failed or dropped because the queue was full.
+     *
+     * @return Count.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Get number of received items waiting for the receive executor now.
+     *
+     * @return Receive queue depth.
+     */
+    public int getReceiveQueuedCount() {
+        return mReceiveQueuedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{address=" + mAddress + ", uptime=" + mUptimeMillis + " ms"
+                + ", sent=" + mMessagesSent + " (" + mBytesSent + " bytes, " + mFlushCount + " flushes)"
+                + ", received=" + mMessagesReceived + " (" + mBytesReceived + " bytes)"
+                + ", readerStalls=" + mReaderStallCount + " (" + mReaderStallMillis + " ms)"
+                + ", queued=" + mQueuedCount + "/" + mMaxQueuedCount + " " + Arrays.toString(mClassQueuedCounts)
+                + ", dropped=" + mDroppedCount
+                + ", receiveQueued=" + mReceiveQueuedCount + "}";
+    }
+}
@@ -0,0 +1,118 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Snapshot of the send window and round trip times of a reliable connection.
+ * Round trip time is from writing a message to receiving its acknowledgement,
+ * so it includes the time the peer waits before acknowledging.
+ */
+public class DeliveryStats {
+    private final int mWindowSize;
+    private final int mInFlight;
+    private final int mMaxInFlight;
+    private final long mAckedCount;
+    private final long mResentCount;
+    private final long mWindowStallCount;
+    private final long mWindowStallMillis;
+    private final long mSmoothedRttMicros;
+    private final long mRttVarianceMicros;
+    private final long mMinRttMicros;
+    private final long mLastRttMicros;
+
+    DeliveryStats(int windowSize, int inFlight, int maxInFlight, long ackedCount, long resentCount,
+                  long windowStallCount, long windowStallMillis, long smoothedRttMicros,
+                  long rttVarianceMicros, long minRttMicros, long lastRttMicros) {
+        mWindowSize = windowSize;
+        mInFlight = inFlight;
+        mMaxInFlight = maxInFlight;
+        mAckedCount = ackedCount;
+        mResentCount = resentCount;
+        mWindowStallCount = windowStallCount;
+        mWindowStallMillis = windowStallMillis;
+        mSmoothedRttMicros = smoothedRttMicros;
+        mRttVarianceMicros = rttVarianceMicros;
+        mMinRttMicros = minRttMicros;
+        mLastRttMicros = lastRttMicros;
+    }
+
+    /**
+     * Get max number of messages waiting for acknowledgement.
+     *
+     * @return Window size.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Get number of messages waiting for acknowledgement now.
+     *
+     * @return In flight count.
+     */
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public long getAckedCount() {
+        return mAckedCount;
+    }
+
+    /**
+     * Get number of messages sent again after a reconnect.
+     *
+     * @return Resent count.
+     */
+    public long getResentCount() {
+        return mResentCount;
+    }
+
+    /**
+     * Get number of times the writer waited because the window was full.
+     * Frequent stalls with an idle link mean the window is too small.
+     *
+     * @return Stall count.
+     */
+    public long getWindowStallCount() {
+        return mWindowStallCount;
+    }
+
+    public long getWindowStallMillis() {
+        return mWindowStallMillis;
+    }
+
+    /**
+     * Get smoothed round trip time, as in RFC 6298.
+     *
+     * @return SRTT in microseconds, 0 before the first sample.
+     */
+    public long getSmoothedRttMicros() {
+        return mSmoothedRttMicros;
+    }
+
+    public long getRttVarianceMicros() {
+        return mRttVarianceMicros;
+    }
+
+    public long getMinRttMicros() {
+        return mMinRttMicros;
+    }
+
+    public long getLastRttMicros() {
+        return mLastRttMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryStats{window=" + mInFlight + "/" + mWindowSize + ", maxInFlight=" + mMaxInFlight
+                + ", acked=" + mAckedCount + ", resent=" + mResentCount
+                + ", stalls=" + mWindowStallCount + " (" + mWindowStallMillis + " ms)"
+                + ", srtt=" + mSmoothedRttMicros + " us, rttvar=" + mRttVarianceMicros
+                + " us, minRtt=" + mMinRttMicros + " us, lastRtt=" + mLastRttMicros + " us}";
+    }
+}
@@ -0,0 +1,39 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Why a connection was closed, counted in {@link CommunicatorStats}.
+ */
+public enum DisconnectReason {
+    /**
+     * Closed by this end, e.g. disconnectToDevice or replaced by a new connection.
+     */
+    LOCAL,
+
+    /**
+     * The remote end closed the connection.
+     */
+    REMOTE_CLOSED,
+
+    /**
+     * Failed to read or write, e.g. out of range.
+     */
+    IO_ERROR,
+
+    /**
+     * The peer sent something malformed.
+     */
+    PROTOCOL_ERROR,
+
+    /**
+     * Dropped by the slow consumer policy of a broadcast.
+     */
+    SLOW_CONSUMER,
+
+    /**
+     * Nothing was heard from the peer for the heartbeat miss limit of intervals.
+     */
+    HEARTBEAT_TIMEOUT
+}
@@ -0,0 +1,155 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Wire format constants.
+ * <p/>
+ * The stream is a sequence of records. A record starting with {@link #MARKER}
+ * is a frame: marker, 1 byte type, 4 bytes big-endian payload length, payload.
+ * Any other record is a text line terminated by '\n', as in the original protocol,
+ * so peers only sending lines stay compatible.
+ */
+final class Frame {
+    /**
+     * First byte of a frame, never the first byte of a text line.
+     */
+    static final int MARKER = 0x00;
+
+    static final int HEADER_LENGTH = 6;
+
+    /**
+     * Upper bound of payload length, the limit actually accepted from the
+     * remote end is {@link ConnectionOptions#getMaxFrameSize()}.
+     */
+    static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Pseudo type returned by {@link FrameReader} for a text line.
+     */
+    static final int TYPE_LINE = 0;
+
+    static final int TYPE_BYTES = 1;
+
+    /**
+     * Handshake, see {@link Handshake}.
+     */
+    static final int TYPE_HELLO = 2;
+
+    /**
+     * Sent first on a session, payload is the 8 bytes count of data messages received
+     * and the 8 bytes index of the next data message, or {@link Session#NEW} if the session
+     * is new to the sender.
+     */
+    static final int TYPE_RESUME = 3;
+
+    /**
+     * Acknowledgement, payload is the 8 bytes count of data messages received in the session.
+     */
+    static final int TYPE_ACK = 4;
+
+    /**
+     * Remote procedure call message, see {@link RpcEngine}.
+     */
+    static final int TYPE_RPC = 5;
+
+    /**
+     * Chunk of a message on a logical channel, see {@link Channel}.
+     * Payload is the 4 bytes channel id, 1 byte flags and the chunk.
+     */
+    static final int TYPE_CHANNEL = 6;
+
+    static final int CHANNEL_PREFIX_LENGTH = 5;
+
+    /**
+     * Heartbeat, payload is 8 bytes echoed by the pong, see {@link Heartbeat}.
+     */
+    static final int TYPE_PING = 7;
+
+    /**
+     * Answer to a ping, payload is the ping's.
+     */
+    static final int TYPE_PONG = 8;
+
+    /**
+     * Flag of the first chunk of a channel message.
+     */
+    static final int CHUNK_FIRST = 0x01;
+
+    /**
+     * Flag of the last chunk of a channel message.
+     */
+    static final int CHUNK_LAST = 0x02;
+
+    /**
+     * Payload length of {@link #TYPE_ACK}, {@link #TYPE_PING} and {@link #TYPE_PONG}.
+     */
+    static final int LONG_PAYLOAD_LENGTH = 8;
+
+    /**
+     * Flag set on the type of a compressed frame, see {@link Compressor}.
+     */
+    static final int FLAG_COMPRESSED = 0x80;
+
+    private Frame() {
+    }
+
+    /**
+     * Fill a frame header into buffer.
+     *
+     * @param buf    Buffer with at least {@link #HEADER_LENGTH} bytes from offset.
+     * @param offset Offset to start at.
+     * @param type   Frame type.
+     * @param length Payload length.
+     */
+    static void putHeader(byte[] buf, int offset, int type, int length) {
+        buf[offset] = MARKER;
+        buf[offset + 1] = (byte) type;
+        buf[offset + 2] = (byte) (length >>> 24);
+        buf[offset + 3] = (byte) (length >>> 16);
+        buf[offset + 4] = (byte) (length >>> 8);
+        buf[offset + 5] = (byte) length;
+    }
+
+    /**
+     * Read a big-endian int.
+     *
+     * @param buf    Buffer.
+     * @param offset Offset of the int.
+     * @return Value.
+     */
+    static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    /**
+     * Read a big-endian long.
+     *
+     * @param buf    Buffer.
+     * @param offset Offset of the long.
+     * @return Value.
+     */
+    static long getLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Write a big-endian long.
+     *
+     * @param buf    Buffer.
+     * @param offset Offset to write at.
+     * @param value  Value.
+     */
+    static void putLong(byte[] buf, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
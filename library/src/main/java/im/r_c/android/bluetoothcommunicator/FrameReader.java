@@ -0,0 +1,219 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Reads text lines and frames (see {@link Frame}) from a stream.
+ * Lines are decoded as UTF-8 by a reused {@link LineCodec}.
+ * Not thread safe, used by the reading thread only, except {@link #getBytesRead()}.
+ * Its buffers are borrowed from a pool, {@link #release()} gives them back.
+ */
+class FrameReader {
+    static final int EOF = -1;
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private InputStream mIn;
+    private BufferPool mPool;
+    private int mMaxFrameSize;
+    private ByteBuffer mReadBuffer;
+    private byte[] mBuf;
+    private int mBase;
+    private int mPos;
+    private int mLimit;
+    // Only written by the reading thread, sampled by the heartbeat while a large frame is read
+    private volatile long mBytesRead;
+
+    private ByteBuffer mLineBuffer;
+    private byte[] mLineBuf;
+    private int mLineBase;
+    private String mLine;
+    private final LineCodec mLineCodec = new LineCodec();
+    private byte[] mPayload;
+
+    FrameReader(InputStream in, BufferPool pool, int maxFrameSize) {
+        mIn = in;
+        mPool = pool;
+        mMaxFrameSize = maxFrameSize;
+        mReadBuffer = pool.acquire(READ_BUFFER_SIZE);
+        mBuf = mReadBuffer.array();
+        mBase = mReadBuffer.arrayOffset();
+        mPos = mLimit = mBase;
+        mLineBuffer = pool.acquire(BufferPool.MIN_CLASS_SIZE);
+        mLineBuf = mLineBuffer.array();
+        mLineBase = mLineBuffer.arrayOffset();
+    }
+
+    /**
+     * Give the buffers back to the pool, the reader can't be used afterwards.
+     */
+    void release() {
+        mPool.release(mReadBuffer);
+        mPool.release(mLineBuffer);
+        mReadBuffer = mLineBuffer = null;
+        mBuf = mLineBuf = null;
+    }
+
+    /**
+     * Read next record, blocks until one is available.
+     *
+     * @return {@link Frame#TYPE_LINE} for a text line, frame type for a frame,
+     * or {@link #EOF} at end of stream.
+     * @throws IOException If failed to read or the frame is malformed.
+     */
+    int next() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return EOF;
+        }
+
+        if ((mBuf[mPos] & 0xff) == Frame.MARKER) {
+            mPos++;
+            int type = readByte();
+            int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (length < 0 || length > mMaxFrameSize) {
+                throw new ProtocolException("Bad frame length: " + length);
+            }
+            mPayload = new byte[length];
+            readFully(mPayload, 0, length);
+            return type;
+        }
+
+        int lineLength = 0;
+        while (true) {
+            int start = mPos;
+            int end = start;
+            while (end < mLimit && mBuf[end] != '\n') {
+                end++;
+            }
+
+            int n = end - start;
+            if (lineLength + n > mLineBuffer.capacity()) {
+                ByteBuffer tmp = mPool.acquire(Math.max(mLineBuffer.capacity() * 2, lineLength + n));
+                System.arraycopy(mLineBuf, mLineBase, tmp.array(), tmp.arrayOffset(), lineLength);
+                mPool.release(mLineBuffer);
+                mLineBuffer = tmp;
+                mLineBuf = tmp.array();
+                mLineBase = tmp.arrayOffset();
+            }
+            System.arraycopy(mBuf, start, mLineBuf, mLineBase + lineLength, n);
+            lineLength += n;
+
+            if (end < mLimit) {
+                // Skip '\n'
+                mPos = end + 1;
+                break;
+            }
+            mPos = end;
+            if (!fill()) {
+                // Last line without terminator, same as BufferedReader.readLine
+                break;
+            }
+        }
+
+        if (lineLength > 0 && mLineBuf[mLineBase + lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        mLineBuffer.limit(lineLength).position(0);
+        mLine = mLineCodec.decode(mLineBuffer);
+        mLineBuffer.clear();
+        return Frame.TYPE_LINE;
+    }
+
+    /**
+     * Check if bytes already read from the stream are waiting, so the next record
+     * may be available without blocking.
+     *
+     * @return Has buffered data or not.
+     */
+    boolean hasBufferedData() {
+        return mPos < mLimit;
+    }
+
+    /**
+     * Get bytes read from the stream so far, including those of a record not read in full yet.
+     * May be called from any thread.
+     *
+     * @return Bytes.
+     */
+    long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Consume a '\n' expected after a record.
+     *
+     * @throws IOException If failed to read or the next byte isn't '\n'.
+     */
+    void skipNewline() throws IOException {
+        if (readByte() != '\n') {
+            throw new ProtocolException("Expected newline");
+        }
+    }
+
+    /**
+     * Get the line read by the last {@link #next()}.
+     *
+     * @return Line.
+     */
+    String getLine() {
+        return mLine;
+    }
+
+    /**
+     * Decode a line sent in a frame, e.g. a compressed one.
+     *
+     * @param bytes Line without terminator.
+     * @return Line.
+     */
+    String decodeLine(byte[] bytes) {
+        return mLineCodec.decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Get the payload of the frame read by the last {@link #next()}.
+     *
+     * @return Payload, owned by the caller.
+     */
+    byte[] getPayload() {
+        return mPayload;
+    }
+
+    private boolean fill() throws IOException {
+        int n = mIn.read(mBuf, mBase, READ_BUFFER_SIZE);
+        if (n <= 0) {
+            mPos = mLimit = mBase;
+            return false;
+        }
+        mPos = mBase;
+        mLimit = mBase + n;
+        mBytesRead += n;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            throw new EOFException();
+        }
+        return mBuf[mPos++] & 0xff;
+    }
+
+    private void readFully(byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mPos == mLimit && !fill()) {
+                throw new EOFException();
+            }
+            int n = Math.min(length, mLimit - mPos);
+            System.arraycopy(mBuf, mPos, dst, offset, n);
+            mPos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Executor posting tasks to a Handler.
+ */
+public class HandlerExecutor implements Executor {
+    private Handler mHandler;
+
+    public HandlerExecutor(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mHandler.post(command);
+    }
+}
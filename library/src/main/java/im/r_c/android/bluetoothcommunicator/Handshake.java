@@ -0,0 +1,152 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Hello record sent by both ends when a connection is established.
+ * <p/>
+ * It's a {@link Frame#TYPE_HELLO} frame with an ASCII payload like
+ * "v=1;mf=16777216;c=deflate;cd=0;w=1024;a=1;s=5f0e...", followed by '\n'.
+ * "a" says the end acknowledges received messages.
+ * "s" is only sent with resumption enabled: the connecting end proposes a
+ * session id, the accepting end sends 0 to say it supports resumption. The payload
+ * length never contains a '\n' byte, so a legacy peer reads the whole record
+ * as one (meaningless) line and stays in sync.
+ */
+final class Handshake {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private Handshake() {
+    }
+
+    /**
+     * Encode the hello record announcing local options.
+     *
+     * @param options   Local options.
+     * @param sessionId Id of the session to propose, 0 if none.
+     * @return Record.
+     */
+    static byte[] encode(ConnectionOptions options, long sessionId) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v=").append(ProtocolParameters.CURRENT_VERSION);
+        sb.append(";mf=").append(options.getMaxFrameSize());
+        // Decompression is always supported, it's up to the sender to use it
+        sb.append(";c=deflate");
+        sb.append(";cd=").append(dictionaryId(options.getCompressionDictionary()));
+        sb.append(";w=").append(options.getReceiveQueueCapacity());
+        if (isReliable(options)) {
+            sb.append(";a=1");
+        }
+        if (options.isResumptionEnabled()) {
+            sb.append(";s=").append(Long.toHexString(sessionId));
+        }
+        if (sb.length() == '\n') {
+            sb.append(';');
+        }
+
+        byte[] payload = sb.toString().getBytes(US_ASCII);
+        byte[] record = new byte[Frame.HEADER_LENGTH + payload.length + 1];
+        Frame.putHeader(record, 0, Frame.TYPE_HELLO, payload.length);
+        System.arraycopy(payload, 0, record, Frame.HEADER_LENGTH, payload.length);
+        record[record.length - 1] = '\n';
+        return record;
+    }
+
+    /**
+     * Work out parameters from local options and the peer's hello payload.
+     *
+     * @param payload   Payload of the peer's hello.
+     * @param options   Local options.
+     * @param sessionId Id of the session proposed by this end, 0 if none.
+     * @return Negotiated parameters.
+     * @throws IOException If the payload is malformed.
+     */
+    static ProtocolParameters decode(byte[] payload, ConnectionOptions options, long sessionId) throws IOException {
+        int version = 0;
+        int maxFrameSize = 0;
+        int windowSize = 0;
+        boolean deflate = false;
+        long dictionaryId = -1;
+        long peerSessionId = -1;
+        boolean peerReliable = false;
+
+        try {
+            for (String field : new String(payload, US_ASCII).split(";")) {
+                int eq = field.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = field.substring(0, eq);
+                String value = field.substring(eq + 1);
+                if (key.equals("v")) {
+                    version = Integer.parseInt(value);
+                } else if (key.equals("mf")) {
+                    maxFrameSize = Integer.parseInt(value);
+                } else if (key.equals("w")) {
+                    windowSize = Integer.parseInt(value);
+                } else if (key.equals("a")) {
+                    peerReliable = value.equals("1");
+                } else if (key.equals("s")) {
+                    peerSessionId = Long.parseLong(value, 16);
+                } else if (key.equals("cd")) {
+                    dictionaryId = Long.parseLong(value);
+                } else if (key.equals("c")) {
+                    for (String c : value.split(",")) {
+                        deflate |= c.equals("deflate");
+                    }
+                }
+                // Unknown keys are from newer versions, ignore them
+            }
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad hello: " + e.getMessage());
+        }
+        if (version <= 0) {
+            throw new ProtocolException("Bad hello version: " + version);
+        }
+
+        Compression compression = Compression.NONE;
+        if (options.getCompression() == Compression.DEFLATE && deflate
+                && dictionaryId == dictionaryId(options.getCompressionDictionary())) {
+            compression = Compression.DEFLATE;
+        }
+
+        // Resumable only if both ends support it, with the id proposed by the connecting end
+        boolean reliable = isReliable(options) && peerReliable;
+        long negotiatedSessionId = 0;
+        if (reliable && options.isResumptionEnabled() && peerSessionId >= 0) {
+            negotiatedSessionId = sessionId != 0 ? sessionId : peerSessionId;
+        }
+        return new ProtocolParameters(Math.min(version, ProtocolParameters.CURRENT_VERSION),
+                maxFrameSize, compression, windowSize, reliable, negotiatedSessionId);
+    }
+
+    /**
+     * Parameters used without handshake. Nothing is known of the peer, which may well
+     * be a legacy one, so only lines are sent: binary data, calls, channels and typed
+     * messages fail at once instead of reaching a peer that would read them as garbage.
+     *
+     * @return Parameters of a legacy line-only peer.
+     */
+    static ProtocolParameters assumed() {
+        return ProtocolParameters.legacy();
+    }
+
+    private static boolean isReliable(ConnectionOptions options) {
+        return options.isReliableDeliveryEnabled() || options.isResumptionEnabled();
+    }
+
+    private static long dictionaryId(byte[] dictionary) {
+        if (dictionary == null) {
+            return 0;
+        }
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return adler.getValue();
+    }
+}
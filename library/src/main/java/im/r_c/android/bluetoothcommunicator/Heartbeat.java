@@ -0,0 +1,162 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Keepalive of a connection. Every interval a ping goes out ahead of queued messages,
+ * and the peer answers with a pong echoing it, which gives a round trip time.
+ * An interval in which nothing at all was read counts as missed, and the connection
+ * is given up after the miss limit of them in a row, long before the socket notices.
+ * Intervals in which the reader waits for the receive executor don't count,
+ * the link isn't to blame for those.
+ * <p/>
+ * All connections share one timer thread.
+ */
+class Heartbeat implements Runnable {
+    private static final long TIMER_KEEP_ALIVE_SECONDS = 30;
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private final Host mHost;
+    private final long mIntervalMillis;
+    private final int mMissLimit;
+    private final Histogram mRttHistogram;
+    private ScheduledFuture<?> mFuture;
+    private boolean mStopped;
+
+    // Only written by the timer
+    private long mLastBytesReceived = -1;
+    private volatile int mMisses;
+
+    // Guarded by this
+    private long mPingCount;
+    private long mPongCount;
+    private long mMissCount;
+    private long mSmoothedRttNanos;
+    private long mJitterNanos;
+    private long mLastRttNanos;
+
+    /**
+     * Heartbeat constructor.
+     *
+     * @param host           Connection.
+     * @param intervalMillis Time between pings.
+     * @param missLimit      Missed intervals in a row before the connection is given up.
+     * @param rttHistogram   Histogram to record round trip times in.
+     */
+    Heartbeat(Host host, long intervalMillis, int missLimit, Histogram rttHistogram) {
+        mHost = host;
+        mIntervalMillis = intervalMillis;
+        mMissLimit = missLimit;
+        mRttHistogram = rttHistogram;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothHeartbeat"));
+            sTimer.setKeepAliveTime(TIMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            sTimer.allowCoreThreadTimeOut(true);
+        }
+        return sTimer;
+    }
+
+    synchronized void start() {
+        if (!mStopped && mFuture == null) {
+            mFuture = getTimer().scheduleWithFixedDelay(this, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        mStopped = true;
+        if (mFuture != null) {
+            mFuture.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        long received = mHost.getBytesReceived();
+        if (received != mLastBytesReceived || mHost.isReaderStalled()) {
+            mLastBytesReceived = received;
+            mMisses = 0;
+        } else {
+            synchronized (this) {
+                mMissCount++;
+            }
+            if (++mMisses >= mMissLimit) {
+                stop();
+                mHost.onHeartbeatTimeout();
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            mPingCount++;
+        }
+        mHost.sendPing(System.nanoTime());
+    }
+
+    /**
+     * Called by the reader when a pong arrives.
+     *
+     * @param sentNanos Payload of the ping it answers.
+     */
+    void onPong(long sentNanos) {
+        long rtt = System.nanoTime() - sentNanos;
+        if (rtt < 0) {
+            // Not a ping of ours
+            return;
+        }
+        synchronized (this) {
+            mPongCount++;
+            if (mSmoothedRttNanos == 0) {
+                mSmoothedRttNanos = rtt;
+            } else {
+                // Jitter as in RFC 3550, smoothed difference of consecutive samples
+                mJitterNanos += (Math.abs(rtt - mLastRttNanos) - mJitterNanos) / 16;
+                mSmoothedRttNanos += (rtt - mSmoothedRttNanos) / 8;
+            }
+            mLastRttNanos = rtt;
+        }
+        mRttHistogram.recordNanos(rtt);
+    }
+
+    synchronized HeartbeatStats getStats() {
+        return new HeartbeatStats(mIntervalMillis, mPingCount, mPongCount, mMissCount, mMisses,
+                mSmoothedRttNanos / 1000, mJitterNanos / 1000, mLastRttNanos / 1000);
+    }
+
+    /**
+     * Connection the heartbeat belongs to.
+     */
+    interface Host {
+        /**
+         * Queue a ping ahead of other messages.
+         *
+         * @param payload Payload the pong echoes.
+         */
+        void sendPing(long payload);
+
+        /**
+         * Get bytes read from the connection so far, going up while a frame is read.
+         *
+         * @return Bytes.
+         */
+        long getBytesReceived();
+
+        boolean isReaderStalled();
+
+        /**
+         * Called on the timer thread after the miss limit is reached.
+         */
+        void onHeartbeatTimeout();
+    }
+}
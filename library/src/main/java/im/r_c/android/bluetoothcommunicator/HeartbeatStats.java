@@ -0,0 +1,93 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Snapshot of the heartbeat of a connection, see {@link ConnectionOptions#setHeartbeatIntervalMillis(long)}.
+ * Round trip time is from queueing a ping to reading its pong, control frames
+ * skip the queued messages, so it's close to the time of the link itself.
+ */
+public class HeartbeatStats {
+    private final long mIntervalMillis;
+    private final long mPingCount;
+    private final long mPongCount;
+    private final long mMissCount;
+    private final int mConsecutiveMisses;
+    private final long mSmoothedRttMicros;
+    private final long mJitterMicros;
+    private final long mLastRttMicros;
+
+    HeartbeatStats(long intervalMillis, long pingCount, long pongCount, long missCount, int consecutiveMisses,
+                   long smoothedRttMicros, long jitterMicros, long lastRttMicros) {
+        mIntervalMillis = intervalMillis;
+        mPingCount = pingCount;
+        mPongCount = pongCount;
+        mMissCount = missCount;
+        mConsecutiveMisses = consecutiveMisses;
+        mSmoothedRttMicros = smoothedRttMicros;
+        mJitterMicros = jitterMicros;
+        mLastRttMicros = lastRttMicros;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public long getPingCount() {
+        return mPingCount;
+    }
+
+    public long getPongCount() {
+        return mPongCount;
+    }
+
+    /**
+     * Get number of intervals in which nothing was read.
+     *
+     * @return Miss count.
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Get number of missed intervals in a row up to now, the connection is
+     * given up when it reaches the miss limit.
+     *
+     * @return Consecutive misses.
+     */
+    public int getConsecutiveMisses() {
+        return mConsecutiveMisses;
+    }
+
+    /**
+     * Get smoothed round trip time, as in RFC 6298.
+     *
+     * @return SRTT in microseconds, 0 before the first pong.
+     */
+    public long getSmoothedRttMicros() {
+        return mSmoothedRttMicros;
+    }
+
+    /**
+     * Get jitter, the smoothed difference between consecutive round trip times as in RFC 3550.
+     *
+     * @return Jitter in microseconds.
+     */
+    public long getJitterMicros() {
+        return mJitterMicros;
+    }
+
+    public long getLastRttMicros() {
+        return mLastRttMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartbeatStats{interval=" + mIntervalMillis + " ms, pings=" + mPingCount + ", pongs=" + mPongCount
+                + ", misses=" + mMissCount + " (" + mConsecutiveMisses + " in a row)"
+                + ", srtt=" + mSmoothedRttMicros + " us, jitter=" + mJitterMicros
+                + " us, lastRtt=" + mLastRttMicros + " us}";
+    }
+}
@@ -0,0 +1,48 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Histogram of durations in microseconds with power of two buckets,
+ * recorded from any thread without locking. Bucket i holds values
+ * below 2^i and not below 2^(i-1), bucket 0 holds 0.
+ */
+class Histogram {
+    static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(micros));
+        mSum.addAndGet(micros);
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    LatencyHistogram snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new LatencyHistogram(buckets, mSum.get(), mMax.get());
+    }
+
+    static int bucketOf(long micros) {
+        return 64 - Long.numberOfLeadingZeros(micros);
+    }
+}
@@ -0,0 +1,183 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import im.r_c.android.bluetoothcommunicator.listener.TransferHandler;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Receiving end of a transfer. Chunks are taken only in order and with a good
+ * checksum, otherwise the sender is asked to go back to the first missing byte.
+ * <p/>
+ * Only used on the thread of the {@link TransferEngine}.
+ */
+class IncomingTransfer extends Transfer {
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_PAUSED = 1;
+    private static final int STATE_COMPLETED = 2;
+
+    private final CRC32 mCrc = new CRC32();
+    private WritableByteChannel mSink;
+    private long mExpected;
+    private boolean mResendRequested;
+    private int mState;
+    private int mGeneration;
+
+    IncomingTransfer(TransferEngine engine, long id, String name, long size, BluetoothDevice device,
+                     TransferHandler handler) {
+        super(engine, id, name, size, device, handler);
+    }
+
+    void setSink(WritableByteChannel sink) {
+        mSink = sink;
+    }
+
+    @Override
+    public boolean isIncoming() {
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        mEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                fail(TransferException.Reason.CANCELLED, "Cancelled");
+            }
+        });
+    }
+
+    /**
+     * Called when the sender offers the transfer again after a reconnect.
+     */
+    void onOffer() {
+        if (mState == STATE_PAUSED) {
+            mState = STATE_RUNNING;
+        }
+        mResendRequested = false;
+        mEngine.sendLong(this, TransferEngine.KIND_ACCEPT, mExpected, false);
+    }
+
+    /**
+     * Called when a chunk arrives.
+     *
+     * @param payload Payload of the data message.
+     */
+    void onData(byte[] payload) {
+        if (mState != STATE_RUNNING) {
+            return;
+        }
+        int start = TransferEngine.PREFIX_LENGTH + TransferEngine.DATA_PREFIX_LENGTH;
+        long offset = Frame.getLong(payload, TransferEngine.PREFIX_LENGTH);
+        int crc = Frame.getInt(payload, TransferEngine.PREFIX_LENGTH + 8);
+        int length = payload.length - start;
+        if (offset != mExpected) {
+            // Earlier ones are duplicates of a resend, later ones mean a chunk went missing
+            if (offset > mExpected) {
+                requestResend();
+            }
+            return;
+        }
+        mCrc.reset();
+        mCrc.update(payload, start, length);
+        if ((int) mCrc.getValue() != crc) {
+            requestResend();
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload, start, length);
+            while (buffer.hasRemaining()) {
+                mSink.write(buffer);
+            }
+        } catch (IOException e) {
+            fail(TransferException.Reason.IO, e.toString());
+            return;
+        }
+        mExpected += length;
+        mResendRequested = false;
+        setBytesTransferred(mExpected);
+        mEngine.sendLong(this, TransferEngine.KIND_ACK, mExpected, false);
+        mEngine.onProgress(this, mExpected);
+    }
+
+    /**
+     * Called when the sender reached the end of its source.
+     *
+     * @param total Bytes sent in all.
+     */
+    void onEnd(long total) {
+        if (mState == STATE_COMPLETED) {
+            // The sender missed the done message because of a reconnect
+            mEngine.sendLong(this, TransferEngine.KIND_DONE, mExpected, false);
+            return;
+        }
+        if (mState != STATE_RUNNING) {
+            return;
+        }
+        if (total > mExpected) {
+            requestResend();
+            return;
+        }
+        if (total < mExpected) {
+            fail(TransferException.Reason.IO, "Ended at " + total + " after " + mExpected + " bytes");
+            return;
+        }
+
+        try {
+            mSink.close();
+        } catch (IOException e) {
+            fail(TransferException.Reason.IO, e.toString());
+            return;
+        }
+        mState = STATE_COMPLETED;
+        mEngine.sendLong(this, TransferEngine.KIND_DONE, total, false);
+        finish(null);
+    }
+
+    /**
+     * Wait for the sender to reconnect.
+     *
+     * @return Generation of the pause for its timeout, or -1 if not running.
+     */
+    int pause() {
+        if (mState != STATE_RUNNING) {
+            return -1;
+        }
+        mState = STATE_PAUSED;
+        return ++mGeneration;
+    }
+
+    boolean isStalled(int generation) {
+        return mGeneration == generation && mState == STATE_PAUSED;
+    }
+
+    /**
+     * Fail the transfer and close the sink, if not done yet.
+     *
+     * @param reason  Reason.
+     * @param message Message.
+     */
+    void fail(TransferException.Reason reason, String message) {
+        if (finish(new TransferException(reason, message))) {
+            try {
+                mSink.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void requestResend() {
+        if (!mResendRequested) {
+            mResendRequested = true;
+            mEngine.sendLong(this, TransferEngine.KIND_RESEND, mExpected, false);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Snapshot of a histogram of durations in microseconds.
+ * Buckets grow by powers of two, so percentiles are upper bounds
+ * at most twice the real value.
+ */
+public class LatencyHistogram {
+    private final long[] mBuckets;
+    private final long mCount;
+    private final long mSum;
+    private final long mMax;
+
+    LatencyHistogram(long[] buckets, long sum, long max) {
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        mBuckets = buckets;
+        mCount = count;
+        mSum = sum;
+        mMax = max;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSumMicros() {
+        return mSum;
+    }
+
+    public long getMaxMicros() {
+        return mMax;
+    }
+
+    /**
+     * Get mean of the values.
+     *
+     * @return Mean in microseconds, 0 if empty.
+     */
+    public long getMeanMicros() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * Get a percentile.
+     *
+     * @param percentile Percentile from 0 to 100, e.g. 99.9.
+     * @return Upper bound of the bucket holding it in microseconds, never over the max, 0 if empty.
+     */
+    public long getPercentileMicros(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(getBucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public int getBucketCount() {
+        return mBuckets.length;
+    }
+
+    /**
+     * Get count of values in a bucket.
+     *
+     * @param bucket Bucket index.
+     * @return Count.
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Get largest value a bucket holds.
+     *
+     * @param bucket Bucket index.
+     * @return 2^bucket - 1 microseconds.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + mCount + ", mean=" + getMeanMicros()
+                + " us, p50=" + getPercentileMicros(50) + " us, p99=" + getPercentileMicros(99)
+                + " us, max=" + mMax + " us}";
+    }
+}
@@ -0,0 +1,205 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Encodes and decodes text lines of the line protocol, always UTF-8 terminated
+ * by '\n' whatever the default charset of the device is.
+ * <p/>
+ * The encoder, decoder and their char buffers are kept and reused, so a line costs
+ * no allocation but its pooled record or the decoded String. ASCII, the common case,
+ * is copied directly without going through the encoder or decoder.
+ * Not thread safe: a sending thread uses its own from {@link #forCurrentThread()},
+ * a reading thread the one of its FrameReader.
+ */
+class LineCodec {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Chars encoded at a time, also the initial size of the decoded chars.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Max chars kept after decoding a long line, more is dropped to save memory.
+     */
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    private static final ThreadLocal<LineCodec> sCodecs = new ThreadLocal<LineCodec>() {
+        @Override
+        protected LineCodec initialValue() {
+            return new LineCodec();
+        }
+    };
+
+    private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] mEncodeChars;
+    private CharBuffer mEncodeIn;
+    private CharBuffer mDecodeOut;
+
+    /**
+     * Get the codec of the current thread.
+     *
+     * @return Codec.
+     */
+    static LineCodec forCurrentThread() {
+        return sCodecs.get();
+    }
+
+    /**
+     * Encode a line into a record in a pooled buffer.
+     *
+     * @param line Line, read before returning.
+     * @param pool Pool to borrow the buffer from.
+     * @return Encoded record with '\n', owned by the caller.
+     * @throws IllegalArgumentException If the line contains '\n' or starts with '\0',
+     *                                  it would be read as two lines or as a frame.
+     */
+    SharedBuffer encode(CharSequence line, BufferPool pool) {
+        int length = line.length();
+        if (length > 0 && line.charAt(0) == Frame.MARKER) {
+            throw new IllegalArgumentException("Line must not start with '\\0'");
+        }
+        // Exact for ASCII, grown if other chars take more
+        ByteBuffer out = pool.acquire(length + 1);
+        byte[] array = out.array();
+        int base = out.arrayOffset();
+        int i = 0;
+        for (; i < length; i++) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            if (c == '\n') {
+                pool.release(out);
+                throw newlineInLine();
+            }
+            array[base + i] = (byte) c;
+        }
+        out.position(i);
+
+        if (i < length) {
+            out = encode(line, i, out, pool);
+        }
+        if (!out.hasRemaining()) {
+            out = grow(out, 1, pool);
+        }
+        out.put((byte) '\n').flip();
+        return new SharedBuffer(out, pool);
+    }
+
+    private ByteBuffer encode(CharSequence line, int next, ByteBuffer out, BufferPool pool) {
+        if (mEncodeIn == null) {
+            mEncodeChars = new char[CHUNK_SIZE];
+            mEncodeIn = CharBuffer.wrap(mEncodeChars);
+        }
+        CharBuffer in = mEncodeIn;
+        in.clear().limit(0);
+        mEncoder.reset();
+
+        int length = line.length();
+        while (true) {
+            // Keep what's left from the last chunk, e.g. a high surrogate waiting for its pair
+            in.compact();
+            int n = Math.min(in.remaining(), length - next);
+            getChars(line, next, next + n, mEncodeChars, in.position());
+            for (int i = in.position(); i < in.position() + n; i++) {
+                if (mEncodeChars[i] == '\n') {
+                    pool.release(out);
+                    throw newlineInLine();
+                }
+            }
+            in.position(in.position() + n);
+            in.flip();
+            next += n;
+
+            boolean endOfInput = next == length;
+            while (mEncoder.encode(in, out, endOfInput).isOverflow()) {
+                out = grow(out, (int) ((in.remaining() + length - next) * mEncoder.maxBytesPerChar()), pool);
+            }
+            if (endOfInput) {
+                break;
+            }
+        }
+        while (mEncoder.flush(out).isOverflow()) {
+            out = grow(out, (int) mEncoder.maxBytesPerChar(), pool);
+        }
+        return out;
+    }
+
+    /**
+     * Decode a line without its terminator.
+     *
+     * @param in Bytes from position to limit, consumed.
+     * @return Line.
+     */
+    String decode(ByteBuffer in) {
+        int length = in.remaining();
+        // UTF-8 never decodes to more chars than bytes
+        if (mDecodeOut == null || mDecodeOut.capacity() < length) {
+            mDecodeOut = CharBuffer.allocate(Math.max(length, CHUNK_SIZE));
+        }
+        CharBuffer out = mDecodeOut;
+        char[] chars = out.array();
+        byte[] array = in.array();
+        int base = in.arrayOffset() + in.position();
+        int i = 0;
+        for (; i < length; i++) {
+            byte b = array[base + i];
+            if (b < 0) {
+                break;
+            }
+            chars[i] = (char) b;
+        }
+        in.position(in.position() + i);
+        out.clear().position(i);
+
+        if (i < length) {
+            mDecoder.reset();
+            mDecoder.decode(in, out, true);
+            mDecoder.flush(out);
+        }
+        String line = new String(chars, 0, out.position());
+        if (out.capacity() > MAX_RETAINED_CHARS) {
+            mDecodeOut = null;
+        }
+        return line;
+    }
+
+    private static IllegalArgumentException newlineInLine() {
+        return new IllegalArgumentException("Line must not contain '\\n'");
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int more, BufferPool pool) {
+        ByteBuffer bigger = pool.acquire(buffer.position() + Math.max(more, 1));
+        buffer.flip();
+        bigger.put(buffer);
+        pool.release(buffer);
+        return bigger;
+    }
+
+    private static void getChars(CharSequence s, int start, int end, char[] dst, int dstStart) {
+        if (s instanceof String) {
+            ((String) s).getChars(start, end, dst, dstStart);
+        } else if (s instanceof StringBuilder) {
+            ((StringBuilder) s).getChars(start, end, dst, dstStart);
+        } else {
+            for (int i = start; i < end; i++) {
+                dst[dstStart++] = s.charAt(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.net.ProtocolException;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Encodes and decodes messages of one class, registered with
+ * {@link BluetoothCommunicator#registerMessageType(int, Class, MessageCodec, im.r_c.android.bluetoothcommunicator.listener.OnReceiveMessageListener)}.
+ * Fields are written and read explicitly in the same order, no reflection is involved.
+ * <p/>
+ * To add a field later and stay compatible, write it last and only read it
+ * if {@link MessageReader#remaining()} is above 0.
+ *
+ * @param <T> Type of the messages.
+ */
+public interface MessageCodec<T> {
+    /**
+     * Write the fields of a message, called on the thread sending.
+     *
+     * @param message Message.
+     * @param out     Writer, only valid during the call.
+     */
+    void encode(T message, MessageWriter out);
+
+    /**
+     * Read the fields of a message, called on the reading thread of the
+     * connection, not on the receive executor.
+     *
+     * @param in Reader, only valid during the call.
+     * @return Message.
+     * @throws ProtocolException If the message is malformed, it's dropped.
+     */
+    T decode(MessageReader in) throws ProtocolException;
+}
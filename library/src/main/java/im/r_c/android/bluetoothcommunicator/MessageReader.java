@@ -0,0 +1,202 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Reads the fields of a typed message written by {@link MessageWriter}, in the same order.
+ * A malformed or truncated message throws ProtocolException, and is dropped.
+ */
+public final class MessageReader {
+    private final byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private char[] mChars;
+
+    MessageReader(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mLimit = offset + length;
+    }
+
+    public long readVarint() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public long readSignedVarint() throws ProtocolException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read a varint that must fit in an int, e.g. a count or an enum ordinal.
+     *
+     * @return Value.
+     * @throws ProtocolException If it doesn't fit.
+     */
+    public int readInt() throws ProtocolException {
+        long value = readSignedVarint();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Int out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return readByte() != 0;
+    }
+
+    public float readFloat() throws ProtocolException {
+        return Float.intBitsToFloat((int) readFixed(4));
+    }
+
+    public double readDouble() throws ProtocolException {
+        return Double.longBitsToDouble(readFixed(8));
+    }
+
+    public byte[] readBytes() throws ProtocolException {
+        int length = readLength();
+        byte[] value = Arrays.copyOfRange(mBuffer, mPosition, mPosition + length);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Read a length-delimited UTF-8 string. A malformed sequence is read as U+FFFD.
+     *
+     * @return String.
+     * @throws ProtocolException If the message is truncated.
+     */
+    public String readString() throws ProtocolException {
+        int length = readLength();
+        int end = mPosition + length;
+        if (mChars == null || mChars.length < length) {
+            // UTF-8 never takes fewer bytes than UTF-16 takes chars
+            mChars = new char[Math.max(length, 64)];
+        }
+        char[] chars = mChars;
+        byte[] buffer = mBuffer;
+        int count = 0;
+        int i = mPosition;
+        while (i < end) {
+            int b = buffer[i++];
+            if (b >= 0) {
+                chars[count++] = (char) b;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xe0) == 0xc0) {
+                extra = 1;
+                codePoint = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                extra = 2;
+                codePoint = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                chars[count++] = '\uFFFD';
+                continue;
+            }
+            if (i + extra > end) {
+                chars[count++] = '\uFFFD';
+                i = end;
+                break;
+            }
+            boolean valid = true;
+            for (int j = 0; j < extra; j++) {
+                int c = buffer[i + j];
+                if ((c & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (c & 0x3f);
+            }
+            if (!valid) {
+                chars[count++] = '\uFFFD';
+                continue;
+            }
+            i += extra;
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT && codePoint <= Character.MAX_CODE_POINT) {
+                codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                chars[count++] = (char) (Character.MIN_HIGH_SURROGATE + (codePoint >>> 10));
+                chars[count++] = (char) (Character.MIN_LOW_SURROGATE + (codePoint & 0x3ff));
+            } else if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                chars[count++] = (char) codePoint;
+            } else {
+                chars[count++] = '\uFFFD';
+            }
+        }
+        mPosition = end;
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Read a length-delimited nested message.
+     *
+     * @param codec Codec of the message.
+     * @param <T>   Type of the message.
+     * @return Message.
+     * @throws ProtocolException If the message is malformed.
+     */
+    public <T> T readMessage(MessageCodec<T> codec) throws ProtocolException {
+        int length = readLength();
+        int limit = mLimit;
+        int end = mPosition + length;
+        mLimit = end;
+        try {
+            return codec.decode(this);
+        } finally {
+            mLimit = limit;
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Get number of bytes left, e.g. to tell if an optional field added
+     * by a later version of the message is there.
+     *
+     * @return Remaining bytes.
+     */
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    private byte readByte() throws ProtocolException {
+        if (mPosition >= mLimit) {
+            throw new ProtocolException("Truncated message");
+        }
+        return mBuffer[mPosition++];
+    }
+
+    private long readFixed(int size) throws ProtocolException {
+        if (mLimit - mPosition < size) {
+            throw new ProtocolException("Truncated message");
+        }
+        long bits = 0;
+        for (int i = 0; i < size; i++) {
+            bits |= (long) (mBuffer[mPosition++] & 0xff) << (8 * i);
+        }
+        return bits;
+    }
+
+    private int readLength() throws ProtocolException {
+        long length = readVarint();
+        if (length < 0 || length > mLimit - mPosition) {
+            throw new ProtocolException("Truncated message");
+        }
+        return (int) length;
+    }
+}
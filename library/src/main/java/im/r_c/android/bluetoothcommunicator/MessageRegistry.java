@@ -0,0 +1,138 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import im.r_c.android.bluetoothcommunicator.listener.OnReceiveMessageListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Typed messages of a communicator and their codecs, sent as messages on {@link #CHANNEL}.
+ * <p/>
+ * Payload of a message: varint type id, then the fields written by the codec.
+ * Messages of an unknown type, or failing to decode, are dropped.
+ */
+class MessageRegistry {
+    /**
+     * Built-in channel of typed messages, the same priority as lines.
+     */
+    static final Channel CHANNEL = new Channel("im.r_c.android.bluetoothcommunicator.message", Channel.PRIORITY_NORMAL, 1);
+
+    private final ConcurrentMap<Class<?>, Registration<?>> mByClass = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Registration<?>> mById = new ConcurrentHashMap<>();
+
+    /**
+     * Writer of each sending thread, reused so encoding doesn't allocate.
+     */
+    private final ThreadLocal<MessageWriter> mWriters = new ThreadLocal<MessageWriter>() {
+        @Override
+        protected MessageWriter initialValue() {
+            return new MessageWriter();
+        }
+    };
+
+    /**
+     * Register a message type, replacing the registration of the same class or type id.
+     */
+    synchronized <T> void register(int typeId, Class<T> type, MessageCodec<T> codec, OnReceiveMessageListener<? super T> listener) {
+        if (typeId < 0) {
+            throw new IllegalArgumentException("typeId must not be negative");
+        }
+        unregister(type);
+        Registration<?> replaced = mById.get(typeId);
+        if (replaced != null) {
+            unregister(replaced.mmType);
+        }
+        Registration<T> registration = new Registration<>(typeId, type, codec, listener);
+        mById.put(typeId, registration);
+        mByClass.put(type, registration);
+    }
+
+    synchronized void unregister(Class<?> type) {
+        Registration<?> registration = mByClass.remove(type);
+        if (registration != null) {
+            mById.remove(registration.mmTypeId);
+        }
+    }
+
+    /**
+     * Encode a message into the writer of the current thread.
+     *
+     * @param message Message of a registered class.
+     * @return Payload, valid until the next message is encoded on the thread.
+     * @throws IllegalArgumentException If the class of the message is not registered.
+     */
+    ByteBuffer encode(Object message) {
+        Registration<?> registration = mByClass.get(message.getClass());
+        if (registration == null) {
+            throw new IllegalArgumentException("Message type not registered: " + message.getClass().getName());
+        }
+        MessageWriter writer = mWriters.get();
+        writer.reset();
+        writer.writeVarint(registration.mmTypeId);
+        registration.encode(message, writer);
+        return ByteBuffer.wrap(writer.array(), 0, writer.length());
+    }
+
+    /**
+     * Decode a received message, called on the reading thread.
+     *
+     * @param payload Payload.
+     * @param device  Device sent the message.
+     * @return Task calling the listener with the message, or null if it's dropped.
+     */
+    Runnable decode(byte[] payload, final BluetoothDevice device) {
+        MessageReader reader = new MessageReader(payload, 0, payload.length);
+        try {
+            long typeId = reader.readVarint();
+            if (typeId < 0 || typeId > Integer.MAX_VALUE) {
+                return null;
+            }
+            final Registration<?> registration = mById.get((int) typeId);
+            if (registration == null || registration.mmListener == null) {
+                return null;
+            }
+            return registration.decode(reader, device);
+        } catch (ProtocolException | RuntimeException e) {
+            // Malformed, or a codec out of date
+            return null;
+        }
+    }
+
+    /**
+     * A registered message type.
+     */
+    private static class Registration<T> {
+        private final int mmTypeId;
+        private final Class<T> mmType;
+        private final MessageCodec<T> mmCodec;
+        private final OnReceiveMessageListener<? super T> mmListener;
+
+        Registration(int typeId, Class<T> type, MessageCodec<T> codec, OnReceiveMessageListener<? super T> listener) {
+            mmTypeId = typeId;
+            mmType = type;
+            mmCodec = codec;
+            mmListener = listener;
+        }
+
+        void encode(Object message, MessageWriter writer) {
+            mmCodec.encode(mmType.cast(message), writer);
+        }
+
+        Runnable decode(MessageReader reader, final BluetoothDevice device) throws ProtocolException {
+            final T message = mmCodec.decode(reader);
+            return new Runnable() {
+                @Override
+                public void run() {
+                    mmListener.onReceiveMessage(message, device);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.Arrays;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Writes the fields of a typed message in a compact binary form, read back
+ * with {@link MessageReader} in the same order.
+ * <p/>
+ * Integers are varints, 7 bits a byte, so small values take one byte; signed
+ * ones are zigzag encoded first so small negative values stay small. Strings,
+ * byte arrays and nested messages are length-delimited. Strings are encoded
+ * to UTF-8 directly from their chars.
+ * <p/>
+ * A writer is reused by the thread sending, don't keep it after
+ * {@link MessageCodec#encode(Object, MessageWriter)} returns.
+ */
+public final class MessageWriter {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mLength;
+
+    MessageWriter() {
+    }
+
+    /**
+     * Write an unsigned varint, negative values take 10 bytes.
+     *
+     * @param value Value.
+     * @return This writer.
+     */
+    public MessageWriter writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mLength++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Write a signed varint, zigzag encoded.
+     *
+     * @param value Value.
+     * @return This writer.
+     */
+    public MessageWriter writeSignedVarint(long value) {
+        return writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write an int as a signed varint, read back with {@link MessageReader#readInt()}.
+     *
+     * @param value Value.
+     * @return This writer.
+     */
+    public MessageWriter writeInt(int value) {
+        return writeSignedVarint(value);
+    }
+
+    public MessageWriter writeBoolean(boolean value) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) (value ? 1 : 0);
+        return this;
+    }
+
+    /**
+     * Write a float in 4 bytes, little-endian.
+     *
+     * @param value Value.
+     * @return This writer.
+     */
+    public MessageWriter writeFloat(float value) {
+        writeFixed(Float.floatToIntBits(value), 4);
+        return this;
+    }
+
+    /**
+     * Write a double in 8 bytes, little-endian.
+     *
+     * @param value Value.
+     * @return This writer.
+     */
+    public MessageWriter writeDouble(double value) {
+        writeFixed(Double.doubleToLongBits(value), 8);
+        return this;
+    }
+
+    public MessageWriter writeBytes(byte[] value) {
+        return writeBytes(value, 0, value.length);
+    }
+
+    /**
+     * Write a length-delimited byte array.
+     *
+     * @param value  Array.
+     * @param offset Offset of the bytes to write.
+     * @param length Number of bytes to write.
+     * @return This writer.
+     */
+    public MessageWriter writeBytes(byte[] value, int offset, int length) {
+        writeVarint(length);
+        ensureCapacity(length);
+        System.arraycopy(value, offset, mBuffer, mLength, length);
+        mLength += length;
+        return this;
+    }
+
+    /**
+     * Write a length-delimited string in UTF-8. An unpaired surrogate is written as '?'.
+     *
+     * @param value String.
+     * @return This writer.
+     */
+    public MessageWriter writeString(CharSequence value) {
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                utf8Length++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+
+        writeVarint(utf8Length);
+        ensureCapacity(utf8Length);
+        byte[] buffer = mBuffer;
+        int position = mLength;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mLength = position;
+        return this;
+    }
+
+    /**
+     * Write a length-delimited nested message.
+     *
+     * @param message Message.
+     * @param codec   Codec of the message.
+     * @param <T>     Type of the message.
+     * @return This writer.
+     */
+    public <T> MessageWriter writeMessage(T message, MessageCodec<T> codec) {
+        // Reserve one byte for the length, most nested messages are shorter than 128 bytes
+        ensureCapacity(1);
+        int start = ++mLength;
+        codec.encode(message, this);
+        int length = mLength - start;
+        int prefixLength = varintLength(length);
+        if (prefixLength > 1) {
+            ensureCapacity(prefixLength - 1);
+            System.arraycopy(mBuffer, start, mBuffer, start + prefixLength - 1, length);
+        }
+        mLength = start - 1;
+        writeVarint(length);
+        mLength += length;
+        return this;
+    }
+
+    /**
+     * Get number of bytes written.
+     *
+     * @return Length.
+     */
+    public int length() {
+        return mLength;
+    }
+
+    byte[] array() {
+        return mBuffer;
+    }
+
+    /**
+     * Clear the writer for the next message, shrinking a buffer grown by a large one.
+     */
+    void reset() {
+        mLength = 0;
+        if (mBuffer.length > 64 * INITIAL_CAPACITY) {
+            mBuffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void writeFixed(long bits, int size) {
+        ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            mBuffer[mLength++] = (byte) bits;
+            bits >>>= 8;
+        }
+    }
+
+    private void ensureCapacity(int more) {
+        if (mLength + more > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + more));
+        }
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,26 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Thread factory making named daemon threads, so idle pools never keep the process alive.
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final String mPrefix;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+        mPrefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
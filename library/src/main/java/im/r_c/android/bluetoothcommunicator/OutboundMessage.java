@@ -0,0 +1,173 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Encoded record waiting in an {@link OutboundQueue}.
+ * It completes exactly once, with {@link #succeed()} or {@link #fail()},
+ * which gives its reference of the buffer back. On a reliable connection
+ * it's kept by a {@link Session} after written and completes when acknowledged.
+ */
+class OutboundMessage {
+    /**
+     * Protocol frame of the connection itself, e.g. an ack or a ping.
+     * Not a line or data frame, never compressed, and not to be confused with
+     * {@link SendPriority#CONTROL}, a class of data messages.
+     */
+    static final int TYPE_PROTOCOL = -1;
+
+    /**
+     * Type of the record, {@link Frame#TYPE_LINE} for a text line.
+     */
+    final int type;
+    final byte[] data;
+    final int offset;
+    final int length;
+
+    /**
+     * Channel of a {@link Frame#TYPE_CHANNEL} message, null for others.
+     */
+    final Channel channel;
+    private final SharedBuffer mRecord;
+    private final CommunicateThread.WriteCallback mCallback;
+    private boolean mNotified;
+
+    /**
+     * When created, for the send to flush latency.
+     */
+    final long queuedNanos = System.nanoTime();
+
+    /**
+     * Priority class, the lane it waits in unless it's a channel message.
+     */
+    SendPriority priority = SendPriority.NORMAL;
+
+    /**
+     * Taken from the queue before, e.g. held back by a full send window, its wait is already counted.
+     */
+    boolean taken;
+
+    /**
+     * When first put in a batch by a reliable connection, for round trip time.
+     */
+    long writtenNanos;
+
+    /**
+     * Written again after a reconnect, its round trip time is ambiguous.
+     */
+    boolean resent;
+
+    /**
+     * Bytes of the payload of a channel message already written as chunks.
+     */
+    int chunkOffset;
+
+    /**
+     * OutboundMessage constructor, takes over one reference of the record.
+     *
+     * @param record   Encoded record.
+     * @param type     Type of the record.
+     * @param callback Callback or null.
+     */
+    OutboundMessage(SharedBuffer record, int type, CommunicateThread.WriteCallback callback) {
+        this(record, type, null, callback);
+    }
+
+    /**
+     * OutboundMessage constructor of a channel message, takes over one reference of the record.
+     *
+     * @param record   Encoded record, a single chunk holding the whole message.
+     * @param channel  Channel.
+     * @param callback Callback or null.
+     */
+    OutboundMessage(SharedBuffer record, Channel channel, CommunicateThread.WriteCallback callback) {
+        this(record, Frame.TYPE_CHANNEL, channel, callback);
+    }
+
+    private OutboundMessage(SharedBuffer record, int type, Channel channel, CommunicateThread.WriteCallback callback) {
+        this.type = type;
+        this.channel = channel;
+        this.data = record.buffer.array();
+        this.offset = record.buffer.arrayOffset();
+        this.length = record.buffer.limit();
+        mRecord = record;
+        mCallback = callback;
+    }
+
+    /**
+     * Get offset of the payload in data, without '\n' of a line or header of a frame.
+     *
+     * @return Payload offset.
+     */
+    int payloadOffset() {
+        if (type == Frame.TYPE_CHANNEL) {
+            return offset + Frame.HEADER_LENGTH + Frame.CHANNEL_PREFIX_LENGTH;
+        }
+        return type == Frame.TYPE_LINE ? offset : offset + Frame.HEADER_LENGTH;
+    }
+
+    int payloadLength() {
+        if (type == Frame.TYPE_CHANNEL) {
+            return length - Frame.HEADER_LENGTH - Frame.CHANNEL_PREFIX_LENGTH;
+        }
+        return type == Frame.TYPE_LINE ? length - 1 : length - Frame.HEADER_LENGTH;
+    }
+
+    /**
+     * Check if a channel message was written in part, the rest must follow before it completes.
+     *
+     * @return More chunks to write or not.
+     */
+    boolean hasMoreChunks() {
+        return type == Frame.TYPE_CHANNEL && chunkOffset > 0 && chunkOffset < payloadLength();
+    }
+
+    /**
+     * Check if it's a line or data frame, counted and resent by a session.
+     *
+     * @return Data or not.
+     */
+    boolean isData() {
+        return type != TYPE_PROTOCOL;
+    }
+
+    void succeed() {
+        release();
+        notifyCallback(true);
+    }
+
+    void fail() {
+        release();
+        notifyCallback(false);
+    }
+
+    /**
+     * Take another reference of the record, given back by {@link #release()}.
+     */
+    void retain() {
+        mRecord.retain();
+    }
+
+    /**
+     * Give the reference of the record back, without calling the callback.
+     */
+    void release() {
+        mRecord.release();
+    }
+
+    private void notifyCallback(boolean succeeded) {
+        if (mNotified) {
+            // A resent message was already reported
+            return;
+        }
+        mNotified = true;
+        if (mCallback != null) {
+            if (succeeded) {
+                mCallback.onSucceed();
+            } else {
+                mCallback.onFail();
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Bounded queue of messages waiting to be written to one connection.
+ * <p/>
+ * Protocol frames, e.g. acks and pings, come first. Data messages wait in one lane
+ * per {@link Channel}, lines and data frames in the lane of their {@link SendPriority}.
+ * The lane served next is among those of the highest priority having messages, which
+ * share the link by start-time fair queueing: each lane has a virtual time advanced
+ * by the bytes it writes divided by its weight, and the one with the least goes next.
+ * A lane becoming busy starts at the virtual time of the last write, or where its own
+ * last write ended if that's later, so it can't save up credit while idle nor skip
+ * what its last write cost. Ties go to the earlier lane, CONTROL first.
+ */
+class OutboundQueue {
+    /**
+     * Weights of the lanes of priority classes by ordinal, a channel of weight 1 counts as NORMAL.
+     */
+    private static final double[] CLASS_WEIGHTS = {4, 1, 0.25};
+
+    private final ArrayDeque<OutboundMessage> mProtocol = new ArrayDeque<>();
+    private final Lane[] mClassLanes = new Lane[SendPriority.values().length];
+    private final Map<Integer, Lane> mChannelLanes = new HashMap<>();
+    private final List<Lane> mLanes = new ArrayList<>();
+    private final int mCapacity;
+    private final BackpressurePolicy mPolicy;
+    private final int mChunkSize;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Histogram[] mClassWait;
+    private int mDataCount;
+    private int mMaxDataCount;
+    private long mDroppedCount;
+    private double mVirtualTime;
+    private boolean mClosed;
+    private boolean mWoken;
+
+    /**
+     * OutboundQueue constructor.
+     *
+     * @param capacity  Max data messages queued.
+     * @param policy    What to do when full.
+     * @param chunkSize Bytes of a channel message written at a time.
+     * @param classWait Histograms of the time messages of each priority class wait, by ordinal.
+     */
+    OutboundQueue(int capacity, BackpressurePolicy policy, int chunkSize, Histogram[] classWait) {
+        mCapacity = capacity;
+        mPolicy = policy;
+        mChunkSize = chunkSize;
+        mClassWait = classWait;
+        for (int i = 0; i < mClassLanes.length; i++) {
+            mClassLanes[i] = new Lane(Channel.PRIORITY_NORMAL, CLASS_WEIGHTS[i]);
+            mLanes.add(mClassLanes[i]);
+        }
+    }
+
+    /**
+     * Add a message according to the backpressure policy.
+     * The message is not failed here if rejected, the caller should do it.
+     *
+     * @param message Message to add.
+     * @return Added or not.
+     */
+    boolean offer(OutboundMessage message) {
+        OutboundMessage dropped = null;
+        mLock.lock();
+        try {
+            while (!mClosed && mDataCount >= mCapacity) {
+                if (mPolicy == BackpressurePolicy.FAIL_FAST) {
+                    mDroppedCount++;
+                    return false;
+                } else if (mPolicy == BackpressurePolicy.DROP_OLDEST
+                        && (dropped = dropOldest(laneOf(message))) != null) {
+                    mDroppedCount++;
+                } else {
+                    // Blocking, or only messages written in part are queued
+                    try {
+                        mNotFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            if (mClosed) {
+                return false;
+            }
+            addData(message, false);
+        } finally {
+            mLock.unlock();
+        }
+
+        if (dropped != null) {
+            dropped.fail();
+        }
+        return true;
+    }
+
+    /**
+     * Add a message only if fewer than limit messages are queued, never blocks or drops.
+     *
+     * @param message Message to add.
+     * @param limit   Max queue depth to accept the message at.
+     * @return Added or not.
+     */
+    boolean offerIfBelow(OutboundMessage message, int limit) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            if (mDataCount >= Math.min(limit, mCapacity)) {
+                mDroppedCount++;
+                return false;
+            }
+            addData(message, false);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Add a protocol frame, ignoring capacity and policy.
+     *
+     * @param message Message to add.
+     * @return Added or not (the queue is closed).
+     */
+    boolean offerProtocol(OutboundMessage message) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            mProtocol.add(message);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Put a data message taken from the queue back at the head of its lane,
+     * ignoring capacity and policy.
+     *
+     * @param message Message to put back.
+     * @return Added or not (the queue is closed).
+     */
+    boolean pushBack(OutboundMessage message) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            addData(message, true);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Add messages at the heads of their lanes in their order, ignoring capacity and policy.
+     *
+     * @param messages Messages to add.
+     * @return Added or not (the queue is closed).
+     */
+    boolean prepend(List<OutboundMessage> messages) {
+        mLock.lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                addData(messages.get(i), true);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next message, blocks while the queue is empty.
+     *
+     * @return Message, or null if the queue is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    OutboundMessage take() throws InterruptedException {
+        mLock.lock();
+        try {
+            while (!mClosed && isEmpty()) {
+                mNotEmpty.await();
+            }
+            return mClosed ? null : next();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the next message, waits at most the given time while the queue is empty.
+     *
+     * @param timeoutNanos Max time to wait in nanoseconds.
+     * @return Message, or null if timed out or the queue is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    OutboundMessage poll(long timeoutNanos) throws InterruptedException {
+        mLock.lock();
+        try {
+            while (!mClosed && isEmpty()) {
+                if (timeoutNanos <= 0) {
+                    return null;
+                }
+                timeoutNanos = mNotEmpty.awaitNanos(timeoutNanos);
+            }
+            return mClosed ? null : next();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Take the first protocol frame, used while the send window is full.
+     * Blocks until there is one, {@link #wake()} is called or the queue is closed.
+     *
+     * @return Message, or null if woken or the queue is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    OutboundMessage takeProtocol() throws InterruptedException {
+        mLock.lock();
+        try {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                if (!mProtocol.isEmpty()) {
+                    return mProtocol.poll();
+                }
+                if (mWoken) {
+                    mWoken = false;
+                    return null;
+                }
+                mNotEmpty.await();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Make a waiting or the next {@link #takeProtocol()} return, e.g. when the send window opens.
+     */
+    void wake() {
+        mLock.lock();
+        try {
+            mWoken = true;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int size() {
+        mLock.lock();
+        try {
+            return mDataCount + mProtocol.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of messages of each priority class queued now.
+     *
+     * @return Counts by ordinal.
+     */
+    int[] getClassSizes() {
+        mLock.lock();
+        try {
+            int[] sizes = new int[mClassLanes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = mClassLanes[i].mmMessages.size();
+            }
+            return sizes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get most data messages queued at a time.
+     *
+     * @return High water mark.
+     */
+    int getMaxSize() {
+        mLock.lock();
+        try {
+            return mMaxDataCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of messages rejected or dropped because the queue was full.
+     *
+     * @return Count.
+     */
+    long getDroppedCount() {
+        mLock.lock();
+        try {
+            return mDroppedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Close the queue, wakes up all waiting threads.
+     *
+     * @return Messages left in the queue, should be failed by the caller.
+     */
+    List<OutboundMessage> close() {
+        mLock.lock();
+        try {
+            mClosed = true;
+            List<OutboundMessage> left = new ArrayList<>(mProtocol);
+            mProtocol.clear();
+            for (Lane lane : mLanes) {
+                left.addAll(lane.mmMessages);
+                lane.mmMessages.clear();
+            }
+            mDataCount = 0;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+            return left;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean isEmpty() {
+        return mProtocol.isEmpty() && mDataCount == 0;
+    }
+
+    private Lane laneOf(OutboundMessage message) {
+        if (message.channel == null) {
+            return mClassLanes[message.priority.ordinal()];
+        }
+        Lane lane = mChannelLanes.get(message.channel.getId());
+        if (lane == null) {
+            lane = new Lane(message.channel.getPriority(), message.channel.getWeight());
+            mChannelLanes.put(message.channel.getId(), lane);
+            mLanes.add(lane);
+        }
+        return lane;
+    }
+
+    private void addData(OutboundMessage message, boolean first) {
+        Lane lane = laneOf(message);
+        if (lane.mmMessages.isEmpty()) {
+            lane.mmVirtualTime = Math.max(lane.mmVirtualTime, mVirtualTime);
+        }
+        if (first) {
+            lane.mmMessages.addFirst(message);
+        } else {
+            lane.mmMessages.add(message);
+        }
+        mDataCount++;
+        if (mDataCount > mMaxDataCount) {
+            mMaxDataCount = mDataCount;
+        }
+        mNotEmpty.signal();
+    }
+
+    /**
+     * Remove the oldest message of the lane, or of any lane if it's empty, trying
+     * channels and lower classes before CONTROL, never one written in part.
+     *
+     * @param preferred Lane to drop from.
+     * @return Dropped message, or null if none can be dropped.
+     */
+    private OutboundMessage dropOldest(Lane preferred) {
+        OutboundMessage dropped = preferred.dropOldest();
+        for (int i = mLanes.size() - 1; dropped == null && i >= 0; i--) {
+            dropped = mLanes.get(i).dropOldest();
+        }
+        if (dropped != null) {
+            mDataCount--;
+        }
+        return dropped;
+    }
+
+    /**
+     * Remove the next message to write, the queue must not be empty.
+     *
+     * @return Message.
+     */
+    private OutboundMessage next() {
+        if (!mProtocol.isEmpty()) {
+            return mProtocol.poll();
+        }
+
+        Lane lane = null;
+        for (Lane l : mLanes) {
+            if (l.mmMessages.isEmpty()) {
+                continue;
+            }
+            if (lane == null || l.mmPriority > lane.mmPriority
+                    || (l.mmPriority == lane.mmPriority && l.mmVirtualTime < lane.mmVirtualTime)) {
+                lane = l;
+            }
+        }
+
+        OutboundMessage message = lane.mmMessages.poll();
+        mVirtualTime = lane.mmVirtualTime;
+        lane.mmVirtualTime += cost(message) / lane.mmWeight;
+        mDataCount--;
+        mNotFull.signal();
+
+        if (!message.taken) {
+            message.taken = true;
+            if (message.channel == null && mClassWait != null) {
+                mClassWait[message.priority.ordinal()].recordNanos(System.nanoTime() - message.queuedNanos);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Get bytes the next write of a message takes.
+     *
+     * @param message Message.
+     * @return Bytes.
+     */
+    private int cost(OutboundMessage message) {
+        if (message.type == Frame.TYPE_CHANNEL) {
+            return Math.min(message.payloadLength() - message.chunkOffset, mChunkSize);
+        }
+        return message.length;
+    }
+
+    /**
+     * Messages of one channel or priority class.
+     */
+    private static class Lane {
+        private final ArrayDeque<OutboundMessage> mmMessages = new ArrayDeque<>();
+        private final int mmPriority;
+        private final double mmWeight;
+
+        /**
+         * Virtual start time of the message at the head.
+         */
+        private double mmVirtualTime;
+
+        Lane(int priority, double weight) {
+            mmPriority = priority;
+            mmWeight = weight;
+        }
+
+        OutboundMessage dropOldest() {
+            Iterator<OutboundMessage> iterator = mmMessages.iterator();
+            while (iterator.hasNext()) {
+                OutboundMessage message = iterator.next();
+                if (message.chunkOffset == 0) {
+                    iterator.remove();
+                    return message;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import im.r_c.android.bluetoothcommunicator.listener.TransferListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Sending end of a transfer. Its pump thread reads the source chunk by chunk and sends
+ * the chunks, keeping at most {@link TransferEngine#WINDOW} of them until confirmed,
+ * so they can be sent again after a checksum error or a reconnect.
+ * <p/>
+ * State is guarded by the transfer itself, the pump waits on it.
+ */
+class OutgoingTransfer extends Transfer implements Runnable {
+    private static final int STATE_OFFERING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_PAUSED = 2;
+
+    private final ReadableByteChannel mSource;
+    private final int mChunkSize;
+    private final CRC32 mCrc = new CRC32();
+    private final ArrayDeque<Chunk> mWindow = new ArrayDeque<>();
+    private int mState = STATE_OFFERING;
+    private int mGeneration;
+    private boolean mAccepted;
+    private long mReadOffset;
+    private boolean mEof;
+    private boolean mEndSent;
+    private long mResendFrom = -1;
+
+    OutgoingTransfer(TransferEngine engine, long id, String name, long size, BluetoothDevice device,
+                     TransferListener listener, ReadableByteChannel source, int chunkSize) {
+        super(engine, id, name, size, device, listener);
+        mSource = source;
+        mChunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isIncoming() {
+        return false;
+    }
+
+    @Override
+    public void cancel() {
+        finish(new TransferException(TransferException.Reason.CANCELLED, "Cancelled"));
+    }
+
+    /**
+     * Send the offer, first or again after a pause.
+     *
+     * @return Generation of the offer, for its timeout.
+     */
+    synchronized int offer() {
+        mState = STATE_OFFERING;
+        return ++mGeneration;
+    }
+
+    /**
+     * Stop sending until offered again, on a lost connection or a failed send.
+     *
+     * @return Generation of the pause for its timeout, or -1 if not running or offering.
+     */
+    synchronized int pause() {
+        if (isDone() || mState == STATE_PAUSED) {
+            return -1;
+        }
+        mState = STATE_PAUSED;
+        return ++mGeneration;
+    }
+
+    synchronized boolean isPaused() {
+        return mState == STATE_PAUSED;
+    }
+
+    /**
+     * Check if an offer or pause of the generation is still not answered.
+     *
+     * @param generation Generation.
+     * @return Timed out or not.
+     */
+    synchronized boolean isStalled(int generation) {
+        return mGeneration == generation && mState != STATE_RUNNING;
+    }
+
+    /**
+     * Called when a frame of the transfer couldn't be sent.
+     */
+    void onSendFailed() {
+        boolean accepted;
+        synchronized (this) {
+            accepted = mAccepted;
+        }
+        if (!accepted) {
+            // The first offer didn't get out, e.g. the peer doesn't support channels
+            finish(new TransferException(TransferException.Reason.NOT_SENT, "Offer not sent"));
+            return;
+        }
+        int generation = pause();
+        if (generation >= 0) {
+            mEngine.onPaused(this, generation);
+        }
+    }
+
+    /**
+     * Called when the receiver accepts, at first or after a pause.
+     *
+     * @param offset Bytes the receiver already has, the transfer continues from there.
+     */
+    void onAccept(long offset) {
+        boolean advanced;
+        synchronized (this) {
+            if (isDone() || mState == STATE_PAUSED) {
+                // Answer to an offer on a lost connection
+                return;
+            }
+            if (offset < windowStart() || offset > mReadOffset) {
+                fail("Accepted at bad offset " + offset);
+                return;
+            }
+            advanced = confirm(offset);
+            mAccepted = true;
+            mState = STATE_RUNNING;
+            mResendFrom = offset;
+            notifyAll();
+        }
+        if (advanced) {
+            mEngine.onProgress(this, offset);
+        }
+    }
+
+    /**
+     * Called when the receiver confirms data written to its sink.
+     *
+     * @param offset Bytes written.
+     */
+    void onAck(long offset) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            if (offset < windowStart() || offset > mReadOffset) {
+                fail("Acknowledged bad offset " + offset);
+                return;
+            }
+            if (!confirm(offset)) {
+                return;
+            }
+            notifyAll();
+        }
+        mEngine.onProgress(this, offset);
+    }
+
+    /**
+     * Called when the receiver found a bad or missing chunk.
+     *
+     * @param offset Bytes the receiver has, the transfer goes back there.
+     */
+    synchronized void onResend(long offset) {
+        if (isDone() || mState != STATE_RUNNING || offset < windowStart() || offset > mReadOffset) {
+            return;
+        }
+        if (mResendFrom < 0 || offset < mResendFrom) {
+            mResendFrom = offset;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Called when the receiver has all data.
+     *
+     * @param total Bytes the receiver wrote.
+     */
+    void onDone(long total) {
+        synchronized (this) {
+            if (!mEof || total != mReadOffset) {
+                fail("Receiver done at bad offset " + total);
+                return;
+            }
+            confirm(total);
+        }
+        finish(null);
+    }
+
+    /**
+     * Called when the receiver rejects the offer or gives up.
+     */
+    void onReject() {
+        finish(mAccepted ? new TransferException(TransferException.Reason.CANCELLED, "Cancelled by the receiver")
+                : new TransferException(TransferException.Reason.REJECTED, "Rejected"));
+    }
+
+    /**
+     * Pump, reads and sends chunks until the transfer is done.
+     */
+    @Override
+    public void run() {
+        try {
+            List<SharedBuffer> frames = new ArrayList<>();
+            while (true) {
+                boolean read = false;
+                boolean end = false;
+                synchronized (this) {
+                    while (!isDone() && !isReady()) {
+                        wait();
+                    }
+                    if (isDone()) {
+                        return;
+                    }
+                    if (mResendFrom >= 0) {
+                        for (Chunk chunk : mWindow) {
+                            if (chunk.mmOffset >= mResendFrom) {
+                                chunk.mmFrame.retain();
+                                frames.add(chunk.mmFrame);
+                            }
+                        }
+                        mResendFrom = -1;
+                        mEndSent = false;
+                    } else if (mEof) {
+                        mEndSent = true;
+                        end = true;
+                    } else {
+                        read = true;
+                    }
+                }
+
+                if (read) {
+                    read(frames);
+                }
+                for (SharedBuffer frame : frames) {
+                    mEngine.send(this, frame, true);
+                }
+                frames.clear();
+                if (end) {
+                    mEngine.sendLong(this, TransferEngine.KIND_END, mReadOffset, true);
+                }
+            }
+        } catch (InterruptedException ignored) {
+            finish(new TransferException(TransferException.Reason.CANCELLED, "Interrupted"));
+        } catch (IOException e) {
+            finish(new TransferException(TransferException.Reason.IO, e.toString()));
+        } finally {
+            synchronized (this) {
+                for (Chunk chunk : mWindow) {
+                    chunk.mmFrame.release();
+                }
+                mWindow.clear();
+            }
+            try {
+                mSource.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Check if the pump has something to do.
+     *
+     * @return Ready or not.
+     */
+    private boolean isReady() {
+        if (mState != STATE_RUNNING) {
+            return false;
+        }
+        return mResendFrom >= 0 || (mEof ? !mEndSent : mWindow.size() < TransferEngine.WINDOW);
+    }
+
+    /**
+     * Read the next chunk from the source into a frame and keep it in the window.
+     *
+     * @param frames Frames to send, the chunk is added if it can go out now.
+     * @throws IOException If failed to read, or the source isn't of the declared size.
+     */
+    private void read(List<SharedBuffer> frames) throws IOException {
+        SharedBuffer frame = mEngine.allocate(TransferEngine.KIND_DATA, getId(), TransferEngine.DATA_PREFIX_LENGTH + mChunkSize);
+        ByteBuffer buffer = frame.buffer;
+        int start = buffer.position() + TransferEngine.DATA_PREFIX_LENGTH;
+        buffer.position(start);
+        buffer.limit(start + mChunkSize);
+        boolean eof = false;
+        try {
+            while (buffer.hasRemaining()) {
+                if (mSource.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+
+        int length = buffer.position() - start;
+        long offset = mReadOffset;
+        if (length > 0) {
+            mCrc.reset();
+            mCrc.update(buffer.array(), buffer.arrayOffset() + start, length);
+            buffer.putLong(start - TransferEngine.DATA_PREFIX_LENGTH, offset);
+            buffer.putInt(start - TransferEngine.DATA_PREFIX_LENGTH + 8, (int) mCrc.getValue());
+            TransferEngine.setLength(buffer, TransferEngine.DATA_PREFIX_LENGTH + length);
+            buffer.position(0);
+        }
+
+        synchronized (this) {
+            if (length > 0 && !isDone()) {
+                mWindow.add(new Chunk(offset, frame));
+                mReadOffset += length;
+                if (mState == STATE_RUNNING && mResendFrom < 0) {
+                    frame.retain();
+                    frames.add(frame);
+                }
+            } else {
+                frame.release();
+            }
+            if (eof) {
+                mEof = true;
+            }
+        }
+        if (eof && getSize() >= 0 && mReadOffset != getSize()) {
+            throw new IOException("Source has " + mReadOffset + " bytes, not " + getSize());
+        }
+    }
+
+    private long windowStart() {
+        return mWindow.isEmpty() ? mReadOffset : mWindow.peek().mmOffset;
+    }
+
+    /**
+     * Forget chunks the receiver has.
+     *
+     * @param offset Bytes the receiver has.
+     * @return Whether the confirmed bytes grew.
+     */
+    private boolean confirm(long offset) {
+        while (!mWindow.isEmpty() && mWindow.peek().mmOffset < offset) {
+            mWindow.poll().mmFrame.release();
+        }
+        if (offset <= getBytesTransferred()) {
+            return false;
+        }
+        setBytesTransferred(offset);
+        return true;
+    }
+
+    private void fail(String message) {
+        finish(new TransferException(TransferException.Reason.IO, message));
+    }
+
+    /**
+     * Sent chunk waiting to be confirmed.
+     */
+    private static class Chunk {
+        private final long mmOffset;
+        private final SharedBuffer mmFrame;
+
+        Chunk(long offset, SharedBuffer frame) {
+            mmOffset = offset;
+            mmFrame = frame;
+        }
+    }
+}
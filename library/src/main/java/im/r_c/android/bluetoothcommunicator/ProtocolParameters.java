@@ -0,0 +1,147 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Parameters of a connection negotiated by the handshake.
+ */
+public class ProtocolParameters {
+    /**
+     * Protocol version of this library, 0 means a legacy line-only peer.
+     */
+    public static final int CURRENT_VERSION = 4;
+
+    private final int mVersion;
+    private final int mMaxFrameSize;
+    private final Compression mCompression;
+    private final int mWindowSize;
+    private final boolean mReliable;
+    private final long mSessionId;
+
+    ProtocolParameters(int version, int maxFrameSize, Compression compression, int windowSize,
+                       boolean reliable, long sessionId) {
+        mVersion = version;
+        mMaxFrameSize = maxFrameSize;
+        mCompression = compression;
+        mWindowSize = windowSize;
+        mReliable = reliable;
+        mSessionId = sessionId;
+    }
+
+    /**
+     * Parameters of a peer that didn't answer the handshake, or of any peer without one.
+     *
+     * @return Legacy parameters.
+     */
+    static ProtocolParameters legacy() {
+        return new ProtocolParameters(0, 0, Compression.NONE, 0, false, 0);
+    }
+
+    /**
+     * Check if the peer only speaks the original line protocol.
+     * Only lines can be sent to a legacy peer, sending binary data fails.
+     *
+     * @return Legacy or not.
+     */
+    public boolean isLegacy() {
+        return mVersion == 0;
+    }
+
+    /**
+     * Get protocol version used, the lower one of both ends.
+     *
+     * @return Version.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Check if frames (binary data, compression) can be sent to the peer.
+     *
+     * @return Supported or not.
+     */
+    public boolean isFramingSupported() {
+        return mVersion > 0;
+    }
+
+    /**
+     * Check if the peer answers remote procedure calls, added in version 2.
+     *
+     * @return Supported or not.
+     */
+    public boolean isRpcSupported() {
+        return mVersion >= 2;
+    }
+
+    /**
+     * Check if the peer understands logical channels, added in version 3.
+     *
+     * @return Supported or not.
+     */
+    public boolean isChannelSupported() {
+        return mVersion >= 3;
+    }
+
+    /**
+     * Check if the peer answers heartbeats, added in version 4.
+     *
+     * @return Supported or not.
+     */
+    public boolean isHeartbeatSupported() {
+        return mVersion >= 4;
+    }
+
+    /**
+     * Get max payload size of a frame the peer accepts.
+     *
+     * @return Max frame size in bytes.
+     */
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * Get compression used for frames sent to the peer.
+     *
+     * @return Compression.
+     */
+    public Compression getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Get number of received messages the peer buffers before it stops reading.
+     *
+     * @return Window size.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Check if received messages are acknowledged, see {@link ConnectionOptions#setReliableDeliveryEnabled(boolean)}.
+     *
+     * @return Reliable or not.
+     */
+    public boolean isReliable() {
+        return mReliable;
+    }
+
+    /**
+     * Get id of the resumable session, see {@link ConnectionOptions#setResumptionEnabled(boolean)}.
+     *
+     * @return Session id, or 0 if either end doesn't support resumption.
+     */
+    public long getSessionId() {
+        return mSessionId;
+    }
+
+    @Override
+    public String toString() {
+        return "ProtocolParameters{version=" + mVersion + ", maxFrameSize=" + mMaxFrameSize
+                + ", compression=" + mCompression + ", windowSize=" + mWindowSize + ", reliable=" + mReliable
+                + ", sessionId=" + Long.toHexString(mSessionId) + "}";
+    }
+}
@@ -0,0 +1,172 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Moves received lines and data of one connection from the reader thread to an executor.
+ * Runnable items are run in order with them, e.g. RPC handlers.
+ * <p/>
+ * Items go into a bounded ring, the reader blocks when it's full. One drain task
+ * is scheduled no matter how many items arrive before it runs, and it hands all
+ * consecutive lines over at once, so nothing is allocated per message.
+ * <p/>
+ * The time each item waits for the drain task and the time the reader waits
+ * for room are recorded in the connection's metrics.
+ */
+class ReceiveDispatcher implements Runnable {
+    /**
+     * Max items handled by one run of the drain task, so the executor
+     * (e.g. UI thread) isn't hogged, the rest is handled by a new run.
+     */
+    static final int MAX_DRAIN = 256;
+
+    private final Executor mExecutor;
+    private final Sink mSink;
+    private final ConnectionMetrics mMetrics;
+    private final Object[] mRing;
+    private final long[] mOfferedNanos;
+    private int mHead;
+    private int mCount;
+    private boolean mScheduled;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+
+    // Only touched by the drain task, which never runs concurrently with itself
+    private final Object[] mDrained = new Object[MAX_DRAIN];
+    private final long[] mDrainedNanos = new long[MAX_DRAIN];
+    private final List<String> mLines = new ArrayList<>();
+
+    /**
+     * ReceiveDispatcher constructor.
+     *
+     * @param executor Executor to run the sink on.
+     * @param sink     Receiver of items.
+     * @param capacity Max items waiting for the executor.
+     * @param metrics  Metrics of the connection.
+     */
+    ReceiveDispatcher(Executor executor, Sink sink, int capacity, ConnectionMetrics metrics) {
+        mExecutor = executor;
+        mSink = sink;
+        mMetrics = metrics;
+        mRing = new Object[capacity];
+        mOfferedNanos = new long[capacity];
+    }
+
+    /**
+     * Add a received item, blocks while the ring is full.
+     *
+     * @param item String line, byte[] data or Runnable.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void offer(Object item) throws InterruptedException {
+        boolean schedule;
+        long now = System.nanoTime();
+        mLock.lock();
+        try {
+            if (mCount == mRing.length) {
+                mMetrics.setReaderStalled(true);
+                try {
+                    while (mCount == mRing.length) {
+                        mNotFull.await();
+                    }
+                } finally {
+                    mMetrics.setReaderStalled(false);
+                }
+                long stalled = System.nanoTime();
+                mMetrics.onReaderStall(stalled - now);
+                now = stalled;
+            }
+            int tail = (mHead + mCount) % mRing.length;
+            mRing[tail] = item;
+            mOfferedNanos[tail] = now;
+            mCount++;
+            mMetrics.setReceiveQueued(mCount);
+            schedule = !mScheduled;
+            mScheduled = true;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    /**
+     * Drain task.
+     */
+    @Override
+    public void run() {
+        int n;
+        boolean more;
+        mLock.lock();
+        try {
+            n = Math.min(mCount, MAX_DRAIN);
+            for (int i = 0; i < n; i++) {
+                mDrained[i] = mRing[mHead];
+                mRing[mHead] = null;
+                mDrainedNanos[i] = mOfferedNanos[mHead];
+                mHead = (mHead + 1) % mRing.length;
+            }
+            mCount -= n;
+            mMetrics.setReceiveQueued(mCount);
+            more = mCount > 0;
+            mScheduled = more;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+
+        Histogram lag = mMetrics.getCollector().receiveToDispatch;
+        long now = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            lag.recordNanos(now - mDrainedNanos[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            Object item = mDrained[i];
+            mDrained[i] = null;
+            if (item instanceof String) {
+                mLines.add((String) item);
+            } else if (item instanceof Runnable) {
+                flushLines();
+                ((Runnable) item).run();
+            } else {
+                flushLines();
+                mSink.onBytes((byte[]) item);
+            }
+        }
+        flushLines();
+
+        if (more) {
+            mExecutor.execute(this);
+        }
+    }
+
+    private void flushLines() {
+        if (!mLines.isEmpty()) {
+            mSink.onLines(mLines);
+            mLines.clear();
+        }
+    }
+
+    /**
+     * Receiver of dispatched items, called on the executor.
+     */
+    interface Sink {
+        /**
+         * Called with consecutive lines in order of arrival.
+         *
+         * @param lines Lines, only valid during the call.
+         */
+        void onLines(List<String> lines);
+
+        void onBytes(byte[] data);
+    }
+}
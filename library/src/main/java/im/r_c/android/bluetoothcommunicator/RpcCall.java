@@ -0,0 +1,165 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import im.r_c.android.bluetoothcommunicator.listener.RpcListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * A remote procedure call in flight, completed by the result, an error,
+ * the timeout, cancellation or disconnection, whichever comes first.
+ * <p/>
+ * {@link #get()} throws an ExecutionException with an {@link RpcException} as the
+ * cause if the call failed, or a CancellationException if it was cancelled.
+ * Don't call it on the receive executor, the result is delivered there.
+ */
+public class RpcCall implements Future<byte[]> {
+    private final RpcEngine mEngine;
+    private final int mId;
+    private final String mMethod;
+    private final BluetoothDevice mDevice;
+    private final RpcListener mListener;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private boolean mCompleted;
+    private ScheduledFuture<?> mTimeout;
+    private volatile byte[] mResult;
+    private volatile RpcException mError;
+
+    RpcCall(RpcEngine engine, int id, String method, BluetoothDevice device, RpcListener listener) {
+        mEngine = engine;
+        mId = id;
+        mMethod = method;
+        mDevice = device;
+        mListener = listener;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Set the timeout task, it's cancelled once the call completes.
+     *
+     * @param timeout Scheduled timeout.
+     */
+    synchronized void setTimeout(ScheduledFuture<?> timeout) {
+        if (mCompleted) {
+            timeout.cancel(false);
+        } else {
+            mTimeout = timeout;
+        }
+    }
+
+    /**
+     * Complete the call, only the first completion counts.
+     *
+     * @param result Result, or null if failed.
+     * @param error  Error, or null if succeeded.
+     * @return Whether this completed the call.
+     */
+    boolean complete(byte[] result, RpcException error) {
+        ScheduledFuture<?> timeout;
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            timeout = mTimeout;
+            mTimeout = null;
+        }
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        mResult = result;
+        mError = error;
+        mDone.countDown();
+        mEngine.onComplete(this);
+        return true;
+    }
+
+    RpcListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Cancel the call, the peer is told so its handler can see {@link RpcReply#isCancelled()}.
+     *
+     * @param mayInterruptIfRunning Ignored, the handler runs on the peer.
+     * @return False if the call was already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, new RpcException(RpcException.Reason.CANCELLED, "Cancelled"))) {
+            return false;
+        }
+        mEngine.sendCancel(this);
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        RpcException error = mError;
+        return error != null && error.getReason() == RpcException.Reason.CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return report();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    byte[] getResult() {
+        return mResult;
+    }
+
+    /**
+     * Get error of a failed call.
+     *
+     * @return Error, or null if not completed or succeeded.
+     */
+    public RpcException getError() {
+        return mError;
+    }
+
+    private byte[] report() throws ExecutionException {
+        RpcException error = mError;
+        if (error == null) {
+            return mResult;
+        }
+        if (error.getReason() == RpcException.Reason.CANCELLED) {
+            throw new CancellationException();
+        }
+        throw new ExecutionException(error);
+    }
+}
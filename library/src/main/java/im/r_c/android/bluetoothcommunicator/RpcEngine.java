@@ -0,0 +1,318 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.r_c.android.bluetoothcommunicator.listener.RpcHandler;
+import im.r_c.android.bluetoothcommunicator.listener.RpcListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Remote procedure calls of a communicator, over {@link Frame#TYPE_RPC} frames.
+ * <p/>
+ * Payload of a frame: 1 byte kind, 4 bytes big-endian call id, then
+ * <ul>
+ * <li>request: 2 bytes method name length, UTF-8 method name, parameters</li>
+ * <li>result: the result</li>
+ * <li>error: 1 byte error code, UTF-8 message</li>
+ * <li>cancel: nothing</li>
+ * </ul>
+ * Ids are unique per caller, so any number of calls can be in flight on one
+ * connection, and results are matched to calls whatever order they come in.
+ */
+class RpcEngine {
+    static final int KIND_REQUEST = 0;
+    static final int KIND_RESULT = 1;
+    static final int KIND_ERROR = 2;
+    static final int KIND_CANCEL = 3;
+
+    private static final int ERROR_FAILED = 0;
+    private static final int ERROR_NO_SUCH_METHOD = 1;
+
+    private static final int PREFIX_LENGTH = 5;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final byte[] EMPTY = new byte[0];
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConnectionOptions mOptions;
+    private final Executor mListenerExecutor;
+    private final Sender mSender;
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private final ConcurrentMap<Integer, RpcCall> mCalls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RpcHandler> mHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RpcReply> mReplies = new ConcurrentHashMap<>();
+    private ScheduledThreadPoolExecutor mTimeoutExecutor;
+
+    /**
+     * RpcEngine constructor.
+     *
+     * @param options          Options of the communicator, for the buffer pool and default timeout.
+     * @param listenerExecutor Executor to call RpcListeners on.
+     * @param sender           Sends frames to devices.
+     */
+    RpcEngine(ConnectionOptions options, Executor listenerExecutor, Sender sender) {
+        mOptions = options;
+        mListenerExecutor = listenerExecutor;
+        mSender = sender;
+    }
+
+    void registerHandler(String method, RpcHandler handler) {
+        mHandlers.put(method, handler);
+    }
+
+    void unregisterHandler(String method) {
+        mHandlers.remove(method);
+    }
+
+    /**
+     * Get number of calls waiting for their results.
+     *
+     * @return Count.
+     */
+    int getPendingCount() {
+        return mCalls.size();
+    }
+
+    /**
+     * Make a call.
+     *
+     * @param method        Method name.
+     * @param params        Parameters.
+     * @param device        Device to call.
+     * @param timeoutMillis Timeout, 0 for none.
+     * @param listener      Listener or null.
+     * @return Call.
+     */
+    RpcCall call(String method, byte[] params, BluetoothDevice device, long timeoutMillis, RpcListener listener) {
+        byte[] name = method.getBytes(UTF_8);
+        if (name.length > 0xffff) {
+            throw new IllegalArgumentException("method name too long");
+        }
+
+        int id = mNextId.incrementAndGet();
+        final RpcCall call = new RpcCall(this, id, method, device, listener);
+        mCalls.put(id, call);
+        if (timeoutMillis > 0) {
+            call.setTimeout(getTimeoutExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (call.complete(null, new RpcException(RpcException.Reason.TIMEOUT, "Timed out"))) {
+                        sendCancel(call);
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        byte[] head = new byte[2 + name.length];
+        head[0] = (byte) (name.length >>> 8);
+        head[1] = (byte) name.length;
+        System.arraycopy(name, 0, head, 2, name.length);
+        mSender.send(device, encode(KIND_REQUEST, id, head, params), new CommunicateThread.WriteCallback() {
+            @Override
+            public void onSucceed() {
+            }
+
+            @Override
+            public void onFail() {
+                call.complete(null, new RpcException(RpcException.Reason.NOT_SENT, "Request not sent"));
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Called by a call once completed, forgets it and calls its listener.
+     *
+     * @param call Completed call.
+     */
+    void onComplete(final RpcCall call) {
+        mCalls.remove(call.getId(), call);
+        final RpcListener listener = call.getListener();
+        if (listener == null) {
+            return;
+        }
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RpcException error = call.getError();
+                if (error == null) {
+                    listener.onSucceed(call.getResult(), call.getDevice());
+                } else {
+                    listener.onFail(error, call.getDevice());
+                }
+            }
+        });
+    }
+
+    /**
+     * Tell the peer a call was given up.
+     *
+     * @param call Call cancelled or timed out.
+     */
+    void sendCancel(RpcCall call) {
+        mSender.send(call.getDevice(), encode(KIND_CANCEL, call.getId(), EMPTY, EMPTY), null);
+    }
+
+    /**
+     * Send the result or error of a handled call.
+     *
+     * @param reply        Reply.
+     * @param result       Result, or null for an error.
+     * @param message      Error message.
+     * @param noSuchMethod The error is a missing handler.
+     */
+    void sendReply(RpcReply reply, byte[] result, String message, boolean noSuchMethod) {
+        mReplies.remove(key(reply.getDevice(), reply.getId()), reply);
+        if (reply.isCancelled()) {
+            return;
+        }
+
+        SharedBuffer frame;
+        if (result != null) {
+            frame = encode(KIND_RESULT, reply.getId(), EMPTY, result);
+        } else {
+            byte[] code = {(byte) (noSuchMethod ? ERROR_NO_SUCH_METHOD : ERROR_FAILED)};
+            frame = encode(KIND_ERROR, reply.getId(), code, String.valueOf(message).getBytes(UTF_8));
+        }
+        mSender.send(reply.getDevice(), frame, null);
+    }
+
+    /**
+     * Handle a received frame, called on the reader thread.
+     *
+     * @param device          Device sent the frame.
+     * @param payload         Payload of the frame.
+     * @param handlerExecutor Executor to run handlers on.
+     */
+    void onReceive(final BluetoothDevice device, byte[] payload, Executor handlerExecutor) {
+        if (payload.length < PREFIX_LENGTH) {
+            // Malformed, nothing to answer to
+            return;
+        }
+        int kind = payload[0];
+        int id = Frame.getInt(payload, 1);
+
+        if (kind == KIND_REQUEST) {
+            if (payload.length < PREFIX_LENGTH + 2) {
+                return;
+            }
+            int nameLength = ((payload[PREFIX_LENGTH] & 0xff) << 8) | (payload[PREFIX_LENGTH + 1] & 0xff);
+            int paramsOffset = PREFIX_LENGTH + 2 + nameLength;
+            if (paramsOffset > payload.length) {
+                return;
+            }
+            final String method = new String(payload, PREFIX_LENGTH + 2, nameLength, UTF_8);
+            final byte[] params = Arrays.copyOfRange(payload, paramsOffset, payload.length);
+            final RpcReply reply = new RpcReply(this, device, id);
+            mReplies.put(key(device, id), reply);
+            handlerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (reply.isCancelled()) {
+                        return;
+                    }
+                    RpcHandler handler = mHandlers.get(method);
+                    if (handler == null) {
+                        reply.failNoSuchMethod(method);
+                        return;
+                    }
+                    try {
+                        handler.onCall(params, device, reply);
+                    } catch (RuntimeException e) {
+                        reply.fail(e.toString());
+                    }
+                }
+            });
+        } else if (kind == KIND_RESULT || kind == KIND_ERROR) {
+            RpcCall call = mCalls.get(id);
+            if (call == null || !call.getDevice().getAddress().equals(device.getAddress())) {
+                // Completed meanwhile, e.g. timed out
+                return;
+            }
+            if (kind == KIND_RESULT) {
+                call.complete(Arrays.copyOfRange(payload, PREFIX_LENGTH, payload.length), null);
+            } else if (payload.length > PREFIX_LENGTH) {
+                String message = new String(payload, PREFIX_LENGTH + 1, payload.length - PREFIX_LENGTH - 1, UTF_8);
+                call.complete(null, payload[PREFIX_LENGTH] == ERROR_NO_SUCH_METHOD
+                        ? new RpcException(RpcException.Reason.NO_SUCH_METHOD, "No such method: " + message)
+                        : new RpcException(RpcException.Reason.REMOTE, message));
+            } else {
+                // An error without its code still fails the call, rather than leave it to time out
+                call.complete(null, new RpcException(RpcException.Reason.REMOTE, "Error without code"));
+            }
+        } else if (kind == KIND_CANCEL) {
+            RpcReply reply = mReplies.remove(key(device, id));
+            if (reply != null) {
+                reply.markCancelled();
+            }
+        }
+        // Otherwise it's an unknown kind from a newer peer, skip it
+    }
+
+    /**
+     * Fail calls to a device and cancel its replies, once it's finally lost or disconnected.
+     *
+     * @param device Device.
+     */
+    void onDisconnected(BluetoothDevice device) {
+        String address = device.getAddress();
+        for (RpcCall call : mCalls.values()) {
+            if (call.getDevice().getAddress().equals(address)) {
+                call.complete(null, new RpcException(RpcException.Reason.DISCONNECTED, "Disconnected"));
+            }
+        }
+        for (RpcReply reply : mReplies.values()) {
+            if (reply.getDevice().getAddress().equals(address) && mReplies.remove(key(device, reply.getId()), reply)) {
+                reply.markCancelled();
+            }
+        }
+    }
+
+    private SharedBuffer encode(int kind, int id, byte[] head, byte[] body) {
+        int length = PREFIX_LENGTH + head.length + body.length;
+        BufferPool pool = mOptions.getBufferPool();
+        ByteBuffer frame = pool.acquire(Frame.HEADER_LENGTH + length);
+        Frame.putHeader(frame.array(), frame.arrayOffset(), Frame.TYPE_RPC, length);
+        frame.position(Frame.HEADER_LENGTH);
+        frame.put((byte) kind).putInt(id).put(head).put(body).flip();
+        return new SharedBuffer(frame, pool);
+    }
+
+    private static String key(BluetoothDevice device, int id) {
+        return device.getAddress() + "/" + id;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimeoutExecutor() {
+        if (mTimeoutExecutor == null) {
+            mTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothRpcTimeout"));
+            mTimeoutExecutor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mTimeoutExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mTimeoutExecutor;
+    }
+
+    /**
+     * Sends frames for the engine.
+     */
+    interface Sender {
+        /**
+         * Queue a frame to a device, or fail it if it can't be sent.
+         *
+         * @param device   Device.
+         * @param frame    Encoded frame, the reference is taken over.
+         * @param callback Callback or null.
+         */
+        void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback);
+    }
+}
@@ -0,0 +1,60 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Why a remote procedure call failed.
+ */
+public class RpcException extends Exception {
+    public enum Reason {
+        /**
+         * No result within the timeout of the call.
+         */
+        TIMEOUT,
+
+        /**
+         * Cancelled by the caller.
+         */
+        CANCELLED,
+
+        /**
+         * The connection was lost or disconnected before the result arrived.
+         */
+        DISCONNECTED,
+
+        /**
+         * The request couldn't be sent, e.g. not connected, the queue is full
+         * or the peer doesn't support calls.
+         */
+        NOT_SENT,
+
+        /**
+         * The peer has no handler for the method.
+         */
+        NO_SUCH_METHOD,
+
+        /**
+         * The handler of the peer failed, the message is the one it gave.
+         */
+        REMOTE
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Reason mReason;
+
+    public RpcException(Reason reason, String message) {
+        super(message);
+        mReason = reason;
+    }
+
+    public Reason getReason() {
+        return mReason;
+    }
+
+    @Override
+    public String toString() {
+        return "RpcException{reason=" + mReason + ", message=" + getMessage() + "}";
+    }
+}
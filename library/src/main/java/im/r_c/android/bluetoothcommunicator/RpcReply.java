@@ -0,0 +1,77 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Reply to a remote procedure call, given to the handler.
+ * Only the first of {@link #succeed(byte[])} and {@link #fail(String)} is sent.
+ */
+public class RpcReply {
+    private final RpcEngine mEngine;
+    private final BluetoothDevice mDevice;
+    private final int mId;
+    private final AtomicBoolean mDone = new AtomicBoolean();
+    private volatile boolean mCancelled;
+
+    RpcReply(RpcEngine engine, BluetoothDevice device, int id) {
+        mEngine = engine;
+        mDevice = device;
+        mId = id;
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    /**
+     * Send the result to the caller.
+     *
+     * @param result Result.
+     */
+    public void succeed(byte[] result) {
+        if (mDone.compareAndSet(false, true)) {
+            mEngine.sendReply(this, result, null, false);
+        }
+    }
+
+    /**
+     * Fail the call, the caller gets an {@link RpcException} with the message.
+     *
+     * @param message Error message.
+     */
+    public void fail(String message) {
+        if (mDone.compareAndSet(false, true)) {
+            mEngine.sendReply(this, null, message, false);
+        }
+    }
+
+    void failNoSuchMethod(String method) {
+        if (mDone.compareAndSet(false, true)) {
+            mEngine.sendReply(this, null, method, true);
+        }
+    }
+
+    /**
+     * Check if the caller gave up, by cancelling, timing out or disconnecting.
+     * A long running handler should check it and stop early.
+     *
+     * @return Cancelled or not.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void markCancelled() {
+        mCancelled = true;
+        mDone.set(true);
+    }
+}
@@ -0,0 +1,36 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Priority class of a line or data frame. Each class waits in its own lane of
+ * the connection's queue, served in order within the class.
+ * <p/>
+ * The lanes share the link by weighted fairness instead of strict priority: while
+ * all are busy, CONTROL gets 4 times the bytes of NORMAL and BULK a quarter of
+ * NORMAL, so no class starves. Channels of {@link Channel#PRIORITY_NORMAL} share
+ * the link the same way, NORMAL counting as weight 1.
+ * <p/>
+ * A class still pays for what it sent last: a message of an idle class goes next,
+ * ties going to the higher class, unless the last message of the class was written
+ * so recently that its share isn't used up. So a CONTROL message waits for the write
+ * going on, plus at most about a quarter of the size of the previous CONTROL message
+ * from each other busy lane of weight 1. Keep CONTROL messages small to keep them fast.
+ */
+public enum SendPriority {
+    /**
+     * Urgent commands, e.g. an emergency stop.
+     */
+    CONTROL,
+
+    /**
+     * Default class of lines, data frames and calls.
+     */
+    NORMAL,
+
+    /**
+     * Logs, sync and other traffic that may wait.
+     */
+    BULK
+}
@@ -0,0 +1,413 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Delivery state of a reliable connection, see {@link ConnectionOptions#setReliableDeliveryEnabled(boolean)}.
+ * With a non-zero id it's a logical connection surviving reconnects,
+ * see {@link ConnectionOptions#setResumptionEnabled(boolean)}.
+ * <p/>
+ * Data messages (lines and data frames) are numbered from 0 in the order they
+ * are written, the number is implicit since the stream keeps order. Written ones
+ * are kept until the peer acknowledges them with the cumulative count it received,
+ * which completes them. After a reconnect they are sent again from the first
+ * unacknowledged one, and the peer skips those it already got. Messages queued
+ * on a lost connection, or sent while reconnecting, wait here for the next connection.
+ * <p/>
+ * A resume is rejected if only one end had the session before, e.g. the accepting end
+ * restarted or already gave it up. It's final: the session is closed on both ends.
+ */
+class Session {
+    /**
+     * Next index sent in a resume frame by an end to which the session is new.
+     */
+    static final long NEW = -1;
+
+    private static final Random sRandom = new SecureRandom();
+
+    private final long mId;
+    private final int mBufferLimit;
+    private final ArrayDeque<OutboundMessage> mUnacked = new ArrayDeque<>();
+    private final ArrayDeque<OutboundMessage> mPending = new ArrayDeque<>();
+    private long mUnackedBase;
+    private long mPeerReceived;
+    private long mReceived;
+    private long mDiscard;
+    private CommunicateThread mOwner;
+    private int mAttachCount;
+    private int mInterruption;
+    private boolean mInterrupted;
+    private boolean mResumed;
+    private boolean mRejected;
+    private boolean mClosed;
+    private volatile UUID mServiceUuid;
+
+    private int mMaxInFlight;
+    private long mResentCount;
+    private long mStallCount;
+    private long mStallNanos;
+    private long mSmoothedRttNanos;
+    private long mRttVarianceNanos;
+    private long mMinRttNanos;
+    private long mLastRttNanos;
+
+    Session(long id, int bufferLimit) {
+        mId = id;
+        mBufferLimit = bufferLimit;
+    }
+
+    /**
+     * Make a random positive session id.
+     *
+     * @return Id.
+     */
+    static long newId() {
+        long id;
+        do {
+            id = sRandom.nextLong() & Long.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * Get UUID of the service to reconnect to, set by the connecting end.
+     *
+     * @return UUID or null.
+     */
+    UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    void setServiceUuid(UUID serviceUuid) {
+        mServiceUuid = serviceUuid;
+    }
+
+    /**
+     * Make the thread the one sending and receiving for the session.
+     *
+     * @param owner Thread whose handshake just completed.
+     * @return Whether the session was attached to a connection before.
+     */
+    synchronized boolean attach(CommunicateThread owner) {
+        mOwner = owner;
+        mInterrupted = false;
+        mResumed = mAttachCount++ > 0;
+        return mResumed;
+    }
+
+    /**
+     * Check if the session was attached to a connection before the current one.
+     *
+     * @return Resumed or not.
+     */
+    synchronized boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Check if the session was closed because the peer couldn't resume it.
+     *
+     * @return Rejected or not.
+     */
+    synchronized boolean isRejected() {
+        return mRejected;
+    }
+
+    /**
+     * Mark the session as waiting for a new connection.
+     *
+     * @return Number identifying this interruption, for {@link #isStillInterrupted(int)}.
+     */
+    synchronized int markInterrupted() {
+        mInterrupted = true;
+        return ++mInterruption;
+    }
+
+    /**
+     * Check if the session hasn't been resumed since the interruption.
+     *
+     * @param interruption Number returned by {@link #markInterrupted()}.
+     * @return Still interrupted or not.
+     */
+    synchronized boolean isStillInterrupted(int interruption) {
+        return mInterrupted && !mClosed && mInterruption == interruption;
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Get messages to send again on a new connection.
+     *
+     * @param out List to add the messages to, each with a reference taken for the caller.
+     * @return Index of the first message added.
+     */
+    synchronized long prepareResend(List<OutboundMessage> out) {
+        for (OutboundMessage message : mUnacked) {
+            message.retain();
+            message.resent = true;
+            out.add(message);
+        }
+        mResentCount += mUnacked.size();
+        return mUnackedBase;
+    }
+
+    /**
+     * Take messages never written, oldest first.
+     *
+     * @return Messages.
+     */
+    synchronized List<OutboundMessage> takePending() {
+        List<OutboundMessage> messages = new ArrayList<>(mPending);
+        mPending.clear();
+        return messages;
+    }
+
+    /**
+     * Get number of written messages not acknowledged yet.
+     *
+     * @return Count.
+     */
+    synchronized int getInFlightCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * Count a time the writer waited for the window.
+     *
+     * @param nanos Time waited.
+     */
+    synchronized void onWindowStall(long nanos) {
+        mStallCount++;
+        mStallNanos += nanos;
+    }
+
+    /**
+     * Keep a data message written by the owner until it's acknowledged.
+     * If too many are kept, the oldest is failed and can't be resent.
+     *
+     * @param writer  Thread which wrote the message.
+     * @param message Message written.
+     * @return False if the writer doesn't own the session (the caller should fail the message).
+     */
+    boolean onWritten(CommunicateThread writer, OutboundMessage message) {
+        OutboundMessage dropped = null;
+        List<OutboundMessage> acked;
+        synchronized (this) {
+            if (mClosed || mOwner != writer) {
+                return false;
+            }
+            mUnacked.add(message);
+            mMaxInFlight = Math.max(mMaxInFlight, mUnacked.size());
+            if (mUnacked.size() > mBufferLimit) {
+                dropped = mUnacked.poll();
+                mUnackedBase++;
+            }
+            // The ack may have been read before the writer got here
+            acked = pollAcked();
+        }
+        if (dropped != null) {
+            dropped.fail();
+        }
+        succeedAll(acked);
+        return true;
+    }
+
+    /**
+     * Complete kept messages the peer has received.
+     *
+     * @param count Count of data messages the peer received in the session.
+     */
+    void onAck(long count) {
+        List<OutboundMessage> acked;
+        synchronized (this) {
+            mPeerReceived = Math.max(mPeerReceived, count);
+            acked = pollAcked();
+        }
+        succeedAll(acked);
+    }
+
+    /**
+     * Remove kept messages covered by the peer's count, must hold the lock.
+     *
+     * @return Messages removed, or null if none.
+     */
+    private List<OutboundMessage> pollAcked() {
+        List<OutboundMessage> acked = null;
+        OutboundMessage last = null;
+        while (mUnackedBase < mPeerReceived && !mUnacked.isEmpty()) {
+            if (acked == null) {
+                acked = new ArrayList<>();
+            }
+            last = mUnacked.poll();
+            acked.add(last);
+            mUnackedBase++;
+        }
+        if (last != null && !last.resent) {
+            // Only the newest message covered by the ack gives a sample, as with delayed acks
+            sampleRtt(System.nanoTime() - last.writtenNanos);
+        }
+        return acked;
+    }
+
+    private static void succeedAll(List<OutboundMessage> messages) {
+        if (messages != null) {
+            for (OutboundMessage message : messages) {
+                message.succeed();
+            }
+        }
+    }
+
+    /**
+     * Update round trip time estimates as in RFC 6298.
+     *
+     * @param rtt Sample in nanoseconds.
+     */
+    private void sampleRtt(long rtt) {
+        mLastRttNanos = rtt;
+        mMinRttNanos = mMinRttNanos == 0 ? rtt : Math.min(mMinRttNanos, rtt);
+        if (mSmoothedRttNanos == 0) {
+            mSmoothedRttNanos = rtt;
+            mRttVarianceNanos = rtt / 2;
+        } else {
+            mRttVarianceNanos += (Math.abs(mSmoothedRttNanos - rtt) - mRttVarianceNanos) / 4;
+            mSmoothedRttNanos += (rtt - mSmoothedRttNanos) / 8;
+        }
+    }
+
+    /**
+     * Get a snapshot of delivery stats.
+     *
+     * @param windowSize Send window of the connection.
+     * @return Stats.
+     */
+    synchronized DeliveryStats getStats(int windowSize) {
+        return new DeliveryStats(windowSize, mUnacked.size(), mMaxInFlight, mUnackedBase, mResentCount,
+                mStallCount, mStallNanos / 1000000, mSmoothedRttNanos / 1000, mRttVarianceNanos / 1000,
+                mMinRttNanos / 1000, mLastRttNanos / 1000);
+    }
+
+    /**
+     * Keep messages of a lost connection for the next one.
+     *
+     * @param from     Thread of the lost connection.
+     * @param messages Messages in order.
+     * @param first    Put them before those already waiting.
+     * @return False if the session is closed or owned by another thread (the caller should fail them).
+     */
+    synchronized boolean addPending(CommunicateThread from, List<OutboundMessage> messages, boolean first) {
+        if (mClosed || mOwner != from) {
+            return false;
+        }
+        if (first) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                mPending.addFirst(messages.get(i));
+            }
+        } else {
+            mPending.addAll(messages);
+        }
+        return true;
+    }
+
+    /**
+     * Keep a message sent while reconnecting.
+     *
+     * @param message Message.
+     * @return False if the session is closed or too many are waiting (the caller should fail it).
+     */
+    synchronized boolean offer(OutboundMessage message) {
+        if (mClosed || mPending.size() >= mBufferLimit) {
+            return false;
+        }
+        mPending.add(message);
+        return true;
+    }
+
+    /**
+     * Start receiving on a new connection, the session is closed if it can't be resumed.
+     *
+     * @param peerReceived Count of data messages the peer received.
+     * @param peerNext     Index of the next data message the peer sends,
+     *                     or {@link #NEW} if the session is new to the peer.
+     * @throws IOException If messages were lost on either side, or only one end had the session.
+     */
+    void resume(long peerReceived, long peerNext) throws IOException {
+        String error = null;
+        synchronized (this) {
+            long sent = mUnackedBase + mUnacked.size();
+            if (!mClosed && (peerNext != NEW) != mResumed) {
+                // The counts of the other end mean nothing here, resending or discarding would be wrong
+                mRejected = true;
+                error = mResumed ? "Session " + Long.toHexString(mId) + " unknown to the peer"
+                        : "Peer resumes session " + Long.toHexString(mId) + " unknown here";
+            } else if (mClosed || peerReceived > sent || peerReceived < mUnackedBase || peerNext > mReceived) {
+                error = "Session can't be resumed, received " + mReceived + " sent " + sent
+                        + ", peer received " + peerReceived + " resends from " + peerNext;
+            } else {
+                mDiscard = peerNext == NEW ? 0 : mReceived - peerNext;
+            }
+        }
+        if (error != null) {
+            close();
+            throw new ProtocolException(error);
+        }
+        onAck(peerReceived);
+    }
+
+    /**
+     * Count a received data message.
+     *
+     * @return False if it's a duplicate to skip.
+     */
+    synchronized boolean onReceived() {
+        if (mDiscard > 0) {
+            mDiscard--;
+            return false;
+        }
+        mReceived++;
+        return true;
+    }
+
+    synchronized long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * Give the session up, messages not acknowledged are failed.
+     */
+    void close() {
+        List<OutboundMessage> unacked;
+        List<OutboundMessage> pending;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            unacked = new ArrayList<>(mUnacked);
+            pending = new ArrayList<>(mPending);
+            mUnacked.clear();
+            mPending.clear();
+        }
+        for (OutboundMessage message : unacked) {
+            message.fail();
+        }
+        for (OutboundMessage message : pending) {
+            message.fail();
+        }
+    }
+}
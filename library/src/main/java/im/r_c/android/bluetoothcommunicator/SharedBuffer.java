@@ -0,0 +1,34 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Reference counted pooled heap buffer holding an encoded record,
+ * so it can be queued to several connections and given back to the pool
+ * when the last one is done with it.
+ * The record is from position 0 to limit, the buffer is never modified once shared.
+ */
+class SharedBuffer {
+    final ByteBuffer buffer;
+    private final BufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    SharedBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        mPool = pool;
+    }
+
+    void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    void release() {
+        if (mRefCount.decrementAndGet() == 0) {
+            mPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * What a broadcast does to a connection whose queue is over the broadcast limit.
+ * Broadcasts never block, so one slow peer can't delay the others.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Skip the peer for this message, its listener gets onFail.
+     */
+    DROP,
+
+    /**
+     * Skip the peer and disconnect it, OnLoseConnectionListener is called.
+     */
+    DISCONNECT
+}
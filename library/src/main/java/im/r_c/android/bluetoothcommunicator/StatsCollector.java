@@ -0,0 +1,125 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Stats shared by all connections of a communicator. Histograms are recorded
+ * from any thread, counters of a connection are added to the totals when it closes.
+ */
+class StatsCollector {
+    final Histogram sendToFlush = new Histogram();
+    final Histogram receiveToDispatch = new Histogram();
+    final Histogram connectTime = new Histogram();
+    final Histogram acceptTime = new Histogram();
+    final Histogram handshakeTime = new Histogram();
+    final Histogram connectionLifetime = new Histogram();
+    final Histogram heartbeatRtt = new Histogram();
+
+    /**
+     * Time from sending to taken by the writer, by ordinal of SendPriority.
+     */
+    final Histogram[] queueWait = new Histogram[SendPriority.values().length];
+
+    private final AtomicLong mOpenedCount = new AtomicLong();
+    private final AtomicLong mConnectFailureCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    // Totals of closed connections, guarded by this
+    private long mBytesSent;
+    private long mMessagesSent;
+    private long mFlushCount;
+    private long mBytesReceived;
+    private long mMessagesReceived;
+    private long mReaderStallCount;
+    private long mReaderStallMillis;
+    private long mDroppedCount;
+    private final long[] mDisconnects = new long[DisconnectReason.values().length];
+
+    {
+        for (int i = 0; i < queueWait.length; i++) {
+            queueWait[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Create counters of a new connection.
+     *
+     * @return Counters.
+     */
+    ConnectionMetrics newConnection() {
+        mOpenedCount.incrementAndGet();
+        return new ConnectionMetrics(this);
+    }
+
+    void onConnectFailed() {
+        mConnectFailureCount.incrementAndGet();
+    }
+
+    void onRejected() {
+        mRejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Add the counters of a closed connection to the totals, only the first call counts.
+     *
+     * @param metrics Counters of the connection.
+     * @param reason  Why it's closed.
+     * @param stats   Last snapshot of the counters.
+     */
+    synchronized void onClosed(ConnectionMetrics metrics, DisconnectReason reason, ConnectionStats stats) {
+        if (!metrics.markClosed(reason)) {
+            return;
+        }
+        mBytesSent += stats.getBytesSent();
+        mMessagesSent += stats.getMessagesSent();
+        mFlushCount += stats.getFlushCount();
+        mBytesReceived += stats.getBytesReceived();
+        mMessagesReceived += stats.getMessagesReceived();
+        mReaderStallCount += stats.getReaderStallCount();
+        mReaderStallMillis += stats.getReaderStallMillis();
+        mDroppedCount += stats.getDroppedCount();
+        mDisconnects[reason.ordinal()]++;
+        connectionLifetime.recordNanos(System.nanoTime() - metrics.getStartedNanos());
+    }
+
+    /**
+     * Take a snapshot.
+     *
+     * @param threads Threads of the current connections.
+     * @return Snapshot.
+     */
+    synchronized CommunicatorStats snapshot(Collection<CommunicateThread> threads) {
+        List<ConnectionStats> connections = new ArrayList<>(threads.size());
+        for (CommunicateThread thread : threads) {
+            ConnectionMetrics metrics = thread.getMetrics();
+            // A closed one is already in the totals
+            if (metrics.getCollector() == this && !metrics.isClosed()) {
+                connections.add(thread.getStats());
+            }
+        }
+        ConnectionStats closed = new ConnectionStats(null, 0, 0, mBytesSent, mMessagesSent, mFlushCount,
+                mBytesReceived, mMessagesReceived, mReaderStallCount, mReaderStallMillis, 0, 0, mDroppedCount, 0,
+                new int[SendPriority.values().length]);
+        Map<DisconnectReason, Long> disconnects = new EnumMap<>(DisconnectReason.class);
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            disconnects.put(reason, mDisconnects[reason.ordinal()]);
+        }
+        Map<SendPriority, LatencyHistogram> waits = new EnumMap<>(SendPriority.class);
+        for (SendPriority priority : SendPriority.values()) {
+            waits.put(priority, queueWait[priority.ordinal()].snapshot());
+        }
+        return new CommunicatorStats(System.currentTimeMillis(), connections, closed, mOpenedCount.get(),
+                mConnectFailureCount.get(), mRejectedCount.get(), disconnects,
+                sendToFlush.snapshot(), receiveToDispatch.snapshot(), connectTime.snapshot(),
+                acceptTime.snapshot(), handshakeTime.snapshot(), connectionLifetime.snapshot(),
+                heartbeatRtt.snapshot(), waits);
+    }
+}
@@ -0,0 +1,125 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import im.r_c.android.bluetoothcommunicator.listener.TransferListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * A stream of data sent to or received from a device, see {@link TransferEngine}.
+ * <p/>
+ * Data goes in chunks with a CRC32 each, and the receiver confirms what it wrote
+ * to its sink. If the connection is lost, the transfer pauses, and continues from
+ * the last confirmed offset once the device is connected again.
+ */
+public abstract class Transfer {
+    final TransferEngine mEngine;
+    private final long mId;
+    private final String mName;
+    private final long mSize;
+    private final BluetoothDevice mDevice;
+    private final TransferListener mListener;
+    private volatile long mBytesTransferred;
+    private volatile TransferException mError;
+    private volatile boolean mDone;
+
+    Transfer(TransferEngine engine, long id, String name, long size, BluetoothDevice device, TransferListener listener) {
+        mEngine = engine;
+        mId = id;
+        mName = name;
+        mSize = size;
+        mDevice = device;
+        mListener = listener;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get size declared by the sender.
+     *
+     * @return Size in bytes, or -1 if unknown.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Check if the transfer comes from the device.
+     *
+     * @return Incoming or outgoing.
+     */
+    public abstract boolean isIncoming();
+
+    /**
+     * Get bytes written to the sink of the receiver, as confirmed to the sender.
+     *
+     * @return Bytes.
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred;
+    }
+
+    void setBytesTransferred(long bytes) {
+        mBytesTransferred = bytes;
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Get error of a failed transfer.
+     *
+     * @return Error, or null if not done or succeeded.
+     */
+    public TransferException getError() {
+        return mError;
+    }
+
+    /**
+     * Cancel the transfer, the peer is told. Does nothing if already done.
+     */
+    public abstract void cancel();
+
+    TransferListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Complete the transfer, only the first completion counts.
+     * Wakes up threads waiting on the transfer.
+     *
+     * @param error Error, or null if succeeded.
+     * @return Whether this completed the transfer.
+     */
+    boolean finish(TransferException error) {
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+        mEngine.onComplete(this);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Transfer{id=" + mId + ", name=" + mName + ", incoming=" + isIncoming()
+                + ", bytes=" + mBytesTransferred + "/" + mSize + ", done=" + mDone + "}";
+    }
+}
@@ -0,0 +1,524 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.listener.TransferHandler;
+import im.r_c.android.bluetoothcommunicator.listener.TransferListener;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Streamed transfers of a communicator, as messages on {@link #CHANNEL}.
+ * <p/>
+ * Payload of a message: 1 byte kind, 8 bytes big-endian transfer id, then
+ * <ul>
+ * <li>offer: 8 bytes size or -1, UTF-8 name</li>
+ * <li>data: 8 bytes offset, 4 bytes CRC32 of the chunk, the chunk</li>
+ * <li>accept, ack, resend: 8 bytes offset the receiver has written up to</li>
+ * <li>end, done: 8 bytes total size</li>
+ * <li>reject, cancel: nothing</li>
+ * </ul>
+ * The sender offers, the receiver accepts at the offset it has, the sender sends
+ * chunks from there, and the receiver acknowledges each chunk once written to its
+ * sink. After the end, the receiver closes its sink and says it's done.
+ * <p/>
+ * Sending pumps run on threads of their own pool, as reading a source may block.
+ * Everything of receiving ends, and timeouts, run on a single transfer thread.
+ */
+class TransferEngine {
+    /**
+     * Built-in channel of transfers, low priority so they don't hold up other messages.
+     */
+    static final Channel CHANNEL = new Channel("im.r_c.android.bluetoothcommunicator.transfer", Channel.PRIORITY_LOW, 1);
+
+    /**
+     * Max chunks sent and not acknowledged, the memory a sending end keeps.
+     */
+    static final int WINDOW = 8;
+
+    static final int KIND_OFFER = 0;
+    static final int KIND_ACCEPT = 1;
+    static final int KIND_REJECT = 2;
+    static final int KIND_DATA = 3;
+    static final int KIND_ACK = 4;
+    static final int KIND_RESEND = 5;
+    static final int KIND_END = 6;
+    static final int KIND_DONE = 7;
+    static final int KIND_CANCEL = 8;
+
+    static final int PREFIX_LENGTH = 9;
+    static final int DATA_PREFIX_LENGTH = 12;
+
+    private static final int HEADER_LENGTH = Frame.HEADER_LENGTH + Frame.CHANNEL_PREFIX_LENGTH + PREFIX_LENGTH;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConnectionOptions mOptions;
+    private final Executor mListenerExecutor;
+    private final Sender mSender;
+    private final ConcurrentMap<Long, OutgoingTransfer> mOutgoing = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IncomingTransfer> mIncoming = new ConcurrentHashMap<>();
+    private volatile TransferHandler mHandler;
+    private ScheduledThreadPoolExecutor mExecutor;
+    private ThreadPoolExecutor mPumpExecutor;
+
+    /**
+     * TransferEngine constructor.
+     *
+     * @param options          Options of the communicator, for the buffer pool, chunk size and timeout.
+     * @param listenerExecutor Executor to call TransferListeners on.
+     * @param sender           Sends messages to devices.
+     */
+    TransferEngine(ConnectionOptions options, Executor listenerExecutor, Sender sender) {
+        mOptions = options;
+        mListenerExecutor = listenerExecutor;
+        mSender = sender;
+    }
+
+    void setHandler(TransferHandler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Start sending a stream.
+     *
+     * @param name     Name told to the receiver.
+     * @param source   Source, read from its position to the end and closed when done.
+     * @param size     Bytes the source has, or -1 if unknown.
+     * @param device   Device to send to.
+     * @param listener Listener or null.
+     * @return Transfer.
+     */
+    Transfer send(String name, ReadableByteChannel source, long size, BluetoothDevice device,
+                  TransferListener listener) {
+        OutgoingTransfer transfer = new OutgoingTransfer(this, Session.newId(), name, size, device, listener,
+                source, mOptions.getTransferChunkSize());
+        mOutgoing.put(transfer.getId(), transfer);
+        getPumpExecutor().execute(transfer);
+        offer(transfer);
+        return transfer;
+    }
+
+    /**
+     * Get number of transfers not done yet, both ways.
+     *
+     * @return Count.
+     */
+    int getActiveCount() {
+        int count = mOutgoing.size();
+        for (IncomingTransfer transfer : mIncoming.values()) {
+            if (!transfer.isDone()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void offer(OutgoingTransfer transfer) {
+        byte[] name = transfer.getName().getBytes(UTF_8);
+        SharedBuffer frame = allocate(KIND_OFFER, transfer.getId(), 8 + name.length);
+        frame.buffer.putLong(transfer.getSize()).put(name).position(0);
+        int generation = transfer.offer();
+        send(transfer, frame, true);
+        scheduleTimeout(transfer, generation);
+    }
+
+    /**
+     * Handle a received message, called on the reader thread.
+     * Messages to sending ends are handled right away, ones to receiving ends on the transfer thread.
+     *
+     * @param device  Device sent the message.
+     * @param payload Payload of the message.
+     */
+    void onReceive(final BluetoothDevice device, final byte[] payload) {
+        if (payload.length < PREFIX_LENGTH) {
+            return;
+        }
+        final int kind = payload[0];
+        final long id = Frame.getLong(payload, 1);
+
+        if (kind == KIND_ACCEPT || kind == KIND_REJECT || kind == KIND_ACK || kind == KIND_RESEND || kind == KIND_DONE) {
+            OutgoingTransfer transfer = mOutgoing.get(id);
+            if (transfer == null || !transfer.getDevice().getAddress().equals(device.getAddress())) {
+                return;
+            }
+            if (kind == KIND_REJECT) {
+                transfer.onReject();
+            } else if (payload.length >= PREFIX_LENGTH + 8) {
+                long offset = Frame.getLong(payload, PREFIX_LENGTH);
+                if (kind == KIND_ACCEPT) {
+                    transfer.onAccept(offset);
+                } else if (kind == KIND_ACK) {
+                    transfer.onAck(offset);
+                } else if (kind == KIND_RESEND) {
+                    transfer.onResend(offset);
+                } else {
+                    transfer.onDone(offset);
+                }
+            }
+        } else if (kind == KIND_OFFER || kind == KIND_DATA || kind == KIND_END || kind == KIND_CANCEL) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    onReceiveIncoming(device, kind, id, payload);
+                }
+            });
+        }
+        // Otherwise it's an unknown kind from a newer peer, skip it
+    }
+
+    private void onReceiveIncoming(BluetoothDevice device, int kind, long id, byte[] payload) {
+        String key = key(device, id);
+        IncomingTransfer transfer = mIncoming.get(key);
+        if (kind == KIND_OFFER) {
+            if (payload.length < PREFIX_LENGTH + 8) {
+                return;
+            }
+            if (transfer == null) {
+                long size = Frame.getLong(payload, PREFIX_LENGTH);
+                String name = new String(payload, PREFIX_LENGTH + 8, payload.length - PREFIX_LENGTH - 8, UTF_8);
+                accept(device, new IncomingTransfer(this, id, name, size, device, mHandler), key);
+            } else {
+                transfer.onOffer();
+            }
+        } else if (transfer == null) {
+            // Cancelled or failed meanwhile
+            if (kind != KIND_CANCEL) {
+                sendRejection(device, id);
+            }
+        } else if (kind == KIND_DATA) {
+            if (payload.length >= PREFIX_LENGTH + DATA_PREFIX_LENGTH) {
+                transfer.onData(payload);
+            }
+        } else if (kind == KIND_END) {
+            if (payload.length >= PREFIX_LENGTH + 8) {
+                transfer.onEnd(Frame.getLong(payload, PREFIX_LENGTH));
+            }
+        } else {
+            transfer.fail(TransferException.Reason.CANCELLED, "Cancelled by the sender");
+        }
+    }
+
+    /**
+     * Ask the handler for a sink of a new transfer, and accept or reject it.
+     *
+     * @param device   Device offering.
+     * @param transfer New transfer.
+     * @param key      Key of the transfer.
+     */
+    private void accept(BluetoothDevice device, IncomingTransfer transfer, String key) {
+        TransferHandler handler = (TransferHandler) transfer.getListener();
+        WritableByteChannel sink = null;
+        if (handler != null) {
+            try {
+                sink = handler.onOffer(transfer);
+            } catch (RuntimeException ignored) {
+            }
+        }
+        if (sink == null) {
+            sendRejection(device, transfer.getId());
+            return;
+        }
+        transfer.setSink(sink);
+        mIncoming.put(key, transfer);
+        sendLong(transfer, KIND_ACCEPT, 0, false);
+    }
+
+    /**
+     * Resume transfers paused by a lost connection, once the device is connected again.
+     *
+     * @param device Device connected.
+     */
+    void onConnected(final BluetoothDevice device) {
+        if (mOutgoing.isEmpty()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (OutgoingTransfer transfer : mOutgoing.values()) {
+                    if (transfer.getDevice().getAddress().equals(device.getAddress()) && transfer.isPaused()) {
+                        offer(transfer);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Pause transfers of a device once its connection is finally lost or disconnected.
+     * They fail if it isn't connected again within the transfer timeout.
+     *
+     * @param device Device.
+     */
+    void onDisconnected(final BluetoothDevice device) {
+        final String address = device.getAddress();
+        for (OutgoingTransfer transfer : mOutgoing.values()) {
+            if (transfer.getDevice().getAddress().equals(address)) {
+                int generation = transfer.pause();
+                if (generation >= 0) {
+                    scheduleTimeout(transfer, generation);
+                }
+            }
+        }
+        if (mIncoming.isEmpty()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (IncomingTransfer transfer : mIncoming.values()) {
+                    if (transfer.getDevice().getAddress().equals(address)) {
+                        int generation = transfer.pause();
+                        if (generation >= 0) {
+                            scheduleTimeout(transfer, generation);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by a sending end paused because a message couldn't be sent, e.g. dropped
+     * by a full queue. It's offered again right away if the device is still connected.
+     *
+     * @param transfer   Transfer.
+     * @param generation Generation of the pause.
+     */
+    void onPaused(final OutgoingTransfer transfer, int generation) {
+        scheduleTimeout(transfer, generation);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.isPaused() && mSender.isConnected(transfer.getDevice())) {
+                    offer(transfer);
+                }
+            }
+        });
+    }
+
+    void onProgress(final Transfer transfer, final long bytes) {
+        final TransferListener listener = transfer.getListener();
+        if (listener == null) {
+            return;
+        }
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(transfer, bytes);
+            }
+        });
+    }
+
+    /**
+     * Called by a transfer once done, tells the peer about a failure, forgets
+     * the transfer and calls its listener.
+     * A received transfer is remembered until the timeout passes, in case its
+     * sender missed the done message and offers it again.
+     *
+     * @param transfer Transfer done.
+     */
+    void onComplete(final Transfer transfer) {
+        final TransferException error = transfer.getError();
+        if (transfer.isIncoming()) {
+            final String key = key(transfer.getDevice(), transfer.getId());
+            if (error == null) {
+                getExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mIncoming.remove(key, transfer);
+                    }
+                }, mOptions.getTransferTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                mIncoming.remove(key, transfer);
+                sendRejection(transfer.getDevice(), transfer.getId());
+            }
+        } else {
+            mOutgoing.remove(transfer.getId(), transfer);
+            if (error != null && error.getReason() != TransferException.Reason.REJECTED
+                    && error.getReason() != TransferException.Reason.NOT_SENT) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendControl(transfer, KIND_CANCEL);
+                    }
+                });
+            }
+        }
+
+        final TransferListener listener = transfer.getListener();
+        if (listener == null) {
+            return;
+        }
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    listener.onSucceed(transfer);
+                } else {
+                    listener.onFail(transfer, error);
+                }
+            }
+        });
+    }
+
+    private void scheduleTimeout(final OutgoingTransfer transfer, final int generation) {
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.isStalled(generation)) {
+                    transfer.finish(new TransferException(TransferException.Reason.TIMEOUT, "Timed out"));
+                }
+            }
+        }, mOptions.getTransferTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleTimeout(final IncomingTransfer transfer, final int generation) {
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.isStalled(generation)) {
+                    transfer.fail(TransferException.Reason.TIMEOUT, "Timed out");
+                }
+            }
+        }, mOptions.getTransferTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task on the transfer thread.
+     *
+     * @param task Task.
+     */
+    void execute(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Start a message of a transfer in a pooled buffer.
+     *
+     * @param kind       Kind.
+     * @param id         Transfer id.
+     * @param bodyLength Bytes following the id.
+     * @return Message, positioned at the body.
+     */
+    SharedBuffer allocate(int kind, long id, int bodyLength) {
+        BufferPool pool = mOptions.getBufferPool();
+        ByteBuffer frame = pool.acquire(HEADER_LENGTH + bodyLength);
+        frame.position(Frame.HEADER_LENGTH);
+        frame.putInt(CHANNEL.getId()).put((byte) (Frame.CHUNK_FIRST | Frame.CHUNK_LAST));
+        frame.put((byte) kind).putLong(id);
+        setLength(frame, bodyLength);
+        return new SharedBuffer(frame, pool);
+    }
+
+    /**
+     * Set length of a message, in the frame header and as the limit.
+     *
+     * @param frame      Message.
+     * @param bodyLength Bytes following the id.
+     */
+    static void setLength(ByteBuffer frame, int bodyLength) {
+        int length = Frame.CHANNEL_PREFIX_LENGTH + PREFIX_LENGTH + bodyLength;
+        Frame.putHeader(frame.array(), frame.arrayOffset(), Frame.TYPE_CHANNEL, length);
+        frame.limit(Frame.HEADER_LENGTH + length);
+    }
+
+    /**
+     * Send a message of a transfer.
+     *
+     * @param transfer      Transfer.
+     * @param frame         Message, the reference is taken over.
+     * @param reportFailure Tell the sending end if it couldn't be sent.
+     */
+    void send(final Transfer transfer, SharedBuffer frame, boolean reportFailure) {
+        CommunicateThread.WriteCallback callback = null;
+        if (reportFailure) {
+            callback = new CommunicateThread.WriteCallback() {
+                @Override
+                public void onSucceed() {
+                }
+
+                @Override
+                public void onFail() {
+                    ((OutgoingTransfer) transfer).onSendFailed();
+                }
+            };
+        }
+        mSender.send(transfer.getDevice(), frame, callback);
+    }
+
+    void sendLong(Transfer transfer, int kind, long value, boolean reportFailure) {
+        SharedBuffer frame = allocate(kind, transfer.getId(), 8);
+        frame.buffer.putLong(value).position(0);
+        send(transfer, frame, reportFailure);
+    }
+
+    private void sendControl(Transfer transfer, int kind) {
+        SharedBuffer frame = allocate(kind, transfer.getId(), 0);
+        frame.buffer.position(0);
+        send(transfer, frame, false);
+    }
+
+    private void sendRejection(BluetoothDevice device, long id) {
+        SharedBuffer frame = allocate(KIND_REJECT, id, 0);
+        frame.buffer.position(0);
+        mSender.send(device, frame, null);
+    }
+
+    private static String key(BluetoothDevice device, long id) {
+        return device.getAddress() + "/" + id;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothTransfer"));
+            mExecutor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
+    private synchronized ThreadPoolExecutor getPumpExecutor() {
+        if (mPumpExecutor == null) {
+            mPumpExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new NamedThreadFactory("BluetoothTransferPump"));
+        }
+        return mPumpExecutor;
+    }
+
+    /**
+     * Sends messages for the engine.
+     */
+    interface Sender {
+        /**
+         * Queue a message to a device, or fail it if it can't be sent.
+         *
+         * @param device   Device.
+         * @param frame    Encoded channel message, the reference is taken over.
+         * @param callback Callback or null.
+         */
+        void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback);
+
+        /**
+         * Check if a device is connected, or its session is waiting to be resumed.
+         *
+         * @param device Device.
+         * @return Connected or not.
+         */
+        boolean isConnected(BluetoothDevice device);
+    }
+}
@@ -0,0 +1,55 @@
+package im.r_c.android.bluetoothcommunicator;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Why a transfer failed.
+ */
+public class TransferException extends Exception {
+    public enum Reason {
+        /**
+         * The receiver has no handler, or its handler gave no sink.
+         */
+        REJECTED,
+
+        /**
+         * Cancelled by either end.
+         */
+        CANCELLED,
+
+        /**
+         * The peer didn't answer the offer, or the device wasn't connected again
+         * within the transfer timeout.
+         */
+        TIMEOUT,
+
+        /**
+         * The offer couldn't be sent, e.g. not connected or the peer doesn't support channels.
+         */
+        NOT_SENT,
+
+        /**
+         * Reading the source or writing the sink failed, or the source didn't have the declared size.
+         */
+        IO
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final Reason mReason;
+
+    public TransferException(Reason reason, String message) {
+        super(message);
+        mReason = reason;
+    }
+
+    public Reason getReason() {
+        return mReason;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferException{reason=" + mReason + ", message=" + getMessage() + "}";
+    }
+}
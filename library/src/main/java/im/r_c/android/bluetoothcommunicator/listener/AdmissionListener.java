@@ -0,0 +1,26 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listen state listener also told about connection requests not accepted right away.
+ */
+public interface AdmissionListener extends ListenStateListener {
+    /**
+     * Called when a connection request is rejected because the server is full.
+     *
+     * @param device Device rejected.
+     */
+    void onReject(BluetoothDevice device);
+
+    /**
+     * Called when a connection request waits for a free slot,
+     * onAccept or onReject follows.
+     *
+     * @param device Device waiting.
+     */
+    void onQueue(BluetoothDevice device);
+}
@@ -0,0 +1,11 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ */
+public interface OnFlushListener {
+    void onFlush(BluetoothDevice device, int messageCount, int byteCount);
+}
@@ -0,0 +1,22 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+import im.r_c.android.bluetoothcommunicator.Channel;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of a logical channel, called on the receive executor.
+ */
+public interface OnReceiveChannelListener {
+    /**
+     * Called when a whole message of the channel is received.
+     *
+     * @param channel Channel the message came on.
+     * @param data    Message.
+     * @param device  Device sent the message.
+     */
+    void onReceiveChannel(Channel channel, byte[] data, BluetoothDevice device);
+}
@@ -0,0 +1,16 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.List;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Receives all lines arrived from a device since the last call at once.
+ * The list is reused, it's only valid during the call.
+ */
+public interface OnReceiveLinesListener {
+    void onReceiveLines(List<String> lines, BluetoothDevice device);
+}
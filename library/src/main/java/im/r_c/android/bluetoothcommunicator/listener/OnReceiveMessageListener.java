@@ -0,0 +1,15 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of a typed message, called on the receive executor with the decoded message.
+ *
+ * @param <T> Type of the messages.
+ */
+public interface OnReceiveMessageListener<T> {
+    void onReceiveMessage(T message, BluetoothDevice device);
+}
@@ -0,0 +1,30 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of resumable sessions, called on UI thread.
+ * OnLoseConnectionListener is only called once a session is given up.
+ * If the server rejects the resume, the session is given up and the client
+ * connects again with a new session, reported by the same methods.
+ */
+public interface ReconnectListener {
+    /**
+     * Called before each reconnect attempt of the client.
+     *
+     * @param device  Device to reconnect.
+     * @param attempt Attempt number, from 1.
+     */
+    void onReconnecting(BluetoothDevice device, int attempt);
+
+    /**
+     * Called when a session is resumed on a new connection,
+     * or a new session is started after a rejected resume.
+     *
+     * @param device Device reconnected.
+     */
+    void onReconnected(BluetoothDevice device);
+}
@@ -0,0 +1,25 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+import im.r_c.android.bluetoothcommunicator.RpcReply;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Handler of a remote procedure call method, called on the receive executor
+ * in order with received lines and data.
+ */
+public interface RpcHandler {
+    /**
+     * Called when the peer calls the method.
+     * The reply may be given later from any thread, a slow call doesn't hold up others
+     * as long as the work isn't done here. An exception thrown here fails the call.
+     *
+     * @param params Parameters sent by the caller.
+     * @param device Calling device.
+     * @param reply  Reply to give the result with, exactly once.
+     */
+    void onCall(byte[] params, BluetoothDevice device, RpcReply reply);
+}
@@ -0,0 +1,29 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import android.bluetooth.BluetoothDevice;
+
+import im.r_c.android.bluetoothcommunicator.RpcException;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of a remote procedure call, called on the receive executor.
+ */
+public interface RpcListener {
+    /**
+     * Called when the result arrives.
+     *
+     * @param result Result given by the handler of the peer.
+     * @param device Device called.
+     */
+    void onSucceed(byte[] result, BluetoothDevice device);
+
+    /**
+     * Called when the call fails, times out or is cancelled.
+     *
+     * @param error  Reason of the failure.
+     * @param device Device called.
+     */
+    void onFail(RpcException error, BluetoothDevice device);
+}
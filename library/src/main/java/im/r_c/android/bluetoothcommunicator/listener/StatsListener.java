@@ -0,0 +1,13 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import im.r_c.android.bluetoothcommunicator.CommunicatorStats;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of periodic stats snapshots, called on UI thread.
+ */
+public interface StatsListener {
+    void onStats(CommunicatorStats stats);
+}
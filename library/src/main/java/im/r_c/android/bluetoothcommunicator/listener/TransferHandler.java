@@ -0,0 +1,22 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import java.nio.channels.WritableByteChannel;
+
+import im.r_c.android.bluetoothcommunicator.Transfer;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Transfer listener also asked where incoming transfers go.
+ */
+public interface TransferHandler extends TransferListener {
+    /**
+     * Called on a transfer thread when a device offers a transfer, so it may open files.
+     * The sink is written on that thread and closed when the transfer ends.
+     *
+     * @param transfer Incoming transfer, with name, size and device.
+     * @return Sink to write the data to, or null to reject the transfer.
+     */
+    WritableByteChannel onOffer(Transfer transfer);
+}
@@ -0,0 +1,35 @@
+package im.r_c.android.bluetoothcommunicator.listener;
+
+import im.r_c.android.bluetoothcommunicator.Transfer;
+import im.r_c.android.bluetoothcommunicator.TransferException;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listener of a transfer, called on the receive executor.
+ */
+public interface TransferListener {
+    /**
+     * Called each time the receiver confirms more data written to its sink.
+     *
+     * @param transfer Transfer.
+     * @param bytes    Bytes confirmed so far.
+     */
+    void onProgress(Transfer transfer, long bytes);
+
+    /**
+     * Called when all data is written to the sink of the receiver.
+     *
+     * @param transfer Transfer.
+     */
+    void onSucceed(Transfer transfer);
+
+    /**
+     * Called when the transfer fails, times out or is cancelled.
+     *
+     * @param transfer Transfer.
+     * @param error    Reason of the failure.
+     */
+    void onFail(Transfer transfer, TransferException error);
+}
@@ -0,0 +1,392 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Transport decorator emulating a poor link over any other transport, e.g.
+ * {@link PipeTransport} or {@link TcpTransport}: limited bandwidth, latency with
+ * jitter, stalls and dropped connections, as set in {@link LinkConditions}.
+ * <p/>
+ * What a socket writes goes out in packets paced to the bandwidth, and is handed
+ * to the underlying socket by a delivery thread once the packet's latency is over.
+ * Writes block while the send buffer is full, like on a real link. Only the
+ * sending side is shaped, so wrap the transports of both ends to shape both
+ * directions. A dropped link closes the underlying socket, which the peer sees
+ * as end of stream.
+ * <p/>
+ * Random conditions of a connection come from generators seeded with the seed, the
+ * side of the connection and its index among the connections of that side, so a
+ * run can be repeated with the same conditions. Jitter, stalls and drops each have
+ * their own generator, as they're drawn by different threads. The draws repeat,
+ * not what they fall on: the nth packet gets the same jitter, but how writes are
+ * cut into packets depends on their timing, and so do the bytes caught by a stall
+ * or sent before a drop. Connections of the same side made at once take their
+ * indexes in the order they complete.
+ */
+public class EmulatedTransport implements Transport {
+    /**
+     * Max bytes per packet, about the size of an RFCOMM frame.
+     */
+    private static final int PACKET_SIZE = 1000;
+
+    private static final int STREAM_JITTER = 0;
+    private static final int STREAM_STALL = 1;
+    private static final int STREAM_DROP = 2;
+
+    private final Transport mTransport;
+    private final LinkConditions mConditions;
+    private final AtomicInteger mConnectedCount = new AtomicInteger();
+    private final AtomicInteger mAcceptedCount = new AtomicInteger();
+
+    /**
+     * EmulatedTransport constructor.
+     *
+     * @param transport  Transport to wrap.
+     * @param conditions Conditions of the link, copied.
+     */
+    public EmulatedTransport(Transport transport, LinkConditions conditions) {
+        mTransport = transport;
+        mConditions = new LinkConditions(conditions);
+    }
+
+    public LinkConditions getConditions() {
+        return new LinkConditions(mConditions);
+    }
+
+    /**
+     * Get number of connections made so far, connected and accepted.
+     * Each side has its own index in the disconnect schedule.
+     *
+     * @return Connection count.
+     */
+    public int getConnectionCount() {
+        return mConnectedCount.get() + mAcceptedCount.get();
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        return new EmulatedSocket(mTransport.createSocket(address, uuid), false);
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        final TransportServerSocket serverSocket = mTransport.listen(name, uuid);
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new EmulatedSocket(serverSocket.accept(), true);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private class EmulatedSocket implements TransportSocket {
+        private final TransportSocket mmSocket;
+        private final boolean mmAccepted;
+        private final Object mmLock = new Object();
+        private final Queue<Packet> mmInFlight = new ArrayDeque<>();
+        private int mmInFlightBytes;
+        private long mmLinkFreeNanos;
+        private long mmLastArrivalNanos;
+        private long mmDropNanos = Long.MAX_VALUE;
+        private long mmNextStallNanos = Long.MAX_VALUE;
+        private long mmStallEndNanos;
+        private boolean mmClosed;
+        private Random mmJitterRandom;
+        private Random mmStallRandom;
+        private OutputStream mmOut;
+
+        /**
+         * EmulatedSocket constructor.
+         *
+         * @param socket   Socket to wrap.
+         * @param accepted Whether it's accepted, and so connected already.
+         */
+        EmulatedSocket(TransportSocket socket, boolean accepted) {
+            mmSocket = socket;
+            mmAccepted = accepted;
+            if (accepted) {
+                onConnected();
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            long delay = mConditions.getConnectDelayMillis();
+            if (delay > 0) {
+                synchronized (mmLock) {
+                    long end = System.nanoTime() + delay * 1000000;
+                    long now;
+                    while (!mmClosed && (now = System.nanoTime()) < end) {
+                        await(end - now);
+                    }
+                    if (mmClosed) {
+                        throw new IOException("Socket closed");
+                    }
+                }
+            }
+            mmSocket.connect();
+            onConnected();
+        }
+
+        private void onConnected() {
+            int index = (mmAccepted ? mAcceptedCount : mConnectedCount).getAndIncrement();
+            long now = System.nanoTime();
+            synchronized (mmLock) {
+                mmJitterRandom = newRandom(index, STREAM_JITTER);
+                mmStallRandom = newRandom(index, STREAM_STALL);
+                long[] schedule = mConditions.getDisconnectSchedule();
+                if (index < schedule.length && schedule[index] > 0) {
+                    mmDropNanos = now + schedule[index] * 1000000;
+                }
+                if (mConditions.getMeanDisconnectIntervalMillis() > 0) {
+                    Random dropRandom = newRandom(index, STREAM_DROP);
+                    mmDropNanos = Math.min(mmDropNanos, now + exponential(dropRandom, mConditions.getMeanDisconnectIntervalMillis()));
+                }
+                if (mConditions.getMeanStallIntervalMillis() > 0) {
+                    mmNextStallNanos = now + exponential(mmStallRandom, mConditions.getMeanStallIntervalMillis());
+                }
+            }
+        }
+
+        /**
+         * Create the generator of one kind of condition of this connection.
+         *
+         * @param index  Index of the connection among those of its side.
+         * @param stream What it generates.
+         * @return Generator.
+         */
+        private Random newRandom(int index, int stream) {
+            long seed = mConditions.getSeed();
+            seed = mix(seed + (mmAccepted ? 1 : 0));
+            seed = mix(seed + index);
+            return new Random(mix(seed + stream));
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmSocket.getRemoteAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            synchronized (mmLock) {
+                if (mmOut == null) {
+                    final OutputStream out = mmSocket.getOutputStream();
+                    mmOut = new OutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            write(new byte[]{(byte) b}, 0, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            while (len > 0) {
+                                int n = Math.min(len, PACKET_SIZE);
+                                send(b, off, n);
+                                off += n;
+                                len -= n;
+                            }
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            EmulatedSocket.this.close();
+                        }
+                    };
+                    Thread deliveryThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(out);
+                        }
+                    }, "LinkEmulator-" + mmSocket.getRemoteAddress());
+                    deliveryThread.setDaemon(true);
+                    deliveryThread.start();
+                }
+                return mmOut;
+            }
+        }
+
+        /**
+         * Put a packet on the link, blocks while the send buffer is full.
+         */
+        private void send(byte[] b, int off, int len) throws IOException {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            synchronized (mmLock) {
+                while (!mmClosed && mmInFlightBytes > 0 && mmInFlightBytes + len > mConditions.getSendBufferSize()) {
+                    await(0);
+                }
+                if (mmClosed) {
+                    throw new IOException("Socket closed");
+                }
+
+                long now = System.nanoTime();
+                long sent = Math.max(now, mmLinkFreeNanos);
+                long bandwidth = mConditions.getBandwidthBytesPerSecond();
+                if (bandwidth > 0) {
+                    sent += len * 1000000000L / bandwidth;
+                }
+                mmLinkFreeNanos = sent;
+                long arrival = sent + mConditions.getLatencyMillis() * 1000000;
+                if (mConditions.getJitterMillis() > 0) {
+                    arrival += (long) (mmJitterRandom.nextDouble() * mConditions.getJitterMillis() * 1000000);
+                }
+                // It's a stream, a packet never overtakes the one before
+                arrival = Math.max(arrival, mmLastArrivalNanos);
+                mmLastArrivalNanos = arrival;
+
+                mmInFlight.add(new Packet(data, arrival));
+                mmInFlightBytes += len;
+                mmLock.notifyAll();
+            }
+        }
+
+        /**
+         * Loop of the delivery thread, hands packets to the underlying socket when they arrive.
+         */
+        private void deliver(OutputStream out) {
+            try {
+                while (true) {
+                    Packet packet;
+                    synchronized (mmLock) {
+                        packet = nextArrival();
+                        if (packet == null) {
+                            break;
+                        }
+                    }
+                    out.write(packet.mmData);
+                    out.flush();
+                    synchronized (mmLock) {
+                        mmInFlightBytes -= packet.mmData.length;
+                        mmLock.notifyAll();
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+            closeQuietly();
+        }
+
+        /**
+         * Wait for the next packet to arrive, holding mmLock.
+         *
+         * @return Packet, or null if the socket is closed or the link dropped.
+         */
+        private Packet nextArrival() throws InterruptedException {
+            while (!mmClosed) {
+                long now = System.nanoTime();
+                if (now >= mmDropNanos) {
+                    return null;
+                }
+                if (now >= mmNextStallNanos) {
+                    mmStallEndNanos = now + mConditions.getStallMillis() * 1000000;
+                    mmNextStallNanos = mmStallEndNanos + exponential(mmStallRandom, mConditions.getMeanStallIntervalMillis());
+                }
+
+                long wakeUp = Math.min(mmDropNanos, mmNextStallNanos);
+                if (now < mmStallEndNanos) {
+                    wakeUp = Math.min(wakeUp, mmStallEndNanos);
+                } else {
+                    Packet packet = mmInFlight.peek();
+                    if (packet != null) {
+                        if (packet.mmArrivalNanos <= now) {
+                            return mmInFlight.poll();
+                        }
+                        wakeUp = Math.min(wakeUp, packet.mmArrivalNanos);
+                    }
+                }
+                long nanos = wakeUp - now;
+                if (nanos <= 0) {
+                    continue;
+                }
+                if (nanos >= Long.MAX_VALUE / 2) {
+                    mmLock.wait();
+                } else {
+                    mmLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+                }
+            }
+            return null;
+        }
+
+
+        /**
+         * Wait on mmLock, holding it.
+         *
+         * @param nanos Max time to wait, 0 for no limit.
+         */
+        private void await(long nanos) throws InterruptedIOException {
+            try {
+                if (nanos == 0) {
+                    mmLock.wait();
+                } else {
+                    mmLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (mmLock) {
+                mmClosed = true;
+                mmInFlight.clear();
+                mmLock.notifyAll();
+            }
+            mmSocket.close();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static long exponential(Random random, long meanMillis) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanMillis * 1000000);
+    }
+
+    /**
+     * Scramble a seed, so seeds differing in a few bits give unrelated generators.
+     * It's the finalizer of SplitMix64.
+     */
+    private static long mix(long z) {
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static class Packet {
+        final byte[] mmData;
+        final long mmArrivalNanos;
+
+        Packet(byte[] data, long arrivalNanos) {
+            mmData = data;
+            mmArrivalNanos = arrivalNanos;
+        }
+    }
+}
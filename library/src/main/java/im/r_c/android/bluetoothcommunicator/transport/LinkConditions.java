@@ -0,0 +1,236 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.util.Arrays;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Conditions of an emulated link, see {@link EmulatedTransport}.
+ * Read when a connection is made, changes apply to later connections.
+ * The defaults are a perfect link.
+ */
+public class LinkConditions {
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 16 * 1024;
+
+    private long mBandwidthBytesPerSecond;
+    private long mLatencyMillis;
+    private long mJitterMillis;
+    private long mConnectDelayMillis;
+    private int mSendBufferSize = DEFAULT_SEND_BUFFER_SIZE;
+    private long mMeanStallIntervalMillis;
+    private long mStallMillis;
+    private long mMeanDisconnectIntervalMillis;
+    private long[] mDisconnectSchedule = new long[0];
+    private long mSeed;
+
+    public LinkConditions() {
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other Conditions to copy.
+     */
+    public LinkConditions(LinkConditions other) {
+        mBandwidthBytesPerSecond = other.mBandwidthBytesPerSecond;
+        mLatencyMillis = other.mLatencyMillis;
+        mJitterMillis = other.mJitterMillis;
+        mConnectDelayMillis = other.mConnectDelayMillis;
+        mSendBufferSize = other.mSendBufferSize;
+        mMeanStallIntervalMillis = other.mMeanStallIntervalMillis;
+        mStallMillis = other.mStallMillis;
+        mMeanDisconnectIntervalMillis = other.mMeanDisconnectIntervalMillis;
+        mDisconnectSchedule = other.mDisconnectSchedule;
+        mSeed = other.mSeed;
+    }
+
+    /**
+     * Conditions like those of an RFCOMM link in the field, about 200 KB/s,
+     * 20 to 60 ms one way, a stall of 300 ms about every 20 s and 1.5 s to connect.
+     *
+     * @return New conditions.
+     */
+    public static LinkConditions rfcomm() {
+        LinkConditions conditions = new LinkConditions();
+        conditions.setBandwidthBytesPerSecond(200 * 1024);
+        conditions.setLatencyMillis(20);
+        conditions.setJitterMillis(40);
+        conditions.setConnectDelayMillis(1500);
+        conditions.setStalls(20000, 300);
+        return conditions;
+    }
+
+    public long getBandwidthBytesPerSecond() {
+        return mBandwidthBytesPerSecond;
+    }
+
+    /**
+     * Setter of mBandwidthBytesPerSecond.
+     *
+     * @param bytesPerSecond Bytes per second in each direction, 0 for unlimited.
+     */
+    public void setBandwidthBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bandwidth must not be negative");
+        }
+        mBandwidthBytesPerSecond = bytesPerSecond;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    /**
+     * Setter of mLatencyMillis.
+     *
+     * @param latencyMillis Least one-way delay of a byte after it's sent.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("latency must not be negative");
+        }
+        mLatencyMillis = latencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * Setter of mJitterMillis.
+     * Bytes still arrive in order, a late packet holds back the ones after it.
+     *
+     * @param jitterMillis Max random delay added to the latency of each packet.
+     */
+    public void setJitterMillis(long jitterMillis) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("jitter must not be negative");
+        }
+        mJitterMillis = jitterMillis;
+    }
+
+    public long getConnectDelayMillis() {
+        return mConnectDelayMillis;
+    }
+
+    /**
+     * Setter of mConnectDelayMillis.
+     *
+     * @param delayMillis Time connecting takes before the underlying connect.
+     */
+    public void setConnectDelayMillis(long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        mConnectDelayMillis = delayMillis;
+    }
+
+    public int getSendBufferSize() {
+        return mSendBufferSize;
+    }
+
+    /**
+     * Setter of mSendBufferSize.
+     * Writes block while this many bytes are sent but not arrived yet.
+     *
+     * @param size Bytes in flight in each direction.
+     */
+    public void setSendBufferSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        mSendBufferSize = size;
+    }
+
+    public long getMeanStallIntervalMillis() {
+        return mMeanStallIntervalMillis;
+    }
+
+    public long getStallMillis() {
+        return mStallMillis;
+    }
+
+    /**
+     * Let the link stop delivering now and then, e.g. for interference or
+     * a scan. Bytes sent meanwhile arrive in a burst after the stall.
+     *
+     * @param meanIntervalMillis Mean time between stalls, 0 for no stalls.
+     * @param stallMillis        How long each stall lasts.
+     */
+    public void setStalls(long meanIntervalMillis, long stallMillis) {
+        if (meanIntervalMillis < 0 || stallMillis < 0) {
+            throw new IllegalArgumentException("stall times must not be negative");
+        }
+        mMeanStallIntervalMillis = meanIntervalMillis;
+        mStallMillis = stallMillis;
+    }
+
+    public long getMeanDisconnectIntervalMillis() {
+        return mMeanDisconnectIntervalMillis;
+    }
+
+    /**
+     * Setter of mMeanDisconnectIntervalMillis.
+     * The link of each connection drops after a random time with this mean.
+     *
+     * @param meanIntervalMillis Mean lifetime of a connection, 0 for no random drops.
+     */
+    public void setMeanDisconnectIntervalMillis(long meanIntervalMillis) {
+        if (meanIntervalMillis < 0) {
+            throw new IllegalArgumentException("interval must not be negative");
+        }
+        mMeanDisconnectIntervalMillis = meanIntervalMillis;
+    }
+
+    public long[] getDisconnectSchedule() {
+        return mDisconnectSchedule.clone();
+    }
+
+    /**
+     * Drop links at set times. The n-th connection made through the transport
+     * drops the given time after it's made, a time of 0 or connections beyond
+     * the schedule don't drop (unless randomly). Connected and accepted ones are
+     * counted apart, so a transport both listening and connecting drops the
+     * n-th of each.
+     *
+     * @param millis Lifetime of each connection in order.
+     */
+    public void setDisconnectSchedule(long... millis) {
+        for (long m : millis) {
+            if (m < 0) {
+                throw new IllegalArgumentException("times must not be negative");
+            }
+        }
+        mDisconnectSchedule = millis.clone();
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * Setter of mSeed.
+     * The same seed gives the same random draws of delays, stalls and drops to the n-th
+     * connection of each side, see {@link EmulatedTransport} for what still varies.
+     *
+     * @param seed Seed of the random conditions.
+     */
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkConditions{" +
+                "bandwidth=" + (mBandwidthBytesPerSecond == 0 ? "unlimited" : mBandwidthBytesPerSecond + " B/s") +
+                ", latency=" + mLatencyMillis + "+" + mJitterMillis + " ms" +
+                ", connectDelay=" + mConnectDelayMillis + " ms" +
+                ", sendBuffer=" + mSendBufferSize +
+                ", stalls=" + (mMeanStallIntervalMillis == 0 ? "none" : mStallMillis + " ms every ~" + mMeanStallIntervalMillis + " ms") +
+                ", disconnects=" + (mMeanDisconnectIntervalMillis == 0 ? "none" : "every ~" + mMeanDisconnectIntervalMillis + " ms") +
+                ", schedule=" + Arrays.toString(mDisconnectSchedule) +
+                ", seed=" + mSeed +
+                '}';
+    }
+}
@@ -0,0 +1,312 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * In-process transport, every end point is a PipeTransport with its own address
+ * on a shared {@link Network}. Addresses are free-form, but MAC-style ones
+ * (e.g. "00:00:00:00:00:01") can be mapped to BluetoothDevice by the communicator.
+ */
+public class PipeTransport implements Transport {
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private Network mNetwork;
+    private String mLocalAddress;
+    private int mPipeCapacity;
+
+    public PipeTransport(Network network, String localAddress) {
+        this(network, localAddress, DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     * PipeTransport constructor.
+     *
+     * @param network      Network shared by all end points that should see each other.
+     * @param localAddress Address of this end point.
+     * @param pipeCapacity Bytes buffered in each direction before writes block.
+     */
+    public PipeTransport(Network network, String localAddress, int pipeCapacity) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+        mPipeCapacity = pipeCapacity;
+    }
+
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    @Override
+    public TransportSocket createSocket(final String address, final UUID uuid) throws IOException {
+        return new PipeSocket(address) {
+            @Override
+            public void connect() throws IOException {
+                PipeServerSocket server = mNetwork.mServers.get(key(address, uuid));
+                if (server == null) {
+                    throw new IOException("Connection refused: " + address);
+                }
+
+                Pipe up = new Pipe(mPipeCapacity);
+                Pipe down = new Pipe(mPipeCapacity);
+                attach(down, up);
+
+                PipeSocket remote = new PipeSocket(mLocalAddress);
+                remote.attach(up, down);
+                if (!server.offer(remote)) {
+                    close();
+                    throw new IOException("Connection refused: " + address);
+                }
+            }
+        };
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        String key = key(mLocalAddress, uuid);
+        PipeServerSocket server = new PipeServerSocket(mNetwork, key);
+        if (mNetwork.mServers.putIfAbsent(key, server) != null) {
+            throw new IOException("Address already in use: " + key);
+        }
+        return server;
+    }
+
+    private static String key(String address, UUID uuid) {
+        return address + "/" + uuid;
+    }
+
+    /**
+     * Group of end points that can connect to each other.
+     */
+    public static class Network {
+        private ConcurrentMap<String, PipeServerSocket> mServers = new ConcurrentHashMap<>();
+    }
+
+    private static class PipeServerSocket implements TransportServerSocket {
+        private static final PipeSocket CLOSED = new PipeSocket(null);
+
+        private Network mNetwork;
+        private String mKey;
+        private BlockingQueue<PipeSocket> mPending = new LinkedBlockingQueue<>();
+        private volatile boolean mClosed;
+
+        PipeServerSocket(Network network, String key) {
+            mNetwork = network;
+            mKey = key;
+        }
+
+        boolean offer(PipeSocket socket) {
+            return !mClosed && mPending.offer(socket);
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            PipeSocket socket;
+            try {
+                socket = mPending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (socket == CLOSED) {
+                mPending.offer(CLOSED);
+                throw new IOException("Server socket closed");
+            }
+            return socket;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mNetwork.mServers.remove(mKey, this);
+                mPending.offer(CLOSED);
+            }
+        }
+    }
+
+    private static class PipeSocket implements TransportSocket {
+        private String mRemoteAddress;
+        private Pipe mIn;
+        private Pipe mOut;
+
+        PipeSocket(String remoteAddress) {
+            mRemoteAddress = remoteAddress;
+        }
+
+        void attach(Pipe in, Pipe out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (mIn == null) {
+                throw new IOException("Not connected");
+            }
+            return mIn.mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (mOut == null) {
+                throw new IOException("Not connected");
+            }
+            return mOut.mOutput;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIn != null) {
+                mIn.closeReader();
+            }
+            if (mOut != null) {
+                mOut.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * Bounded byte ring buffer between one writer and one reader.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mReaderClosed;
+        private boolean mWriterClosed;
+
+        private final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeReader();
+            }
+        };
+
+        private final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeWriter();
+            }
+        };
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCount == 0) {
+                if (mReaderClosed) {
+                    throw new IOException("Socket closed");
+                }
+                if (mWriterClosed) {
+                    return -1;
+                }
+                await();
+            }
+            if (mReaderClosed) {
+                throw new IOException("Socket closed");
+            }
+
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mWriterClosed) {
+                    throw new IOException("Socket closed");
+                }
+                if (mReaderClosed) {
+                    throw new IOException("Broken pipe");
+                }
+                if (mCount == mBuffer.length) {
+                    await();
+                    continue;
+                }
+
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            mReaderClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeWriter() {
+            mWriterClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Transport over Bluetooth RFCOMM sockets.
+ */
+public class RfcommTransport implements Transport {
+    private BluetoothAdapter mBluetoothAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mBluetoothAdapter = adapter;
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        return new RfcommSocket(device.createRfcommSocketToServiceRecord(uuid));
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        final BluetoothServerSocket serverSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new RfcommSocket(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    /**
+     * Wrapper of BluetoothSocket.
+     */
+    public static class RfcommSocket implements TransportSocket {
+        private BluetoothSocket mSocket;
+
+        public RfcommSocket(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        /**
+         * Get the remote Bluetooth device.
+         *
+         * @return Remote device.
+         */
+        public BluetoothDevice getDevice() {
+            return mSocket.getRemoteDevice();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
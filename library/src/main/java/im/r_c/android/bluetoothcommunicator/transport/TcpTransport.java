@@ -0,0 +1,249 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Transport over plain TCP sockets. The UUID is ignored, the listening port is chosen
+ * when constructing.
+ * <p/>
+ * The communicator identifies peers by BluetoothDevice, which Android only makes from
+ * MAC addresses, so an IPv4 endpoint is written as one: the 4 bytes of the IP address
+ * then the 2 of the port, see {@link #toDeviceAddress(InetAddress, int)}. Sockets report
+ * remote addresses that way, and {@link #createSocket(String, UUID)} takes either that
+ * or "host:port". An IPv6 peer is reported as "host:port", the communicator can't
+ * make a device of it and drops the connection.
+ * <p/>
+ * An accepted connection is keyed by the client's ephemeral port, so a client that
+ * reconnects is a new device to the server: sessions aren't resumed and transfers
+ * to or from it fail rather than continue from where they were.
+ * <p/>
+ * Meant for tests, emulators and gateways: a BluetoothAdapter is still needed to make
+ * the devices, on a plain JVM a stand-in provides one.
+ */
+public class TcpTransport implements Transport {
+    /**
+     * Length of "XX:XX:XX:XX:XX:XX".
+     */
+    private static final int DEVICE_ADDRESS_LENGTH = 17;
+
+    private String mBindHost;
+    private int mPort;
+
+    /**
+     * TcpTransport constructor, listens on an ephemeral port of all interfaces.
+     */
+    public TcpTransport() {
+        this(null, 0);
+    }
+
+    /**
+     * TcpTransport constructor.
+     *
+     * @param bindHost Host to listen on or null for all interfaces.
+     * @param port     Port to listen on, 0 for an ephemeral port.
+     */
+    public TcpTransport(String bindHost, int port) {
+        mBindHost = bindHost;
+        mPort = port;
+    }
+
+    /**
+     * Write an IPv4 endpoint as a MAC-style address, to get a BluetoothDevice for it
+     * with BluetoothAdapter#getRemoteDevice(String).
+     *
+     * @param address IPv4 address.
+     * @param port    Port.
+     * @return Address like "C0:A8:00:05:1F:90" for 192.168.0.5:8080.
+     * @throws IllegalArgumentException If the address is not IPv4 or the port is out of range.
+     */
+    public static String toDeviceAddress(InetAddress address, int port) {
+        if (!(address instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + address);
+        }
+        if (port < 0 || port > 0xffff) {
+            throw new IllegalArgumentException("Port out of range: " + port);
+        }
+
+        byte[] ip = address.getAddress();
+        StringBuilder builder = new StringBuilder(DEVICE_ADDRESS_LENGTH);
+        for (byte b : ip) {
+            appendHex(builder, b & 0xff).append(':');
+        }
+        appendHex(builder, port >> 8).append(':');
+        appendHex(builder, port & 0xff);
+        return builder.toString();
+    }
+
+    /**
+     * Read an endpoint written by {@link #toDeviceAddress(InetAddress, int)}.
+     *
+     * @param address MAC-style address.
+     * @return Endpoint, unresolved, or null if the address is not MAC-style.
+     */
+    public static InetSocketAddress fromDeviceAddress(String address) {
+        if (address.length() != DEVICE_ADDRESS_LENGTH) {
+            return null;
+        }
+
+        int[] bytes = new int[6];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < bytes.length - 1 && address.charAt(i * 3 + 2) != ':')) {
+                return null;
+            }
+            bytes[i] = high << 4 | low;
+        }
+        String host = bytes[0] + "." + bytes[1] + "." + bytes[2] + "." + bytes[3];
+        return InetSocketAddress.createUnresolved(host, bytes[4] << 8 | bytes[5]);
+    }
+
+    /**
+     * Create an unconnected socket.
+     *
+     * @param address MAC-style address of an IPv4 endpoint, or "host:port".
+     * @param uuid    Ignored.
+     * @return Socket.
+     * @throws IOException If the address is in neither form.
+     */
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        InetSocketAddress endpoint = fromDeviceAddress(address);
+        if (endpoint != null) {
+            return new TcpSocket(new Socket(), endpoint.getHostName(), endpoint.getPort(), address);
+        }
+
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Address should be host:port: " + address);
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Address should be host:port: " + address);
+        }
+        return new TcpSocket(new Socket(), address.substring(0, colon), port, null);
+    }
+
+    @Override
+    public TcpServerSocket listen(String name, UUID uuid) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        if (mBindHost == null) {
+            serverSocket.bind(new InetSocketAddress(mPort));
+        } else {
+            serverSocket.bind(new InetSocketAddress(mBindHost, mPort));
+        }
+        return new TcpServerSocket(serverSocket);
+    }
+
+    private static StringBuilder appendHex(StringBuilder builder, int b) {
+        return builder.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+    }
+
+    /**
+     * Listening TCP socket.
+     */
+    public static class TcpServerSocket implements TransportServerSocket {
+        private ServerSocket mServerSocket;
+
+        TcpServerSocket(ServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        /**
+         * Get the port actually listened on, useful with an ephemeral port.
+         *
+         * @return Local port.
+         */
+        public int getLocalPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpSocket(socket, null, 0, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private Socket mSocket;
+        private String mHost;
+        private int mPort;
+        private String mDeviceAddress;
+
+        TcpSocket(Socket socket, String host, int port, String deviceAddress) {
+            mSocket = socket;
+            mHost = host;
+            mPort = port;
+            mDeviceAddress = deviceAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect(new InetSocketAddress(mHost, mPort));
+            mSocket.setTcpNoDelay(true);
+        }
+
+        /**
+         * Get the remote endpoint, MAC-style if IPv4.
+         * A socket created for a MAC-style address reports that one, so it keys the
+         * same connection whatever the host resolved to.
+         *
+         * @return Remote address.
+         */
+        @Override
+        public String getRemoteAddress() {
+            if (mDeviceAddress != null) {
+                return mDeviceAddress;
+            }
+
+            InetAddress address = mSocket.getInetAddress();
+            int port = mSocket.getPort();
+            if (address == null) {
+                // Not connected yet
+                return mHost + ":" + mPort;
+            }
+            if (address instanceof Inet4Address) {
+                return toDeviceAddress(address, port);
+            }
+            return address.getHostAddress() + ":" + port;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Abstraction of the link the communicator runs over.
+ * RFCOMM is the default one, other implementations make it possible to run
+ * the same protocol code in process or over TCP.
+ */
+public interface Transport {
+    /**
+     * Create an unconnected socket to a remote address.
+     *
+     * @param address Remote address, MAC-style as the address of the device connected to.
+     * @param uuid    The app's UUID, should be the same as the server side.
+     * @return Socket, call {@link TransportSocket#connect()} to connect it.
+     * @throws IOException If the socket can't be created.
+     */
+    TransportSocket createSocket(String address, UUID uuid) throws IOException;
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @param name Service name.
+     * @param uuid The app's UUID, should be the same as the client side.
+     * @return Server socket to accept connections from.
+     * @throws IOException If listening failed.
+     */
+    TransportServerSocket listen(String name, UUID uuid) throws IOException;
+}
@@ -0,0 +1,21 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Listening socket of a transport.
+ */
+public interface TransportServerSocket {
+    /**
+     * Block until a connection is established.
+     *
+     * @return Connected socket.
+     * @throws IOException If failed or the server socket is closed.
+     */
+    TransportSocket accept() throws IOException;
+
+    void close() throws IOException;
+}
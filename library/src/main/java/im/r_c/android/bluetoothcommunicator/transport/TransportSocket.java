@@ -0,0 +1,34 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * One end of a connected stream pair.
+ */
+public interface TransportSocket {
+    /**
+     * Connect to the remote end, blocks until connected or failed.
+     * Calling {@link #close()} from another thread aborts the attempt.
+     *
+     * @throws IOException If failed to connect.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Get address of the remote end.
+     *
+     * @return Remote address.
+     */
+    String getRemoteAddress();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,255 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.Transport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the connect pool of the client, with connect attempts held until let go.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BluetoothClientTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final UUID mUuid = UUID.randomUUID();
+    private final List<TransportServerSocket> mServers = new ArrayList<>();
+    private final CountDownLatch mGate = new CountDownLatch(1);
+    private final AtomicInteger mConnecting = new AtomicInteger();
+    private final AtomicInteger mMaxConnecting = new AtomicInteger();
+    private BluetoothClient mClient;
+
+    @Before
+    public void setUp() {
+        mClient = new BluetoothClient(new Handler());
+        mClient.setTransport(new GatedTransport(new PipeTransport(mNetwork, "00:00:00:00:01:00")));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mGate.countDown();
+        for (BluetoothDevice device : mClient.getConnectedDevices()) {
+            mClient.disconnectToDevice(device);
+        }
+        for (TransportServerSocket server : mServers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectsAtMostMaxConcurrentAtATime() throws Exception {
+        mClient.setMaxConcurrentConnects(2);
+        for (int i = 1; i <= 5; i++) {
+            mClient.connectToDevice(server(i), mUuid, null);
+        }
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mConnecting.get() == 2;
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(2, mConnecting.get());
+        assertEquals(5, mClient.getPendingConnectCount());
+
+        mGate.countDown();
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mClient.getConnectionCount() == 5;
+            }
+        });
+        assertEquals(0, mClient.getPendingConnectCount());
+        assertEquals(2, mMaxConnecting.get());
+    }
+
+    @Test
+    public void joinsAttemptToSameDevice() throws Exception {
+        BluetoothDevice device = server(1);
+        mClient.connectToDevice(device, mUuid, null);
+        mClient.connectToDevice(device, mUuid, null);
+        assertEquals(1, mClient.getPendingConnectCount());
+
+        mGate.countDown();
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mClient.getConnectionCount() == 1;
+            }
+        });
+        assertEquals(1, mClient.getStats().getOpenedCount());
+    }
+
+    @Test
+    public void timesOutEachAttemptFromItsTurn() throws Exception {
+        mClient.setMaxConcurrentConnects(1);
+        mClient.setConnectTimeoutMillis(200);
+        long start = System.nanoTime();
+        mClient.connectToDevice(server(1), mUuid, null);
+        mClient.connectToDevice(server(2), mUuid, null);
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mClient.getPendingConnectCount() == 0;
+            }
+        });
+
+        // The second one waited for the first, then had its own 200 ms
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+        assertEquals(0, mClient.getConnectionCount());
+        assertEquals(2, mClient.getStats().getConnectFailureCount());
+        assertEquals(1, mMaxConnecting.get());
+    }
+
+    @Test
+    public void failsAttemptBeyondMaxPeers() throws Exception {
+        mClient.setMaxPeers(2);
+        final List<BluetoothDevice> failed = new ArrayList<>();
+        ConnectListener listener = new ConnectListener() {
+            @Override
+            public void onSucceed(BluetoothDevice device) {
+            }
+
+            @Override
+            public void onFail(BluetoothDevice device) {
+                failed.add(device);
+            }
+        };
+        mClient.connectToDevice(server(1), mUuid, listener);
+        mClient.connectToDevice(server(2), mUuid, listener);
+        BluetoothDevice third = server(3);
+        // Pending attempts count as peers too
+        mClient.connectToDevice(third, mUuid, listener);
+        assertEquals(1, failed.size());
+        assertEquals(third, failed.get(0));
+        assertEquals(2, mClient.getPendingConnectCount());
+
+        mGate.countDown();
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mClient.getConnectionCount() == 2;
+            }
+        });
+        mClient.connectToDevice(third, mUuid, listener);
+        assertEquals(2, failed.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveMaxPeers() {
+        mClient.setMaxPeers(0);
+    }
+
+    private BluetoothDevice server(int index) throws IOException {
+        String address = String.format("00:00:00:00:00:%02X", index);
+        mServers.add(new PipeTransport(mNetwork, address).listen("test", mUuid));
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.isMet());
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Transport whose connect attempts wait for the gate, or until the socket is closed.
+     */
+    private class GatedTransport implements Transport {
+        private final Transport mmTransport;
+
+        GatedTransport(Transport transport) {
+            mmTransport = transport;
+        }
+
+        @Override
+        public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+            final TransportSocket socket = mmTransport.createSocket(address, uuid);
+            final CountDownLatch closed = new CountDownLatch(1);
+            return new TransportSocket() {
+                @Override
+                public void connect() throws IOException {
+                    int connecting = mConnecting.incrementAndGet();
+                    int max = mMaxConnecting.get();
+                    while (connecting > max && !mMaxConnecting.compareAndSet(max, connecting)) {
+                        max = mMaxConnecting.get();
+                    }
+                    try {
+                        while (mGate.getCount() > 0) {
+                            if (closed.await(10, TimeUnit.MILLISECONDS)) {
+                                throw new IOException("Closed");
+                            }
+                        }
+                        socket.connect();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    } finally {
+                        mConnecting.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return socket.getRemoteAddress();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return socket.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return socket.getOutputStream();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed.countDown();
+                    socket.close();
+                }
+            };
+        }
+
+        @Override
+        public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+            return mmTransport.listen(name, uuid);
+        }
+    }
+}
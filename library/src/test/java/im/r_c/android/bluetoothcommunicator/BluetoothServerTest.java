@@ -0,0 +1,189 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import im.r_c.android.bluetoothcommunicator.listener.ConnectListener;
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of admission control and the worker pool of the server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BluetoothServerTest {
+    private static final String SERVER_ADDRESS = "00:00:00:00:00:01";
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final UUID mUuid = UUID.randomUUID();
+    private final List<TransportSocket> mClients = new ArrayList<>();
+    private BluetoothServer mServer;
+
+    @Before
+    public void setUp() {
+        mServer = new BluetoothServer(new Handler());
+        mServer.setTransport(new PipeTransport(mNetwork, SERVER_ADDRESS));
+        mServer.setMaxConnections(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.stopListening();
+        for (TransportSocket client : mClients) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void startsNoWorkersBeyondMaxConnections() throws Exception {
+        mServer.startListening("test", mUuid, null);
+        connect(1);
+        awaitConnections(1);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) mServer.getConnectionExecutor();
+        awaitActiveWorkers(pool, 2);
+
+        // Rejected ones are closed without taking a thread
+        connect(2);
+        connect(3);
+        assertEof(mClients.get(1));
+        assertEof(mClients.get(2));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getStats().getRejectedCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mServer.getStats().getRejectedCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(2, pool.getPoolSize());
+        assertEquals(2, pool.getActiveCount());
+    }
+
+    @Test
+    public void startsQueuedConnectionOnlyWhenSlotIsFree() throws Exception {
+        mServer.setAdmissionPolicy(AdmissionPolicy.QUEUE);
+        mServer.startListening("test", mUuid, null);
+        connect(1);
+        awaitConnections(1);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) mServer.getConnectionExecutor();
+        awaitActiveWorkers(pool, 2);
+
+        connect(2);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getQueuedConnectionCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mServer.getQueuedConnectionCount());
+        assertEquals(2, pool.getActiveCount());
+
+        mClients.get(0).close();
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getQueuedConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        awaitConnections(1);
+        assertEquals(0, mServer.getQueuedConnectionCount());
+        assertTrue(pool.getPoolSize() <= pool.getMaximumPoolSize());
+    }
+
+    @Test
+    public void capsWorkerPool() {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) mServer.getConnectionExecutor();
+        int slack = pool.getMaximumPoolSize() - 2;
+        assertTrue(slack > 0 && slack <= 4);
+
+        mServer.setMaxConnections(3);
+        assertEquals(6, pool.getCorePoolSize());
+        assertEquals(6 + slack, pool.getMaximumPoolSize());
+        mServer.setMaxConnections(1);
+        assertEquals(2, pool.getCorePoolSize());
+        assertEquals(2 + slack, pool.getMaximumPoolSize());
+    }
+
+    @Test
+    public void closesConnectionFindingNoThread() throws Exception {
+        BluetoothCommunicator communicator = new BluetoothCommunicator(new Handler()) {
+            @Override
+            protected Executor getConnectionExecutor() {
+                return new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        throw new RejectedExecutionException("Saturated");
+                    }
+                };
+            }
+        };
+        TransportServerSocket serverSocket = new PipeTransport(mNetwork, SERVER_ADDRESS).listen("test", mUuid);
+        TransportSocket client = connect(1);
+        TransportSocket accepted = serverSocket.accept();
+        communicator.startNewCommunicateThread(accepted, new ConnectListener() {
+            @Override
+            public void onSucceed(android.bluetooth.BluetoothDevice device) {
+            }
+
+            @Override
+            public void onFail(android.bluetooth.BluetoothDevice device) {
+            }
+        });
+
+        assertEquals(0, communicator.getConnectionCount());
+        assertEof(client);
+        serverSocket.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullAdmissionPolicy() {
+        mServer.setAdmissionPolicy(null);
+    }
+
+    private TransportSocket connect(int index) throws IOException {
+        String address = String.format("00:00:00:00:01:%02X", index);
+        TransportSocket socket = new PipeTransport(mNetwork, address).createSocket(SERVER_ADDRESS, mUuid);
+        socket.connect();
+        mClients.add(socket);
+        return socket;
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getConnectionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mServer.getConnectionCount());
+    }
+
+    private static void awaitActiveWorkers(ThreadPoolExecutor pool, int count) throws InterruptedException {
+        // The connection is registered just before its reader and writer are handed to the pool
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (pool.getActiveCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getActiveCount());
+    }
+
+    private static void assertEof(TransportSocket socket) throws IOException {
+        // The server sends nothing without a handshake, so the first read is the end
+        assertEquals(-1, socket.getInputStream().read());
+    }
+}
@@ -0,0 +1,221 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of one encoded record shared by several connections, and of peers over the broadcast limit.
+ */
+public class BroadcastTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int PEER_COUNT = 3;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final RecordingPool mPool = new RecordingPool();
+    private final BlockingQueue<Boolean> mResults = new LinkedBlockingQueue<>();
+    private final BlockingQueue<CommunicateThread> mLost = new LinkedBlockingQueue<>();
+    private final List<TransportSocket> mRemotes = new ArrayList<>();
+    private final List<CommunicateThread> mThreads = new ArrayList<>();
+    private final StatsCollector mCollector = new StatsCollector();
+
+    private final CommunicateThread.WriteCallback mCallback = new CommunicateThread.WriteCallback() {
+        @Override
+        public void onSucceed() {
+            mResults.add(true);
+        }
+
+        @Override
+        public void onFail() {
+            mResults.add(false);
+        }
+    };
+
+    @After
+    public void tearDown() throws IOException {
+        for (CommunicateThread thread : mThreads) {
+            thread.cancel();
+        }
+        for (TransportSocket remote : mRemotes) {
+            remote.close();
+        }
+    }
+
+    @Test
+    public void sharesOneRecordAmongConnections() throws Exception {
+        ConnectionOptions options = options(SlowConsumerPolicy.DROP);
+        for (int i = 0; i < PEER_COUNT; i++) {
+            connect(i, options);
+        }
+
+        SharedBuffer record = CommunicateThread.encodeLine("to all", mPool);
+        long acquired = mPool.getAcquireCount();
+        for (CommunicateThread thread : mThreads) {
+            thread.writeShared(record, SendPriority.NORMAL, mCallback);
+        }
+        record.release();
+        // Encoded once, no connection copied it
+        assertEquals(acquired, mPool.getAcquireCount());
+        assertEquals(0, count(record.buffer));
+
+        for (CommunicateThread thread : mThreads) {
+            thread.start();
+        }
+        for (TransportSocket remote : mRemotes) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(remote.getInputStream(), LineCodec.UTF_8));
+            assertEquals("to all", reader.readLine());
+        }
+        for (int i = 0; i < PEER_COUNT; i++) {
+            assertTrue(mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        // Given back by the last connection done with it, only once
+        assertEquals(1, count(record.buffer));
+    }
+
+    @Test
+    public void dropsRecordForPeerOverLimit() throws Exception {
+        CommunicateThread slow = connect(0, options(SlowConsumerPolicy.DROP));
+        for (int i = 0; i < 2; i++) {
+            broadcast(slow);
+        }
+        // The writer isn't started, so the queue holds both
+        assertNull(mResults.poll(100, TimeUnit.MILLISECONDS));
+
+        broadcast(slow);
+        assertFalse(mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(slow.isClosed());
+        assertEquals(2, slow.getQueuedCount());
+        assertTrue(mLost.isEmpty());
+    }
+
+    @Test
+    public void disconnectsPeerOverLimit() throws Exception {
+        CommunicateThread slow = connect(0, options(SlowConsumerPolicy.DISCONNECT));
+        CommunicateThread other = connect(1, options(SlowConsumerPolicy.DISCONNECT));
+        other.start();
+        for (int i = 0; i < 2; i++) {
+            broadcast(slow);
+        }
+        assertFalse(slow.isClosed());
+
+        broadcast(slow, other);
+        assertTrue(slow.isClosed());
+        assertEquals(slow, mLost.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1L, (long) mCollector.snapshot(new ArrayList<CommunicateThread>())
+                .getDisconnects().get(DisconnectReason.SLOW_CONSUMER));
+
+        // The others get it all the same
+        BufferedReader reader = new BufferedReader(new InputStreamReader(mRemotes.get(1).getInputStream(),
+                LineCodec.UTF_8));
+        assertEquals("to all", reader.readLine());
+        assertFalse(other.isClosed());
+    }
+
+    private void broadcast(CommunicateThread... threads) {
+        SharedBuffer record = CommunicateThread.encodeLine("to all", mPool);
+        for (CommunicateThread thread : threads) {
+            thread.writeShared(record, SendPriority.NORMAL, mCallback);
+        }
+        record.release();
+    }
+
+    private ConnectionOptions options(SlowConsumerPolicy policy) {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setBufferPool(mPool);
+        options.setBroadcastQueueLimit(2);
+        options.setSlowConsumerPolicy(policy);
+        return options;
+    }
+
+    private CommunicateThread connect(int index, ConnectionOptions options) throws IOException {
+        UUID uuid = UUID.randomUUID();
+        String address = String.format("00:00:00:00:00:%02X", index + 1);
+        TransportServerSocket serverSocket = new PipeTransport(mNetwork, address).listen("broadcast", uuid);
+        TransportSocket local = new PipeTransport(mNetwork, "00:00:00:00:01:00").createSocket(address, uuid);
+        local.connect();
+        mRemotes.add(serverSocket.accept());
+        serverSocket.close();
+
+        CommunicateThread thread = new CommunicateThread(local, new CommunicateThread.Callback() {
+            @Override
+            public void onReceiveLine(CommunicateThread thread, String line) {
+            }
+
+            @Override
+            public void onReceiveBytes(CommunicateThread thread, byte[] data) {
+            }
+
+            @Override
+            public void onReceiveRpc(CommunicateThread thread, byte[] payload) {
+            }
+
+            @Override
+            public void onReceiveChannel(CommunicateThread thread, int channelId, byte[] data) {
+            }
+
+            @Override
+            public void onFlush(CommunicateThread thread, int messageCount, int byteCount) {
+            }
+
+            @Override
+            public void onHandshake(CommunicateThread thread, ProtocolParameters parameters) {
+            }
+
+            @Override
+            public void onLoseConnection(CommunicateThread thread) {
+                mLost.add(thread);
+            }
+        }, options, mCollector.newConnection());
+        mThreads.add(thread);
+        return thread;
+    }
+
+    private int count(ByteBuffer buffer) {
+        synchronized (mPool.mmReleased) {
+            int count = 0;
+            for (ByteBuffer released : mPool.mmReleased) {
+                if (released == buffer) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Pool remembering every buffer given back to it.
+     */
+    private static class RecordingPool extends BufferPool {
+        private final List<ByteBuffer> mmReleased = new ArrayList<>();
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            synchronized (mmReleased) {
+                mmReleased.add(buffer);
+            }
+            super.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of buffer size classes, reuse and leak detection.
+ */
+public class BufferPoolTest {
+    @Test
+    public void roundsUpToSizeClass() {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_CLASS_SIZE, pool.acquire(0).capacity());
+        assertEquals(BufferPool.MIN_CLASS_SIZE, pool.acquire(1).capacity());
+        assertEquals(BufferPool.MIN_CLASS_SIZE, pool.acquire(256).capacity());
+        assertEquals(512, pool.acquire(257).capacity());
+        assertEquals(4096, pool.acquire(4000).capacity());
+        assertEquals(BufferPool.MAX_CLASS_SIZE, pool.acquire(BufferPool.MAX_CLASS_SIZE).capacity());
+        // Bigger ones are allocated as asked
+        assertEquals(BufferPool.MAX_CLASS_SIZE + 1, pool.acquire(BufferPool.MAX_CLASS_SIZE + 1).capacity());
+    }
+
+    @Test
+    public void reusesReleasedBufferOfSameClass() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer buffer = pool.acquire(300);
+        buffer.put((byte) 1).limit(10);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(512, pool.getPooledBytes());
+
+        // Another class doesn't get it
+        assertNotSame(buffer, pool.acquire(100));
+        ByteBuffer again = pool.acquire(500);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(3, pool.getAcquireCount());
+        assertEquals(2, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void keepsHeapAndDirectApart() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer direct = pool.acquireDirect(100);
+        assertTrue(direct.isDirect());
+        pool.release(direct);
+
+        ByteBuffer heap = pool.acquire(100);
+        assertFalse(heap.isDirect());
+        assertTrue(heap.hasArray());
+        assertSame(direct, pool.acquireDirect(100));
+    }
+
+    @Test
+    public void dropsBuffersBeyondMaxPerClass() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(100);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getPooledCount());
+        assertEquals(3, pool.getReleaseCount());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void neverPoolsBuffersOutsideClasses() {
+        BufferPool pool = new BufferPool();
+        pool.release(pool.acquire(BufferPool.MAX_CLASS_SIZE + 1));
+        // Not from the pool at all, and not of a class size
+        pool.release(ByteBuffer.allocate(300));
+        pool.release(null);
+        assertEquals(0, pool.getPooledCount());
+    }
+
+    @Test
+    public void reportsWhereLeakedBuffersWereAcquired() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, true);
+        ByteBuffer kept = pool.acquire(100);
+        pool.release(pool.acquire(100));
+
+        assertEquals(1, pool.getLeaks().size());
+        StackTraceElement caller = pool.getLeaks().get(0).getStackTrace()[2];
+        assertEquals(getClass().getName(), caller.getClassName());
+
+        pool.release(kept);
+        assertTrue(pool.getLeaks().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsOnDoubleReleaseWithLeakDetection() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, true);
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsOnForeignReleaseWithLeakDetection() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, true);
+        pool.release(ByteBuffer.allocate(256));
+    }
+
+    @Test
+    public void reportsNoLeaksWithoutDetection() {
+        BufferPool pool = new BufferPool();
+        pool.acquire(100);
+        assertTrue(pool.getLeaks().isEmpty());
+        assertEquals(1, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,90 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of putting channel messages back together from their chunks.
+ */
+public class ChunkAssemblyTest {
+    private static final int MAX_SIZE = 16;
+
+    private final Map<Integer, ByteArrayOutputStream> mPartial = new HashMap<>();
+
+    @Test
+    public void returnsSingleChunkMessageAtOnce() throws IOException {
+        assertArrayEquals(new byte[]{1, 2}, assemble(1, Frame.CHUNK_FIRST | Frame.CHUNK_LAST, 1, 2));
+        assertTrue(mPartial.isEmpty());
+    }
+
+    @Test
+    public void joinsChunksOfInterleavedChannels() throws IOException {
+        assertNull(assemble(1, Frame.CHUNK_FIRST, 1, 2));
+        assertNull(assemble(2, Frame.CHUNK_FIRST, 9));
+        assertNull(assemble(1, 0, 3));
+        assertArrayEquals(new byte[]{9, 8}, assemble(2, Frame.CHUNK_LAST, 8));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, assemble(1, Frame.CHUNK_LAST, 4));
+        assertTrue(mPartial.isEmpty());
+    }
+
+    @Test
+    public void acceptsMessageOfMaxSize() throws IOException {
+        assertNull(assemble(1, Frame.CHUNK_FIRST, new byte[MAX_SIZE - 1]));
+        assertArrayEquals(new byte[MAX_SIZE], assemble(1, Frame.CHUNK_LAST, 0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMessageOverMaxSize() throws IOException {
+        assemble(1, Frame.CHUNK_FIRST, new byte[MAX_SIZE]);
+        assemble(1, 0, 0);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsChunkWithoutFirst() throws IOException {
+        assemble(1, Frame.CHUNK_LAST, 1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsChunkAfterLast() throws IOException {
+        assemble(1, Frame.CHUNK_FIRST | Frame.CHUNK_LAST, 1);
+        assemble(1, Frame.CHUNK_LAST, 2);
+    }
+
+    @Test
+    public void dropsPartialMessageWhenNextOneStarts() throws IOException {
+        assertNull(assemble(1, Frame.CHUNK_FIRST, 1, 2));
+        assertArrayEquals(new byte[]{5}, assemble(1, Frame.CHUNK_FIRST | Frame.CHUNK_LAST, 5));
+        assertTrue(mPartial.isEmpty());
+    }
+
+    private byte[] assemble(int channelId, int flags, int... data) throws IOException {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        return assemble(channelId, flags, bytes);
+    }
+
+    private byte[] assemble(int channelId, int flags, byte[] data) throws IOException {
+        byte[] payload = new byte[Frame.CHANNEL_PREFIX_LENGTH + data.length];
+        payload[0] = (byte) (channelId >>> 24);
+        payload[1] = (byte) (channelId >>> 16);
+        payload[2] = (byte) (channelId >>> 8);
+        payload[3] = (byte) channelId;
+        payload[4] = (byte) flags;
+        System.arraycopy(data, 0, payload, Frame.CHANNEL_PREFIX_LENGTH, data.length);
+        return CommunicateThread.assemble(payload, mPartial, MAX_SIZE);
+    }
+}
@@ -0,0 +1,164 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the writer gathering queued lines into batches, bounded by size and by delay.
+ */
+public class CoalescingTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    // "x" * 29 and the newline
+    private static final int LINE_LENGTH = 30;
+
+    private final BlockingQueue<int[]> mFlushes = new LinkedBlockingQueue<>();
+    private TransportSocket mLocal;
+    private TransportSocket mRemote;
+    private CommunicateThread mThread;
+
+    @Before
+    public void setUp() throws IOException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        UUID uuid = UUID.randomUUID();
+        PipeTransport server = new PipeTransport(network, "00:00:00:00:00:01");
+        PipeTransport client = new PipeTransport(network, "00:00:00:00:00:02");
+        TransportServerSocket serverSocket = server.listen("coalescing", uuid);
+        mLocal = client.createSocket("00:00:00:00:00:01", uuid);
+        mLocal.connect();
+        mRemote = serverSocket.accept();
+        serverSocket.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mThread != null) {
+            mThread.cancel();
+        }
+        mRemote.close();
+    }
+
+    @Test
+    public void flushesOnceBatchReachesMaxBytes() throws Exception {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setCoalescingEnabled(true);
+        options.setCoalesceMaxBytes(100);
+        options.setCoalesceMaxDelayMicros(TimeUnit.SECONDS.toMicros(TIMEOUT_SECONDS * 2));
+        createThread(options);
+        // Queued before the writer runs, so the byte bound is what ends each batch
+        for (int i = 0; i < 8; i++) {
+            mThread.writeLine(line());
+        }
+        mThread.start();
+
+        // 30, 60, 90, then 120 reaches the bound
+        for (int i = 0; i < 2; i++) {
+            int[] flush = mFlushes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(4, flush[0]);
+            assertEquals(4 * LINE_LENGTH, flush[1]);
+        }
+        assertNull(mFlushes.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flushesLoneLineAfterMaxDelay() throws Exception {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setCoalescingEnabled(true);
+        options.setCoalesceMaxBytes(1 << 20);
+        options.setCoalesceMaxDelayMicros(TimeUnit.MILLISECONDS.toMicros(200));
+        createThread(options);
+        mThread.start();
+
+        long start = System.nanoTime();
+        mThread.writeLine(line());
+        Thread.sleep(50);
+        // Joins the batch of the first, still within its delay
+        mThread.writeLine(line());
+        int[] flush = mFlushes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(2, flush[0]);
+        assertEquals(2 * LINE_LENGTH, flush[1]);
+        assertTrue(elapsedMillis >= 150);
+        assertTrue(elapsedMillis < TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        // A line after the delay goes in a batch of its own
+        mThread.writeLine(line());
+        flush = mFlushes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(1, flush[0]);
+    }
+
+    @Test
+    public void flushesEachLineWhenDisabled() throws Exception {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setCoalescingEnabled(false);
+        createThread(options);
+        for (int i = 0; i < 5; i++) {
+            mThread.writeLine(line());
+        }
+        mThread.start();
+
+        for (int i = 0; i < 5; i++) {
+            int[] flush = mFlushes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(1, flush[0]);
+            assertEquals(LINE_LENGTH, flush[1]);
+        }
+    }
+
+    private static String line() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < LINE_LENGTH; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+
+    private void createThread(ConnectionOptions options) {
+        mThread = new CommunicateThread(mLocal, new CommunicateThread.Callback() {
+            @Override
+            public void onReceiveLine(CommunicateThread thread, String line) {
+            }
+
+            @Override
+            public void onReceiveBytes(CommunicateThread thread, byte[] data) {
+            }
+
+            @Override
+            public void onReceiveRpc(CommunicateThread thread, byte[] payload) {
+            }
+
+            @Override
+            public void onReceiveChannel(CommunicateThread thread, int channelId, byte[] data) {
+            }
+
+            @Override
+            public void onFlush(CommunicateThread thread, int messageCount, int byteCount) {
+                mFlushes.add(new int[]{messageCount, byteCount});
+            }
+
+            @Override
+            public void onHandshake(CommunicateThread thread, ProtocolParameters parameters) {
+            }
+
+            @Override
+            public void onLoseConnection(CommunicateThread thread) {
+            }
+        }, options);
+    }
+}
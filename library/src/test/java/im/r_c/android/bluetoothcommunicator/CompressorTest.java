@@ -0,0 +1,145 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of frame compression, frames that don't shrink and preset dictionaries.
+ */
+public class CompressorTest {
+    private static final byte[] DICTIONARY = "{\"type\":\"position\",\"x\":,\"y\":,\"heading\":}"
+            .getBytes(LineCodec.UTF_8);
+
+    private final BufferPool mPool = new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, true);
+    private ConnectionOptions mOptions;
+
+    @Before
+    public void setUp() {
+        mOptions = new ConnectionOptions();
+        mOptions.setCompressionThreshold(32);
+    }
+
+    @Test
+    public void roundTripsCompressibleFrame() throws IOException {
+        byte[] data = repeated(2000);
+        Compressor sender = compressor(mOptions);
+        ByteBuffer frame = sender.compress(bytes(data), mPool);
+
+        assertNotNull(frame);
+        assertEquals(Frame.TYPE_BYTES | Frame.FLAG_COMPRESSED, frame.get(1) & 0xff);
+        assertTrue(frame.limit() < Frame.HEADER_LENGTH + data.length);
+        assertEquals(Frame.HEADER_LENGTH + data.length, sender.getBytesIn());
+        assertEquals(frame.limit(), sender.getBytesOut());
+        assertArrayEquals(data, compressor(mOptions).decompress(payload(frame)));
+        mPool.release(frame);
+    }
+
+    @Test
+    public void skipsFrameNotShrinking() {
+        Compressor sender = compressor(mOptions);
+        OutboundMessage message = bytes(random(2000, 1));
+        assertNull(sender.compress(message, mPool));
+        // The output buffer went back, only the record is out
+        assertEquals(1, mPool.getOutstandingCount());
+        assertEquals(0, sender.getBytesIn());
+    }
+
+    @Test
+    public void skipsFrameBelowThresholdOrDisabled() {
+        Compressor sender = compressor(mOptions);
+        assertNull(sender.compress(bytes(repeated(31)), mPool));
+
+        sender.setEnabled(false);
+        assertNull(sender.compress(bytes(repeated(2000)), mPool));
+        assertEquals(0, mPool.getPooledCount());
+    }
+
+    @Test
+    public void pausesAfterFramesInARowDidNotShrink() {
+        Compressor sender = compressor(mOptions);
+        for (int i = 0; i < Compressor.MAX_MISSES; i++) {
+            assertNull(sender.compress(bytes(random(500, i)), mPool));
+        }
+        // Even a compressible frame goes out as it is while paused
+        for (int i = 0; i < Compressor.PAUSE_FRAMES; i++) {
+            assertNull(sender.compress(bytes(repeated(500)), mPool));
+        }
+        assertNotNull(sender.compress(bytes(repeated(500)), mPool));
+    }
+
+    @Test
+    public void roundTripsWithDictionary() throws IOException {
+        mOptions.setCompressionDictionary(DICTIONARY);
+        byte[] line = "{\"type\":\"position\",\"x\":12,\"y\":34,\"heading\":90}".getBytes(LineCodec.UTF_8);
+        ByteBuffer withDictionary = compressor(mOptions).compress(line(line), mPool);
+        assertNotNull(withDictionary);
+        assertEquals(Frame.TYPE_LINE | Frame.FLAG_COMPRESSED, withDictionary.get(1) & 0xff);
+        assertArrayEquals(line, compressor(mOptions).decompress(payload(withDictionary)));
+
+        // The short record doesn't shrink without it
+        assertNull(compressor(new ConnectionOptions()).compress(line(line), mPool));
+        mPool.release(withDictionary);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWithoutDictionary() throws IOException {
+        mOptions.setCompressionDictionary(DICTIONARY);
+        byte[] line = "{\"type\":\"position\",\"x\":12,\"y\":34,\"heading\":90}".getBytes(LineCodec.UTF_8);
+        ByteBuffer frame = compressor(mOptions).compress(line(line), mPool);
+        new Compressor(new ConnectionOptions()).decompress(payload(frame));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnBadLength() throws IOException {
+        new Compressor(mOptions).decompress(new byte[]{(byte) 0xff, 0, 0, 0, 1});
+    }
+
+    private Compressor compressor(ConnectionOptions options) {
+        Compressor compressor = new Compressor(options);
+        compressor.setEnabled(true);
+        return compressor;
+    }
+
+    private OutboundMessage bytes(byte[] data) {
+        return new OutboundMessage(CommunicateThread.encodeBytes(ByteBuffer.wrap(data), mPool), Frame.TYPE_BYTES, null);
+    }
+
+    private OutboundMessage line(byte[] line) {
+        ByteBuffer record = mPool.acquire(line.length + 1);
+        record.put(line).put((byte) '\n').flip();
+        return new OutboundMessage(new SharedBuffer(record, mPool), Frame.TYPE_LINE, null);
+    }
+
+    private static byte[] payload(ByteBuffer frame) {
+        return Arrays.copyOfRange(frame.array(), frame.arrayOffset() + Frame.HEADER_LENGTH,
+                frame.arrayOffset() + frame.limit());
+    }
+
+    private static byte[] repeated(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        return data;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
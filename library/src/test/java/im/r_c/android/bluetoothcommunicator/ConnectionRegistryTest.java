@@ -0,0 +1,148 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the connection registry and the snapshots it publishes.
+ */
+public class ConnectionRegistryTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int PUTS_PER_THREAD = 200;
+
+    private ConnectionRegistry<String> mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new ConnectionRegistry<>();
+    }
+
+    @Test
+    public void keepsSnapshotsUnchanged() {
+        mRegistry.put("a", "1");
+        List<String> values = mRegistry.values();
+        Set<String> addresses = mRegistry.addresses();
+
+        mRegistry.put("b", "2");
+        mRegistry.remove("a");
+        assertEquals(1, values.size());
+        assertEquals("1", values.get(0));
+        assertEquals(1, addresses.size());
+        assertTrue(addresses.contains("a"));
+        assertEquals(1, mRegistry.size());
+        assertEquals("2", mRegistry.get("b"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void returnsUnmodifiableValues() {
+        mRegistry.put("a", "1");
+        mRegistry.values().clear();
+    }
+
+    @Test
+    public void putsIfAbsentOnly() {
+        assertTrue(mRegistry.putIfAbsent("a", "1"));
+        assertFalse(mRegistry.putIfAbsent("a", "2"));
+        assertEquals("1", mRegistry.get("a"));
+        assertEquals("1", mRegistry.put("a", "3"));
+        assertEquals("3", mRegistry.get("a"));
+    }
+
+    @Test
+    public void keepsReplacementWhenStaleConnectionRemoved() {
+        String stale = new String("connection");
+        String replacement = new String("connection");
+        mRegistry.put("a", stale);
+        mRegistry.put("a", replacement);
+
+        // Compared by identity, an equal value isn't the same connection
+        assertFalse(mRegistry.remove("a", stale));
+        assertTrue(mRegistry.contains("a"));
+        assertTrue(mRegistry.remove("a", replacement));
+        assertFalse(mRegistry.contains("a"));
+        assertNull(mRegistry.remove("a"));
+    }
+
+    @Test
+    public void keepsEveryConcurrentPut() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int index = t;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                            String address = index + ":" + i;
+                            mRegistry.put(address, address);
+                            // Every other one goes away again
+                            if (i % 2 == 1) {
+                                mRegistry.remove(address, address);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        // Iterates while the writers change the registry
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (running.get()) {
+                        int count = 0;
+                        for (String value : mRegistry.values()) {
+                            if (value != null) {
+                                count++;
+                            }
+                        }
+                        if (count > THREAD_COUNT * PUTS_PER_THREAD) {
+                            throw new AssertionError("Too many values: " + count);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        reader.start();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(error.get());
+        assertEquals(THREAD_COUNT * PUTS_PER_THREAD / 2, mRegistry.size());
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            assertTrue(mRegistry.contains(t + ":0"));
+            assertFalse(mRegistry.contains(t + ":1"));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of reading lines and frames interleaved on one stream.
+ */
+public class FrameReaderTest {
+    private static final int MAX_FRAME_SIZE = 1024;
+
+    private final BufferPool mPool = new BufferPool(4, true);
+    private FrameReader mReader;
+
+    @After
+    public void tearDown() {
+        if (mReader != null) {
+            mReader.release();
+        }
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void readsLinesAndFramesInterleaved() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        line(out, "first");
+        frame(out, Frame.TYPE_BYTES, new byte[]{1, 2, 3});
+        line(out, "");
+        frame(out, Frame.TYPE_BYTES, new byte[0]);
+        line(out, "héllo 世界");
+
+        mReader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), mPool, MAX_FRAME_SIZE);
+        assertLine("first");
+        assertEquals(Frame.TYPE_BYTES, mReader.next());
+        assertArrayEquals(new byte[]{1, 2, 3}, mReader.getPayload());
+        assertLine("");
+        assertEquals(Frame.TYPE_BYTES, mReader.next());
+        assertEquals(0, mReader.getPayload().length);
+        assertLine("héllo 世界");
+        assertEquals(FrameReader.EOF, mReader.next());
+        assertEquals(out.size(), mReader.getBytesRead());
+    }
+
+    @Test
+    public void readsRecordsSplitAcrossReads() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] payload = new byte[300];
+        Arrays.fill(payload, (byte) 7);
+        frame(out, Frame.TYPE_BYTES, payload);
+        line(out, "split");
+        frame(out, Frame.TYPE_BYTES, payload);
+
+        mReader = new FrameReader(new TrickleInputStream(out.toByteArray(), 1), mPool, MAX_FRAME_SIZE);
+        assertEquals(Frame.TYPE_BYTES, mReader.next());
+        assertArrayEquals(payload, mReader.getPayload());
+        assertLine("split");
+        assertEquals(Frame.TYPE_BYTES, mReader.next());
+        assertArrayEquals(payload, mReader.getPayload());
+        assertEquals(FrameReader.EOF, mReader.next());
+    }
+
+    @Test
+    public void readsLineLongerThanBuffers() throws IOException {
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'x');
+        String longLine = new String(chars);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        line(out, longLine);
+        line(out, "after");
+
+        mReader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), mPool, MAX_FRAME_SIZE);
+        assertLine(longLine);
+        assertLine("after");
+    }
+
+    @Test
+    public void stripsCarriageReturnAndReadsLastLineWithoutTerminator() throws IOException {
+        byte[] bytes = "crlf\r\nlast".getBytes(LineCodec.UTF_8);
+        mReader = new FrameReader(new ByteArrayInputStream(bytes), mPool, MAX_FRAME_SIZE);
+        assertLine("crlf");
+        assertLine("last");
+        assertEquals(FrameReader.EOF, mReader.next());
+    }
+
+    @Test
+    public void knowsBufferedData() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        line(out, "a");
+        line(out, "b");
+        mReader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), mPool, MAX_FRAME_SIZE);
+        assertLine("a");
+        assertTrue(mReader.hasBufferedData());
+        assertLine("b");
+        assertFalse(mReader.hasBufferedData());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsFrameOverMaxSize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, Frame.TYPE_BYTES, new byte[MAX_FRAME_SIZE + 1]);
+        mReader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), mPool, MAX_FRAME_SIZE);
+        mReader.next();
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnTruncatedFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, Frame.TYPE_BYTES, new byte[10]);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 5);
+        mReader = new FrameReader(new ByteArrayInputStream(bytes), mPool, MAX_FRAME_SIZE);
+        mReader.next();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void requiresNewlineAfterHello() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header(Frame.TYPE_HELLO, 1), 0, Frame.HEADER_LENGTH);
+        out.write('x');
+        out.write('y');
+        mReader = new FrameReader(new ByteArrayInputStream(out.toByteArray()), mPool, MAX_FRAME_SIZE);
+        assertEquals(Frame.TYPE_HELLO, mReader.next());
+        mReader.skipNewline();
+    }
+
+    private void assertLine(String expected) throws IOException {
+        assertEquals(Frame.TYPE_LINE, mReader.next());
+        assertEquals(expected, mReader.getLine());
+    }
+
+    private static void line(ByteArrayOutputStream out, String line) {
+        byte[] bytes = (line + "\n").getBytes(LineCodec.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void frame(ByteArrayOutputStream out, int type, byte[] payload) {
+        out.write(header(type, payload.length), 0, Frame.HEADER_LENGTH);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static byte[] header(int type, int length) {
+        byte[] header = new byte[Frame.HEADER_LENGTH];
+        Frame.putHeader(header, 0, type, length);
+        return header;
+    }
+
+    /**
+     * Stream returning at most a few bytes a read, as a socket may.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final ByteArrayInputStream mmIn;
+        private final int mmMaxRead;
+
+        TrickleInputStream(byte[] bytes, int maxRead) {
+            mmIn = new ByteArrayInputStream(bytes);
+            mmMaxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            return mmIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return mmIn.read(b, off, Math.min(len, mmMaxRead));
+        }
+    }
+}
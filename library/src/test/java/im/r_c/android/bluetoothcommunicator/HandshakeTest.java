@@ -0,0 +1,143 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of negotiating parameters from the hello of each end.
+ */
+public class HandshakeTest {
+    private static final long SESSION_ID = 0x5f0e1234L;
+
+    @Test
+    public void encodesHelloAsFrameEndedByNewline() {
+        byte[] record = Handshake.encode(new ConnectionOptions(), 0);
+        assertEquals(Frame.MARKER, record[0]);
+        assertEquals(Frame.TYPE_HELLO, record[1]);
+        assertEquals(record.length - Frame.HEADER_LENGTH - 1, Frame.getInt(record, 2));
+        assertEquals('\n', record[record.length - 1]);
+        // A legacy peer must read the whole record as one line
+        for (int i = 0; i < record.length - 1; i++) {
+            assertTrue(record[i] != '\n');
+        }
+    }
+
+    @Test
+    public void negotiatesSameOptions() throws IOException {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setMaxFrameSize(4096);
+        options.setCompression(Compression.DEFLATE);
+        ProtocolParameters parameters = Handshake.decode(payload(options, 0), options, 0);
+        assertEquals(ProtocolParameters.CURRENT_VERSION, parameters.getVersion());
+        assertEquals(4096, parameters.getMaxFrameSize());
+        assertEquals(Compression.DEFLATE, parameters.getCompression());
+        assertEquals(options.getReceiveQueueCapacity(), parameters.getWindowSize());
+        assertFalse(parameters.isReliable());
+        assertEquals(0, parameters.getSessionId());
+    }
+
+    @Test
+    public void fallsBackToLowerVersion() throws IOException {
+        ProtocolParameters older = Handshake.decode(ascii("v=1;mf=100"), new ConnectionOptions(), 0);
+        assertEquals(1, older.getVersion());
+        assertFalse(older.isChannelSupported());
+
+        ProtocolParameters newer = Handshake.decode(ascii("v=99;mf=100;x=unknown;flag"), new ConnectionOptions(), 0);
+        assertEquals(ProtocolParameters.CURRENT_VERSION, newer.getVersion());
+    }
+
+    @Test
+    public void compressesOnlyIfBothSupportWithSameDictionary() throws IOException {
+        ConnectionOptions local = new ConnectionOptions();
+        local.setCompression(Compression.DEFLATE);
+        local.setCompressionDictionary(new byte[]{1, 2, 3});
+
+        ConnectionOptions peer = new ConnectionOptions(local);
+        assertEquals(Compression.DEFLATE, Handshake.decode(payload(peer, 0), local, 0).getCompression());
+
+        peer.setCompressionDictionary(new byte[]{4, 5, 6});
+        assertEquals(Compression.NONE, Handshake.decode(payload(peer, 0), local, 0).getCompression());
+
+        assertEquals(Compression.NONE, Handshake.decode(ascii("v=4;mf=100"), local, 0).getCompression());
+
+        ConnectionOptions uncompressed = new ConnectionOptions(local);
+        uncompressed.setCompression(Compression.NONE);
+        assertEquals(Compression.NONE, Handshake.decode(payload(local, 0), uncompressed, 0).getCompression());
+    }
+
+    @Test
+    public void isReliableOnlyIfBothAre() throws IOException {
+        ConnectionOptions reliable = new ConnectionOptions();
+        reliable.setReliableDeliveryEnabled(true);
+        ConnectionOptions plain = new ConnectionOptions();
+
+        assertTrue(Handshake.decode(payload(reliable, 0), reliable, 0).isReliable());
+        assertFalse(Handshake.decode(payload(plain, 0), reliable, 0).isReliable());
+        assertFalse(Handshake.decode(payload(reliable, 0), plain, 0).isReliable());
+    }
+
+    @Test
+    public void usesSessionIdOfConnectingEnd() throws IOException {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setResumptionEnabled(true);
+
+        // Connecting end, the accepting one sends 0 to say it supports resumption
+        assertEquals(SESSION_ID, Handshake.decode(payload(options, 0), options, SESSION_ID).getSessionId());
+        // Accepting end
+        assertEquals(SESSION_ID, Handshake.decode(payload(options, SESSION_ID), options, 0).getSessionId());
+    }
+
+    @Test
+    public void doesNotResumeWithoutBothEnds() throws IOException {
+        ConnectionOptions resumable = new ConnectionOptions();
+        resumable.setResumptionEnabled(true);
+        ConnectionOptions reliable = new ConnectionOptions();
+        reliable.setReliableDeliveryEnabled(true);
+
+        ProtocolParameters parameters = Handshake.decode(payload(reliable, 0), resumable, SESSION_ID);
+        assertTrue(parameters.isReliable());
+        assertEquals(0, parameters.getSessionId());
+        assertEquals(0, Handshake.decode(payload(resumable, SESSION_ID), reliable, 0).getSessionId());
+    }
+
+    @Test
+    public void assumesLegacyPeerWithoutHandshake() {
+        ProtocolParameters parameters = Handshake.assumed();
+        assertTrue(parameters.isLegacy());
+        assertFalse(parameters.isFramingSupported());
+        assertFalse(parameters.isRpcSupported());
+        assertFalse(parameters.isChannelSupported());
+        assertEquals(Compression.NONE, parameters.getCompression());
+        assertFalse(parameters.isReliable());
+        assertEquals(0, parameters.getSessionId());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMissingVersion() throws IOException {
+        Handshake.decode(ascii("mf=100;c=deflate"), new ConnectionOptions(), 0);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedNumber() throws IOException {
+        Handshake.decode(ascii("v=4;mf=lots"), new ConnectionOptions(), 0);
+    }
+
+    private static byte[] payload(ConnectionOptions options, long sessionId) {
+        byte[] record = Handshake.encode(options, sessionId);
+        return Arrays.copyOfRange(record, Frame.HEADER_LENGTH, record.length - 1);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(LineCodec.UTF_8);
+    }
+}
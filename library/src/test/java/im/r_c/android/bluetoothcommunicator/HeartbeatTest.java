@@ -0,0 +1,144 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of heartbeat misses and round trip estimates, with the timer driven by hand.
+ */
+public class HeartbeatTest {
+    private static final int MISS_LIMIT = 3;
+    // Allowed drift of a round trip measured from the time the pong is handled
+    private static final double RTT_DELTA_MICROS = 2000;
+
+    private FakeHost mHost;
+    private Heartbeat mHeartbeat;
+
+    @Before
+    public void setUp() {
+        mHost = new FakeHost();
+        mHeartbeat = new Heartbeat(mHost, 100, MISS_LIMIT, new Histogram());
+    }
+
+    @Test
+    public void timesOutAfterMissLimitIntervalsWithoutProgress() {
+        // The first interval always counts as progress
+        mHeartbeat.run();
+        for (int i = 1; i < MISS_LIMIT; i++) {
+            mHeartbeat.run();
+            assertEquals(0, mHost.mmTimeouts);
+            assertEquals(i, mHeartbeat.getStats().getConsecutiveMisses());
+        }
+        mHeartbeat.run();
+        assertEquals(1, mHost.mmTimeouts);
+        assertEquals(MISS_LIMIT, mHeartbeat.getStats().getMissCount());
+        // No ping goes out in the interval that gives up
+        assertEquals(MISS_LIMIT, mHost.mmPings);
+    }
+
+    @Test
+    public void resetsMissesOnProgress() {
+        mHeartbeat.run();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < MISS_LIMIT; i++) {
+                mHeartbeat.run();
+            }
+            mHost.mmBytesReceived++;
+            mHeartbeat.run();
+            assertEquals(0, mHeartbeat.getStats().getConsecutiveMisses());
+        }
+        assertEquals(0, mHost.mmTimeouts);
+        assertEquals(3 * (MISS_LIMIT - 1), mHeartbeat.getStats().getMissCount());
+    }
+
+    @Test
+    public void resetsMissesWhileReaderStalled() {
+        mHeartbeat.run();
+        for (int i = 1; i < MISS_LIMIT; i++) {
+            mHeartbeat.run();
+        }
+        // Waiting for the receive executor, nothing is read but the link isn't to blame
+        mHost.mmReaderStalled = true;
+        for (int i = 0; i < MISS_LIMIT * 2; i++) {
+            mHeartbeat.run();
+        }
+        assertEquals(0, mHeartbeat.getStats().getConsecutiveMisses());
+
+        mHost.mmReaderStalled = false;
+        for (int i = 1; i < MISS_LIMIT; i++) {
+            mHeartbeat.run();
+        }
+        assertEquals(0, mHost.mmTimeouts);
+        mHeartbeat.run();
+        assertEquals(1, mHost.mmTimeouts);
+    }
+
+    @Test
+    public void smoothsRoundTripTimes() {
+        pong(80000);
+        HeartbeatStats stats = mHeartbeat.getStats();
+        // The first sample is taken as it is
+        assertEquals(80000, stats.getSmoothedRttMicros(), RTT_DELTA_MICROS);
+        assertEquals(0, stats.getJitterMicros());
+
+        // RFC 6298 with alpha 1/8, RFC 3550 jitter with gain 1/16
+        pong(160000);
+        stats = mHeartbeat.getStats();
+        assertEquals(80000 + (160000 - 80000) / 8, stats.getSmoothedRttMicros(), RTT_DELTA_MICROS);
+        assertEquals((160000 - 80000) / 16, stats.getJitterMicros(), RTT_DELTA_MICROS);
+        assertEquals(160000, stats.getLastRttMicros(), RTT_DELTA_MICROS);
+
+        pong(80000);
+        stats = mHeartbeat.getStats();
+        double srtt = 90000 + (80000 - 90000) / 8.0;
+        double jitter = 5000 + (80000 - 5000) / 16.0;
+        assertEquals(srtt, stats.getSmoothedRttMicros(), RTT_DELTA_MICROS);
+        assertEquals(jitter, stats.getJitterMicros(), RTT_DELTA_MICROS);
+        assertEquals(3, stats.getPongCount());
+    }
+
+    @Test
+    public void ignoresPongFromTheFuture() {
+        mHeartbeat.onPong(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, mHeartbeat.getStats().getPongCount());
+        assertEquals(0, mHeartbeat.getStats().getSmoothedRttMicros());
+    }
+
+    private void pong(long rttMicros) {
+        mHeartbeat.onPong(System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(rttMicros));
+    }
+
+    private static class FakeHost implements Heartbeat.Host {
+        private long mmBytesReceived;
+        private boolean mmReaderStalled;
+        private int mmPings;
+        private int mmTimeouts;
+
+        @Override
+        public void sendPing(long payload) {
+            mmPings++;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return mmBytesReceived;
+        }
+
+        @Override
+        public boolean isReaderStalled() {
+            return mmReaderStalled;
+        }
+
+        @Override
+        public void onHeartbeatTimeout() {
+            mmTimeouts++;
+        }
+    }
+}
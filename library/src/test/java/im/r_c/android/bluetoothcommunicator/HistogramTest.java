@@ -0,0 +1,92 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of histogram buckets and the percentiles of its snapshots.
+ */
+public class HistogramTest {
+    @Test
+    public void bucketsByPowersOfTwo() {
+        assertEquals(0, Histogram.bucketOf(0));
+        assertEquals(1, Histogram.bucketOf(1));
+        assertEquals(2, Histogram.bucketOf(2));
+        assertEquals(2, Histogram.bucketOf(3));
+        assertEquals(3, Histogram.bucketOf(4));
+        assertEquals(10, Histogram.bucketOf(1023));
+        assertEquals(11, Histogram.bucketOf(1024));
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketHoldsValuesUpToItsBound() {
+        for (int shift = 0; shift < 62; shift++) {
+            long value = 1L << shift;
+            for (long v : new long[]{value - 1, value, value + 1}) {
+                int bucket = Histogram.bucketOf(v);
+                assertTrue(v <= LatencyHistogram.getBucketUpperBound(bucket));
+                assertTrue(bucket == 0 || v > LatencyHistogram.getBucketUpperBound(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        LatencyHistogram snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanMicros());
+        assertEquals(0, snapshot.getPercentileMicros(0));
+        assertEquals(0, snapshot.getPercentileMicros(50));
+        assertEquals(0, snapshot.getPercentileMicros(100));
+    }
+
+    @Test
+    public void reportsSingleValueAtEveryPercentile() {
+        Histogram histogram = new Histogram();
+        histogram.recordNanos(100999);
+        LatencyHistogram snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(100, snapshot.getMeanMicros());
+        // The bucket goes up to 127, the max keeps it at the value
+        assertEquals(100, snapshot.getPercentileMicros(0));
+        assertEquals(100, snapshot.getPercentileMicros(50));
+        assertEquals(100, snapshot.getPercentileMicros(99.9));
+        assertEquals(100, snapshot.getPercentileMicros(100));
+    }
+
+    @Test
+    public void clampsPercentilesToMax() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(5000);
+        LatencyHistogram snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5000, snapshot.getMaxMicros());
+        assertEquals(1023, snapshot.getPercentileMicros(50));
+        assertEquals(1023, snapshot.getPercentileMicros(99));
+        // The bucket of the max goes up to 8191
+        assertEquals(5000, snapshot.getPercentileMicros(99.5));
+        assertEquals(5000, snapshot.getPercentileMicros(100));
+        // Out of range percentiles are clamped too
+        assertEquals(1023, snapshot.getPercentileMicros(-1));
+        assertEquals(5000, snapshot.getPercentileMicros(150));
+    }
+
+    @Test
+    public void recordsNegativeAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        LatencyHistogram snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getBucketCount(0));
+        assertEquals(0, snapshot.getSumMicros());
+        assertEquals(0, snapshot.getPercentileMicros(100));
+    }
+}
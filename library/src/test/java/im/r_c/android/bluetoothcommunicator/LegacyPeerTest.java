@@ -0,0 +1,173 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.transport.PipeTransport;
+import im.r_c.android.bluetoothcommunicator.transport.TransportServerSocket;
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of talking to a peer of the original line protocol, which never sends a hello.
+ */
+public class LegacyPeerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BlockingQueue<String> mLines = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ProtocolParameters> mHandshakes = new LinkedBlockingQueue<>();
+    private TransportSocket mLocal;
+    private TransportSocket mLegacy;
+    private CommunicateThread mThread;
+
+    @Before
+    public void setUp() throws IOException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        UUID uuid = UUID.randomUUID();
+        PipeTransport server = new PipeTransport(network, "00:00:00:00:00:01");
+        PipeTransport client = new PipeTransport(network, "00:00:00:00:00:02");
+        TransportServerSocket serverSocket = server.listen("legacy", uuid);
+        mLocal = client.createSocket("00:00:00:00:00:01", uuid);
+        mLocal.connect();
+        mLegacy = serverSocket.accept();
+        serverSocket.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mThread != null) {
+            mThread.cancel();
+        }
+        mLegacy.close();
+    }
+
+    @Test
+    public void sendsOnlyLinesWithoutHandshake() throws Exception {
+        start(new ConnectionOptions());
+        mThread.writeLine("hello", null);
+
+        BufferedReader reader = legacyReader();
+        assertEquals("hello", reader.readLine());
+        writeLegacy("hi\n");
+        assertEquals("hi", mLines.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsBinarySendsWithoutHandshake() throws Exception {
+        start(new ConnectionOptions());
+        final BlockingQueue<Boolean> results = new LinkedBlockingQueue<>();
+        CommunicateThread.WriteCallback callback = new CommunicateThread.WriteCallback() {
+            @Override
+            public void onSucceed() {
+                results.add(true);
+            }
+
+            @Override
+            public void onFail() {
+                results.add(false);
+            }
+        };
+        mThread.writeBytes(ByteBuffer.wrap(new byte[]{1, 2, 3}), callback);
+        mThread.writeChannel(new Channel("bulk", Channel.PRIORITY_LOW, 1), ByteBuffer.wrap(new byte[]{4}), callback);
+        assertFalse(results.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(results.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(mHandshakes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).isLegacy());
+
+        // Nothing was written before the line
+        mThread.writeLine("after", null);
+        assertEquals("after", legacyReader().readLine());
+    }
+
+    @Test
+    public void fallsBackToLegacyWhenPeerSendsNoHello() throws Exception {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setHandshakeEnabled(true);
+        options.setHandshakeTimeoutMillis(100);
+        start(options);
+        mThread.writeLine("hello", null);
+
+        // The legacy peer reads the hello as one line it doesn't understand, then stays in sync
+        BufferedReader reader = legacyReader();
+        assertTrue(reader.readLine().length() > 0);
+        assertEquals("hello", reader.readLine());
+
+        ProtocolParameters parameters = mHandshakes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(parameters.isLegacy());
+        writeLegacy("hi\n");
+        assertEquals("hi", mLines.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fallsBackToLegacyWhenPeerSendsLineFirst() throws Exception {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setHandshakeEnabled(true);
+        options.setHandshakeTimeoutMillis(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        writeLegacy("first\n");
+        start(options);
+
+        assertTrue(mHandshakes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS).isLegacy());
+        assertEquals("first", mLines.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void start(ConnectionOptions options) {
+        mThread = new CommunicateThread(mLocal, new CommunicateThread.Callback() {
+            @Override
+            public void onReceiveLine(CommunicateThread thread, String line) {
+                mLines.add(line);
+            }
+
+            @Override
+            public void onReceiveBytes(CommunicateThread thread, byte[] data) {
+            }
+
+            @Override
+            public void onReceiveRpc(CommunicateThread thread, byte[] payload) {
+            }
+
+            @Override
+            public void onReceiveChannel(CommunicateThread thread, int channelId, byte[] data) {
+            }
+
+            @Override
+            public void onFlush(CommunicateThread thread, int messageCount, int byteCount) {
+            }
+
+            @Override
+            public void onHandshake(CommunicateThread thread, ProtocolParameters parameters) {
+                mHandshakes.add(parameters);
+            }
+
+            @Override
+            public void onLoseConnection(CommunicateThread thread) {
+            }
+        }, options);
+        mThread.start();
+    }
+
+    private BufferedReader legacyReader() throws IOException {
+        return new BufferedReader(new InputStreamReader(mLegacy.getInputStream(), LineCodec.UTF_8));
+    }
+
+    private void writeLegacy(String s) throws IOException {
+        OutputStream out = mLegacy.getOutputStream();
+        out.write(s.getBytes(LineCodec.UTF_8));
+        out.flush();
+    }
+}
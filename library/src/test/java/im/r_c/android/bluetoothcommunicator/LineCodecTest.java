@@ -0,0 +1,151 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of encoding lines of any CharSequence to UTF-8 records and decoding them back.
+ */
+public class LineCodecTest {
+    private static final String MIXED = "caf\u00e9 \u2713 \u4e2d\u6587 \ud83d\ude00 end";
+
+    private final BufferPool mPool = new BufferPool(BufferPool.DEFAULT_MAX_PER_CLASS, true);
+    private final LineCodec mCodec = new LineCodec();
+
+    @After
+    public void tearDown() {
+        // Every record and every buffer outgrown on the way went back
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void roundTripsAscii() {
+        assertRoundTrip("hello, world");
+        assertRoundTrip("");
+    }
+
+    @Test
+    public void roundTripsNonAscii() {
+        assertRoundTrip(MIXED);
+        assertRoundTrip("\u00e9");
+        // Not ASCII from the first char
+        assertRoundTrip("\ud83d\ude00");
+    }
+
+    @Test
+    public void roundTripsSurrogatePairAcrossChunks() {
+        // The pair is split between the first and the second chunk given to the encoder
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1023; i++) {
+            builder.append('\u00e9');
+        }
+        builder.append("\ud83d\ude00x");
+        assertRoundTrip(builder.toString());
+    }
+
+    @Test
+    public void roundTripsLineOutgrowingBuffer() {
+        StringBuilder builder = new StringBuilder("start ");
+        for (int i = 0; i < 20000; i++) {
+            builder.append((char) ('\u4e00' + i % 100));
+        }
+        assertRoundTrip(builder.toString());
+        // The big decode buffer isn't kept, a short line after it still decodes
+        assertRoundTrip(MIXED);
+    }
+
+    @Test
+    public void encodesAnyCharSequenceTheSame() {
+        byte[] expected = utf8Line(MIXED);
+        assertArrayEquals(expected, encode(new StringBuilder(MIXED)));
+        assertArrayEquals(expected, encode(CharBuffer.wrap(MIXED)));
+        assertArrayEquals(expected, encode(new StringBuffer(MIXED)));
+
+        // A StringBuilder can be reused once encode returns
+        StringBuilder builder = new StringBuilder("first \u00e9");
+        byte[] first = encode(builder);
+        builder.setLength(0);
+        builder.append("second");
+        assertArrayEquals(utf8Line("first \u00e9"), first);
+        assertArrayEquals(utf8Line("second"), encode(builder));
+    }
+
+    @Test
+    public void rejectsNewlineAnywhere() {
+        assertRejected("two\nlines");
+        assertRejected("caf\u00e9\nlines");
+        assertRejected(new StringBuilder("caf\u00e9 \u2713\n"));
+        assertRejected("\0frame");
+    }
+
+    @Test
+    public void replacesMalformedBytes() {
+        byte[] bytes = {'a', (byte) 0xc3, 'b', (byte) 0xff};
+        assertEquals("a\ufffdb\ufffd", mCodec.decode(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void decodesFromPositionToLimit() {
+        byte[] line = MIXED.getBytes(LineCodec.UTF_8);
+        byte[] padded = new byte[line.length + 4];
+        System.arraycopy(line, 0, padded, 2, line.length);
+        ByteBuffer in = ByteBuffer.wrap(padded, 2, line.length);
+        assertEquals(MIXED, mCodec.decode(in));
+        assertEquals(2 + line.length, in.position());
+    }
+
+    @Test
+    public void keepsOneCodecPerThread() throws Exception {
+        final AtomicReference<LineCodec> other = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.set(LineCodec.forCurrentThread());
+            }
+        });
+        thread.start();
+        thread.join();
+        assertSame(LineCodec.forCurrentThread(), LineCodec.forCurrentThread());
+        assertNotSame(LineCodec.forCurrentThread(), other.get());
+    }
+
+    private void assertRoundTrip(String line) {
+        byte[] record = encode(line);
+        assertArrayEquals(utf8Line(line), record);
+        assertEquals(line, mCodec.decode(ByteBuffer.wrap(record, 0, record.length - 1)));
+    }
+
+    private void assertRejected(CharSequence line) {
+        try {
+            mCodec.encode(line, mPool);
+            fail("Encoded " + line);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private byte[] encode(CharSequence line) {
+        SharedBuffer record = mCodec.encode(line, mPool);
+        ByteBuffer buffer = record.buffer;
+        byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.limit());
+        record.release();
+        return bytes;
+    }
+
+    private static byte[] utf8Line(String line) {
+        return (line + "\n").getBytes(LineCodec.UTF_8);
+    }
+}
@@ -0,0 +1,270 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of typed messages written by MessageWriter and read back by MessageReader.
+ */
+public class MessageReaderTest {
+    private static final long[] VARINTS = {
+            0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE
+    };
+
+    private static final MessageCodec<Point> POINT_CODEC = new MessageCodec<Point>() {
+        @Override
+        public void encode(Point message, MessageWriter out) {
+            out.writeInt(message.mmX).writeInt(message.mmY).writeString(message.mmLabel);
+        }
+
+        @Override
+        public Point decode(MessageReader in) throws ProtocolException {
+            return new Point(in.readInt(), in.readInt(), in.readString());
+        }
+    };
+
+    @Test
+    public void readsVarints() throws ProtocolException {
+        MessageWriter writer = new MessageWriter();
+        for (long value : VARINTS) {
+            writer.writeVarint(value).writeSignedVarint(value);
+        }
+        MessageReader reader = reader(writer);
+        for (long value : VARINTS) {
+            assertEquals(value, reader.readVarint());
+            assertEquals(value, reader.readSignedVarint());
+        }
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void encodesVarintsCompactly() {
+        assertEquals(1, new MessageWriter().writeVarint(127).length());
+        assertEquals(2, new MessageWriter().writeVarint(128).length());
+        assertEquals(10, new MessageWriter().writeVarint(-1).length());
+        // Zigzag keeps small negative values small
+        assertEquals(1, new MessageWriter().writeSignedVarint(-64).length());
+        assertEquals(2, new MessageWriter().writeSignedVarint(-65).length());
+    }
+
+    @Test
+    public void readsFields() throws ProtocolException {
+        byte[] bytes = {1, 2, 3};
+        MessageWriter writer = new MessageWriter()
+                .writeInt(Integer.MIN_VALUE)
+                .writeBoolean(true)
+                .writeFloat(1.5f)
+                .writeDouble(-0.25)
+                .writeBytes(bytes)
+                .writeBytes(new byte[0]);
+        MessageReader reader = reader(writer);
+        assertEquals(Integer.MIN_VALUE, reader.readInt());
+        assertTrue(reader.readBoolean());
+        assertEquals(1.5f, reader.readFloat(), 0);
+        assertEquals(-0.25, reader.readDouble(), 0);
+        assertArrayEquals(bytes, reader.readBytes());
+        assertEquals(0, reader.readBytes().length);
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void readsStrings() throws ProtocolException {
+        String[] values = {"", "ascii", "caf\u00e9", "\u4e2d\u6587", "emoji \ud83d\ude00 end"};
+        MessageWriter writer = new MessageWriter();
+        for (String value : values) {
+            writer.writeString(value);
+        }
+        MessageReader reader = reader(writer);
+        for (String value : values) {
+            assertEquals(value, reader.readString());
+        }
+    }
+
+    @Test
+    public void writesUnpairedSurrogateAsQuestionMark() throws ProtocolException {
+        MessageWriter writer = new MessageWriter().writeString("a\ud83db").writeString("\ude00");
+        MessageReader reader = reader(writer);
+        assertEquals("a?b", reader.readString());
+        assertEquals("?", reader.readString());
+    }
+
+    @Test
+    public void readsMalformedUtf8AsReplacement() throws ProtocolException {
+        // Stray continuation byte, then a 3-byte sequence cut short by the end of the string
+        byte[] message = {4, 'a', (byte) 0x80, (byte) 0xe4, (byte) 0xb8};
+        assertEquals("a\ufffd\ufffd", new MessageReader(message, 0, message.length).readString());
+    }
+
+    @Test
+    public void readsNestedMessages() throws ProtocolException {
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'x');
+        // The second one is longer than 127 bytes, so its length prefix takes two
+        Point small = new Point(1, -2, "a");
+        Point large = new Point(3, 4, new String(chars));
+        MessageWriter writer = new MessageWriter()
+                .writeMessage(small, POINT_CODEC)
+                .writeMessage(large, POINT_CODEC)
+                .writeInt(42);
+        MessageReader reader = reader(writer);
+        assertEquals(small, reader.readMessage(POINT_CODEC));
+        assertEquals(large, reader.readMessage(POINT_CODEC));
+        assertEquals(42, reader.readInt());
+    }
+
+    @Test
+    public void skipsUnreadFieldsOfNestedMessage() throws ProtocolException {
+        MessageWriter writer = new MessageWriter()
+                .writeMessage(new Point(1, 2, "later field"), POINT_CODEC)
+                .writeInt(7);
+        MessageReader reader = reader(writer);
+        int x = reader.readMessage(new MessageCodec<Integer>() {
+            @Override
+            public void encode(Integer message, MessageWriter out) {
+            }
+
+            @Override
+            public Integer decode(MessageReader in) throws ProtocolException {
+                int value = in.readInt();
+                assertTrue(in.remaining() > 0);
+                return value;
+            }
+        });
+        assertEquals(1, x);
+        assertEquals(7, reader.readInt());
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        MessageWriter writer = new MessageWriter()
+                .writeVarint(300)
+                .writeDouble(1)
+                .writeString("truncated")
+                .writeMessage(new Point(1, 2, "p"), POINT_CODEC);
+        byte[] full = Arrays.copyOf(writer.array(), writer.length());
+        // Every proper prefix cuts a field short
+        for (int length = 0; length < full.length; length++) {
+            MessageReader reader = new MessageReader(full, 0, length);
+            try {
+                reader.readVarint();
+                reader.readDouble();
+                reader.readString();
+                reader.readMessage(POINT_CODEC);
+                fail("Read " + length + " of " + full.length + " bytes");
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        // Continuation bit set on all 11 bytes
+        byte[] longVarint = new byte[11];
+        Arrays.fill(longVarint, (byte) 0x80);
+        assertMalformed(longVarint, new Read() {
+            @Override
+            public void read(MessageReader reader) throws ProtocolException {
+                reader.readVarint();
+            }
+        });
+
+        // Length prefix past the end
+        assertMalformed(new byte[]{5, 'a', 'b'}, new Read() {
+            @Override
+            public void read(MessageReader reader) throws ProtocolException {
+                reader.readBytes();
+            }
+        });
+
+        // Negative length as a 10-byte varint
+        byte[] negativeLength = Arrays.copyOf(new MessageWriter().writeVarint(-1).array(), 10);
+        assertMalformed(negativeLength, new Read() {
+            @Override
+            public void read(MessageReader reader) throws ProtocolException {
+                reader.readString();
+            }
+        });
+
+        // Int out of range
+        MessageWriter writer = new MessageWriter().writeSignedVarint(Integer.MAX_VALUE + 1L);
+        assertMalformed(Arrays.copyOf(writer.array(), writer.length()), new Read() {
+            @Override
+            public void read(MessageReader reader) throws ProtocolException {
+                reader.readInt();
+            }
+        });
+
+        // Nested message reading past its own length
+        writer = new MessageWriter().writeMessage(1, new MessageCodec<Integer>() {
+            @Override
+            public void encode(Integer message, MessageWriter out) {
+                out.writeInt(message);
+            }
+
+            @Override
+            public Integer decode(MessageReader in) {
+                return null;
+            }
+        }).writeInt(2).writeInt(3);
+        assertMalformed(Arrays.copyOf(writer.array(), writer.length()), new Read() {
+            @Override
+            public void read(MessageReader reader) throws ProtocolException {
+                reader.readMessage(POINT_CODEC);
+            }
+        });
+    }
+
+    private static void assertMalformed(byte[] message, Read read) {
+        try {
+            read.read(new MessageReader(message, 0, message.length));
+            fail("Read malformed message");
+        } catch (ProtocolException expected) {
+            assertFalse(expected.getMessage() == null);
+        }
+    }
+
+    private static MessageReader reader(MessageWriter writer) {
+        return new MessageReader(writer.array(), 0, writer.length());
+    }
+
+    private interface Read {
+        void read(MessageReader reader) throws ProtocolException;
+    }
+
+    private static class Point {
+        final int mmX;
+        final int mmY;
+        final String mmLabel;
+
+        Point(int x, int y, String label) {
+            mmX = x;
+            mmY = y;
+            mmLabel = label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Point)) {
+                return false;
+            }
+            Point point = (Point) o;
+            return mmX == point.mmX && mmY == point.mmY && mmLabel.equals(point.mmLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mmX + mmY) + mmLabel.hashCode();
+        }
+    }
+}
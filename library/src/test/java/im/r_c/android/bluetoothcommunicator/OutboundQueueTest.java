@@ -0,0 +1,285 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the order in which queued messages are written.
+ */
+public class OutboundQueueTest {
+    private static final int CHUNK_SIZE = 100;
+
+    private final BufferPool mPool = new BufferPool(4, true);
+    private final List<OutboundMessage> mLeft = new ArrayList<>();
+    private OutboundQueue mQueue = newQueue(1000, BackpressurePolicy.BLOCK);
+
+    @After
+    public void tearDown() {
+        mLeft.addAll(mQueue.close());
+        for (OutboundMessage message : mLeft) {
+            message.fail();
+        }
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void writesProtocolFramesFirst() throws InterruptedException {
+        OutboundMessage data = line("data");
+        OutboundMessage control = control();
+        mQueue.offer(data);
+        mQueue.offerProtocol(control);
+        assertTakes(control);
+        assertTakes(data);
+    }
+
+    @Test
+    public void servesHigherPriorityChannelFirst() throws InterruptedException {
+        Channel low = new Channel("low", Channel.PRIORITY_LOW, 100);
+        Channel high = new Channel("high", Channel.PRIORITY_HIGH, 1);
+        OutboundMessage bulk = channel(low, 50);
+        OutboundMessage line = line("line");
+        OutboundMessage urgent = channel(high, 50);
+        mQueue.offer(bulk);
+        mQueue.offer(line);
+        mQueue.offer(urgent);
+        assertTakes(urgent);
+        assertTakes(line);
+        assertTakes(bulk);
+    }
+
+    @Test
+    public void sharesLinkByChannelWeights() throws InterruptedException {
+        Channel light = new Channel("light", Channel.PRIORITY_NORMAL, 1);
+        Channel heavy = new Channel("heavy", Channel.PRIORITY_NORMAL, 3);
+        for (int i = 0; i < 50; i++) {
+            mQueue.offer(channel(light, CHUNK_SIZE));
+            mQueue.offer(channel(heavy, CHUNK_SIZE));
+        }
+        int lightCount = 0;
+        for (int i = 0; i < 40; i++) {
+            if (writeChunk(take()) == light) {
+                lightCount++;
+            }
+        }
+        assertEquals(10, lightCount);
+    }
+
+    @Test
+    public void interleavesChunksOfLargeMessage() throws InterruptedException {
+        Channel file = new Channel("file", Channel.PRIORITY_NORMAL, 1);
+        Channel chat = new Channel("chat", Channel.PRIORITY_NORMAL, 1);
+        OutboundMessage large = channel(file, CHUNK_SIZE * 10);
+        mQueue.offer(large);
+        assertTakes(large);
+
+        // Offered after the large message started, written before it ends
+        OutboundMessage small = channel(chat, 10);
+        mQueue.offer(small);
+        OutboundMessage next = take();
+        writeChunk(next);
+        assertSame(small, next);
+        assertTrue(large.hasMoreChunks());
+    }
+
+    @Test
+    public void doesNotSaveCreditForIdleLane() throws InterruptedException {
+        Channel busy = new Channel("busy", Channel.PRIORITY_NORMAL, 1);
+        Channel idle = new Channel("idle", Channel.PRIORITY_NORMAL, 1);
+        for (int i = 0; i < 20; i++) {
+            mQueue.offer(channel(busy, CHUNK_SIZE));
+        }
+        for (int i = 0; i < 10; i++) {
+            writeChunk(take());
+        }
+
+        // The lane becoming busy alternates with the other, it doesn't get 10 writes in a row
+        for (int i = 0; i < 10; i++) {
+            mQueue.offer(channel(idle, CHUNK_SIZE));
+        }
+        int idleCount = 0;
+        for (int i = 0; i < 4; i++) {
+            if (writeChunk(take()) == idle) {
+                idleCount++;
+            }
+        }
+        assertEquals(2, idleCount);
+    }
+
+    @Test
+    public void sharesLinkByClassWeights() throws InterruptedException {
+        assertEquals(16, countWrites(SendPriority.NORMAL, SendPriority.BULK, 20));
+        assertEquals(16, countWrites(SendPriority.CONTROL, SendPriority.NORMAL, 20));
+    }
+
+    @Test
+    public void writesIdleControlNext() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            mQueue.offer(line(SendPriority.NORMAL, CHUNK_SIZE));
+        }
+        for (int i = 0; i < 5; i++) {
+            writeChunk(take());
+        }
+        OutboundMessage control = line(SendPriority.CONTROL, CHUNK_SIZE);
+        mQueue.offer(control);
+        assertTakes(control);
+    }
+
+    @Test
+    public void boundsControlWaitAfterLargeControl() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            mQueue.offer(line(SendPriority.NORMAL, CHUNK_SIZE));
+        }
+        OutboundMessage large = line(SendPriority.CONTROL, CHUNK_SIZE * 8);
+        mQueue.offer(large);
+        assertTakes(large);
+
+        // Its share not used up yet, the next waits for a quarter of its bytes from NORMAL
+        OutboundMessage control = line(SendPriority.CONTROL, CHUNK_SIZE);
+        mQueue.offer(control);
+        int waited = 0;
+        OutboundMessage next;
+        while ((next = take()) != control) {
+            writeChunk(next);
+            waited++;
+        }
+        writeChunk(next);
+        assertEquals(2, waited);
+    }
+
+    @Test
+    public void failsFastWhenFull() throws InterruptedException {
+        mQueue = newQueue(1, BackpressurePolicy.FAIL_FAST);
+        assertTrue(mQueue.offer(line("a")));
+        OutboundMessage rejected = line("b");
+        assertFalse(mQueue.offer(rejected));
+        mLeft.add(rejected);
+        assertEquals(1, mQueue.getDroppedCount());
+        // Protocol frames ignore capacity
+        assertTrue(mQueue.offerProtocol(control()));
+    }
+
+    @Test
+    public void dropsOldestNotWrittenInPart() throws InterruptedException {
+        mQueue = newQueue(2, BackpressurePolicy.DROP_OLDEST);
+        Channel channel = new Channel("c", Channel.PRIORITY_NORMAL, 1);
+        OutboundMessage started = channel(channel, CHUNK_SIZE * 2);
+        final boolean[] dropped = new boolean[1];
+        OutboundMessage oldest = new OutboundMessage(
+                CommunicateThread.encodeChannel(channel, ByteBuffer.allocate(10), mPool), channel,
+                new CommunicateThread.WriteCallback() {
+                    @Override
+                    public void onSucceed() {
+                    }
+
+                    @Override
+                    public void onFail() {
+                        dropped[0] = true;
+                    }
+                });
+        mQueue.offer(started);
+        mQueue.offer(oldest);
+        writeChunk(take());
+
+        // The message written in part must be finished, so the one after it goes
+        OutboundMessage newest = channel(channel, 10);
+        assertTrue(mQueue.offer(newest));
+        assertTrue(dropped[0]);
+        assertEquals(1, mQueue.getDroppedCount());
+        assertTakes(started);
+        assertTakes(newest);
+        assertNull(mQueue.poll(0));
+    }
+
+    private void assertTakes(OutboundMessage expected) throws InterruptedException {
+        OutboundMessage message = take();
+        assertSame(expected, message);
+        writeChunk(message);
+    }
+
+    /**
+     * Keep two classes busy with equal lines and count writes of the first.
+     *
+     * @param first  Class counted.
+     * @param second Other class.
+     * @param writes Number of writes.
+     * @return Writes of the first class.
+     */
+    private int countWrites(SendPriority first, SendPriority second, int writes) throws InterruptedException {
+        for (int i = 0; i < writes; i++) {
+            mQueue.offer(line(first, CHUNK_SIZE));
+            mQueue.offer(line(second, CHUNK_SIZE));
+        }
+        int count = 0;
+        for (int i = 0; i < writes; i++) {
+            OutboundMessage message = take();
+            if (message.priority == first) {
+                count++;
+            }
+            writeChunk(message);
+        }
+        return count;
+    }
+
+    private OutboundQueue newQueue(int capacity, BackpressurePolicy policy) {
+        return new OutboundQueue(capacity, policy, CHUNK_SIZE, null);
+    }
+
+    private OutboundMessage take() throws InterruptedException {
+        OutboundMessage message = mQueue.poll(0);
+        assertTrue(message != null);
+        return message;
+    }
+
+    /**
+     * Write the next chunk as the writer does, putting the message back if more are left.
+     *
+     * @param message Message taken.
+     * @return Its channel.
+     */
+    private Channel writeChunk(OutboundMessage message) {
+        if (message.type == Frame.TYPE_CHANNEL) {
+            message.chunkOffset += Math.min(message.payloadLength() - message.chunkOffset, CHUNK_SIZE);
+            if (message.hasMoreChunks()) {
+                mQueue.pushBack(message);
+                return message.channel;
+            }
+        }
+        message.succeed();
+        return message.channel;
+    }
+
+    private OutboundMessage line(String line) {
+        return new OutboundMessage(CommunicateThread.encodeLine(line, mPool), Frame.TYPE_LINE, null);
+    }
+
+    private OutboundMessage line(SendPriority priority, int size) {
+        char[] chars = new char[size - 1];
+        Arrays.fill(chars, 'x');
+        OutboundMessage message = line(new String(chars));
+        message.priority = priority;
+        return message;
+    }
+
+    private OutboundMessage control() {
+        return new OutboundMessage(CommunicateThread.encodeLine("", mPool), OutboundMessage.TYPE_PROTOCOL, null);
+    }
+
+    private OutboundMessage channel(Channel channel, int size) {
+        return new OutboundMessage(CommunicateThread.encodeChannel(channel, ByteBuffer.allocate(size), mPool),
+                channel, null);
+    }
+}
@@ -0,0 +1,154 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of batching received items, with the drain task run by hand.
+ */
+public class ReceiveDispatcherTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final LinkedBlockingQueue<Runnable> mTasks = new LinkedBlockingQueue<>();
+    // What the sink saw, line batches as lists, data as "bytes:<length>", runnables as "run"
+    private final List<Object> mEvents = new ArrayList<>();
+    private ConnectionMetrics mMetrics;
+
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private final ReceiveDispatcher.Sink mSink = new ReceiveDispatcher.Sink() {
+        @Override
+        public void onLines(List<String> lines) {
+            mEvents.add(new ArrayList<>(lines));
+        }
+
+        @Override
+        public void onBytes(byte[] data) {
+            mEvents.add("bytes:" + data.length);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mMetrics = new StatsCollector().newConnection();
+    }
+
+    @Test
+    public void schedulesOneDrainForBurst() throws Exception {
+        ReceiveDispatcher dispatcher = new ReceiveDispatcher(mExecutor, mSink, 16, mMetrics);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.offer("line" + i);
+        }
+        assertEquals(1, mTasks.size());
+
+        mTasks.take().run();
+        assertEquals(1, mEvents.size());
+        assertEquals(lines("line", 0, 5), mEvents.get(0));
+        assertTrue(mTasks.isEmpty());
+
+        // Scheduled again once the last run is done
+        dispatcher.offer("again");
+        assertEquals(1, mTasks.size());
+    }
+
+    @Test
+    public void keepsOrderAcrossKinds() throws Exception {
+        ReceiveDispatcher dispatcher = new ReceiveDispatcher(mExecutor, mSink, 16, mMetrics);
+        dispatcher.offer("a");
+        dispatcher.offer("b");
+        dispatcher.offer(new byte[3]);
+        dispatcher.offer(new Runnable() {
+            @Override
+            public void run() {
+                mEvents.add("run");
+            }
+        });
+        dispatcher.offer("c");
+        mTasks.take().run();
+
+        assertEquals(4, mEvents.size());
+        assertEquals(Arrays.asList("a", "b"), mEvents.get(0));
+        assertEquals("bytes:3", mEvents.get(1));
+        assertEquals("run", mEvents.get(2));
+        assertEquals(Collections.singletonList("c"), mEvents.get(3));
+    }
+
+    @Test
+    public void drainsAtMostMaxPerRun() throws Exception {
+        int total = ReceiveDispatcher.MAX_DRAIN + 44;
+        ReceiveDispatcher dispatcher = new ReceiveDispatcher(mExecutor, mSink, total, mMetrics);
+        for (int i = 0; i < total; i++) {
+            dispatcher.offer("line" + i);
+        }
+        mTasks.take().run();
+        assertEquals(1, mEvents.size());
+        assertEquals(lines("line", 0, ReceiveDispatcher.MAX_DRAIN), mEvents.get(0));
+
+        // The rest is left to a new run, so the executor gets a turn in between
+        assertEquals(1, mTasks.size());
+        mTasks.take().run();
+        assertEquals(lines("line", ReceiveDispatcher.MAX_DRAIN, total), mEvents.get(1));
+        assertTrue(mTasks.isEmpty());
+    }
+
+    @Test
+    public void blocksReaderWhileFull() throws Exception {
+        final ReceiveDispatcher dispatcher = new ReceiveDispatcher(mExecutor, mSink, 2, mMetrics);
+        dispatcher.offer("a");
+        dispatcher.offer("b");
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatcher.offer("c");
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mMetrics.isReaderStalled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mMetrics.isReaderStalled());
+        assertTrue(reader.isAlive());
+
+        mTasks.take().run();
+        reader.join(TIMEOUT_MILLIS);
+        assertFalse(reader.isAlive());
+        assertFalse(mMetrics.isReaderStalled());
+
+        mTasks.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).run();
+        assertEquals(2, mEvents.size());
+        assertEquals(Collections.singletonList("c"), mEvents.get(1));
+    }
+
+    private static List<String> lines(String prefix, int from, int to) {
+        List<String> lines = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            lines.add(prefix + i);
+        }
+        return lines;
+    }
+}
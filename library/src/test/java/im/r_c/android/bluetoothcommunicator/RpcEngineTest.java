@@ -0,0 +1,211 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.r_c.android.bluetoothcommunicator.listener.RpcHandler;
+import im.r_c.android.bluetoothcommunicator.listener.RpcListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of calls and replies of an RpcEngine, with frames exchanged by hand.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RpcEngineTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BlockingQueue<byte[]> mSent = new LinkedBlockingQueue<>();
+    private final BlockingQueue<RpcReply> mReplies = new LinkedBlockingQueue<>();
+    private BluetoothDevice mDevice;
+    private BluetoothDevice mOtherDevice;
+    private RpcEngine mEngine;
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevice = adapter.getRemoteDevice("00:00:00:00:00:01");
+        mOtherDevice = adapter.getRemoteDevice("00:00:00:00:00:02");
+        mEngine = new RpcEngine(new ConnectionOptions(), BluetoothCommunicator.DIRECT_EXECUTOR, new RpcEngine.Sender() {
+            @Override
+            public void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback) {
+                ByteBuffer buffer = frame.buffer;
+                mSent.add(Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + Frame.HEADER_LENGTH,
+                        buffer.arrayOffset() + buffer.limit()));
+                frame.release();
+                if (callback != null) {
+                    callback.onSucceed();
+                }
+            }
+        });
+        mEngine.registerHandler("hold", new RpcHandler() {
+            @Override
+            public void onCall(byte[] params, BluetoothDevice device, RpcReply reply) {
+                mReplies.add(reply);
+            }
+        });
+    }
+
+    @Test
+    public void matchesResultsById() throws Exception {
+        RpcCall first = mEngine.call("m", new byte[]{1}, mDevice, 0, null);
+        RpcCall second = mEngine.call("m", new byte[]{2}, mDevice, 0, null);
+        int firstId = Frame.getInt(mSent.take(), 1);
+        int secondId = Frame.getInt(mSent.take(), 1);
+
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_RESULT, secondId, 20), BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertFalse(first.isDone());
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_RESULT, firstId, 10), BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertArrayEquals(new byte[]{10}, first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{20}, second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, mEngine.getPendingCount());
+    }
+
+    @Test
+    public void ignoresResultFromOtherDevice() {
+        RpcCall call = mEngine.call("m", new byte[0], mDevice, 0, null);
+        int id = Frame.getInt(mSent.poll(), 1);
+        mEngine.onReceive(mOtherDevice, payload(RpcEngine.KIND_RESULT, id, 1), BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertFalse(call.isDone());
+    }
+
+    @Test
+    public void sendsCancelOnceOnTimeout() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        RpcCall call = mEngine.call("m", new byte[0], mDevice, 50, new RpcListener() {
+            @Override
+            public void onSucceed(byte[] result, BluetoothDevice device) {
+            }
+
+            @Override
+            public void onFail(RpcException error, BluetoothDevice device) {
+                failures.incrementAndGet();
+            }
+        });
+        int id = Frame.getInt(mSent.take(), 1);
+
+        byte[] cancel = mSent.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(RpcEngine.KIND_CANCEL, cancel[0]);
+        assertEquals(id, Frame.getInt(cancel, 1));
+        assertEquals(RpcException.Reason.TIMEOUT, call.getError().getReason());
+
+        // Neither a late result nor cancelling completes it again
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_RESULT, id, 1), BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertFalse(call.cancel(true));
+        assertEquals(RpcException.Reason.TIMEOUT, call.getError().getReason());
+        assertEquals(1, failures.get());
+        assertNull(mSent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancelMarksRemoteReplyCancelled() throws Exception {
+        RpcCall call = mEngine.call("hold", new byte[0], mDevice, 0, null);
+        byte[] request = mSent.take();
+        assertTrue(call.cancel(true));
+        byte[] cancel = mSent.take();
+        assertEquals(RpcEngine.KIND_CANCEL, cancel[0]);
+
+        // The same engine plays the peer, the device is the caller then
+        mEngine.onReceive(mDevice, request, BluetoothCommunicator.DIRECT_EXECUTOR);
+        RpcReply reply = mReplies.take();
+        assertFalse(reply.isCancelled());
+        mEngine.onReceive(mDevice, cancel, BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertTrue(reply.isCancelled());
+
+        // No result is sent for a cancelled call
+        reply.succeed(new byte[]{1});
+        assertNull(mSent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failsOnlyCallsOfDisconnectedDevice() {
+        RpcCall call = mEngine.call("m", new byte[0], mDevice, 0, null);
+        RpcCall other = mEngine.call("m", new byte[0], mOtherDevice, 0, null);
+        mEngine.onReceive(mOtherDevice, payload(RpcEngine.KIND_REQUEST, 7, 0, 4, 'h', 'o', 'l', 'd'),
+                BluetoothCommunicator.DIRECT_EXECUTOR);
+        RpcReply reply = mReplies.poll();
+
+        mEngine.onDisconnected(mDevice);
+        assertEquals(RpcException.Reason.DISCONNECTED, call.getError().getReason());
+        assertFalse(other.isDone());
+        assertFalse(reply.isCancelled());
+        assertEquals(1, mEngine.getPendingCount());
+
+        mEngine.onDisconnected(mOtherDevice);
+        assertEquals(RpcException.Reason.DISCONNECTED, other.getError().getReason());
+        assertTrue(reply.isCancelled());
+    }
+
+    @Test
+    public void ignoresMalformedPayloads() {
+        RpcCall call = mEngine.call("m", new byte[0], mDevice, 0, null);
+        int id = Frame.getInt(mSent.poll(), 1);
+
+        // Shorter than the prefix, a request without its name length, a name past the end
+        mEngine.onReceive(mDevice, new byte[]{RpcEngine.KIND_RESULT, 0, 0, 0}, BluetoothCommunicator.DIRECT_EXECUTOR);
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_REQUEST, 9, 0), BluetoothCommunicator.DIRECT_EXECUTOR);
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_REQUEST, 9, 0, 5, 'h', 'o', 'l', 'd'),
+                BluetoothCommunicator.DIRECT_EXECUTOR);
+        // Unknown kind and unknown id
+        mEngine.onReceive(mDevice, payload(42, id), BluetoothCommunicator.DIRECT_EXECUTOR);
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_RESULT, id + 100), BluetoothCommunicator.DIRECT_EXECUTOR);
+
+        assertFalse(call.isDone());
+        assertTrue(mReplies.isEmpty());
+        assertTrue(mSent.isEmpty());
+    }
+
+    @Test
+    public void failsOnErrorWithoutCode() {
+        RpcCall call = mEngine.call("m", new byte[0], mDevice, 0, null);
+        int id = Frame.getInt(mSent.poll(), 1);
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_ERROR, id), BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertTrue(call.isDone());
+        assertEquals(RpcException.Reason.REMOTE, call.getError().getReason());
+    }
+
+    @Test
+    public void answersUnknownMethod() throws Exception {
+        mEngine.onReceive(mDevice, payload(RpcEngine.KIND_REQUEST, 3, 0, 1, 'x'), BluetoothCommunicator.DIRECT_EXECUTOR);
+        byte[] error = mSent.take();
+        assertEquals(RpcEngine.KIND_ERROR, error[0]);
+        assertEquals(3, Frame.getInt(error, 1));
+
+        // Fed back to a caller with that id, it fails with NO_SUCH_METHOD
+        RpcCall call = mEngine.call("x", new byte[0], mDevice, 0, null);
+        int id = Frame.getInt(mSent.take(), 1);
+        ByteBuffer.wrap(error).putInt(1, id);
+        mEngine.onReceive(mDevice, error, BluetoothCommunicator.DIRECT_EXECUTOR);
+        assertEquals(RpcException.Reason.NO_SUCH_METHOD, call.getError().getReason());
+    }
+
+    private static byte[] payload(int kind, int id, int... body) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + body.length);
+        buffer.put((byte) kind).putInt(id);
+        for (int b : body) {
+            buffer.put((byte) b);
+        }
+        return buffer.array();
+    }
+}
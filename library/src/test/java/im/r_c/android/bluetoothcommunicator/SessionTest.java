@@ -0,0 +1,311 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+import im.r_c.android.bluetoothcommunicator.transport.TransportSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the acknowledgement and resume counting of a session.
+ */
+public class SessionTest {
+    private static final long ID = 42;
+    private static final int BUFFER_LIMIT = 8;
+
+    private final BufferPool mPool = new BufferPool(4, true);
+    private final List<String> mResults = new ArrayList<>();
+    private Session mSession;
+    private CommunicateThread mFirst;
+    private CommunicateThread mSecond;
+
+    @Before
+    public void setUp() {
+        mSession = new Session(ID, BUFFER_LIMIT);
+        mFirst = newThread();
+        mSecond = newThread();
+    }
+
+    @After
+    public void tearDown() {
+        mSession.close();
+        assertEquals(0, mPool.getOutstandingCount());
+    }
+
+    @Test
+    public void startsOnFirstConnectionWhenBothEndsAreNew() throws IOException {
+        assertFalse(mSession.attach(mFirst));
+        assertFalse(mSession.isResumed());
+        mSession.resume(0, Session.NEW);
+        assertTrue(mSession.onReceived());
+        assertEquals(1, mSession.getReceivedCount());
+    }
+
+    @Test
+    public void resendsFromFirstMessageNotReceivedByPeer() throws IOException {
+        mSession.attach(mFirst);
+        mSession.resume(0, Session.NEW);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mSession.onWritten(mFirst, message("m" + i)));
+        }
+
+        int interruption = mSession.markInterrupted();
+        assertTrue(mSession.isStillInterrupted(interruption));
+        assertTrue(mSession.attach(mSecond));
+        assertFalse(mSession.isStillInterrupted(interruption));
+
+        List<OutboundMessage> resend = new ArrayList<>();
+        assertEquals(0, mSession.prepareResend(resend));
+        assertEquals(5, resend.size());
+        for (OutboundMessage message : resend) {
+            message.release();
+        }
+
+        // The peer got 3 before the connection dropped
+        mSession.resume(3, 0);
+        assertEquals("m0 ok, m1 ok, m2 ok", results());
+        assertEquals(2, mSession.getInFlightCount());
+    }
+
+    @Test
+    public void skipsMessagesReceivedBeforeReconnect() throws IOException {
+        mSession.attach(mFirst);
+        mSession.resume(0, Session.NEW);
+        for (int i = 0; i < 4; i++) {
+            mSession.onReceived();
+        }
+
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+        // The peer resends from 2, so 2 and 3 are duplicates
+        mSession.resume(0, 2);
+        assertFalse(mSession.onReceived());
+        assertFalse(mSession.onReceived());
+        assertTrue(mSession.onReceived());
+        assertEquals(5, mSession.getReceivedCount());
+    }
+
+    @Test
+    public void keepsMessagesSentWhileInterruptedForNextConnection() throws IOException {
+        mSession.attach(mFirst);
+        mSession.markInterrupted();
+        OutboundMessage message = message("waiting");
+        assertTrue(mSession.offer(message));
+
+        mSession.attach(mSecond);
+        List<OutboundMessage> pending = mSession.takePending();
+        assertEquals(1, pending.size());
+        assertSame(message, pending.get(0));
+        assertTrue(mSession.takePending().isEmpty());
+        message.fail();
+    }
+
+    @Test
+    public void closesWhenPeerReceivedMoreThanSent() throws IOException {
+        mSession.attach(mFirst);
+        mSession.onWritten(mFirst, message("m0"));
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+        assertResumeFails(2, 0);
+        assertTrue(mSession.isClosed());
+        assertFalse(mSession.isRejected());
+        assertEquals("m0 failed", results());
+    }
+
+    @Test
+    public void closesWhenPeerResendsFromBeyondReceived() throws IOException {
+        mSession.attach(mFirst);
+        mSession.onReceived();
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+        assertResumeFails(0, 2);
+        assertTrue(mSession.isClosed());
+    }
+
+    @Test
+    public void closesWhenMessagesDroppedOverBufferLimitAreMissed() throws IOException {
+        mSession.attach(mFirst);
+        for (int i = 0; i < BUFFER_LIMIT + 1; i++) {
+            mSession.onWritten(mFirst, message("m" + i));
+        }
+        // The oldest is failed to keep the buffer limit and can't be resent
+        assertEquals("m0 failed", results());
+        assertEquals(BUFFER_LIMIT, mSession.getInFlightCount());
+
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+        assertResumeFails(0, 0);
+    }
+
+    @Test
+    public void rejectsResumeOfSessionUnknownToPeer() throws IOException {
+        mSession.attach(mFirst);
+        mSession.onWritten(mFirst, message("m0"));
+        mSession.onReceived();
+        mSession.markInterrupted();
+        mSession.offer(message("waiting"));
+        mSession.attach(mSecond);
+
+        assertResumeFails(0, Session.NEW);
+        assertTrue(mSession.isClosed());
+        assertTrue(mSession.isRejected());
+        // Nothing may be skipped as a duplicate or resent
+        assertEquals("m0 failed, waiting failed", results());
+        OutboundMessage late = message("late");
+        assertFalse(mSession.onWritten(mSecond, late));
+        late.fail();
+    }
+
+    @Test
+    public void rejectsPeerResumingSessionNewHere() throws IOException {
+        mSession.attach(mFirst);
+        assertResumeFails(0, 0);
+        assertTrue(mSession.isRejected());
+    }
+
+    @Test
+    public void completesMessagesCoveredByCumulativeAck() {
+        mSession.attach(mFirst);
+        for (int i = 0; i < 4; i++) {
+            mSession.onWritten(mFirst, message("m" + i));
+        }
+        mSession.onAck(2);
+        assertEquals("m0 ok, m1 ok", results());
+        assertEquals(2, mSession.getInFlightCount());
+
+        // An older ack arriving late changes nothing
+        mSession.onAck(1);
+        assertEquals(2, mSession.getInFlightCount());
+
+        mSession.onAck(4);
+        assertEquals("m0 ok, m1 ok, m2 ok, m3 ok", results());
+        DeliveryStats stats = mSession.getStats(ConnectionOptions.DEFAULT_SEND_WINDOW);
+        assertEquals(4, stats.getAckedCount());
+        assertEquals(0, stats.getInFlight());
+        assertEquals(4, stats.getMaxInFlight());
+    }
+
+    @Test
+    public void completesMessageAckedBeforeWriterKeptIt() {
+        mSession.attach(mFirst);
+        // The reader may see the ack before the writer gets to onWritten
+        mSession.onAck(1);
+        mSession.onWritten(mFirst, message("m0"));
+        assertEquals("m0 ok", results());
+        assertEquals(0, mSession.getInFlightCount());
+    }
+
+    @Test
+    public void refusesMessagesWrittenByFormerConnection() {
+        mSession.attach(mFirst);
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+        OutboundMessage message = message("stale");
+        assertFalse(mSession.onWritten(mFirst, message));
+        assertEquals(0, mSession.getInFlightCount());
+        message.fail();
+    }
+
+    @Test
+    public void countsResentMessages() throws IOException {
+        mSession.attach(mFirst);
+        mSession.onWritten(mFirst, message("m0"));
+        mSession.onWritten(mFirst, message("m1"));
+        mSession.markInterrupted();
+        mSession.attach(mSecond);
+
+        List<OutboundMessage> resend = new ArrayList<>();
+        mSession.prepareResend(resend);
+        for (OutboundMessage message : resend) {
+            assertTrue(message.resent);
+            message.release();
+        }
+        mSession.resume(0, 0);
+        mSession.onAck(2);
+        assertEquals(2, mSession.getStats(ConnectionOptions.DEFAULT_SEND_WINDOW).getResentCount());
+        // Resent messages give no round trip time sample, the time is ambiguous
+        assertEquals(0, mSession.getStats(ConnectionOptions.DEFAULT_SEND_WINDOW).getLastRttMicros());
+        assertEquals("m0 ok, m1 ok", results());
+    }
+
+    private void assertResumeFails(long peerReceived, long peerNext) throws IOException {
+        try {
+            mSession.resume(peerReceived, peerNext);
+            fail("Resumed");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    private OutboundMessage message(final String name) {
+        return new OutboundMessage(CommunicateThread.encodeLine(name, mPool), Frame.TYPE_LINE,
+                new CommunicateThread.WriteCallback() {
+                    @Override
+                    public void onSucceed() {
+                        mResults.add(name + " ok");
+                    }
+
+                    @Override
+                    public void onFail() {
+                        mResults.add(name + " failed");
+                    }
+                });
+    }
+
+    private String results() {
+        StringBuilder sb = new StringBuilder();
+        for (String result : mResults) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(result);
+        }
+        return sb.toString();
+    }
+
+    private CommunicateThread newThread() {
+        ConnectionOptions options = new ConnectionOptions();
+        options.setBufferPool(mPool);
+        return new CommunicateThread(new TransportSocket() {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return "00:00:00:00:00:01";
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return new ByteArrayOutputStream();
+            }
+
+            @Override
+            public void close() {
+            }
+        }, null, options);
+    }
+}
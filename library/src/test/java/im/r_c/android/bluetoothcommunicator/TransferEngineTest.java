@@ -0,0 +1,282 @@
+package im.r_c.android.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.bluetoothcommunicator.listener.TransferHandler;
+import im.r_c.android.bluetoothcommunicator.listener.TransferListener;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of transfers between two engines linked by fake senders.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class TransferEngineTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final Object SUCCEEDED = new Object();
+
+    private BluetoothDevice mSenderDevice;
+    private BluetoothDevice mReceiverDevice;
+    private Link mToReceiver;
+    private Link mToSender;
+    private TransferEngine mSender;
+    private TransferEngine mReceiver;
+    private volatile boolean mConnected = true;
+    private final ByteArrayOutputStream mSink = new ByteArrayOutputStream();
+    private final BlockingQueue<Object> mResults = new LinkedBlockingQueue<>();
+    // Offsets of data messages the sender sent and of accepts the receiver sent, in order
+    private final List<Long> mDataOffsets = new ArrayList<>();
+    private final List<Long> mAcceptOffsets = new ArrayList<>();
+    private int mResendCount;
+
+    private final TransferListener mListener = new TransferListener() {
+        @Override
+        public void onProgress(Transfer transfer, long bytes) {
+        }
+
+        @Override
+        public void onSucceed(Transfer transfer) {
+            mResults.add(SUCCEEDED);
+        }
+
+        @Override
+        public void onFail(Transfer transfer, TransferException error) {
+            mResults.add(error);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mSenderDevice = adapter.getRemoteDevice("00:00:00:00:00:01");
+        mReceiverDevice = adapter.getRemoteDevice("00:00:00:00:00:02");
+        ConnectionOptions options = new ConnectionOptions();
+        options.setTransferChunkSize(CHUNK_SIZE);
+
+        mToReceiver = new Link(mSenderDevice);
+        mToSender = new Link(mReceiverDevice);
+        mSender = new TransferEngine(options, BluetoothCommunicator.DIRECT_EXECUTOR, mToReceiver);
+        mReceiver = new TransferEngine(options, BluetoothCommunicator.DIRECT_EXECUTOR, mToSender);
+        mToReceiver.mmPeer = mReceiver;
+        mToSender.mmPeer = mSender;
+        mReceiver.setHandler(new TransferHandler() {
+            @Override
+            public WritableByteChannel onOffer(Transfer transfer) {
+                return Channels.newChannel(mSink);
+            }
+
+            @Override
+            public void onProgress(Transfer transfer, long bytes) {
+            }
+
+            @Override
+            public void onSucceed(Transfer transfer) {
+            }
+
+            @Override
+            public void onFail(Transfer transfer, TransferException error) {
+            }
+        });
+    }
+
+    @Test
+    public void resendsCorruptedChunk() throws Exception {
+        mToReceiver.mmCorruptOffset = CHUNK_SIZE;
+        byte[] data = data(CHUNK_SIZE * 4);
+        send(data, data.length);
+
+        assertSame(SUCCEEDED, mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(data, mSink.toByteArray());
+        synchronized (this) {
+            assertEquals(1, mResendCount);
+            // The corrupted chunk went out again
+            assertEquals(2, count(mDataOffsets, CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void resumesFromAcknowledgedOffsetAfterReconnect() throws Exception {
+        // The 10th chunk is lost with the connection
+        mToReceiver.mmDisconnectOffset = CHUNK_SIZE * 9;
+        byte[] data = data(CHUNK_SIZE * 32);
+        OutgoingTransfer transfer = (OutgoingTransfer) send(data, data.length);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (!transfer.isPaused() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(transfer.isPaused());
+        mSender.onDisconnected(mReceiverDevice);
+        mReceiver.onDisconnected(mSenderDevice);
+        int sentBefore;
+        synchronized (this) {
+            sentBefore = mDataOffsets.size();
+        }
+        mConnected = true;
+        mSender.onConnected(mReceiverDevice);
+
+        assertSame(SUCCEEDED, mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(data, mSink.toByteArray());
+        synchronized (this) {
+            long resumed = mAcceptOffsets.get(mAcceptOffsets.size() - 1);
+            assertEquals(CHUNK_SIZE * 9, resumed);
+            assertEquals(resumed, (long) mDataOffsets.get(sentBefore));
+        }
+    }
+
+    @Test
+    public void failsOnShortSource() throws Exception {
+        byte[] data = data(CHUNK_SIZE * 2 + 100);
+        send(data, data.length + 1);
+
+        Object result = mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(result instanceof TransferException);
+        assertEquals(TransferException.Reason.IO, ((TransferException) result).getReason());
+    }
+
+    @Test
+    public void keepsAtMostWindowUnacknowledged() throws Exception {
+        mToSender.mmDropAcks = true;
+        byte[] data = data(CHUNK_SIZE * TransferEngine.WINDOW * 4);
+        Transfer transfer = send(data, data.length);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (dataCount() < TransferEngine.WINDOW && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give the pump time to overrun the window if it would
+        Thread.sleep(200);
+        assertEquals(TransferEngine.WINDOW, dataCount());
+        assertEquals(0, transfer.getBytesTransferred());
+
+        transfer.cancel();
+        Object result = mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals(TransferException.Reason.CANCELLED, ((TransferException) result).getReason());
+    }
+
+    private Transfer send(byte[] data, long size) {
+        return mSender.send("test", Channels.newChannel(new ByteArrayInputStream(data)), size,
+                mReceiverDevice, mListener);
+    }
+
+    private synchronized int dataCount() {
+        return mDataOffsets.size();
+    }
+
+    private static int count(List<Long> offsets, long offset) {
+        int count = 0;
+        for (long o : offsets) {
+            if (o == offset) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 251);
+        }
+        return data;
+    }
+
+    /**
+     * Delivers messages of one engine straight to the other, as long as connected.
+     */
+    private class Link implements TransferEngine.Sender {
+        private final BluetoothDevice mmFrom;
+        private TransferEngine mmPeer;
+        private long mmCorruptOffset = -1;
+        private long mmDisconnectOffset = -1;
+        private volatile boolean mmDropAcks;
+
+        Link(BluetoothDevice from) {
+            mmFrom = from;
+        }
+
+        @Override
+        public void send(BluetoothDevice device, SharedBuffer frame, CommunicateThread.WriteCallback callback) {
+            ByteBuffer buffer = frame.buffer;
+            int start = buffer.arrayOffset() + Frame.HEADER_LENGTH + Frame.CHANNEL_PREFIX_LENGTH;
+            byte[] payload = Arrays.copyOfRange(buffer.array(), start, buffer.arrayOffset() + buffer.limit());
+            frame.release();
+
+            boolean delivered = mConnected && intercept(payload);
+            if (delivered) {
+                mmPeer.onReceive(mmFrom, payload);
+            }
+            if (callback != null) {
+                if (delivered) {
+                    callback.onSucceed();
+                } else {
+                    callback.onFail();
+                }
+            }
+        }
+
+        @Override
+        public boolean isConnected(BluetoothDevice device) {
+            return mConnected;
+        }
+
+        /**
+         * Record the message and decide its fate.
+         *
+         * @param payload Payload, may be changed.
+         * @return Deliver or not.
+         */
+        private boolean intercept(byte[] payload) {
+            int kind = payload[0];
+            synchronized (TransferEngineTest.this) {
+                if (kind == TransferEngine.KIND_DATA) {
+                    long offset = Frame.getLong(payload, TransferEngine.PREFIX_LENGTH);
+                    mDataOffsets.add(offset);
+                    if (offset == mmDisconnectOffset) {
+                        mmDisconnectOffset = -1;
+                        mConnected = false;
+                        return false;
+                    }
+                    if (offset == mmCorruptOffset) {
+                        mmCorruptOffset = -1;
+                        payload[payload.length - 1] ^= 1;
+                    }
+                } else if (kind == TransferEngine.KIND_ACCEPT) {
+                    mAcceptOffsets.add(Frame.getLong(payload, TransferEngine.PREFIX_LENGTH));
+                } else if (kind == TransferEngine.KIND_RESEND) {
+                    mResendCount++;
+                }
+            }
+            return !(mmDropAcks && kind == TransferEngine.KIND_ACK);
+        }
+    }
+}
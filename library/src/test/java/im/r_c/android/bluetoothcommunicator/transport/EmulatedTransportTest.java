@@ -0,0 +1,158 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the random conditions of an emulated link repeating for the same seed.
+ */
+public class EmulatedTransportTest {
+    private static final String SERVER_ADDRESS = "00:00:00:00:00:01";
+    private static final int PACKET_COUNT = 6;
+    private static final long JITTER_MILLIS = 150;
+    private static final long MEAN_LIFETIME_MILLIS = 300;
+    // Allowed difference of times measured on two runs, for thread scheduling
+    private static final long DELTA_MILLIS = 40;
+
+    private final List<TransportSocket> mSockets = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (TransportSocket socket : mSockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void repeatsJitterForSameSeed() throws IOException {
+        long[] first = packetDelays(jitter(42));
+        long[] second = packetDelays(jitter(42));
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            assertEquals(first[i], second[i], DELTA_MILLIS);
+        }
+
+        // Another seed draws other delays
+        long[] other = packetDelays(jitter(43));
+        boolean differs = false;
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            differs |= Math.abs(first[i] - other[i]) > DELTA_MILLIS;
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void repeatsDropTimesForSameSeed() throws IOException {
+        LinkConditions conditions = new LinkConditions();
+        conditions.setMeanDisconnectIntervalMillis(MEAN_LIFETIME_MILLIS);
+        conditions.setSeed(7);
+
+        // The n-th connection of a transport gets the same lifetime in every run
+        long[] first = lifetimes(conditions, 3);
+        long[] second = lifetimes(conditions, 3);
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], second[i], DELTA_MILLIS);
+        }
+    }
+
+    @Test
+    public void dropsByScheduleIndex() throws IOException {
+        LinkConditions conditions = new LinkConditions();
+        conditions.setDisconnectSchedule(0, 200);
+        PipeTransport.Network network = new PipeTransport.Network();
+        EmulatedTransport transport = new EmulatedTransport(new PipeTransport(network, "00:00:00:00:00:02"), conditions);
+        // Copied, changes don't apply to the transport
+        conditions.setDisconnectSchedule(100, 100);
+
+        TransportSocket[] kept = connect(network, transport);
+        TransportSocket[] dropped = connect(network, transport);
+        dropped[0].getOutputStream();
+        long start = System.nanoTime();
+        assertEquals(-1, dropped[1].getInputStream().read());
+        assertEquals(200, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), DELTA_MILLIS);
+
+        // A time of 0 never drops
+        kept[0].getOutputStream().write(1);
+        assertEquals(1, kept[1].getInputStream().read());
+        assertEquals(2, transport.getConnectionCount());
+    }
+
+    private static LinkConditions jitter(long seed) {
+        LinkConditions conditions = new LinkConditions();
+        conditions.setJitterMillis(JITTER_MILLIS);
+        conditions.setSeed(seed);
+        return conditions;
+    }
+
+    /**
+     * Send single bytes one after another over a new link, each once the one before arrived.
+     *
+     * @return Time each byte took to arrive.
+     */
+    private long[] packetDelays(LinkConditions conditions) throws IOException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        TransportSocket[] link = connect(network, new EmulatedTransport(new PipeTransport(network, "00:00:00:00:00:02"),
+                conditions));
+        OutputStream out = link[0].getOutputStream();
+        InputStream in = link[1].getInputStream();
+        long[] delays = new long[PACKET_COUNT];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            long start = System.nanoTime();
+            out.write(i);
+            assertEquals(i, in.read());
+            delays[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        return delays;
+    }
+
+    /**
+     * Make connections through one transport, and time how long each lives.
+     */
+    private long[] lifetimes(LinkConditions conditions, int count) throws IOException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        EmulatedTransport transport = new EmulatedTransport(new PipeTransport(network, "00:00:00:00:00:02"), conditions);
+        long[] lifetimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            TransportSocket[] link = connect(network, transport);
+            // Starts the delivery thread, which drops the link when its time comes
+            link[0].getOutputStream();
+            long start = System.nanoTime();
+            assertEquals(-1, link[1].getInputStream().read());
+            lifetimes[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        return lifetimes;
+    }
+
+    /**
+     * Connect through the transport to a plain server on the network.
+     *
+     * @return Emulated socket and the accepted one.
+     */
+    private TransportSocket[] connect(PipeTransport.Network network, Transport transport) throws IOException {
+        UUID uuid = UUID.randomUUID();
+        TransportServerSocket server = new PipeTransport(network, SERVER_ADDRESS).listen("emulated", uuid);
+        try {
+            TransportSocket socket = transport.createSocket(SERVER_ADDRESS, uuid);
+            mSockets.add(socket);
+            socket.connect();
+            TransportSocket accepted = server.accept();
+            mSockets.add(accepted);
+            return new TransportSocket[]{socket, accepted};
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package im.r_c.android.bluetoothcommunicator.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * BluetoothCommunicator
+ * Created by richard on 26/10/18.
+ * <p/>
+ * Tests of the MAC-style addresses TCP endpoints are written as.
+ */
+public class TcpTransportTest {
+    @Test
+    public void writesEndpointAsDeviceAddress() throws IOException {
+        assertEquals("C0:A8:00:05:1F:90", TcpTransport.toDeviceAddress(InetAddress.getByName("192.168.0.5"), 8080));
+        assertEquals("FF:FF:FF:FF:FF:FF", TcpTransport.toDeviceAddress(InetAddress.getByName("255.255.255.255"), 0xffff));
+    }
+
+    @Test
+    public void readsDeviceAddress() {
+        InetSocketAddress endpoint = TcpTransport.fromDeviceAddress("C0:A8:00:05:1F:90");
+        assertEquals("192.168.0.5", endpoint.getHostName());
+        assertEquals(8080, endpoint.getPort());
+        assertNull(TcpTransport.fromDeviceAddress("192.168.0.5:8080"));
+        assertNull(TcpTransport.fromDeviceAddress("C0:A8:00:05:1F:9G"));
+        assertNull(TcpTransport.fromDeviceAddress("C0-A8-00-05-1F-90"));
+    }
+
+    @Test
+    public void rejectsIpv6Endpoint() throws IOException {
+        try {
+            TcpTransport.toDeviceAddress(InetAddress.getByName("::1"), 8080);
+            fail("Wrote an IPv6 endpoint");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void createsSocketForEitherForm() throws IOException {
+        TcpTransport transport = new TcpTransport();
+        UUID uuid = UUID.randomUUID();
+        assertEquals("C0:A8:00:05:1F:90", transport.createSocket("C0:A8:00:05:1F:90", uuid).getRemoteAddress());
+        assertEquals("localhost:8080", transport.createSocket("localhost:8080", uuid).getRemoteAddress());
+        try {
+            transport.createSocket("localhost", uuid);
+            fail("Created a socket without a port");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void acceptsReconnectAsNewAddress() throws IOException {
+        TcpTransport.TcpServerSocket serverSocket = new TcpTransport("127.0.0.1", 0).listen("test", null);
+        String address = TcpTransport.toDeviceAddress(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort());
+        TcpTransport client = new TcpTransport();
+        try {
+            TransportSocket first = client.createSocket(address, null);
+            first.connect();
+            TransportSocket firstAccepted = serverSocket.accept();
+            first.close();
+            TransportSocket second = client.createSocket(address, null);
+            second.connect();
+            TransportSocket secondAccepted = serverSocket.accept();
+
+            // The client keys the server the same, but each connection comes from another ephemeral port
+            assertEquals(first.getRemoteAddress(), second.getRemoteAddress());
+            assertNotEquals(firstAccepted.getRemoteAddress(), secondAccepted.getRemoteAddress());
+            firstAccepted.close();
+            second.close();
+            secondAccepted.close();
+        } finally {
+            serverSocket.close();
+        }
+    }
+}